@@ -5,6 +5,7 @@ module no.ssb.lds.persistence.api {
     requires com.fasterxml.jackson.core;
     requires com.fasterxml.jackson.databind;
     requires graphql.java;
+    requires jdk.jfr;
 
     exports no.ssb.lds.api.persistence;
     exports no.ssb.lds.api.persistence.flattened;
@@ -14,4 +15,20 @@ module no.ssb.lds.persistence.api {
     exports no.ssb.lds.api.specification;
     exports no.ssb.lds.api.json;
     exports no.ssb.lds.api.persistence.batch;
+    exports no.ssb.lds.api.persistence.memory;
+    exports no.ssb.lds.api.persistence.segment;
+    exports no.ssb.lds.api.persistence.wal;
+    exports no.ssb.lds.api.persistence.index;
+    exports no.ssb.lds.api.persistence.routing;
+    exports no.ssb.lds.api.persistence.metrics;
+    exports no.ssb.lds.api.persistence.jfr;
+
+    uses no.ssb.lds.api.persistence.PersistenceInitializer;
+
+    provides no.ssb.lds.api.persistence.PersistenceInitializer with
+            no.ssb.lds.api.persistence.memory.InMemoryPersistenceInitializer,
+            no.ssb.lds.api.persistence.segment.SegmentedPersistenceInitializer,
+            no.ssb.lds.api.persistence.wal.WalPersistenceInitializer,
+            no.ssb.lds.api.persistence.routing.ShardedPersistenceInitializer,
+            no.ssb.lds.api.persistence.routing.ReplicatedPersistenceInitializer;
 }
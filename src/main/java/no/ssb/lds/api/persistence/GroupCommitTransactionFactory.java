@@ -0,0 +1,232 @@
+package no.ssb.lds.api.persistence;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A transaction-factory decorator that merges many small, independent, write units-of-work into a single physical
+ * transaction and commit. Units-of-work submitted through {@link #runAsyncInIsolatedTransaction(Function, boolean)}
+ * (non read-only) or {@link #commitAsync(Consumer)} are collected until either the time window has passed since the
+ * first of them, or the max group size is reached, and are then run one after another within one transaction from
+ * the delegate.
+ * <p>
+ * No future is completed before the physical commit has completed successfully. If a unit-of-work or the physical
+ * commit fails, the physical transaction is rolled back and each unit-of-work of the group is run again in its own
+ * transaction, so that a failing unit-of-work only fails its own caller. Units-of-work must therefore be safe to run
+ * more than once, and must be independent of each other, i.e. not read what other units-of-work of the same group
+ * write.
+ * <p>
+ * Read-only units-of-work and transactions created with {@link #createTransaction(boolean)} are not grouped.
+ */
+public class GroupCommitTransactionFactory implements TransactionFactory {
+
+    public static final TransactionStatistics.Counter GROUP_COMMITS = TransactionStatistics.counter("group-commit.commits");
+    public static final TransactionStatistics.Counter GROUP_COMMIT_FALLBACKS = TransactionStatistics.counter("group-commit.fallbacks");
+    public static final TransactionStatistics.Histogram GROUP_COMMIT_SIZE = TransactionStatistics.histogram("group-commit.size");
+
+    private final TransactionFactory delegate;
+    private final Duration window;
+    private final int maxGroupSize;
+    private final Executor executor;
+    private final TransactionStatistics statistics = new TransactionStatistics();
+
+    private final Object lock = new Object();
+    private List<PendingWork<?>> currentGroup;
+
+    /**
+     * @param delegate     the transaction-factory of the physical transactions.
+     * @param window       how long to wait for more units-of-work after the first unit-of-work of a group.
+     * @param maxGroupSize the maximum number of units-of-work in one physical transaction.
+     * @param executor     the executor that runs the units-of-work and commits.
+     */
+    public GroupCommitTransactionFactory(TransactionFactory delegate, Duration window, int maxGroupSize, Executor executor) {
+        if (maxGroupSize <= 0) {
+            throw new IllegalArgumentException("maxGroupSize must be positive: " + maxGroupSize);
+        }
+        this.delegate = delegate;
+        this.window = window;
+        this.maxGroupSize = maxGroupSize;
+        this.executor = executor;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> runAsyncInIsolatedTransaction(Function<? super Transaction, ? extends T> retryable, boolean readOnly) {
+        if (readOnly) {
+            return delegate.runAsyncInIsolatedTransaction(retryable, true);
+        }
+        return this.<T>submit(retryable).result;
+    }
+
+    /**
+     * Run a write unit-of-work as part of a group commit.
+     *
+     * @return a future that completes with the statistics of the physical transaction when the unit-of-work is
+     * committed.
+     */
+    public CompletableFuture<TransactionStatistics> commitAsync(Consumer<? super Transaction> work) {
+        return submit(tx -> {
+            work.accept(tx);
+            return null;
+        }).committed;
+    }
+
+    private <T> PendingWork<T> submit(Function<? super Transaction, ? extends T> work) {
+        PendingWork<T> pendingWork = new PendingWork<T>(work);
+        List<PendingWork<?>> groupToRun = null;
+        synchronized (lock) {
+            if (currentGroup == null) {
+                List<PendingWork<?>> group = new ArrayList<>();
+                currentGroup = group;
+                CompletableFuture.delayedExecutor(window.toNanos(), TimeUnit.NANOSECONDS, executor)
+                        .execute(() -> runIfCurrent(group));
+            }
+            currentGroup.add(pendingWork);
+            if (currentGroup.size() >= maxGroupSize) {
+                groupToRun = currentGroup;
+                currentGroup = null;
+            }
+        }
+        if (groupToRun != null) {
+            List<PendingWork<?>> group = groupToRun;
+            executor.execute(() -> runGroup(group));
+        }
+        return pendingWork;
+    }
+
+    private void runIfCurrent(List<PendingWork<?>> group) {
+        synchronized (lock) {
+            if (currentGroup != group) {
+                return; // already run because it reached the max group size
+            }
+            currentGroup = null;
+        }
+        runGroup(group);
+    }
+
+    private void runGroup(List<PendingWork<?>> group) {
+        statistics.record(GROUP_COMMIT_SIZE, group.size());
+        if (group.size() == 1) {
+            runAlone(group.get(0));
+            return;
+        }
+        Transaction tx;
+        try {
+            tx = delegate.createTransaction(false);
+        } catch (Throwable t) {
+            fallback(group);
+            return;
+        }
+        List<Object> results = new ArrayList<>(group.size());
+        try {
+            for (PendingWork<?> pendingWork : group) {
+                results.add(pendingWork.work.apply(tx));
+            }
+        } catch (Throwable t) {
+            tx.cancel().whenComplete((stats, throwable) -> fallback(group));
+            return;
+        }
+        tx.commit().whenComplete((stats, throwable) -> {
+            if (throwable != null) {
+                fallback(group);
+                return;
+            }
+            statistics.increment(GROUP_COMMITS);
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).complete(results.get(i), stats);
+            }
+        });
+    }
+
+    private void fallback(List<PendingWork<?>> group) {
+        statistics.increment(GROUP_COMMIT_FALLBACKS);
+        for (PendingWork<?> pendingWork : group) {
+            executor.execute(() -> runAlone(pendingWork));
+        }
+    }
+
+    private void runAlone(PendingWork<?> pendingWork) {
+        Object result;
+        Transaction tx;
+        try {
+            tx = delegate.createTransaction(false);
+        } catch (Throwable t) {
+            pendingWork.fail(t);
+            return;
+        }
+        try {
+            result = pendingWork.work.apply(tx);
+        } catch (Throwable t) {
+            tx.cancel().whenComplete((stats, throwable) -> pendingWork.fail(t));
+            return;
+        }
+        tx.commit().whenComplete((stats, throwable) -> {
+            if (throwable != null) {
+                pendingWork.fail(throwable);
+            } else {
+                statistics.increment(GROUP_COMMITS);
+                pendingWork.complete(result, stats);
+            }
+        });
+    }
+
+    /**
+     * @return statistics of this factory: the number of physical commits and fallbacks, and the distribution of group
+     * sizes.
+     */
+    public TransactionStatistics statistics() {
+        return statistics;
+    }
+
+    @Override
+    public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+        return delegate.createTransaction(readOnly);
+    }
+
+    /**
+     * Run any pending group, then close the delegate.
+     */
+    @Override
+    public void close() {
+        List<PendingWork<?>> group;
+        synchronized (lock) {
+            group = currentGroup;
+            currentGroup = null;
+        }
+        if (group != null) {
+            runGroup(group);
+            CompletableFuture.allOf(group.stream().map(w -> w.committed).toArray(CompletableFuture[]::new))
+                    .exceptionally(t -> null)
+                    .join();
+        }
+        delegate.close();
+    }
+
+    static class PendingWork<T> {
+        final Function<? super Transaction, ? extends T> work;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final CompletableFuture<TransactionStatistics> committed = new CompletableFuture<>();
+
+        PendingWork(Function<? super Transaction, ? extends T> work) {
+            this.work = work;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(Object value, TransactionStatistics stats) {
+            result.complete((T) value);
+            committed.complete(stats);
+        }
+
+        void fail(Throwable throwable) {
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+            result.completeExceptionally(cause);
+            committed.completeExceptionally(cause);
+        }
+    }
+}
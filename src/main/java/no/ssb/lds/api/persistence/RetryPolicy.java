@@ -0,0 +1,148 @@
+package no.ssb.lds.api.persistence;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Decides whether, and when, a failed unit-of-work is run again. Delays grow exponentially from the initial delay up
+ * to the max delay, and each delay is randomized between half and all of its nominal value (jitter) so that
+ * conflicting units-of-work do not retry in lock-step.
+ * <p>
+ * By default only failures caused by a {@link RetryablePersistenceException} are retried.
+ */
+public class RetryPolicy {
+
+    private static final RetryPolicy NONE = new RetryPolicy(0, Duration.ZERO, Duration.ZERO, RetryPolicy::isRetryable);
+
+    private final int maxRetries;
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    private final Predicate<Throwable> retryOn;
+
+    private RetryPolicy(int maxRetries, Duration initialDelay, Duration maxDelay, Predicate<Throwable> retryOn) {
+        this.maxRetries = maxRetries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.retryOn = retryOn;
+    }
+
+    /**
+     * A policy that never retries.
+     */
+    public static RetryPolicy none() {
+        return NONE;
+    }
+
+    /**
+     * @param maxRetries   the maximum number of retries, i.e. the unit-of-work is run at most maxRetries + 1 times.
+     * @param initialDelay the nominal delay before the first retry.
+     * @param maxDelay     the upper bound of the nominal delay.
+     */
+    public static RetryPolicy exponentialBackoff(int maxRetries, Duration initialDelay, Duration maxDelay) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries cannot be negative: " + maxRetries);
+        }
+        return new RetryPolicy(maxRetries, initialDelay, maxDelay, RetryPolicy::isRetryable);
+    }
+
+    /**
+     * @return a copy of this policy that retries failures matching the given predicate instead.
+     */
+    public RetryPolicy retryOn(Predicate<Throwable> retryOn) {
+        return new RetryPolicy(maxRetries, initialDelay, maxDelay, retryOn);
+    }
+
+    /**
+     * @return true if the throwable, or any of its causes, is a {@link RetryablePersistenceException}.
+     */
+    public static boolean isRetryable(Throwable throwable) {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (t instanceof RetryablePersistenceException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    public int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param failure the cause of the last failure.
+     * @param retries the number of retries done so far.
+     * @return true if the unit-of-work should be run again.
+     */
+    public boolean shouldRetry(Throwable failure, int retries) {
+        return retries < maxRetries && retryOn.test(failure);
+    }
+
+    /**
+     * @param retries the number of retries done so far.
+     * @return the randomized delay in milliseconds before the next retry.
+     */
+    public long delayMillis(int retries) {
+        long max = maxDelay.toMillis();
+        long nominal = initialDelay.toMillis() << Math.min(retries, 30);
+        if (nominal < 0 || nominal > max) {
+            nominal = max;
+        }
+        long half = nominal / 2;
+        return half + ThreadLocalRandom.current().nextLong(nominal - half + 1);
+    }
+
+    /**
+     * Run the work asynchronously on the executor, and run it again after a delay as long as it fails with a
+     * retryable failure.
+     *
+     * @return a future that completes with the result of the first successful run, or exceptionally with the cause of
+     * the last failure.
+     */
+    public <T> CompletableFuture<T> run(Supplier<? extends T> work, Executor executor) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(work, executor, executor, 0, result);
+        return result;
+    }
+
+    private <T> void attempt(Supplier<? extends T> work, Executor executor, Executor attemptExecutor, int retries, CompletableFuture<T> result) {
+        CompletableFuture.supplyAsync(work, attemptExecutor).whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable failure = unwrap(throwable);
+            if (shouldRetry(failure, retries)) {
+                Executor delayedExecutor = CompletableFuture.delayedExecutor(delayMillis(retries), TimeUnit.MILLISECONDS, executor);
+                attempt(work, executor, delayedExecutor, retries + 1, result);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        if ((throwable instanceof CompletionException || throwable instanceof ExecutionException) && throwable.getCause() != null) {
+            return throwable.getCause();
+        }
+        return throwable;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+                "maxRetries=" + maxRetries +
+                ", initialDelay=" + initialDelay +
+                ", maxDelay=" + maxDelay +
+                '}';
+    }
+}
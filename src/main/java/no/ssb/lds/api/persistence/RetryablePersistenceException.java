@@ -0,0 +1,27 @@
+package no.ssb.lds.api.persistence;
+
+/**
+ * A persistence exception where the failed unit-of-work may succeed if it is run again in a new transaction, e.g.
+ * because of a serialization conflict, a deadlock or a lost connection. Providers should throw (or wrap the cause in)
+ * this exception for such transient failures so that they can be retried by a {@link RetryPolicy}.
+ */
+public class RetryablePersistenceException extends PersistenceException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RetryablePersistenceException() {
+        super();
+    }
+
+    public RetryablePersistenceException(String message) {
+        super(message);
+    }
+
+    public RetryablePersistenceException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public RetryablePersistenceException(Throwable cause) {
+        super(cause);
+    }
+}
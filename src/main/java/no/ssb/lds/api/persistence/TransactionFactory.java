@@ -1,6 +1,7 @@
 package no.ssb.lds.api.persistence;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 public interface TransactionFactory {
@@ -21,6 +22,43 @@ public interface TransactionFactory {
         });
     }
 
+    /**
+     * Execute a unit-of-work within a new transaction asynchronously on the given executor. If the unit-of-work, or
+     * the commit of its transaction, fails with a failure that the retry policy considers retryable, the transaction
+     * is rolled back and the unit-of-work is run again in a new transaction after a delay.
+     *
+     * @param retryable   a function that will be run in another thread asynchronously given a new transaction as
+     *                    input. The function may be run more than once and should not have side effects outside the
+     *                    transaction.
+     * @param <T>         The result type of the retryable function.
+     * @param readOnly    whether the unit-of-work represent a read-only transaction or not.
+     * @param executor    the executor that runs the unit-of-work, typically a pool dedicated to blocking provider
+     *                    work rather than the common pool.
+     * @param retryPolicy when to retry the unit-of-work, see {@link RetryPolicy#none()}.
+     * @return a completable future that will be signalled when the asynchronous work is complete, or exceptionally
+     * with the last failure when the unit-of-work will not be retried any more.
+     */
+    default <T> CompletableFuture<T> runAsyncInIsolatedTransaction(Function<? super Transaction, ? extends T> retryable, boolean readOnly,
+                                                                   Executor executor, RetryPolicy retryPolicy) {
+        return retryPolicy.run(() -> {
+            Transaction tx = createTransaction(readOnly);
+            T result;
+            try {
+                result = retryable.apply(tx);
+            } catch (RuntimeException | Error e) {
+                // Roll back the failed attempt rather than commit it, and let the retry policy see the failure.
+                try {
+                    tx.cancel().join();
+                } catch (RuntimeException | Error cancelFailure) {
+                    e.addSuppressed(cancelFailure);
+                }
+                throw e;
+            }
+            tx.close();
+            return result;
+        }, executor);
+    }
+
     /**
      * Create a new transaction.
      *
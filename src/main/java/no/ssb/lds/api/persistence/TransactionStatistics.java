@@ -1,30 +1,403 @@
 package no.ssb.lds.api.persistence;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Counters and histograms of a transaction, or aggregates of many transactions using {@link #addAll}.
+ * <p>
+ * Statistics are identified by {@link Counter} and {@link Histogram} handles that are registered once, typically in a
+ * static field, e.g. <code>static final Counter WRITES = TransactionStatistics.counter("writes")</code>. Each handle
+ * holds the index of the statistic, so updating a statistic through its handle does not involve any hashing or
+ * locking. Counters are backed by {@link LongAdder}s and are cheap to update concurrently.
+ * <p>
+ * Histograms have fixed power-of-two buckets, bucket <i>i</i> counts values in the range
+ * [2<sup>i-1</sup>, 2<sup>i</sup>), with bucket 0 counting values less than 1. Merging two histograms is therefore
+ * a matter of adding bucket counts.
+ */
 public class TransactionStatistics {
-    final Map<String, AtomicLong> statistics = new ConcurrentHashMap<>();
 
+    private static final Map<String, Counter> countersByName = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histogramsByName = new ConcurrentHashMap<>();
+    private static volatile Counter[] registeredCounters = new Counter[0];
+    private static volatile Histogram[] registeredHistograms = new Histogram[0];
+
+    /**
+     * Latency of single read operations in nanoseconds.
+     */
+    public static final Histogram READ_LATENCY_NANOS = histogram("read.latency.nanos");
+
+    /**
+     * Number of fragments per read operation.
+     */
+    public static final Histogram READ_FRAGMENTS = histogram("read.fragments");
+
+    /**
+     * Number of fragment bytes per read or write operation.
+     */
+    public static final Histogram FRAGMENT_BYTES = histogram("fragment.bytes");
+
+    /**
+     * Number of retries before a unit-of-work succeeded or gave up.
+     */
+    public static final Histogram RETRIES = histogram("retries");
+
+    static final int BUCKETS = 65;
+
+    private volatile LongAdder[] counters = new LongAdder[0];
+    private volatile HistogramData[] histograms = new HistogramData[0];
+
+    /**
+     * Register a counter, or return the already registered counter with the same name. Looking up a registered
+     * counter does not lock, only registering a new one does.
+     */
+    public static Counter counter(String name) {
+        Counter counter = countersByName.get(name);
+        return counter != null ? counter : registerCounter(name);
+    }
+
+    private static synchronized Counter registerCounter(String name) {
+        Counter counter = countersByName.get(name);
+        if (counter == null) {
+            counter = new Counter(name, countersByName.size());
+            Counter[] counters = Arrays.copyOf(registeredCounters, counter.index + 1);
+            counters[counter.index] = counter;
+            registeredCounters = counters;
+            // publish the handle only after its name is registered, lookups do not lock
+            countersByName.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Register a histogram, or return the already registered histogram with the same name. Looking up a registered
+     * histogram does not lock, only registering a new one does.
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = histogramsByName.get(name);
+        return histogram != null ? histogram : registerHistogram(name);
+    }
+
+    private static synchronized Histogram registerHistogram(String name) {
+        Histogram histogram = histogramsByName.get(name);
+        if (histogram == null) {
+            histogram = new Histogram(name, histogramsByName.size());
+            Histogram[] histograms = Arrays.copyOf(registeredHistograms, histogram.index + 1);
+            histograms[histogram.index] = histogram;
+            registeredHistograms = histograms;
+            // publish the handle only after its name is registered, lookups do not lock
+            histogramsByName.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Add to a counter by name. Prefer {@link #add(Counter, long)} on hot paths, this method needs to look up the
+     * counter handle by name on every call.
+     */
     public TransactionStatistics add(String statistic, int increment) {
-        statistics.computeIfAbsent(statistic, s -> new AtomicLong(0)).addAndGet(increment);
+        return add(counter(statistic), increment);
+    }
+
+    public TransactionStatistics add(Counter counter, long increment) {
+        adder(counter.index).add(increment);
+        return this;
+    }
+
+    public TransactionStatistics increment(Counter counter) {
+        adder(counter.index).increment();
         return this;
     }
 
+    public TransactionStatistics record(Histogram histogram, long value) {
+        histogramData(histogram.index).record(value);
+        return this;
+    }
+
+    public long get(Counter counter) {
+        LongAdder[] counters = this.counters;
+        if (counter.index >= counters.length || counters[counter.index] == null) {
+            return 0;
+        }
+        return counters[counter.index].sum();
+    }
+
+    public HistogramSnapshot get(Histogram histogram) {
+        HistogramData[] histograms = this.histograms;
+        if (histogram.index >= histograms.length || histograms[histogram.index] == null) {
+            return new HistogramSnapshot(histogram.name, new long[BUCKETS], 0, 0);
+        }
+        return histograms[histogram.index].snapshot(histogram.name);
+    }
+
+    /**
+     * Add all statistics of another instance to this one.
+     */
+    public TransactionStatistics addAll(TransactionStatistics other) {
+        LongAdder[] otherCounters = other.counters;
+        for (int i = 0; i < otherCounters.length; i++) {
+            if (otherCounters[i] != null) {
+                adder(i).add(otherCounters[i].sum());
+            }
+        }
+        HistogramData[] otherHistograms = other.histograms;
+        for (int i = 0; i < otherHistograms.length; i++) {
+            if (otherHistograms[i] != null) {
+                histogramData(i).addAll(otherHistograms[i]);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * All counters that have been updated, and for each updated histogram its count, sum and max as
+     * <code>name.count</code>, <code>name.sum</code> and <code>name.max</code>.
+     */
     public Map<String, Long> map() {
         Map<String, Long> result = new LinkedHashMap<>();
-        for (Map.Entry<String, AtomicLong> e : statistics.entrySet()) {
-            result.put(e.getKey(), e.getValue().get());
+        Counter[] registeredCounters = TransactionStatistics.registeredCounters;
+        LongAdder[] counters = this.counters;
+        for (int i = 0; i < counters.length; i++) {
+            if (counters[i] != null) {
+                result.put(registeredCounters[i].name, counters[i].sum());
+            }
+        }
+        Histogram[] registeredHistograms = TransactionStatistics.registeredHistograms;
+        HistogramData[] histograms = this.histograms;
+        for (int i = 0; i < histograms.length; i++) {
+            if (histograms[i] != null) {
+                HistogramSnapshot snapshot = histograms[i].snapshot(registeredHistograms[i].name);
+                result.put(snapshot.name + ".count", snapshot.count());
+                result.put(snapshot.name + ".sum", snapshot.sum());
+                result.put(snapshot.name + ".max", snapshot.max());
+            }
         }
         return result;
     }
 
+    public List<HistogramSnapshot> histograms() {
+        List<HistogramSnapshot> result = new ArrayList<>();
+        Histogram[] registeredHistograms = TransactionStatistics.registeredHistograms;
+        HistogramData[] histograms = this.histograms;
+        for (int i = 0; i < histograms.length; i++) {
+            if (histograms[i] != null) {
+                result.add(histograms[i].snapshot(registeredHistograms[i].name));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private LongAdder adder(int index) {
+        LongAdder[] counters = this.counters;
+        if (index < counters.length) {
+            LongAdder adder = counters[index];
+            if (adder != null) {
+                return adder;
+            }
+        }
+        synchronized (this) {
+            counters = this.counters;
+            if (index >= counters.length) {
+                counters = Arrays.copyOf(counters, Math.max(index + 1, registeredCounters.length));
+            }
+            if (counters[index] == null) {
+                counters[index] = new LongAdder();
+            }
+            this.counters = counters; // volatile write publishes the new adder
+            return counters[index];
+        }
+    }
+
+    private HistogramData histogramData(int index) {
+        HistogramData[] histograms = this.histograms;
+        if (index < histograms.length) {
+            HistogramData data = histograms[index];
+            if (data != null) {
+                return data;
+            }
+        }
+        synchronized (this) {
+            histograms = this.histograms;
+            if (index >= histograms.length) {
+                histograms = Arrays.copyOf(histograms, Math.max(index + 1, registeredHistograms.length));
+            }
+            if (histograms[index] == null) {
+                histograms[index] = new HistogramData();
+            }
+            this.histograms = histograms; // volatile write publishes the new histogram
+            return histograms[index];
+        }
+    }
+
+    static int bucket(long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
     @Override
     public String toString() {
         return "TransactionStatistics{" +
-                "statistics=" + statistics +
+                "statistics=" + map() +
                 '}';
     }
+
+    public static class Counter {
+        final String name;
+        final int index;
+
+        Counter(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return "Counter{" + name + '}';
+        }
+    }
+
+    public static class Histogram {
+        final String name;
+        final int index;
+
+        Histogram(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return "Histogram{" + name + '}';
+        }
+    }
+
+    static class HistogramData {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final LongAdder sum = new LongAdder();
+        final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        void record(long value) {
+            buckets.incrementAndGet(bucket(value));
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        void addAll(HistogramData other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = other.buckets.get(i);
+                if (count != 0) {
+                    buckets.addAndGet(i, count);
+                }
+            }
+            sum.add(other.sum.sum());
+            max.accumulateAndGet(other.max.get(), Math::max);
+        }
+
+        HistogramSnapshot snapshot(String name) {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new HistogramSnapshot(name, counts, sum.sum(), Math.max(0, max.get()));
+        }
+    }
+
+    /**
+     * A point-in-time copy of a histogram.
+     */
+    public static class HistogramSnapshot {
+        final String name;
+        final long[] buckets;
+        final long count;
+        final long sum;
+        final long max;
+
+        HistogramSnapshot(String name, long[] buckets, long sum, long max) {
+            this.name = name;
+            this.buckets = buckets;
+            long count = 0;
+            for (long bucketCount : buckets) {
+                count += bucketCount;
+            }
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long sum() {
+            return sum;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return the number of values in the given bucket, values in bucket <i>i</i> are less than 2<sup>i</sup>.
+         */
+        public long bucketCount(int bucket) {
+            return buckets[bucket];
+        }
+
+        /**
+         * An upper bound of the given percentile, i.e. the exclusive upper bound of the bucket that contains the
+         * percentile, capped by the max value.
+         *
+         * @param percentile a value between 0 and 100.
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    long upperBound = i >= 63 ? Long.MAX_VALUE : 1L << i;
+                    return Math.min(upperBound, max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "HistogramSnapshot{" +
+                    "name='" + name + '\'' +
+                    ", count=" + count +
+                    ", mean=" + mean() +
+                    ", p50=" + percentile(50) +
+                    ", p99=" + percentile(99) +
+                    ", max=" + max +
+                    '}';
+        }
+    }
 }
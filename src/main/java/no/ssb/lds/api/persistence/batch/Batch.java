@@ -9,18 +9,23 @@ import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 public class Batch {
 
     final JsonNode batchNode;
     final ZonedDateTime now;
     final List<Group> groups = new ArrayList<>();
+    final int supersededEntries;
 
     public Batch(JsonNode batchNode) {
         this.batchNode = batchNode;
         this.now = ZonedDateTime.now(ZoneOffset.UTC); // default timestamp in case non is supplied in batch
+        this.supersededEntries = 0;
         if (batchNode.isArray()) {
             Iterator<JsonNode> elements = batchNode.elements();
             while (elements.hasNext()) {
@@ -44,10 +49,148 @@ public class Batch {
         }
     }
 
+    private Batch(Batch original, List<Group> groups, int supersededEntries) {
+        this.batchNode = original.batchNode;
+        this.now = original.now;
+        this.groups.addAll(groups);
+        this.supersededEntries = supersededEntries;
+    }
+
     public List<Group> groups() {
         return Collections.unmodifiableList(groups);
     }
 
+    /**
+     * Create a batch without the entries that are superseded by a later entry for the same type, id and timestamp, e.g.
+     * a put followed by another put or a delete of the same document version. Only the last of such entries is kept,
+     * in its original group. Delete-groups with match criteria act as barriers, entries are never coalesced across
+     * them since the match may depend on the entries before it. Groups that end up without entries are removed.
+     * <p>
+     * Note that the batch-node of the returned batch is the original unmodified batch-node.
+     *
+     * @return a new batch where no entry is superseded by another.
+     * @see #supersededEntries()
+     */
+    public Batch coalesce() {
+        List<Group> result = new ArrayList<>();
+        int superseded = 0;
+        int segmentStart = 0;
+        for (int i = 0; i <= groups.size(); i++) {
+            if (i < groups.size() && !groups.get(i).hasMatchCriteria()) {
+                continue;
+            }
+            // groups from segmentStart (inclusive) to i (exclusive) are not separated by a barrier
+            Map<EntryKey, Entry> lastEntries = new HashMap<>();
+            for (Group group : groups.subList(segmentStart, i)) {
+                for (Entry entry : group.entries()) {
+                    lastEntries.put(new EntryKey(group.type(), entry), entry);
+                }
+            }
+            for (Group group : groups.subList(segmentStart, i)) {
+                List<Entry> entries = new ArrayList<>();
+                for (Entry entry : group.entries()) {
+                    if (lastEntries.get(new EntryKey(group.type(), entry)) == entry) {
+                        entries.add(entry);
+                    } else {
+                        superseded++;
+                    }
+                }
+                if (entries.size() == group.entries().size()) {
+                    result.add(group);
+                } else if (!entries.isEmpty()) {
+                    result.add(group.withEntries(entries));
+                }
+            }
+            if (i < groups.size()) {
+                result.add(groups.get(i));
+            }
+            segmentStart = i + 1;
+        }
+        return new Batch(this, result, supersededEntries + superseded);
+    }
+
+    /**
+     * Split this batch into consecutive segments that must be applied one after another. Each delete-group with match
+     * criteria becomes a segment of its own, since it may match any document of its type, and the groups between
+     * them form the other segments.
+     */
+    public List<Batch> segments() {
+        List<Batch> result = new ArrayList<>();
+        List<Group> segment = new ArrayList<>();
+        for (Group group : groups) {
+            if (group.hasMatchCriteria()) {
+                if (!segment.isEmpty()) {
+                    result.add(new Batch(this, segment, 0));
+                    segment = new ArrayList<>();
+                }
+                result.add(new Batch(this, Collections.singletonList(group), 0));
+            } else {
+                segment.add(group);
+            }
+        }
+        if (!segment.isEmpty()) {
+            result.add(new Batch(this, segment, 0));
+        }
+        return result;
+    }
+
+    /**
+     * Partition the entries of this batch by the hash of their type and id. All entries of a document end up in the
+     * same partition, in their original order, so partitions can be applied independently of each other. Groups are
+     * kept in their original order within each partition, groups without entries in a partition are left out.
+     *
+     * @param partitions the number of partitions.
+     * @return exactly <code>partitions</code> batches, some of which may be empty.
+     * @throws IllegalStateException if this batch contains a delete-group with match criteria, see {@link #segments()}.
+     */
+    public List<Batch> partition(int partitions) {
+        List<List<Group>> groupsByPartition = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            groupsByPartition.add(new ArrayList<>());
+        }
+        for (Group group : groups) {
+            if (group.hasMatchCriteria()) {
+                throw new IllegalStateException("Cannot partition a batch with match criteria in group of type: " + group.type());
+            }
+            List<List<Entry>> entriesByPartition = new ArrayList<>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                entriesByPartition.add(new ArrayList<>());
+            }
+            for (Entry entry : group.entries()) {
+                entriesByPartition.get(Math.floorMod(Objects.hash(group.type(), entry.id()), partitions)).add(entry);
+            }
+            for (int i = 0; i < partitions; i++) {
+                List<Entry> entries = entriesByPartition.get(i);
+                if (!entries.isEmpty()) {
+                    groupsByPartition.get(i).add(group.withEntries(entries));
+                }
+            }
+        }
+        List<Batch> result = new ArrayList<>(partitions);
+        for (List<Group> partitionGroups : groupsByPartition) {
+            result.add(new Batch(this, partitionGroups, 0));
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of entries in all groups of this batch.
+     */
+    public int entryCount() {
+        int count = 0;
+        for (Group group : groups) {
+            count += group.entries().size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of entries removed by {@link #coalesce()}, i.e. the number of writes saved.
+     */
+    public int supersededEntries() {
+        return supersededEntries;
+    }
+
     public JsonNode getBatchNode() {
         return batchNode;
     }
@@ -59,13 +202,22 @@ public class Batch {
     public abstract class Group {
         final ObjectNode groupNode;
         final String type;
+        final List<Entry> entries;
 
         Group(ObjectNode groupNode) {
             this.groupNode = groupNode;
             this.type = groupNode.get("type").textValue();
-            entries(); // force use of timestamp in nodes
+            this.entries = parseEntries(); // force use of timestamp in nodes
+        }
+
+        Group(Group original, List<Entry> entries) {
+            this.groupNode = original.groupNode;
+            this.type = original.type;
+            this.entries = Collections.unmodifiableList(entries);
         }
 
+        abstract Group withEntries(List<Entry> entries);
+
         public abstract GroupType groupType();
 
         public String type() {
@@ -77,15 +229,33 @@ public class Batch {
         }
 
         public List<Entry> entries() {
+            return entries;
+        }
+
+        private List<Entry> parseEntries() {
             if (!groupNode.has("entries")) {
                 return Collections.emptyList();
             }
             List<Entry> result = new ArrayList<>();
             ArrayNode entries = (ArrayNode) groupNode.get("entries");
             for (JsonNode node : entries) {
-                result.add(new Entry(groupNode, (ObjectNode) node));
+                result.add(parseEntry((ObjectNode) node));
             }
-            return result;
+            return Collections.unmodifiableList(result);
+        }
+
+        private Entry parseEntry(ObjectNode entryNode) {
+            String id = entryNode.get("id").textValue();
+            ZonedDateTime timestamp;
+            if (entryNode.has("timestamp") && entryNode.get("timestamp").isTextual()) {
+                timestamp = ZonedDateTime.parse(entryNode.get("timestamp").textValue());
+            } else if (groupNode.has("timestamp") && groupNode.get("timestamp").isTextual()) {
+                timestamp = ZonedDateTime.parse(groupNode.get("timestamp").textValue());
+            } else {
+                timestamp = Batch.this.now;
+                groupNode.put("timestamp", timestamp.toString());
+            }
+            return new Entry(id, timestamp, entryNode.get("data"));
         }
 
         public abstract boolean hasMatchCriteria();
@@ -98,6 +268,15 @@ public class Batch {
             super(groupNode);
         }
 
+        PutGroup(PutGroup original, List<Entry> entries) {
+            super(original, entries);
+        }
+
+        @Override
+        Group withEntries(List<Entry> entries) {
+            return new PutGroup(this, entries);
+        }
+
         @Override
         public GroupType groupType() {
             return GroupType.PUT;
@@ -114,22 +293,15 @@ public class Batch {
         }
     }
 
-    public class Entry {
+    public static class Entry {
         final String id;
         final ZonedDateTime timestamp;
         final JsonNode dataNode;
 
-        Entry(ObjectNode groupNode, ObjectNode entryNode) {
-            this.id = entryNode.get("id").textValue();
-            if (entryNode.has("timestamp") && entryNode.get("timestamp").isTextual()) {
-                this.timestamp = ZonedDateTime.parse(entryNode.get("timestamp").textValue());
-            } else if (groupNode.has("timestamp") && groupNode.get("timestamp").isTextual()) {
-                this.timestamp = ZonedDateTime.parse(groupNode.get("timestamp").textValue());
-            } else {
-                this.timestamp = Batch.this.now;
-                groupNode.put("timestamp", this.timestamp.toString());
-            }
-            this.dataNode = entryNode.get("data");
+        public Entry(String id, ZonedDateTime timestamp, JsonNode dataNode) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.dataNode = dataNode;
         }
 
         public String id() {
@@ -145,6 +317,33 @@ public class Batch {
         }
     }
 
+    static class EntryKey {
+        final String type;
+        final String id;
+        final ZonedDateTime timestamp;
+
+        EntryKey(String type, Entry entry) {
+            this.type = type;
+            this.id = entry.id;
+            this.timestamp = entry.timestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            EntryKey entryKey = (EntryKey) o;
+            return type.equals(entryKey.type) &&
+                    id.equals(entryKey.id) &&
+                    timestamp.toInstant().equals(entryKey.timestamp.toInstant());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, id, timestamp.toInstant());
+        }
+    }
+
     public class DeleteGroup extends Group {
         final ObjectNode matchNode;
         final ZonedDateTime timestamp;
@@ -159,6 +358,17 @@ public class Batch {
             }
         }
 
+        DeleteGroup(DeleteGroup original, List<Entry> entries) {
+            super(original, entries);
+            this.matchNode = original.matchNode;
+            this.timestamp = original.timestamp;
+        }
+
+        @Override
+        Group withEntries(List<Entry> entries) {
+            return new DeleteGroup(this, entries);
+        }
+
         public ZonedDateTime getTimestamp() {
             return timestamp;
         }
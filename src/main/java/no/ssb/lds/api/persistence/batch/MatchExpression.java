@@ -0,0 +1,404 @@
+package no.ssb.lds.api.persistence.batch;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.reactivex.Range;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * The match criteria of a {@link Batch.DeleteGroup} compiled into an expression tree that can both evaluate single ids
+ * and plan how to find all matching ids with as little reading as possible:
+ * <ul>
+ * <li><code>id</code> and <code>id-in</code> become a multi-get of the (sorted) ids.</li>
+ * <li><code>id-starts-with</code> becomes a range scan of the ids with the prefix.</li>
+ * <li><code>and</code> reads the most selective of its operands and filters with the others.</li>
+ * <li><code>or</code> reads the union of its operands, unless one of them requires a full scan.</li>
+ * <li><code>not</code> and <code>id-not-in</code> require a full scan, where matches are filtered out as they stream
+ * by.</li>
+ * </ul>
+ */
+public abstract class MatchExpression {
+
+    /**
+     * Compile the match criteria of a delete-group, a group without match criteria compiles to an expression that
+     * matches nothing.
+     */
+    public static MatchExpression compile(Batch.DeleteGroup group) {
+        if (!group.hasMatchCriteria()) {
+            return new IdIn(Collections.emptySortedSet());
+        }
+        CompilingVisitor visitor = new CompilingVisitor();
+        group.evaluate(visitor);
+        return visitor.result;
+    }
+
+    /**
+     * @return true if a document with the given id matches this expression.
+     */
+    public abstract boolean matches(String id);
+
+    abstract Plan plan();
+
+    /**
+     * Find all ids that match this expression.
+     *
+     * @param multiGet reads the ids of the given set that exist.
+     * @param scan     reads the ids that exist within the given range.
+     * @return the matching ids, no guarantee is given with regards to ordering.
+     */
+    public Flowable<String> resolve(Function<SortedSet<String>, Flowable<String>> multiGet,
+                                    Function<Range<String>, Flowable<String>> scan) {
+        Plan plan = plan();
+        if (plan.fullScan) {
+            return scan.apply(Range.unbounded()).filter(this::matches);
+        }
+        // the plan is normalized so that the sources are disjoint, no need to remove duplicates
+        List<Flowable<String>> sources = new ArrayList<>();
+        if (!plan.ids.isEmpty()) {
+            sources.add(multiGet.apply(plan.ids));
+        }
+        for (String prefix : plan.prefixes) {
+            sources.add(scan.apply(prefixRange(prefix)).filter(id -> id.startsWith(prefix)));
+        }
+        return Flowable.concat(sources).filter(this::matches);
+    }
+
+    /**
+     * A range that includes all ids starting with the prefix, and as few other ids as possible. Both bounds of a
+     * {@link Range} are exclusive.
+     * <p>
+     * No string is the immediate predecessor of the prefix, so the lower bound is the prefix with its last character
+     * decremented and followed by {@link Character#MAX_VALUE}. Ids that sort between that bound and the prefix, e.g.
+     * "ab" followed by {@link Character#MAX_VALUE} and "x" for the prefix "ac", are included in the range and must be
+     * removed by the <code>startsWith</code> filter applied to every prefix scan.
+     */
+    static Range<String> prefixRange(String prefix) {
+        if (prefix.isEmpty()) {
+            return Range.unbounded();
+        }
+        String after;
+        char lastChar = prefix.charAt(prefix.length() - 1);
+        String head = prefix.substring(0, prefix.length() - 1);
+        if (lastChar == Character.MIN_VALUE) {
+            after = head;
+        } else {
+            after = head + (char) (lastChar - 1) + Character.MAX_VALUE;
+        }
+        String before = null;
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                before = prefix.substring(0, i) + (char) (c + 1);
+                break;
+            }
+        }
+        return Range.between(after, before);
+    }
+
+    /**
+     * How to read the candidate ids of an expression. Either a full scan, or the union of a set of ids and a set of
+     * prefix scans.
+     */
+    static class Plan {
+        final boolean fullScan;
+        final SortedSet<String> ids;
+        final SortedSet<String> prefixes;
+
+        Plan(boolean fullScan, SortedSet<String> ids, SortedSet<String> prefixes) {
+            this.fullScan = fullScan;
+            this.ids = ids;
+            this.prefixes = prefixes;
+        }
+
+        static Plan fullScan() {
+            return new Plan(true, Collections.emptySortedSet(), Collections.emptySortedSet());
+        }
+
+        /**
+         * Remove prefixes that are covered by a shorter prefix, and ids that are covered by a prefix.
+         */
+        static Plan union(SortedSet<String> ids, SortedSet<String> prefixes) {
+            TreeSet<String> normalizedPrefixes = new TreeSet<>();
+            for (String prefix : prefixes) {
+                // a covering prefix sorts before the prefixes it covers
+                if (normalizedPrefixes.isEmpty() || !prefix.startsWith(normalizedPrefixes.last())) {
+                    normalizedPrefixes.add(prefix);
+                }
+            }
+            TreeSet<String> normalizedIds = new TreeSet<>();
+            for (String id : ids) {
+                String floor = normalizedPrefixes.floor(id);
+                if (floor == null || !id.startsWith(floor)) {
+                    normalizedIds.add(id);
+                }
+            }
+            return new Plan(false, normalizedIds, normalizedPrefixes);
+        }
+
+        /**
+         * Rough relative cost of the plan, a multi-get of any number of ids is cheaper than a prefix scan, which in
+         * turn is cheaper than a full scan.
+         */
+        long cost() {
+            if (fullScan) {
+                return Long.MAX_VALUE;
+            }
+            if (!prefixes.isEmpty()) {
+                return Integer.MAX_VALUE + (long) prefixes.size() + ids.size();
+            }
+            return ids.size();
+        }
+    }
+
+    static class IdIn extends MatchExpression {
+        final SortedSet<String> ids;
+
+        IdIn(SortedSet<String> ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean matches(String id) {
+            return ids.contains(id);
+        }
+
+        @Override
+        Plan plan() {
+            return Plan.union(ids, Collections.emptySortedSet());
+        }
+    }
+
+    static class IdStartsWith extends MatchExpression {
+        final String prefix;
+
+        IdStartsWith(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean matches(String id) {
+            return id.startsWith(prefix);
+        }
+
+        @Override
+        Plan plan() {
+            return Plan.union(Collections.emptySortedSet(), new TreeSet<>(Collections.singleton(prefix)));
+        }
+    }
+
+    static class And extends MatchExpression {
+        final List<MatchExpression> operands;
+
+        And(List<MatchExpression> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        public boolean matches(String id) {
+            for (MatchExpression operand : operands) {
+                if (!operand.matches(id)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Plan plan() {
+            // all matches are within the candidates of every operand, read the smallest set of candidates
+            Plan best = Plan.fullScan();
+            for (MatchExpression operand : operands) {
+                Plan plan = operand.plan();
+                if (plan.cost() < best.cost()) {
+                    best = plan;
+                }
+            }
+            return best;
+        }
+    }
+
+    static class Or extends MatchExpression {
+        final List<MatchExpression> operands;
+
+        Or(List<MatchExpression> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        public boolean matches(String id) {
+            for (MatchExpression operand : operands) {
+                if (operand.matches(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        Plan plan() {
+            SortedSet<String> ids = new TreeSet<>();
+            SortedSet<String> prefixes = new TreeSet<>();
+            for (MatchExpression operand : operands) {
+                Plan plan = operand.plan();
+                if (plan.fullScan) {
+                    return plan;
+                }
+                ids.addAll(plan.ids);
+                prefixes.addAll(plan.prefixes);
+            }
+            return Plan.union(ids, prefixes);
+        }
+    }
+
+    static class Not extends MatchExpression {
+        final MatchExpression operand;
+
+        Not(MatchExpression operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public boolean matches(String id) {
+            return !operand.matches(id);
+        }
+
+        @Override
+        Plan plan() {
+            return Plan.fullScan();
+        }
+    }
+
+    /**
+     * Builds the expression tree while {@link Batch#traverse(ObjectNode, ExpressionVisitor)} walks the match node.
+     * Each level of and/or/not collects its operands in a frame on the stack.
+     */
+    static class CompilingVisitor implements ExpressionVisitor {
+        final Deque<List<MatchExpression>> frames = new ArrayDeque<>();
+        SortedSet<String> ids;
+        MatchExpression result;
+
+        @Override
+        public void enterMatch(ObjectNode matchNode) {
+            frames.push(new ArrayList<>());
+        }
+
+        @Override
+        public void leaveMatch(ObjectNode matchNode) {
+            addEmptyIdList(matchNode);
+            List<MatchExpression> operands = frames.pop();
+            if (operands.isEmpty()) {
+                result = new IdIn(Collections.emptySortedSet());
+            } else if (operands.size() == 1) {
+                result = operands.get(0);
+            } else {
+                result = new And(operands);
+            }
+        }
+
+        @Override
+        public void enterAnd(ObjectNode andNode, boolean first, boolean last) {
+            if (first) {
+                frames.push(new ArrayList<>());
+            }
+        }
+
+        @Override
+        public void leaveAnd(ObjectNode andNode, boolean first, boolean last) {
+            addEmptyIdList(andNode);
+            if (last) {
+                List<MatchExpression> operands = frames.pop();
+                frames.peek().add(new And(operands));
+            }
+        }
+
+        @Override
+        public void enterOr(ObjectNode orNode, boolean first, boolean last) {
+            if (first) {
+                frames.push(new ArrayList<>());
+            }
+        }
+
+        @Override
+        public void leaveOr(ObjectNode orNode, boolean first, boolean last) {
+            addEmptyIdList(orNode);
+            if (last) {
+                List<MatchExpression> operands = frames.pop();
+                frames.peek().add(new Or(operands));
+            }
+        }
+
+        @Override
+        public void enterNot(ObjectNode notNode) {
+            frames.push(new ArrayList<>());
+        }
+
+        @Override
+        public void leaveNot(ObjectNode notNode) {
+            addEmptyIdList(notNode);
+            List<MatchExpression> operands = frames.pop();
+            frames.peek().add(new Not(operands.size() == 1 ? operands.get(0) : new And(operands)));
+        }
+
+        /**
+         * The id-in and id-not-in callbacks are made once per listed id, so an empty list is never visited. It is
+         * added as an operand here instead, an empty id-in matches no ids and an empty id-not-in matches all ids.
+         */
+        private void addEmptyIdList(ObjectNode node) {
+            if (node.has("id-in") && node.get("id-in").size() == 0) {
+                frames.peek().add(new IdIn(Collections.emptySortedSet()));
+            } else if (node.has("id-not-in") && node.get("id-not-in").size() == 0) {
+                frames.peek().add(new Not(new IdIn(Collections.emptySortedSet())));
+            }
+        }
+
+        @Override
+        public void enterIdIn(TextNode idInNode, boolean first, boolean last) {
+            if (first) {
+                ids = new TreeSet<>();
+            }
+            ids.add(idInNode.textValue());
+        }
+
+        @Override
+        public void leaveIdIn(TextNode idInNode, boolean first, boolean last) {
+            if (last) {
+                frames.peek().add(new IdIn(ids == null ? Collections.emptySortedSet() : ids));
+                ids = null;
+            }
+        }
+
+        @Override
+        public void enterIdNotIn(TextNode idNotInNode, boolean first, boolean last) {
+            if (first) {
+                ids = new TreeSet<>();
+            }
+            ids.add(idNotInNode.textValue());
+        }
+
+        @Override
+        public void leaveIdNotIn(TextNode idNotInNode, boolean first, boolean last) {
+            if (last) {
+                frames.peek().add(new Not(new IdIn(ids == null ? Collections.emptySortedSet() : ids)));
+                ids = null;
+            }
+        }
+
+        @Override
+        public void enterIdStartsWith(TextNode startsWithNode) {
+            frames.peek().add(new IdStartsWith(startsWithNode.textValue()));
+        }
+
+        @Override
+        public void leaveIdStartsWith(TextNode startsWithNode) {
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package no.ssb.lds.api.persistence.batch;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.json.JsonTools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+/**
+ * Reads a batch one group at a time from a {@link JsonParser}, the streaming counterpart of {@link Batch}. The entries
+ * of put-groups are parsed lazily as they are consumed, so that only a single entry needs to be held in memory at a
+ * time. Delete-groups are small and are parsed in full, see {@link Group#deleteGroup()}.
+ * <p>
+ * Streaming requires that the "operation" and "type" (and "timestamp" if present) fields of a group come before its
+ * "entries", otherwise an {@link IllegalArgumentException} is thrown.
+ */
+public class StreamingBatch implements AutoCloseable {
+
+    final JsonParser parser;
+    final ZonedDateTime now;
+    final boolean array;
+    Group currentGroup;
+    boolean done;
+
+    public StreamingBatch(InputStream inputStream) throws IOException {
+        this(JsonTools.mapper.getFactory().createParser(inputStream));
+    }
+
+    /**
+     * @param parser a parser with an object codec, e.g. created from {@link JsonTools#mapper}.
+     */
+    public StreamingBatch(JsonParser parser) throws IOException {
+        this.parser = parser;
+        this.now = ZonedDateTime.now(ZoneOffset.UTC); // default timestamp in case non is supplied in batch
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_ARRAY) {
+            this.array = true;
+        } else if (token == JsonToken.START_OBJECT) {
+            this.array = false;
+        } else {
+            throw new IllegalArgumentException("Batch must be an array of groups or a single group, was: " + token);
+        }
+    }
+
+    /**
+     * Advance to the next group. Entries of the previous group that were not consumed are skipped.
+     *
+     * @return the next group, or null if there are no more groups.
+     */
+    public Group nextGroup() throws IOException {
+        if (currentGroup != null) {
+            currentGroup.finish();
+            currentGroup = null;
+        }
+        if (done) {
+            return null;
+        }
+        if (array) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.END_ARRAY || token == null) {
+                done = true;
+                return null;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Batch group must be an object, was: " + token);
+            }
+        } else {
+            // single group, the parser is already positioned at its start
+            done = true;
+        }
+        currentGroup = readGroupHeader();
+        return currentGroup;
+    }
+
+    private Group readGroupHeader() throws IOException {
+        ObjectNode headerNode = JsonTools.mapper.createObjectNode();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if ("entries".equals(fieldName)) {
+                if (!headerNode.has("operation") || !headerNode.has("type")) {
+                    throw new IllegalArgumentException("Fields 'operation' and 'type' must come before 'entries' in a streamed batch group");
+                }
+                if (!"put".equals(headerNode.get("operation").textValue())) {
+                    headerNode.set(fieldName, parser.readValueAsTree());
+                    continue;
+                }
+                if (parser.currentToken() != JsonToken.START_ARRAY) {
+                    throw new IllegalArgumentException("Field 'entries' must be an array");
+                }
+                return new Group(headerNode, true);
+            }
+            headerNode.set(fieldName, parser.readValueAsTree());
+        }
+        // end of group object reached
+        return new Group(headerNode, false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    public class Group {
+        final ObjectNode headerNode;
+        final Batch.GroupType groupType;
+        final String type;
+        final ZonedDateTime timestamp;
+        boolean inEntries;
+        boolean entriesSubscribed;
+        boolean finished;
+
+        Group(ObjectNode headerNode, boolean inEntries) {
+            this.headerNode = headerNode;
+            this.inEntries = inEntries;
+            this.finished = !inEntries;
+            String operation = headerNode.has("operation") ? headerNode.get("operation").textValue() : null;
+            if ("put".equals(operation)) {
+                this.groupType = Batch.GroupType.PUT;
+            } else if ("delete".equals(operation)) {
+                this.groupType = Batch.GroupType.DELETE;
+            } else {
+                throw new IllegalArgumentException("Unsupported operation: " + operation);
+            }
+            this.type = headerNode.get("type").textValue();
+            if (headerNode.has("timestamp") && headerNode.get("timestamp").isTextual()) {
+                this.timestamp = ZonedDateTime.parse(headerNode.get("timestamp").textValue());
+            } else {
+                this.timestamp = StreamingBatch.this.now;
+            }
+        }
+
+        public Batch.GroupType groupType() {
+            return groupType;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        /**
+         * The entries of this group, parsed while they are consumed. The returned flowable can only be subscribed to
+         * once, later subscriptions fail with an {@link IllegalStateException}. The entries must be consumed before the
+         * next call to {@link StreamingBatch#nextGroup()}.
+         */
+        public Flowable<Batch.Entry> entries() {
+            return Flowable.defer(() -> {
+                if (entriesSubscribed) {
+                    return Flowable.error(new IllegalStateException("Entries of group " + type + " have already been subscribed to"));
+                }
+                entriesSubscribed = true;
+                if (!inEntries) {
+                    return Flowable.empty();
+                }
+                return generateEntries();
+            });
+        }
+
+        private Flowable<Batch.Entry> generateEntries() {
+            return Flowable.generate(emitter -> {
+                if (!inEntries) {
+                    emitter.onComplete();
+                    return;
+                }
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.END_ARRAY) {
+                    inEntries = false;
+                    emitter.onComplete();
+                    return;
+                }
+                if (token != JsonToken.START_OBJECT) {
+                    throw new IllegalArgumentException("Batch entry must be an object, was: " + token);
+                }
+                emitter.onNext(toEntry(parser.readValueAsTree()));
+            });
+        }
+
+        private Batch.Entry toEntry(ObjectNode entryNode) {
+            String id = entryNode.get("id").textValue();
+            ZonedDateTime entryTimestamp = timestamp;
+            if (entryNode.has("timestamp") && entryNode.get("timestamp").isTextual()) {
+                entryTimestamp = ZonedDateTime.parse(entryNode.get("timestamp").textValue());
+            }
+            return new Batch.Entry(id, entryTimestamp, entryNode.get("data"));
+        }
+
+        /**
+         * Parse the remainder of this delete-group as a {@link Batch.DeleteGroup}, which gives access to the match
+         * criteria and entries.
+         */
+        public Batch.DeleteGroup deleteGroup() throws IOException {
+            if (groupType != Batch.GroupType.DELETE) {
+                throw new IllegalStateException("Not a delete group: " + type);
+            }
+            finish();
+            ObjectNode groupNode = headerNode.deepCopy();
+            if (!groupNode.has("timestamp")) {
+                groupNode.put("timestamp", timestamp.toString());
+            }
+            return (Batch.DeleteGroup) new Batch(groupNode).groups().get(0);
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            if (inEntries) {
+                // skip remaining entries
+                JsonToken token;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == null) {
+                        throw new IllegalArgumentException("Unexpected end of batch within entries");
+                    }
+                    parser.skipChildren();
+                }
+                inEntries = false;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if ("operation".equals(fieldName) || "type".equals(fieldName) || "timestamp".equals(fieldName)) {
+                    throw new IllegalArgumentException("Field '" + fieldName + "' must come before 'entries' in a streamed batch group");
+                }
+                JsonNode value = parser.readValueAsTree();
+                headerNode.set(fieldName, value);
+            }
+            finished = true;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package no.ssb.lds.api.persistence.flattened;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders paths the way the corresponding leaf-nodes appear in a depth-first walk of the document, i.e. segment by
+ * segment with field names compared lexicographically and array indices compared numerically. All paths below a
+ * common parent are therefore adjacent and array elements come in index order, which allows a document to be written
+ * one leaf-node at a time.
+ */
+public class DocumentOrderPathComparator implements Comparator<String> {
+
+    /**
+     * Split a path into its segments, field names as strings and array indices as integers, e.g.
+     * <code>$.a.b[3].c</code> becomes <code>["$", "a", "b", 3, "c"]</code>.
+     */
+    public static List<Object> segments(String path) {
+        List<Object> segments = new ArrayList<>();
+        int start = 0;
+        int i = 0;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                if (i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                start = ++i;
+            } else if (c == '[') {
+                if (i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                int end = path.indexOf(']', i);
+                if (end == -1) {
+                    throw new IllegalArgumentException("Malformed path, '[' without matching ']': " + path);
+                }
+                segments.add(Integer.valueOf(path.substring(i + 1, end)));
+                start = i = end + 1;
+            } else {
+                i++;
+            }
+        }
+        if (start < path.length()) {
+            segments.add(path.substring(start));
+        }
+        return segments;
+    }
+
+    @Override
+    public int compare(String path1, String path2) {
+        return compareSegments(segments(path1), segments(path2));
+    }
+
+    public static int compareSegments(List<Object> segments1, List<Object> segments2) {
+        int n = Math.min(segments1.size(), segments2.size());
+        for (int i = 0; i < n; i++) {
+            Object s1 = segments1.get(i);
+            Object s2 = segments2.get(i);
+            int cmp;
+            if (s1 instanceof Integer && s2 instanceof Integer) {
+                cmp = Integer.compare((Integer) s1, (Integer) s2);
+            } else if (s1 instanceof String && s2 instanceof String) {
+                cmp = ((String) s1).compareTo((String) s2);
+            } else {
+                cmp = s1 instanceof String ? -1 : 1;
+            }
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(segments1.size(), segments2.size());
+    }
+
+    /**
+     * The position of a fragment in document order, with the path split into segments once rather than on every
+     * comparison. Fragments of the same leaf-node are ordered by offset.
+     */
+    public static class Key implements Comparable<Key> {
+        private final List<Object> segments;
+        private final long offset;
+
+        public Key(List<Object> segments, long offset) {
+            this.segments = segments;
+            this.offset = offset;
+        }
+
+        public static Key of(Fragment fragment) {
+            return new Key(segments(fragment.path()), fragment.offset());
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int cmp = compareSegments(segments, other.segments);
+            return cmp != 0 ? cmp : Long.compare(offset, other.offset);
+        }
+    }
+}
@@ -109,6 +109,8 @@ public class FlattenedDocument {
             if (fragments.isEmpty()) {
                 throw new IllegalStateException("No fragments for path: " + path);
             }
+            // value must be reassembled in offset order regardless of the order the fragments were streamed in
+            fragments.sort(Comparator.comparingLong(Fragment::offset));
             FragmentType fragmentType = fragments.get(0).fragmentType();
             if (FragmentType.STRING == fragmentType) {
                 StringBuilder value = new StringBuilder();
@@ -0,0 +1,125 @@
+package no.ssb.lds.api.persistence.index;
+
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A {@link SecondaryIndex} that keeps, per namespace, entity, path and value, the sorted ids of the documents with
+ * that value. Each id is counted once per indexed fragment, so that an id stays in the index until all document
+ * versions with the value are removed.
+ */
+public class InMemorySecondaryIndex implements SecondaryIndex {
+
+    private final Set<IndexDefinition> definitions;
+    private final ConcurrentMap<Key, ConcurrentSkipListMap<String, Integer>> entries = new ConcurrentHashMap<>();
+
+    public InMemorySecondaryIndex(Collection<IndexDefinition> definitions) {
+        this.definitions = Set.copyOf(definitions);
+    }
+
+    @Override
+    public boolean covers(String entity, String path) {
+        return definitions.contains(new IndexDefinition(entity, path));
+    }
+
+    @Override
+    public void add(List<Fragment> document) {
+        for (Fragment fragment : document) {
+            Key key = keyOf(fragment);
+            if (key != null) {
+                entries.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>())
+                        .merge(fragment.id(), 1, Integer::sum);
+            }
+        }
+    }
+
+    @Override
+    public void remove(List<Fragment> document) {
+        for (Fragment fragment : document) {
+            Key key = keyOf(fragment);
+            if (key == null) {
+                continue;
+            }
+            entries.computeIfPresent(key, (k, ids) -> {
+                ids.computeIfPresent(fragment.id(), (id, count) -> count == 1 ? null : count - 1);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    /**
+     * The key of the entry of the fragment, or null if the fragment is not indexed.
+     */
+    private Key keyOf(Fragment fragment) {
+        if (fragment.offset() != 0 || fragment.isStreamingControl()) {
+            return null;
+        }
+        String path = Fragment.computeIndexUnawarePath(fragment.path(), new ArrayList<>());
+        if (!covers(fragment.entity(), path)) {
+            return null;
+        }
+        return new Key(fragment.namespace(), fragment.entity(), path, fragment.value());
+    }
+
+    @Override
+    public Iterable<String> lookup(String namespace, String entity, String path, byte[] value, Range<String> range) {
+        NavigableMap<String, Integer> ids = entries.get(new Key(namespace, entity, path, value));
+        if (ids == null) {
+            return List.of();
+        }
+        if (range.hasAfter() && range.hasBefore()) {
+            ids = ids.subMap(range.getAfter(), false, range.getBefore(), false);
+        } else if (range.hasAfter()) {
+            ids = ids.tailMap(range.getAfter(), false);
+        } else if (range.hasBefore()) {
+            ids = ids.headMap(range.getBefore(), false);
+        }
+        return range.isBackward() ? ids.descendingKeySet() : ids.keySet();
+    }
+
+    /**
+     * The number of distinct values that are indexed.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    static class Key {
+        final String namespace;
+        final String entity;
+        final String path;
+        final ByteBuffer value;
+
+        Key(String namespace, String entity, String path, byte[] value) {
+            this.namespace = namespace;
+            this.entity = entity;
+            this.path = path;
+            this.value = ByteBuffer.wrap(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return namespace.equals(key.namespace) && entity.equals(key.entity) && path.equals(key.path)
+                    && value.equals(key.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(namespace, entity, path, value);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package no.ssb.lds.api.persistence.index;
+
+import no.ssb.lds.api.json.JsonNavigationPath;
+import no.ssb.lds.api.specification.Specification;
+import no.ssb.lds.api.specification.SpecificationElement;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A leaf-node of a managed entity that is indexed, identified by the entity name and the index-unaware path of the
+ * leaf-node, e.g. <code>$.children[].name</code>, the same path that is passed to
+ * {@link no.ssb.lds.api.persistence.reactivex.RxPersistence#find}.
+ */
+public class IndexDefinition {
+
+    final String entity;
+    final String path;
+
+    /**
+     * Define an index without checking the path against a specification.
+     */
+    public IndexDefinition(String entity, String path) {
+        this.entity = entity;
+        this.path = path;
+    }
+
+    /**
+     * Define an index of a leaf-node of a managed entity of the specification.
+     *
+     * @throws IllegalArgumentException if the entity is not managed or the path is not a leaf-node of the entity.
+     */
+    public static IndexDefinition of(Specification specification, String entity, String path) {
+        SpecificationElement managed = specification.getRootElement().getProperties().get(entity);
+        if (managed == null) {
+            throw new IllegalArgumentException("Not a managed entity: " + entity);
+        }
+        String serialized = JsonNavigationPath.from(path).serialize();
+        SpecificationElement element = JsonNavigationPath.from(path).toSpecificationElement(specification, entity);
+        if (!isLeaf(element) || !JsonNavigationPath.from(element).serialize().equals(serialized)) {
+            throw new IllegalArgumentException("Not a leaf-node of " + entity + ": " + path);
+        }
+        return new IndexDefinition(entity, serialized);
+    }
+
+    /**
+     * Define an index of every leaf-node of every managed entity of the specification.
+     */
+    public static Set<IndexDefinition> allLeavesOf(Specification specification) {
+        Set<IndexDefinition> definitions = new LinkedHashSet<>();
+        for (Map.Entry<String, SpecificationElement> entry : specification.getRootElement().getProperties().entrySet()) {
+            addLeaves(entry.getKey(), entry.getValue(), definitions);
+        }
+        return definitions;
+    }
+
+    private static void addLeaves(String entity, SpecificationElement element, Set<IndexDefinition> definitions) {
+        if (element.getJsonTypes().contains("array")) {
+            if (element.getItems() != null) {
+                addLeaves(entity, element.getItems(), definitions);
+            }
+        } else if (isLeaf(element)) {
+            definitions.add(new IndexDefinition(entity, JsonNavigationPath.from(element).serialize()));
+        } else {
+            for (SpecificationElement child : element.getProperties().values()) {
+                addLeaves(entity, child, definitions);
+            }
+        }
+    }
+
+    private static boolean isLeaf(SpecificationElement element) {
+        return !element.getJsonTypes().contains("array")
+                && (element.getProperties() == null || element.getProperties().isEmpty());
+    }
+
+    public String entity() {
+        return entity;
+    }
+
+    public String path() {
+        return path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IndexDefinition that = (IndexDefinition) o;
+        return entity.equals(that.entity) && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(entity, path);
+    }
+
+    @Override
+    public String toString() {
+        return "IndexDefinition{" + entity + ':' + path + '}';
+    }
+}
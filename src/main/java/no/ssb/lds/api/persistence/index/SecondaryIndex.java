@@ -0,0 +1,50 @@
+package no.ssb.lds.api.persistence.index;
+
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.util.List;
+
+/**
+ * A secondary index of leaf-node values that a provider can use to answer
+ * {@link no.ssb.lds.api.persistence.reactivex.RxPersistence#find} without scanning the entity.
+ * <p>
+ * The provider maintains the index on its write path: it adds the fragments of every document version it stores,
+ * and removes them again when no reader can see that version any longer. A lookup therefore returns candidates, the
+ * ids of documents that have, or had, a version with the value at the path. The provider reads the version of each
+ * candidate that is visible to the transaction at the snapshot, and keeps the document only if that version matches.
+ * <p>
+ * Only the first fragment of each leaf-node is indexed, the same value that <code>find</code> is given. Calls that
+ * change the index are made by one thread at a time, lookups may run concurrently with them.
+ */
+public interface SecondaryIndex {
+
+    /**
+     * @return true if lookups of the index-unaware path of the entity are answered by this index.
+     */
+    boolean covers(String entity, String path);
+
+    /**
+     * Add the entries of a document version.
+     *
+     * @param document the fragments of the version.
+     */
+    void add(List<Fragment> document);
+
+    /**
+     * Remove the entries of a document version that was added earlier.
+     *
+     * @param document the same fragments that were added.
+     */
+    void remove(List<Fragment> document);
+
+    /**
+     * The candidates of a find, in range order. Bounds of the range are honoured, the limit is not since candidates
+     * may not match at the snapshot.
+     *
+     * @param path  an index-unaware path that is covered by this index.
+     * @param value the first fragment value of the leaf-node.
+     * @return the ids of candidate documents.
+     */
+    Iterable<String> lookup(String namespace, String entity, String path, byte[] value, Range<String> range);
+}
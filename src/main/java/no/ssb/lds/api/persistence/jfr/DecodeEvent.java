@@ -0,0 +1,107 @@
+package no.ssb.lds.api.persistence.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A phase of decoding a document from its fragments in the
+ * {@link no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge}: collecting the fragments of the document
+ * from the ordered stream ({@link #GROUP_BY_ORDERED}), decoding the fragments to a flattened document
+ * ({@link #DECODE_DOCUMENT}) and converting the flattened document to json ({@link #TO_JSON_NODE}).
+ * <p>
+ * Events are only allocated, filled in and timed when they are enabled in a recording.
+ */
+@Name("no.ssb.lds.persistence.Decode")
+@Label("Document Decode")
+@Category({"LDS", "Persistence"})
+@Description("A phase of decoding a document from fragments")
+public class DecodeEvent extends Event {
+
+    public static final String GROUP_BY_ORDERED = "groupByOrdered";
+    public static final String DECODE_DOCUMENT = "decodeDocument";
+    public static final String TO_JSON_NODE = "toJsonNode";
+
+    /**
+     * Checked before an event is allocated, so that nothing is allocated when the event is not recorded.
+     */
+    static final EventType EVENT_TYPE = EventType.getEventType(DecodeEvent.class);
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Namespace")
+    String namespace;
+
+    @Label("Entity")
+    String entity;
+
+    @Label("Documents")
+    long documents;
+
+    @Label("Fragments")
+    long fragments;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    /**
+     * Begin the phase of decoding a document.
+     *
+     * @return the event, or null if decode events are not enabled.
+     */
+    public static DecodeEvent begin(String phase, DocumentKey key) {
+        if (!EVENT_TYPE.isEnabled()) {
+            return null;
+        }
+        DecodeEvent event = new DecodeEvent();
+        event.phase = phase;
+        event.namespace = key.namespace();
+        event.entity = key.entity();
+        event.documents = 1;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the phase, and commit the event with the size of the fragments of the document if it is recorded.
+     */
+    public void finish(Map<String, ? extends Collection<Fragment>> fragmentsByPath) {
+        if (!isEnabled()) {
+            return;
+        }
+        end();
+        if (shouldCommit()) {
+            for (Collection<Fragment> fragments : fragmentsByPath.values()) {
+                for (Fragment fragment : fragments) {
+                    this.fragments++;
+                    this.bytes += fragment.value() == null ? 0 : fragment.value().length;
+                }
+            }
+            commit();
+        }
+    }
+
+    /**
+     * End the phase, and commit the event if it is recorded.
+     */
+    public void finish() {
+        if (!isEnabled()) {
+            return;
+        }
+        end();
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+}
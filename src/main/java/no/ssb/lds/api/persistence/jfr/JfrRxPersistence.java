@@ -0,0 +1,284 @@
+package no.ssb.lds.api.persistence.jfr;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.reactivex.PersistenceCapability;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A decorator that records a {@link PersistenceCallEvent} for every call to an {@link RxPersistence}, and a
+ * {@link TransactionEvent} for every commit and cancel of its transactions, so that latency outliers can be lined up
+ * with garbage collection and thread activity in a Java Flight Recorder recording.
+ * <p>
+ * When the events are not enabled in a recording, calls are passed straight through and nothing is counted.
+ */
+public class JfrRxPersistence implements RxPersistence {
+
+    private final RxPersistence delegate;
+    private final TransactionFactory transactionFactory = new JfrTransactionFactory();
+
+    public JfrRxPersistence(RxPersistence delegate) {
+        this.delegate = delegate;
+    }
+
+    private static Transaction physical(Transaction tx) {
+        return tx instanceof JfrTransaction ? ((JfrTransaction) tx).delegate : tx;
+    }
+
+    @Override
+    public Set<PersistenceCapability> capabilities() {
+        return delegate.capabilities();
+    }
+
+    @Override
+    public TransactionFactory transactionFactory() throws PersistenceException {
+        return transactionFactory;
+    }
+
+    @Override
+    public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+        return new JfrTransaction(delegate.createTransaction(readOnly), readOnly);
+    }
+
+    @Override
+    public Completable createOrOverwrite(Transaction tx, Flowable<Fragment> fragments) {
+        return writing("createOrOverwrite", fragments, counted -> delegate.createOrOverwrite(physical(tx), counted));
+    }
+
+    @Override
+    public Completable createOrOverwriteBatched(Transaction tx, Flowable<List<Fragment>> batches) {
+        return Completable.defer(() -> {
+            Call call = Call.begin("createOrOverwriteBatched", null, null);
+            if (call == null) {
+                return delegate.createOrOverwriteBatched(physical(tx), batches);
+            }
+            return call.recorded(delegate.createOrOverwriteBatched(physical(tx), batches.doOnNext(batch -> {
+                for (Fragment fragment : batch) {
+                    call.fragment(fragment);
+                }
+            })));
+        });
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String id) {
+        return reading("read", namespace, entity, delegate.read(physical(tx), snapshot, namespace, entity, id));
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Iterable<String> ids) {
+        return reading("readMany", namespace, entity, delegate.read(physical(tx), snapshot, namespace, entity, ids));
+    }
+
+    @Override
+    public Flowable<Fragment> readVersions(Transaction tx, String namespace, String entity, String id, Range<ZonedDateTime> range) {
+        return reading("readVersions", namespace, entity, delegate.readVersions(physical(tx), namespace, entity, id, range));
+    }
+
+    @Override
+    public Completable delete(Transaction tx, String namespace, String entity, String id, ZonedDateTime version,
+                              PersistenceDeletePolicy policy) {
+        return recorded("delete", namespace, entity, delegate.delete(physical(tx), namespace, entity, id, version, policy));
+    }
+
+    @Override
+    public Completable deleteAllVersions(Transaction tx, String namespace, String entity, String id,
+                                         PersistenceDeletePolicy policy) {
+        return recorded("deleteAllVersions", namespace, entity, delegate.deleteAllVersions(physical(tx), namespace, entity, id, policy));
+    }
+
+    @Override
+    public Completable deleteAllEntities(Transaction tx, String namespace, String entity, Iterable<String> paths) {
+        return recorded("deleteAllEntities", namespace, entity, delegate.deleteAllEntities(physical(tx), namespace, entity, paths));
+    }
+
+    @Override
+    public Completable markDeleted(Transaction tx, String namespace, String entity, String id, ZonedDateTime version,
+                                   PersistenceDeletePolicy policy) {
+        return recorded("markDeleted", namespace, entity, delegate.markDeleted(physical(tx), namespace, entity, id, version, policy));
+    }
+
+    @Override
+    public Completable markDeleted(Transaction tx, Flowable<DocumentKey> keys, int batchSize, int maxConcurrency) {
+        return Completable.defer(() -> {
+            Call call = Call.begin("markDeletedMany", null, null);
+            if (call == null) {
+                return delegate.markDeleted(physical(tx), keys, batchSize, maxConcurrency);
+            }
+            return call.recorded(delegate.markDeleted(physical(tx), keys.doOnNext(call::document), batchSize, maxConcurrency));
+        });
+    }
+
+    @Override
+    public Flowable<Fragment> readAll(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Range<String> range) {
+        return reading("readAll", namespace, entity, delegate.readAll(physical(tx), snapshot, namespace, entity, range));
+    }
+
+    @Override
+    public Flowable<Fragment> find(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String path,
+                                   byte[] value, Range<String> range) {
+        return reading("find", namespace, entity, delegate.find(physical(tx), snapshot, namespace, entity, path, value, range));
+    }
+
+    @Override
+    public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return recordedQuery("hasPrevious", namespace, entityName, delegate.hasPrevious(physical(tx), snapshot, namespace, entityName, id));
+    }
+
+    @Override
+    public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return recordedQuery("hasNext", namespace, entityName, delegate.hasNext(physical(tx), snapshot, namespace, entityName, id));
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        delegate.close();
+    }
+
+    private static Flowable<Fragment> reading(String method, String namespace, String entity, Flowable<Fragment> fragments) {
+        return Flowable.defer(() -> {
+            Call call = Call.begin(method, namespace, entity);
+            if (call == null) {
+                return fragments;
+            }
+            return fragments
+                    .doOnNext(call::fragment)
+                    .doOnComplete(call::completed)
+                    .doOnError(call::failed)
+                    .doFinally(call::finish);
+        });
+    }
+
+    private static Completable writing(String method, Flowable<Fragment> fragments, Function<Flowable<Fragment>, Completable> write) {
+        return Completable.defer(() -> {
+            Call call = Call.begin(method, null, null);
+            if (call == null) {
+                return write.apply(fragments);
+            }
+            return call.recorded(write.apply(fragments.doOnNext(call::fragment)));
+        });
+    }
+
+    private static Completable recorded(String method, String namespace, String entity, Completable source) {
+        return Completable.defer(() -> {
+            Call call = Call.begin(method, namespace, entity);
+            return call == null ? source : call.recorded(source);
+        });
+    }
+
+    private static <T> Single<T> recordedQuery(String method, String namespace, String entity, Single<T> source) {
+        return Single.defer(() -> {
+            Call call = Call.begin(method, namespace, entity);
+            if (call == null) {
+                return source;
+            }
+            return source
+                    .doOnSuccess(value -> call.completed())
+                    .doOnError(call::failed)
+                    .doFinally(call::finish);
+        });
+    }
+
+    /**
+     * The event of one subscription to a call, filled in as fragments pass.
+     */
+    static class Call {
+        final PersistenceCallEvent event;
+        String lastId;
+        boolean terminated;
+
+        Call(PersistenceCallEvent event) {
+            this.event = event;
+        }
+
+        /**
+         * @return the call, or null if call events are not enabled.
+         */
+        static Call begin(String method, String namespace, String entity) {
+            if (!PersistenceCallEvent.EVENT_TYPE.isEnabled()) {
+                return null;
+            }
+            PersistenceCallEvent event = new PersistenceCallEvent();
+            event.method = method;
+            event.namespace = namespace;
+            event.entity = entity;
+            event.begin();
+            return new Call(event);
+        }
+
+        void fragment(Fragment fragment) {
+            if (fragment.isStreamingControl()) {
+                return;
+            }
+            if (event.namespace == null) {
+                event.namespace = fragment.namespace();
+                event.entity = fragment.entity();
+            }
+            // Fragments of a document follow one another.
+            if (!fragment.id().equals(lastId)) {
+                lastId = fragment.id();
+                event.documents++;
+            }
+            event.fragments++;
+            event.bytes += fragment.value() == null ? 0 : fragment.value().length;
+        }
+
+        void document(DocumentKey key) {
+            if (event.namespace == null) {
+                event.namespace = key.namespace();
+                event.entity = key.entity();
+            }
+            event.documents++;
+        }
+
+        void completed() {
+            terminated = true;
+        }
+
+        void failed(Throwable t) {
+            terminated = true;
+            event.failed = true;
+        }
+
+        void finish() {
+            event.cancelled = !terminated;
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+        }
+
+        Completable recorded(Completable source) {
+            return source
+                    .doOnComplete(this::completed)
+                    .doOnError(this::failed)
+                    .doFinally(this::finish);
+        }
+    }
+
+    class JfrTransactionFactory implements TransactionFactory {
+
+        @Override
+        public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+            return JfrRxPersistence.this.createTransaction(readOnly);
+        }
+
+        @Override
+        public void close() {
+            JfrRxPersistence.this.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package no.ssb.lds.api.persistence.jfr;
+
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * A transaction of the {@link JfrRxPersistence}, that records a {@link TransactionEvent} when it is committed or
+ * cancelled.
+ */
+public class JfrTransaction implements Transaction {
+
+    final Transaction delegate;
+    final boolean readOnly;
+
+    JfrTransaction(Transaction delegate, boolean readOnly) {
+        this.delegate = delegate;
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public CompletableFuture<TransactionStatistics> commit() {
+        return recorded(TransactionEvent.COMMIT, delegate::commit);
+    }
+
+    @Override
+    public CompletableFuture<TransactionStatistics> cancel() {
+        return recorded(TransactionEvent.CANCEL, delegate::cancel);
+    }
+
+    private CompletableFuture<TransactionStatistics> recorded(String operation, Supplier<CompletableFuture<TransactionStatistics>> completion) {
+        if (!TransactionEvent.EVENT_TYPE.isEnabled()) {
+            return completion.get();
+        }
+        TransactionEvent event = new TransactionEvent();
+        event.operation = operation;
+        event.readOnly = readOnly;
+        event.begin();
+        return completion.get().whenComplete((statistics, failure) -> {
+            event.end();
+            if (event.shouldCommit()) {
+                event.failed = failure != null;
+                event.commit();
+            }
+        });
+    }
+
+    @Override
+    public <T> T getInstance(Class<T> clazz) {
+        return delegate.getInstance(clazz);
+    }
+}
@@ -0,0 +1,51 @@
+package no.ssb.lds.api.persistence.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A call to an {@link no.ssb.lds.api.persistence.reactivex.RxPersistence}, from subscription until it completed,
+ * failed or was cancelled.
+ */
+@Name("no.ssb.lds.persistence.Call")
+@Label("Persistence Call")
+@Category({"LDS", "Persistence"})
+@Description("A call to a persistence provider")
+public class PersistenceCallEvent extends Event {
+
+    /**
+     * Checked before an event is allocated, so that nothing is allocated when the event is not recorded.
+     */
+    static final EventType EVENT_TYPE = EventType.getEventType(PersistenceCallEvent.class);
+
+    @Label("Method")
+    String method;
+
+    @Label("Namespace")
+    String namespace;
+
+    @Label("Entity")
+    String entity;
+
+    @Label("Documents")
+    @Description("Number of documents read or written")
+    long documents;
+
+    @Label("Fragments")
+    long fragments;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Failed")
+    boolean failed;
+
+    @Label("Cancelled")
+    boolean cancelled;
+}
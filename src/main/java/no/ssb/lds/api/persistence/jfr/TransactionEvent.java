@@ -0,0 +1,35 @@
+package no.ssb.lds.api.persistence.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The commit or cancel of a transaction, from the call until the returned future completed.
+ */
+@Name("no.ssb.lds.persistence.Transaction")
+@Label("Persistence Transaction")
+@Category({"LDS", "Persistence"})
+@Description("Commit or cancel of a persistence transaction")
+public class TransactionEvent extends Event {
+
+    public static final String COMMIT = "commit";
+    public static final String CANCEL = "cancel";
+
+    /**
+     * Checked before an event is allocated, so that nothing is allocated when the event is not recorded.
+     */
+    static final EventType EVENT_TYPE = EventType.getEventType(TransactionEvent.class);
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Read Only")
+    boolean readOnly;
+
+    @Label("Failed")
+    boolean failed;
+}
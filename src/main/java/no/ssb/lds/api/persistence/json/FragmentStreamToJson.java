@@ -0,0 +1,196 @@
+package no.ssb.lds.api.persistence.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import no.ssb.lds.api.persistence.flattened.DocumentOrderPathComparator;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the fragments of a single document as json, one leaf-node at a time, so that memory usage is bounded by the
+ * largest leaf value and the nesting depth of the document rather than the size of the document.
+ * <p>
+ * Fragments must be written in document order, i.e. ordered by path using the {@link DocumentOrderPathComparator} and
+ * then by offset.
+ */
+public class FragmentStreamToJson {
+
+    private final JsonGenerator generator;
+    private final List<OpenContainer> openContainers = new ArrayList<>();
+    private final ByteArrayOutputStream leafValue = new ByteArrayOutputStream();
+    private String leafPath;
+    private List<Object> leafSegments;
+    private FragmentType leafType;
+    private boolean deleted;
+
+    public FragmentStreamToJson(JsonGenerator generator) {
+        this.generator = generator;
+    }
+
+    public void write(Fragment fragment) throws IOException {
+        if (deleted) {
+            return;
+        }
+        if (fragment.deleteMarker()) {
+            deleted = true;
+            return;
+        }
+        if (fragment.path().equals(leafPath)) {
+            // value of current leaf-node spans several fragments
+            appendToLeafValue(fragment);
+            return;
+        }
+        List<Object> segments = DocumentOrderPathComparator.segments(fragment.path());
+        if (segments.isEmpty() || !"$".equals(segments.get(0))) {
+            throw new IllegalArgumentException("Path must start with '$': " + fragment.path());
+        }
+        if (leafSegments != null) {
+            if (DocumentOrderPathComparator.compareSegments(leafSegments, segments) >= 0) {
+                throw new IllegalStateException(String.format("Fragments are not in document order, path '%s' after '%s'", fragment.path(), leafPath));
+            }
+            writeLeafValue();
+        }
+        writeContainersAndKeyOf(segments);
+        leafPath = fragment.path();
+        leafSegments = segments;
+        leafType = fragment.fragmentType();
+        leafValue.reset();
+        appendToLeafValue(fragment);
+    }
+
+    /**
+     * Write the last leaf-node and close all open containers.
+     *
+     * @return true if a document was written, false if no fragments were written or the document is deleted.
+     */
+    public boolean complete() throws IOException {
+        if (deleted || leafSegments == null) {
+            return false;
+        }
+        writeLeafValue();
+        leafSegments = null;
+        leafPath = null;
+        while (!openContainers.isEmpty()) {
+            closeInnermostContainer();
+        }
+        generator.flush();
+        return true;
+    }
+
+    public boolean deleted() {
+        return deleted;
+    }
+
+    private void appendToLeafValue(Fragment fragment) {
+        byte[] value = fragment.value();
+        if (value != null) {
+            leafValue.write(value, 0, value.length);
+        }
+    }
+
+    private void writeContainersAndKeyOf(List<Object> segments) throws IOException {
+        int leafDepth = segments.size() - 1;
+        if (leafDepth == 0) {
+            // the leaf-node is the root of the document, i.e. an empty or null document
+            if (leafSegments != null) {
+                throw new IllegalStateException("Root leaf-node cannot be combined with other leaf-nodes");
+            }
+            return;
+        }
+        if (leafSegments == null) {
+            generator.writeStartObject();
+            openContainers.add(new OpenContainer(segments.get(0), false));
+        }
+        int common = 0;
+        while (common < openContainers.size() && common < leafDepth && openContainers.get(common).segment.equals(segments.get(common))) {
+            common++;
+        }
+        if (common == 0) {
+            throw new IllegalStateException("Root leaf-node cannot be combined with other leaf-nodes");
+        }
+        while (openContainers.size() > common) {
+            closeInnermostContainer();
+        }
+        for (int depth = common; depth < leafDepth; depth++) {
+            writeKey(segments.get(depth));
+            boolean array = segments.get(depth + 1) instanceof Integer;
+            if (array) {
+                generator.writeStartArray();
+            } else {
+                generator.writeStartObject();
+            }
+            openContainers.add(new OpenContainer(segments.get(depth), array));
+        }
+        writeKey(segments.get(leafDepth));
+    }
+
+    private void writeKey(Object segment) throws IOException {
+        OpenContainer parent = openContainers.get(openContainers.size() - 1);
+        if (parent.array) {
+            if (!(segment instanceof Integer)) {
+                throw new IllegalStateException("Field '" + segment + "' within array");
+            }
+            int index = (Integer) segment;
+            if (index < parent.nextIndex) {
+                throw new IllegalStateException("Array index " + index + " is not in document order");
+            }
+            while (parent.nextIndex < index) {
+                // missing array elements are written as null, equal to what FlattenedDocumentToJson produce
+                generator.writeNull();
+                parent.nextIndex++;
+            }
+            parent.nextIndex++;
+        } else {
+            if (!(segment instanceof String)) {
+                throw new IllegalStateException("Array index " + segment + " within object");
+            }
+            generator.writeFieldName((String) segment);
+        }
+    }
+
+    private void writeLeafValue() throws IOException {
+        if (FragmentType.STRING == leafType) {
+            generator.writeString(leafValue.toString(StandardCharsets.UTF_8));
+        } else if (FragmentType.NUMERIC == leafType) {
+            generator.writeNumber(leafValue.toString(StandardCharsets.UTF_8));
+        } else if (FragmentType.BOOLEAN == leafType) {
+            byte[] value = leafValue.toByteArray();
+            generator.writeBoolean(value.length > 0 && value[0] == (byte) 1);
+        } else if (FragmentType.NULL == leafType) {
+            generator.writeNull();
+        } else if (FragmentType.EMPTY_ARRAY == leafType) {
+            generator.writeStartArray();
+            generator.writeEndArray();
+        } else if (FragmentType.EMPTY_OBJECT == leafType) {
+            generator.writeStartObject();
+            generator.writeEndObject();
+        } else {
+            throw new IllegalStateException("Unknown FragmentType: " + leafType);
+        }
+    }
+
+    private void closeInnermostContainer() throws IOException {
+        OpenContainer container = openContainers.remove(openContainers.size() - 1);
+        if (container.array) {
+            generator.writeEndArray();
+        } else {
+            generator.writeEndObject();
+        }
+    }
+
+    private static class OpenContainer {
+        final Object segment;
+        final boolean array;
+        int nextIndex;
+
+        OpenContainer(Object segment, boolean array) {
+            this.segment = segment;
+            this.array = array;
+        }
+    }
+}
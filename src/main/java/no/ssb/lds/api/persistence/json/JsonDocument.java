@@ -54,6 +54,10 @@ public class JsonDocument {
             visitCallback.accept(node, path.stream().collect(Collectors.joining(".")).replaceAll("\\.\\[", "["));
             return;
         }
+        if (node == null || node.isNull()) {
+            // Optional field that is not present in this document, nothing to visit below it.
+            return;
+        }
         String childName = schemaPath[index];
 
         if ("[]".equals(childName)) {
@@ -0,0 +1,66 @@
+package no.ssb.lds.api.persistence.memory;
+
+import no.ssb.lds.api.persistence.PersistenceInitializer;
+import no.ssb.lds.api.persistence.ProviderName;
+import no.ssb.lds.api.persistence.index.InMemorySecondaryIndex;
+import no.ssb.lds.api.persistence.index.IndexDefinition;
+import no.ssb.lds.api.persistence.index.SecondaryIndex;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import no.ssb.lds.api.specification.Specification;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@ProviderName("mem")
+public class InMemoryPersistenceInitializer implements PersistenceInitializer {
+
+    public static final String FRAGMENT_CAPACITY = "persistence.fragment.capacity";
+
+    /**
+     * A comma separated list of indexed leaf-nodes as <code>entity:path</code>, or <code>*</code> to index all
+     * leaf-nodes of the specification.
+     */
+    public static final String INDEX_PATHS = "persistence.index.paths";
+
+    static final int DEFAULT_FRAGMENT_CAPACITY = 8 * 1024;
+
+    @Override
+    public String persistenceProviderId() {
+        return "mem";
+    }
+
+    @Override
+    public Set<String> configurationKeys() {
+        return Set.of(FRAGMENT_CAPACITY, INDEX_PATHS);
+    }
+
+    @Override
+    public RxJsonPersistence initialize(String defaultNamespace, Map<String, String> configuration, Set<String> managedDomains,
+                                       Specification specification) {
+        String capacity = configuration.get(FRAGMENT_CAPACITY);
+        int fragmentCapacity = capacity == null ? DEFAULT_FRAGMENT_CAPACITY : Integer.parseInt(capacity);
+        SecondaryIndex index = index(configuration.get(INDEX_PATHS), specification);
+        return new RxJsonPersistenceBridge(new InMemoryRxPersistence(index), fragmentCapacity);
+    }
+
+    static SecondaryIndex index(String paths, Specification specification) {
+        if (paths == null || paths.isBlank()) {
+            return null;
+        }
+        if (paths.trim().equals("*")) {
+            return new InMemorySecondaryIndex(IndexDefinition.allLeavesOf(specification));
+        }
+        List<IndexDefinition> definitions = new ArrayList<>();
+        for (String entityAndPath : paths.split(",")) {
+            String[] parts = entityAndPath.trim().split(":", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected entity:path in " + INDEX_PATHS + ", got: " + entityAndPath);
+            }
+            definitions.add(IndexDefinition.of(specification, parts[0], parts[1]));
+        }
+        return new InMemorySecondaryIndex(definitions);
+    }
+}
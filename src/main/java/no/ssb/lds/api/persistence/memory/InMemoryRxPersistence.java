@@ -0,0 +1,589 @@
+package no.ssb.lds.api.persistence.memory;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.index.SecondaryIndex;
+import no.ssb.lds.api.persistence.reactivex.PersistenceCapability;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * A reference {@link RxPersistence} that keeps all fragments in memory, intended as a baseline for benchmarks and for
+ * conformance tests of other providers.
+ * <p>
+ * Document versions are kept in a {@link ConcurrentSkipListMap} in fragment order, i.e. by namespace, entity, id and
+ * timestamp, each holding the fragments of that version in fragment order. Every entry is the head of a chain of
+ * multi-version concurrency control (MVCC) records stamped with the sequence number of the commit that wrote them.
+ * A transaction reads the store as of the last commit before it was created by following each chain to the newest
+ * record that is not newer than that commit, so readers never take a lock and never see partial commits.
+ * <p>
+ * Writes are recorded in the transaction and applied under a single commit lock when the transaction is committed.
+ * Records that no open transaction can see any more are pruned when their entry is written again, or by
+ * {@link #compact()}. Delete policies are ignored, this provider does not track links.
+ */
+public class InMemoryRxPersistence implements RxPersistence {
+
+    public static final TransactionStatistics.Counter WRITTEN_DOCUMENTS = TransactionStatistics.counter("memory.documents.written");
+    public static final TransactionStatistics.Counter WRITTEN_FRAGMENTS = TransactionStatistics.counter("memory.fragments.written");
+    public static final TransactionStatistics.Counter COMMITS = TransactionStatistics.counter("memory.commits");
+    public static final TransactionStatistics.Counter INDEX_CANDIDATES = TransactionStatistics.counter("memory.index.candidates");
+
+    private static final Comparator<Fragment> FRAGMENT_ORDER = Comparator.naturalOrder();
+    private static final Set<PersistenceCapability> CAPABILITIES = Collections.unmodifiableSet(EnumSet.of(
+            PersistenceCapability.ORDERED_SCANS,
+            PersistenceCapability.REVERSE_SCANS,
+            PersistenceCapability.LIMIT_PUSH_DOWN,
+            PersistenceCapability.MULTI_GET
+    ));
+
+    private final ConcurrentSkipListMap<VersionKey, Record> store = new ConcurrentSkipListMap<>();
+    private final Map<InMemoryTransaction, Long> openTransactions = new ConcurrentHashMap<>();
+    private final Object commitLock = new Object();
+    private final TransactionFactory transactionFactory = new InMemoryTransactionFactory();
+    private final SecondaryIndex index;
+
+    private volatile long visibleSequence;
+    private volatile boolean closed;
+
+    public InMemoryRxPersistence() {
+        this(null);
+    }
+
+    /**
+     * @param index the index that is maintained on commit and used by {@link #find} for the paths it covers, or null
+     *              to scan on every find.
+     */
+    public InMemoryRxPersistence(SecondaryIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Scans are in range order and limited, and ids are read one after another. Find is not exact, since it only
+     * compares the first fragment of a value.
+     */
+    @Override
+    public Set<PersistenceCapability> capabilities() {
+        return CAPABILITIES;
+    }
+
+    @Override
+    public TransactionFactory transactionFactory() throws PersistenceException {
+        return transactionFactory;
+    }
+
+    @Override
+    public InMemoryTransaction createTransaction(boolean readOnly) throws PersistenceException {
+        if (closed) {
+            throw new PersistenceException("Persistence is closed");
+        }
+        InMemoryTransaction transaction = new InMemoryTransaction(this, readOnly);
+        // Register a lower bound first so that records the transaction may need are not pruned before it is
+        // registered with its actual read sequence.
+        openTransactions.put(transaction, visibleSequence);
+        transaction.readSequence = visibleSequence;
+        openTransactions.put(transaction, transaction.readSequence);
+        return transaction;
+    }
+
+    static InMemoryTransaction inMemory(Transaction tx) {
+        if (!(tx instanceof InMemoryTransaction)) {
+            throw new IllegalArgumentException("Not a transaction of this persistence: " + tx);
+        }
+        return (InMemoryTransaction) tx;
+    }
+
+    CompletableFuture<TransactionStatistics> commit(InMemoryTransaction transaction) {
+        // The transaction does not read any more, so it should not keep the records it overwrites from being pruned.
+        release(transaction);
+        try {
+            List<Mutation> mutations = transaction.mutations();
+            if (mutations.isEmpty()) {
+                return CompletableFuture.completedFuture(transaction.statistics);
+            }
+            CompletableFuture<Void> committed;
+            synchronized (commitLock) {
+                committed = commit(mutations);
+            }
+            return committed.thenApply(v -> transaction.statistics.increment(COMMITS));
+        } catch (Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
+    }
+
+    void release(InMemoryTransaction transaction) {
+        openTransactions.remove(transaction);
+    }
+
+    /**
+     * Make the mutations of a transaction visible, called under the commit lock so that commits are serialized.
+     * Durable providers override this method to write the mutations to storage before they are applied, or to apply
+     * mutations that refer to the stored fragments instead. Providers that wait for storage may apply the mutations
+     * after this method has returned, as long as commits are applied in the order this method was called.
+     *
+     * @return completed when the mutations are applied.
+     */
+    protected CompletableFuture<Void> commit(List<Mutation> mutations) {
+        apply(mutations);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Apply mutations as one commit. All records written by the commit are stamped with the same sequence number,
+     * which is published only after all of them are in place.
+     */
+    protected final void apply(List<Mutation> mutations) {
+        synchronized (commitLock) {
+            long sequence = visibleSequence + 1;
+            Set<VersionKey> touched = new TreeSet<>();
+            for (Mutation mutation : mutations) {
+                if (mutation instanceof Mutation.Put) {
+                    Mutation.Put put = (Mutation.Put) mutation;
+                    store.compute(put.key, (key, previous) -> new Record(sequence, put.fragments, put.deleteMarker, previous));
+                    if (index != null) {
+                        index.add(put.fragments);
+                    }
+                    touched.add(put.key);
+                } else {
+                    Mutation.Remove remove = (Mutation.Remove) mutation;
+                    for (VersionKey key : store.subMap(remove.from, true, remove.to, true).keySet()) {
+                        store.computeIfPresent(key, (k, previous) -> previous.removed() ? previous : new Record(sequence, null, false, previous));
+                        touched.add(key);
+                    }
+                }
+            }
+            visibleSequence = sequence;
+            long oldestVisible = oldestVisibleSequence();
+            for (VersionKey key : touched) {
+                prune(key, oldestVisible);
+            }
+        }
+    }
+
+    private long oldestVisibleSequence() {
+        long oldest = visibleSequence;
+        for (Long readSequence : openTransactions.values()) {
+            oldest = Math.min(oldest, readSequence);
+        }
+        return oldest;
+    }
+
+    /**
+     * Drop records of the entry that no open transaction can see, and the entry itself if it is removed for all of them.
+     */
+    private void prune(VersionKey key, long oldestVisible) {
+        Record head = store.get(key);
+        if (head == null) {
+            return;
+        }
+        if (head.sequence <= oldestVisible && head.removed()) {
+            store.remove(key, head);
+            unindex(head);
+            return;
+        }
+        for (Record record = head; record != null; record = record.previous) {
+            if (record.sequence <= oldestVisible) {
+                Record dropped = record.previous;
+                record.previous = null;
+                unindex(dropped);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the records of a chain that is dropped from the index.
+     */
+    private void unindex(Record record) {
+        if (index == null) {
+            return;
+        }
+        for (; record != null; record = record.previous) {
+            if (!record.removed()) {
+                index.remove(record.fragments);
+            }
+        }
+    }
+
+    /**
+     * Replace the fragments of the newest record of every document version that is not removed, e.g. to move the
+     * fragments of a durable provider to another storage location. The records keep their sequence numbers, so the
+     * change is not visible to readers, and no commit happens while the fragments are replaced. The new fragments
+     * must be equal to the old ones, since the index is not updated.
+     *
+     * @param rewrite returns the new fragments of a version, or the same list to leave the version as it is.
+     */
+    protected final void rewrite(BiFunction<VersionKey, List<Fragment>, List<Fragment>> rewrite) {
+        synchronized (commitLock) {
+            for (Map.Entry<VersionKey, Record> entry : store.entrySet()) {
+                Record head = entry.getValue();
+                if (head.removed()) {
+                    continue;
+                }
+                List<Fragment> fragments = rewrite.apply(entry.getKey(), head.fragments);
+                if (fragments != head.fragments) {
+                    store.replace(entry.getKey(), head, new Record(head.sequence, fragments, head.deleteMarker, head.previous));
+                }
+            }
+        }
+    }
+
+    /**
+     * Prune all entries, e.g. after long-running transactions are done.
+     */
+    public void compact() {
+        synchronized (commitLock) {
+            long oldestVisible = oldestVisibleSequence();
+            for (VersionKey key : store.keySet()) {
+                prune(key, oldestVisible);
+            }
+        }
+    }
+
+    /**
+     * The number of document versions in the store, including versions that are only visible to open transactions.
+     */
+    public int size() {
+        return store.size();
+    }
+
+    Record head(VersionKey key) {
+        return store.get(key);
+    }
+
+    static long readSequence(Transaction tx) {
+        return inMemory(tx).readSequence;
+    }
+
+    /**
+     * The record that was visible at the given sequence, or null if the version did not exist or was removed at that
+     * time.
+     */
+    static Record visible(Record head, long readSequence) {
+        for (Record record = head; record != null; record = record.previous) {
+            if (record.sequence <= readSequence) {
+                return record.removed() ? null : record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The newest version of the document at the snapshot, or null if it does not exist or is marked as deleted.
+     */
+    List<Fragment> latest(long readSequence, Instant snapshot, String namespace, String entity, String id) {
+        NavigableMap<VersionKey, Record> versions = store.subMap(VersionKey.firstOf(namespace, entity, id), true,
+                new VersionKey(namespace, entity, id, snapshot), true).descendingMap();
+        for (Record head : versions.values()) {
+            Record record = visible(head, readSequence);
+            if (record != null) {
+                return record.deleteMarker ? null : record.fragments;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The versions of the documents with ids in the range, in range order.
+     */
+    NavigableMap<VersionKey, Record> scan(String namespace, String entity, Range<String> range) {
+        VersionKey from = range.hasAfter() ? VersionKey.lastOf(namespace, entity, range.getAfter()) : VersionKey.firstOf(namespace, entity, "");
+        VersionKey to = range.hasBefore() ? VersionKey.firstOf(namespace, entity, range.getBefore()) : VersionKey.endOf(namespace, entity);
+        NavigableMap<VersionKey, Record> versions = store.subMap(from, !range.hasAfter(), to, false);
+        return range.isBackward() ? versions.descendingMap() : versions;
+    }
+
+    /**
+     * The newest version at the snapshot of each document in the range that is not marked as deleted, in range order.
+     */
+    Flowable<List<Fragment>> latestDocuments(Transaction tx, ZonedDateTime snapshot, String namespace, String entity,
+                                             Range<String> range) {
+        return Flowable.defer(() -> {
+            long readSequence = readSequence(tx);
+            NavigableMap<VersionKey, Record> versions = scan(namespace, entity, range);
+            Instant snapshotInstant = snapshot.toInstant();
+            return Flowable.fromIterable(() -> new LatestVersionIterator(versions.entrySet().iterator(), snapshotInstant,
+                    readSequence, range.isBackward()));
+        });
+    }
+
+    private static Flowable<Fragment> limited(Flowable<List<Fragment>> documents, Range<?> range) {
+        if (range.isLimited()) {
+            documents = documents.take(range.getLimit());
+        }
+        return documents.concatMapIterable(fragments -> fragments);
+    }
+
+    @Override
+    public Completable createOrOverwrite(Transaction tx, Flowable<Fragment> fragments) {
+        InMemoryTransaction transaction = inMemory(tx);
+        return fragments
+                .filter(fragment -> !fragment.isStreamingControl())
+                .collect(LinkedHashMap<VersionKey, List<Fragment>>::new,
+                        (documents, fragment) -> documents.computeIfAbsent(VersionKey.of(fragment), key -> new ArrayList<>()).add(fragment))
+                .doOnSuccess(documents -> {
+                    for (Map.Entry<VersionKey, List<Fragment>> entry : documents.entrySet()) {
+                        List<Fragment> document = entry.getValue();
+                        document.sort(FRAGMENT_ORDER);
+                        transaction.add(Mutation.put(entry.getKey(), List.copyOf(document)));
+                        transaction.statistics.add(WRITTEN_FRAGMENTS, document.size());
+                    }
+                    transaction.statistics.add(WRITTEN_DOCUMENTS, documents.size());
+                })
+                .ignoreElement();
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String id) {
+        return Flowable.defer(() -> {
+            List<Fragment> fragments = latest(readSequence(tx), snapshot.toInstant(), namespace, entity, id);
+            return fragments == null ? Flowable.empty() : Flowable.fromIterable(fragments);
+        });
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Iterable<String> ids) {
+        return Flowable.defer(() -> {
+            long readSequence = readSequence(tx);
+            Instant snapshotInstant = snapshot.toInstant();
+            return Flowable.fromIterable(ids)
+                    .concatMapIterable(id -> {
+                        List<Fragment> fragments = latest(readSequence, snapshotInstant, namespace, entity, id);
+                        return fragments == null ? List.of() : fragments;
+                    });
+        });
+    }
+
+    @Override
+    public Flowable<Fragment> readVersions(Transaction tx, String namespace, String entity, String id, Range<ZonedDateTime> range) {
+        return Flowable.defer(() -> {
+            long readSequence = readSequence(tx);
+            VersionKey from = range.hasAfter() ? new VersionKey(namespace, entity, id, range.getAfter().toInstant()) : VersionKey.firstOf(namespace, entity, id);
+            VersionKey to = range.hasBefore() ? new VersionKey(namespace, entity, id, range.getBefore().toInstant()) : VersionKey.lastOf(namespace, entity, id);
+            NavigableMap<VersionKey, Record> versions = store.subMap(from, !range.hasAfter(), to, !range.hasBefore());
+            if (range.isBackward()) {
+                versions = versions.descendingMap();
+            }
+            Flowable<List<Fragment>> documents = Flowable.fromIterable(versions.values())
+                    .concatMapIterable(head -> {
+                        Record record = visible(head, readSequence);
+                        return record == null ? List.<List<Fragment>>of() : List.of(record.fragments);
+                    });
+            return limited(documents, range);
+        });
+    }
+
+    @Override
+    public Completable delete(Transaction transaction, String namespace, String entity, String id, ZonedDateTime version,
+                              PersistenceDeletePolicy policy) {
+        return Completable.fromAction(() -> {
+            VersionKey key = new VersionKey(namespace, entity, id, version.toInstant());
+            inMemory(transaction).add(Mutation.remove(key, key));
+        });
+    }
+
+    @Override
+    public Completable deleteAllVersions(Transaction transaction, String namespace, String entity, String id,
+                                         PersistenceDeletePolicy policy) {
+        return Completable.fromAction(() -> inMemory(transaction).add(
+                Mutation.remove(VersionKey.firstOf(namespace, entity, id), VersionKey.lastOf(namespace, entity, id))));
+    }
+
+    @Override
+    public Completable deleteAllEntities(Transaction tx, String namespace, String entity, Iterable<String> paths) {
+        return Completable.fromAction(() -> inMemory(tx).add(
+                Mutation.remove(VersionKey.firstOf(namespace, entity, ""), VersionKey.endOf(namespace, entity))));
+    }
+
+    @Override
+    public Completable markDeleted(Transaction transaction, String namespace, String entity, String id,
+                                   ZonedDateTime version, PersistenceDeletePolicy policy) {
+        return createOrOverwrite(transaction, Flowable.just(new Fragment(namespace, entity, id, version, "$",
+                FragmentType.DELETED, 0, new byte[0])));
+    }
+
+    /**
+     * Delete-markers are stored as fragments, so they are written in batches.
+     */
+    @Override
+    public Completable markDeleted(Transaction transaction, Flowable<DocumentKey> keys, int batchSize, int maxConcurrency) {
+        return RxPersistence.markDeletedInBatches(this, transaction, keys, batchSize, maxConcurrency);
+    }
+
+    @Override
+    public Flowable<Fragment> readAll(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity,
+                                      Range<String> range) {
+        return limited(latestDocuments(transaction, snapshot, namespace, entity, range), range);
+    }
+
+    /**
+     * Documents where the first fragment of a leaf-node at the given index-unaware path equals the value. Like other
+     * fragment based implementations this may return false positives for values longer than one fragment. Paths that
+     * are covered by the secondary index only read the candidates of the index, other paths scan the entity.
+     */
+    @Override
+    public Flowable<Fragment> find(Transaction transaction, ZonedDateTime snapshot, String namespace, String entity,
+                                   String path, byte[] value, Range<String> range) {
+        Predicate<List<Fragment>> matches = fragments -> {
+            for (Fragment fragment : fragments) {
+                if (fragment.offset() == 0
+                        && Arrays.equals(fragment.value(), value)
+                        && path.equals(Fragment.computeIndexUnawarePath(fragment.path(), new ArrayList<>()))) {
+                    return true;
+                }
+            }
+            return false;
+        };
+        if (index != null && index.covers(entity, path)) {
+            Flowable<List<Fragment>> documents = Flowable.defer(() -> {
+                InMemoryTransaction tx = inMemory(transaction);
+                long readSequence = tx.readSequence;
+                Instant snapshotInstant = snapshot.toInstant();
+                return Flowable.fromIterable(index.lookup(namespace, entity, path, value, range))
+                        .concatMapIterable(id -> {
+                            tx.statistics.increment(INDEX_CANDIDATES);
+                            List<Fragment> fragments = latest(readSequence, snapshotInstant, namespace, entity, id);
+                            return fragments != null && matches.test(fragments) ? List.of(fragments) : List.<List<Fragment>>of();
+                        });
+            });
+            return limited(documents, range);
+        }
+        Flowable<List<Fragment>> documents = latestDocuments(transaction, snapshot, namespace, entity, Range.unlimited(range))
+                .filter(matches::test);
+        return limited(documents, range);
+    }
+
+    @Override
+    public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return latestDocuments(tx, snapshot, namespace, entityName, Range.lastBefore(1, id)).isEmpty()
+                .map(wasEmpty -> !wasEmpty);
+    }
+
+    @Override
+    public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return latestDocuments(tx, snapshot, namespace, entityName, Range.firstAfter(1, id)).isEmpty()
+                .map(wasEmpty -> !wasEmpty);
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        closed = true;
+    }
+
+    /**
+     * A record of the MVCC chain of a document version. A record without fragments means that the version was removed
+     * by the commit with its sequence number.
+     */
+    static class Record {
+        final long sequence;
+        final List<Fragment> fragments;
+        final boolean deleteMarker;
+        volatile Record previous;
+
+        Record(long sequence, List<Fragment> fragments, boolean deleteMarker, Record previous) {
+            this.sequence = sequence;
+            this.fragments = fragments;
+            this.deleteMarker = deleteMarker;
+            this.previous = previous;
+        }
+
+        boolean removed() {
+            return fragments == null;
+        }
+    }
+
+    /**
+     * Iterates over the versions of a scan and yields, per document, the newest version at the snapshot. Versions are
+     * grouped by document since the scan is ordered by id and then timestamp, in ascending or descending order.
+     */
+    static class LatestVersionIterator implements Iterator<List<Fragment>> {
+        final Iterator<Map.Entry<VersionKey, Record>> versions;
+        final Instant snapshot;
+        final long readSequence;
+        final boolean descending;
+
+        Map.Entry<VersionKey, Record> pending;
+        List<Fragment> next;
+
+        LatestVersionIterator(Iterator<Map.Entry<VersionKey, Record>> versions, Instant snapshot, long readSequence, boolean descending) {
+            this.versions = versions;
+            this.snapshot = snapshot;
+            this.readSequence = readSequence;
+            this.descending = descending;
+            this.pending = versions.hasNext() ? versions.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && pending != null) {
+                VersionKey document = pending.getKey();
+                Record latest = null;
+                while (pending != null && pending.getKey().sameDocumentAs(document)) {
+                    if (!pending.getKey().timestamp.isAfter(snapshot) && (latest == null || !descending)) {
+                        Record record = visible(pending.getValue(), readSequence);
+                        if (record != null) {
+                            latest = record;
+                        }
+                    }
+                    pending = versions.hasNext() ? versions.next() : null;
+                }
+                if (latest != null && !latest.deleteMarker) {
+                    next = latest.fragments;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public List<Fragment> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            List<Fragment> result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    class InMemoryTransactionFactory implements TransactionFactory {
+
+        @Override
+        public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+            return InMemoryRxPersistence.this.createTransaction(readOnly);
+        }
+
+        @Override
+        public void close() {
+            InMemoryRxPersistence.this.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package no.ssb.lds.api.persistence.memory;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A transaction of the {@link InMemoryRxPersistence}. Reads see the store as it was when the transaction was created,
+ * writes are recorded as {@link Mutation}s and become visible to other transactions, atomically, on commit. Note that
+ * a transaction does not see its own writes, wrap the persistence with a
+ * {@link no.ssb.lds.api.persistence.reactivex.WriteBufferingRxJsonPersistence} to read them back before commit.
+ */
+public class InMemoryTransaction implements Transaction {
+
+    final InMemoryRxPersistence persistence;
+    final boolean readOnly;
+    volatile long readSequence;
+    final TransactionStatistics statistics = new TransactionStatistics();
+
+    private final List<Mutation> mutations = new ArrayList<>();
+    private CompletableFuture<TransactionStatistics> result;
+
+    InMemoryTransaction(InMemoryRxPersistence persistence, boolean readOnly) {
+        this.persistence = persistence;
+        this.readOnly = readOnly;
+    }
+
+    synchronized void add(Mutation mutation) {
+        if (readOnly) {
+            throw new PersistenceException("Cannot write in a read-only transaction");
+        }
+        if (result != null) {
+            throw new IllegalStateException("Transaction is already " + (result.isCompletedExceptionally() ? "failed" : "completed"));
+        }
+        mutations.add(mutation);
+    }
+
+    synchronized List<Mutation> mutations() {
+        return new ArrayList<>(mutations);
+    }
+
+    /**
+     * The sequence number of the last commit that is visible to this transaction.
+     */
+    public long readSequence() {
+        return readSequence;
+    }
+
+    @Override
+    public synchronized CompletableFuture<TransactionStatistics> commit() {
+        if (result == null) {
+            result = persistence.commit(this);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized CompletableFuture<TransactionStatistics> cancel() {
+        if (result != null) {
+            return CompletableFuture.completedFuture(statistics); // already committed, failed or cancelled
+        }
+        mutations.clear();
+        persistence.release(this);
+        result = CompletableFuture.completedFuture(statistics);
+        return result;
+    }
+}
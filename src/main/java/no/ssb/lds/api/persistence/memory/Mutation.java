@@ -0,0 +1,89 @@
+package no.ssb.lds.api.persistence.memory;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.util.List;
+
+/**
+ * A change recorded by an {@link InMemoryTransaction}, applied to the store when the transaction is committed.
+ * Providers that make the store durable log mutations before they are applied, and apply them again on recovery.
+ */
+public abstract class Mutation {
+
+    /**
+     * Store all fragments of a document version, replacing the version if it exists.
+     */
+    public static Put put(VersionKey key, List<Fragment> fragments) {
+        boolean deleteMarker = false;
+        for (Fragment fragment : fragments) {
+            deleteMarker |= fragment.deleteMarker();
+        }
+        return new Put(key, fragments, deleteMarker);
+    }
+
+    /**
+     * Store a document version whose fragments are already known to be, or not to be, a delete-marker.
+     */
+    public static Put put(VersionKey key, List<Fragment> fragments, boolean deleteMarker) {
+        return new Put(key, fragments, deleteMarker);
+    }
+
+    /**
+     * Remove all versions with keys in the range [from, to].
+     */
+    public static Remove remove(VersionKey from, VersionKey to) {
+        return new Remove(from, to);
+    }
+
+    public static class Put extends Mutation {
+        final VersionKey key;
+        final List<Fragment> fragments;
+        final boolean deleteMarker;
+
+        Put(VersionKey key, List<Fragment> fragments, boolean deleteMarker) {
+            this.key = key;
+            this.fragments = fragments;
+            this.deleteMarker = deleteMarker;
+        }
+
+        public VersionKey key() {
+            return key;
+        }
+
+        public List<Fragment> fragments() {
+            return fragments;
+        }
+
+        public boolean deleteMarker() {
+            return deleteMarker;
+        }
+
+        @Override
+        public String toString() {
+            return "Put{" + key + ", fragments=" + fragments.size() + '}';
+        }
+    }
+
+    public static class Remove extends Mutation {
+        final VersionKey from;
+        final VersionKey to;
+
+        Remove(VersionKey from, VersionKey to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public VersionKey from() {
+            return from;
+        }
+
+        public VersionKey to() {
+            return to;
+        }
+
+        @Override
+        public String toString() {
+            return "Remove{" + from + ".." + to + '}';
+        }
+    }
+}
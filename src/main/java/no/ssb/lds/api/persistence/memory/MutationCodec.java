@@ -0,0 +1,74 @@
+package no.ssb.lds.api.persistence.memory;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of {@link Mutation}s, for providers that log them.
+ * <pre>
+ *     put    = int fragmentCount | boolean deleteMarker | fragment*
+ *     remove = key from | key to
+ *     key    = utf namespace | utf entity | boolean hasId | [utf id] | long epochSecond | int nano
+ * </pre>
+ * Fragments are encoded with the {@link FragmentCodec}, the key of a put is the key of its fragments.
+ */
+public class MutationCodec {
+
+    private MutationCodec() {
+    }
+
+    public static void writePut(DataOutput out, Mutation.Put put) throws IOException {
+        out.writeInt(put.fragments.size());
+        out.writeBoolean(put.deleteMarker);
+        for (Fragment fragment : put.fragments) {
+            FragmentCodec.encode(out, fragment);
+        }
+    }
+
+    public static Mutation.Put readPut(DataInput in) throws IOException {
+        int count = in.readInt();
+        boolean deleteMarker = in.readBoolean();
+        List<Fragment> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            fragments.add(FragmentCodec.decode(in));
+        }
+        return Mutation.put(VersionKey.of(fragments.get(0)), fragments, deleteMarker);
+    }
+
+    public static void writeRemove(DataOutput out, Mutation.Remove remove) throws IOException {
+        writeKey(out, remove.from);
+        writeKey(out, remove.to);
+    }
+
+    public static Mutation.Remove readRemove(DataInput in) throws IOException {
+        VersionKey from = readKey(in);
+        VersionKey to = readKey(in);
+        return Mutation.remove(from, to);
+    }
+
+    static void writeKey(DataOutput out, VersionKey key) throws IOException {
+        out.writeUTF(key.namespace);
+        out.writeUTF(key.entity);
+        out.writeBoolean(key.id != null);
+        if (key.id != null) {
+            out.writeUTF(key.id);
+        }
+        out.writeLong(key.timestamp.getEpochSecond());
+        out.writeInt(key.timestamp.getNano());
+    }
+
+    static VersionKey readKey(DataInput in) throws IOException {
+        String namespace = in.readUTF();
+        String entity = in.readUTF();
+        String id = in.readBoolean() ? in.readUTF() : null;
+        Instant timestamp = Instant.ofEpochSecond(in.readLong(), in.readInt());
+        return new VersionKey(namespace, entity, id, timestamp);
+    }
+}
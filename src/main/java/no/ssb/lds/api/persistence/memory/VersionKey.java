@@ -0,0 +1,109 @@
+package no.ssb.lds.api.persistence.memory;
+
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * Identifies a document version in the store, ordered like {@link Fragment}s: by namespace, entity, id and then
+ * timestamp. A null id sorts after all ids and is only used as an upper bound of scans.
+ */
+public class VersionKey implements Comparable<VersionKey> {
+
+    final String namespace;
+    final String entity;
+    final String id;
+    final Instant timestamp;
+
+    public VersionKey(String namespace, String entity, String id, Instant timestamp) {
+        this.namespace = namespace;
+        this.entity = entity;
+        this.id = id;
+        this.timestamp = timestamp;
+    }
+
+    public static VersionKey of(Fragment fragment) {
+        return new VersionKey(fragment.namespace(), fragment.entity(), fragment.id(), fragment.timestamp().toInstant());
+    }
+
+    public static VersionKey firstOf(String namespace, String entity, String id) {
+        return new VersionKey(namespace, entity, id, Instant.MIN);
+    }
+
+    public static VersionKey lastOf(String namespace, String entity, String id) {
+        return new VersionKey(namespace, entity, id, Instant.MAX);
+    }
+
+    /**
+     * A key that sorts after all versions of all documents of the entity.
+     */
+    public static VersionKey endOf(String namespace, String entity) {
+        return new VersionKey(namespace, entity, null, Instant.MAX);
+    }
+
+    public String namespace() {
+        return namespace;
+    }
+
+    public String entity() {
+        return entity;
+    }
+
+    /**
+     * @return the id, or null if this key is the upper bound of an entity.
+     */
+    public String id() {
+        return id;
+    }
+
+    public Instant timestamp() {
+        return timestamp;
+    }
+
+    boolean sameDocumentAs(VersionKey other) {
+        return namespace.equals(other.namespace) && entity.equals(other.entity) && Objects.equals(id, other.id);
+    }
+
+    @Override
+    public int compareTo(VersionKey o) {
+        int cmp = namespace.compareTo(o.namespace);
+        if (cmp != 0) {
+            return cmp;
+        }
+        cmp = entity.compareTo(o.entity);
+        if (cmp != 0) {
+            return cmp;
+        }
+        if (id == null || o.id == null) {
+            cmp = id == null ? (o.id == null ? 0 : 1) : -1;
+        } else {
+            cmp = id.compareTo(o.id);
+        }
+        if (cmp != 0) {
+            return cmp;
+        }
+        return timestamp.compareTo(o.timestamp);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        VersionKey that = (VersionKey) o;
+        return namespace.equals(that.namespace) &&
+                entity.equals(that.entity) &&
+                Objects.equals(id, that.id) &&
+                timestamp.equals(that.timestamp);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(namespace, entity, id, timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return "VersionKey{" + namespace + '/' + entity + '/' + id + '/' + timestamp + '}';
+    }
+}
@@ -0,0 +1,55 @@
+package no.ssb.lds.api.persistence.metrics;
+
+import no.ssb.lds.api.persistence.TransactionStatistics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the statistics of every operation in memory, for as long as this instance lives.
+ */
+public class InMemoryPersistenceMetrics implements PersistenceMetrics {
+
+    private final Map<Operation, TransactionStatistics> statistics = new ConcurrentHashMap<>();
+
+    @Override
+    public void add(Operation operation, TransactionStatistics.Counter counter, long increment) {
+        statistics(operation).add(counter, increment);
+    }
+
+    @Override
+    public void record(Operation operation, TransactionStatistics.Histogram histogram, long value) {
+        statistics(operation).record(histogram, value);
+    }
+
+    /**
+     * The statistics of the operation, empty if it has not been measured.
+     */
+    public TransactionStatistics statistics(Operation operation) {
+        return statistics.computeIfAbsent(operation, o -> new TransactionStatistics());
+    }
+
+    /**
+     * The statistics of all operations that have been measured, ordered by their names.
+     */
+    public Map<Operation, TransactionStatistics> operations() {
+        Map<Operation, TransactionStatistics> result = new TreeMap<>((o1, o2) -> o1.toString().compareTo(o2.toString()));
+        result.putAll(statistics);
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * The statistics of all operations of a method, over all entities.
+     */
+    public TransactionStatistics method(String method) {
+        TransactionStatistics total = new TransactionStatistics();
+        statistics.forEach((operation, operationStatistics) -> {
+            if (operation.method.equals(method)) {
+                total.addAll(operationStatistics);
+            }
+        });
+        return total;
+    }
+}
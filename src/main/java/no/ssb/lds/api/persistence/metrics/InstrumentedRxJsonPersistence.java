@@ -0,0 +1,185 @@
+package no.ssb.lds.api.persistence.metrics;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.Single;
+import no.ssb.lds.api.json.JsonNavigationPath;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.batch.Batch;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.specification.Specification;
+
+import java.time.ZonedDateTime;
+
+import static no.ssb.lds.api.persistence.metrics.PersistenceMetrics.DOCUMENTS;
+
+/**
+ * A decorator that measures every call to an {@link RxJsonPersistence}: its latency, the time to its first document,
+ * the number of documents decoded or written, and whether it failed or was cancelled. Measurements are reported to
+ * {@link PersistenceMetrics} per method, namespace and entity when the call terminates.
+ * <p>
+ * Decorate both the json persistence and the provider behind it, see {@link InstrumentedRxPersistence}, to tell the
+ * time spent decoding documents from the time spent in the provider.
+ */
+public class InstrumentedRxJsonPersistence implements RxJsonPersistence {
+
+    private final RxJsonPersistence delegate;
+    private final PersistenceMetrics metrics;
+
+    public InstrumentedRxJsonPersistence(RxJsonPersistence delegate, PersistenceMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    private Flowable<JsonDocument> reading(String method, String namespace, String entity, Flowable<JsonDocument> documents) {
+        return Measurement.flowable(metrics, "json." + method, namespace, entity, DOCUMENTS,
+                (measurement, document) -> measurement.element(), documents);
+    }
+
+    @Override
+    public Maybe<JsonDocument> readDocument(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
+        return Measurement.maybe(metrics, "json.readDocument", ns, entityName, DOCUMENTS,
+                delegate.readDocument(tx, snapshot, ns, entityName, id));
+    }
+
+    @Override
+    public Single<Boolean> streamDocument(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id,
+                                          JsonGenerator generator) {
+        return Measurement.single(metrics, "json.streamDocument", ns, entityName,
+                delegate.streamDocument(tx, snapshot, ns, entityName, id, generator));
+    }
+
+    @Override
+    public Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName,
+                                                Range<String> range) {
+        return reading("readDocuments", ns, entityName, delegate.readDocuments(tx, snapshot, ns, entityName, range));
+    }
+
+    @Override
+    public Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName,
+                                                Iterable<String> ids) {
+        return reading("readDocumentsById", ns, entityName, delegate.readDocuments(tx, snapshot, ns, entityName, ids));
+    }
+
+    @Override
+    public Flowable<JsonDocument> readDocumentVersions(Transaction tx, String ns, String entityName, String id,
+                                                       Range<ZonedDateTime> range) {
+        return reading("readDocumentVersions", ns, entityName, delegate.readDocumentVersions(tx, ns, entityName, id, range));
+    }
+
+    @Override
+    public Flowable<JsonDocument> readTargetDocuments(Transaction tx, ZonedDateTime snapshot, String ns,
+                                                      String sourceEntityName, String sourceId,
+                                                      JsonNavigationPath relationPath, String targetEntityName,
+                                                      Range<String> range) {
+        return reading("readTargetDocuments", ns, targetEntityName, delegate.readTargetDocuments(tx, snapshot, ns,
+                sourceEntityName, sourceId, relationPath, targetEntityName, range));
+    }
+
+    @Override
+    public Flowable<JsonDocument> readSourceDocuments(Transaction tx, ZonedDateTime snapshot, String ns,
+                                                      String targetEntityName, String targetId,
+                                                      JsonNavigationPath relationPath, String sourceEntityName,
+                                                      Range<String> range) {
+        return reading("readSourceDocuments", ns, sourceEntityName, delegate.readSourceDocuments(tx, snapshot, ns,
+                targetEntityName, targetId, relationPath, sourceEntityName, range));
+    }
+
+    @Override
+    public Flowable<JsonDocument> findDocument(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName,
+                                               JsonNavigationPath path, String value, Range<String> range) {
+        return reading("findDocument", namespace, entityName,
+                delegate.findDocument(tx, snapshot, namespace, entityName, path, value, range));
+    }
+
+    @Override
+    public Completable createOrOverwrite(Transaction tx, Flowable<JsonDocument> documentFlowable, Specification specification) {
+        return Measurement.completable(metrics, "json.createOrOverwrite", null, null, DOCUMENTS, documentFlowable,
+                (measurement, document) -> measurement.element(document.key().namespace(), document.key().entity(), -1),
+                counted -> delegate.createOrOverwrite(tx, counted, specification));
+    }
+
+    @Override
+    public Completable deleteDocument(Transaction tx, String ns, String entityName, String id, ZonedDateTime version,
+                                      PersistenceDeletePolicy policy) {
+        return Measurement.completable(metrics, "json.deleteDocument", ns, entityName,
+                delegate.deleteDocument(tx, ns, entityName, id, version, policy));
+    }
+
+    @Override
+    public Completable deleteAllDocumentVersions(Transaction tx, String ns, String entity, String id,
+                                                 PersistenceDeletePolicy policy) {
+        return Measurement.completable(metrics, "json.deleteAllDocumentVersions", ns, entity,
+                delegate.deleteAllDocumentVersions(tx, ns, entity, id, policy));
+    }
+
+    @Override
+    public Completable deleteAllEntities(Transaction tx, String namespace, String entity, Specification specification) {
+        return Measurement.completable(metrics, "json.deleteAllEntities", namespace, entity,
+                delegate.deleteAllEntities(tx, namespace, entity, specification));
+    }
+
+    @Override
+    public Completable markDocumentDeleted(Transaction transaction, String ns, String entityName, String id,
+                                           ZonedDateTime version, PersistenceDeletePolicy policy) {
+        return Measurement.completable(metrics, "json.markDocumentDeleted", ns, entityName,
+                delegate.markDocumentDeleted(transaction, ns, entityName, id, version, policy));
+    }
+
+    @Override
+    public Completable markDocumentsDeleted(Transaction transaction, Flowable<DocumentKey> keys, int batchSize, int maxConcurrency) {
+        return Measurement.completable(metrics, "json.markDocumentsDeleted", null, null, DOCUMENTS, keys,
+                (measurement, key) -> measurement.element(key.namespace(), key.entity(), -1),
+                counted -> delegate.markDocumentsDeleted(transaction, counted, batchSize, maxConcurrency));
+    }
+
+    @Override
+    public Completable deleteBatchGroup(Transaction tx, Batch.DeleteGroup group, String namespace, Specification specification) {
+        return Measurement.completable(metrics, "json.deleteBatchGroup", namespace, group.type(),
+                delegate.deleteBatchGroup(tx, group, namespace, specification));
+    }
+
+    @Override
+    public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
+        return Measurement.single(metrics, "json.hasPrevious", ns, entityName,
+                delegate.hasPrevious(tx, snapshot, ns, entityName, id));
+    }
+
+    @Override
+    public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
+        return Measurement.single(metrics, "json.hasNext", ns, entityName,
+                delegate.hasNext(tx, snapshot, ns, entityName, id));
+    }
+
+    @Override
+    public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+        return delegate.createTransaction(readOnly);
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        delegate.close();
+    }
+
+    @Override
+    public int deleteBatchSize() {
+        return delegate.deleteBatchSize();
+    }
+
+    @Override
+    public int deleteConcurrency() {
+        return delegate.deleteConcurrency();
+    }
+
+    @Override
+    public <T> T getInstance(Class<T> clazz) {
+        return delegate.getInstance(clazz);
+    }
+}
@@ -0,0 +1,156 @@
+package no.ssb.lds.api.persistence.metrics;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.reactivex.PersistenceCapability;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Set;
+
+import static no.ssb.lds.api.persistence.metrics.PersistenceMetrics.FRAGMENTS;
+
+/**
+ * A decorator that measures every call to an {@link RxPersistence}: its latency, the time to its first fragment, the
+ * number of fragments and fragment bytes read or written, and whether it failed or was cancelled. Measurements are
+ * reported to {@link PersistenceMetrics} per method, namespace and entity when the call terminates.
+ */
+public class InstrumentedRxPersistence implements RxPersistence {
+
+    private final RxPersistence delegate;
+    private final PersistenceMetrics metrics;
+
+    public InstrumentedRxPersistence(RxPersistence delegate, PersistenceMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    static long bytesOf(Fragment fragment) {
+        return fragment.value() == null ? 0 : fragment.value().length;
+    }
+
+    static void count(Measurement measurement, Fragment fragment) {
+        if (!fragment.isStreamingControl()) {
+            measurement.element(fragment.namespace(), fragment.entity(), bytesOf(fragment));
+        }
+    }
+
+    private Flowable<Fragment> reading(String method, String namespace, String entity, Flowable<Fragment> fragments) {
+        return Measurement.flowable(metrics, "rx." + method, namespace, entity, FRAGMENTS,
+                InstrumentedRxPersistence::count, fragments);
+    }
+
+    @Override
+    public Set<PersistenceCapability> capabilities() {
+        return delegate.capabilities();
+    }
+
+    @Override
+    public TransactionFactory transactionFactory() throws PersistenceException {
+        return delegate.transactionFactory();
+    }
+
+    @Override
+    public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+        return delegate.createTransaction(readOnly);
+    }
+
+    @Override
+    public Completable createOrOverwrite(Transaction tx, Flowable<Fragment> fragments) {
+        return Measurement.completable(metrics, "rx.createOrOverwrite", null, null, FRAGMENTS, fragments,
+                InstrumentedRxPersistence::count, counted -> delegate.createOrOverwrite(tx, counted));
+    }
+
+    @Override
+    public Completable createOrOverwriteBatched(Transaction tx, Flowable<List<Fragment>> batches) {
+        return Measurement.completable(metrics, "rx.createOrOverwriteBatched", null, null, FRAGMENTS, batches,
+                (measurement, batch) -> batch.forEach(fragment -> count(measurement, fragment)),
+                counted -> delegate.createOrOverwriteBatched(tx, counted));
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String id) {
+        return reading("read", namespace, entity, delegate.read(tx, snapshot, namespace, entity, id));
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Iterable<String> ids) {
+        return reading("readMany", namespace, entity, delegate.read(tx, snapshot, namespace, entity, ids));
+    }
+
+    @Override
+    public Flowable<Fragment> readVersions(Transaction tx, String namespace, String entity, String id, Range<ZonedDateTime> range) {
+        return reading("readVersions", namespace, entity, delegate.readVersions(tx, namespace, entity, id, range));
+    }
+
+    @Override
+    public Completable delete(Transaction tx, String namespace, String entity, String id, ZonedDateTime version,
+                              PersistenceDeletePolicy policy) {
+        return Measurement.completable(metrics, "rx.delete", namespace, entity,
+                delegate.delete(tx, namespace, entity, id, version, policy));
+    }
+
+    @Override
+    public Completable deleteAllVersions(Transaction tx, String namespace, String entity, String id,
+                                         PersistenceDeletePolicy policy) {
+        return Measurement.completable(metrics, "rx.deleteAllVersions", namespace, entity,
+                delegate.deleteAllVersions(tx, namespace, entity, id, policy));
+    }
+
+    @Override
+    public Completable deleteAllEntities(Transaction tx, String namespace, String entity, Iterable<String> paths) {
+        return Measurement.completable(metrics, "rx.deleteAllEntities", namespace, entity,
+                delegate.deleteAllEntities(tx, namespace, entity, paths));
+    }
+
+    @Override
+    public Completable markDeleted(Transaction tx, String namespace, String entity, String id, ZonedDateTime version,
+                                   PersistenceDeletePolicy policy) {
+        return Measurement.completable(metrics, "rx.markDeleted", namespace, entity,
+                delegate.markDeleted(tx, namespace, entity, id, version, policy));
+    }
+
+    @Override
+    public Completable markDeleted(Transaction tx, Flowable<DocumentKey> keys, int batchSize, int maxConcurrency) {
+        return Measurement.completable(metrics, "rx.markDeletedMany", null, null, PersistenceMetrics.DOCUMENTS, keys,
+                (measurement, key) -> measurement.element(key.namespace(), key.entity(), -1),
+                counted -> delegate.markDeleted(tx, counted, batchSize, maxConcurrency));
+    }
+
+    @Override
+    public Flowable<Fragment> readAll(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Range<String> range) {
+        return reading("readAll", namespace, entity, delegate.readAll(tx, snapshot, namespace, entity, range));
+    }
+
+    @Override
+    public Flowable<Fragment> find(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String path,
+                                   byte[] value, Range<String> range) {
+        return reading("find", namespace, entity, delegate.find(tx, snapshot, namespace, entity, path, value, range));
+    }
+
+    @Override
+    public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return Measurement.single(metrics, "rx.hasPrevious", namespace, entityName,
+                delegate.hasPrevious(tx, snapshot, namespace, entityName, id));
+    }
+
+    @Override
+    public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return Measurement.single(metrics, "rx.hasNext", namespace, entityName,
+                delegate.hasNext(tx, snapshot, namespace, entityName, id));
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,178 @@
+package no.ssb.lds.api.persistence.metrics;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The measurement of one subscription to an operation. Elements are counted as they pass, and all statistics are
+ * reported once, on the terminal signal before it is propagated downstream, or when the subscription is cancelled.
+ */
+class Measurement {
+
+    final PersistenceMetrics metrics;
+    final String method;
+    final TransactionStatistics.Histogram elementHistogram;
+    final long start = System.nanoTime();
+    final AtomicBoolean finished = new AtomicBoolean();
+
+    String namespace;
+    String entity;
+    long elements;
+    long bytes = -1;
+    long firstElementNanos = -1;
+    boolean terminated;
+    boolean failed;
+
+    Measurement(PersistenceMetrics metrics, String method, String namespace, String entity,
+                TransactionStatistics.Histogram elementHistogram) {
+        this.metrics = metrics;
+        this.method = method;
+        this.namespace = namespace;
+        this.entity = entity;
+        this.elementHistogram = elementHistogram;
+    }
+
+    void element() {
+        if (elements++ == 0) {
+            firstElementNanos = System.nanoTime() - start;
+        }
+    }
+
+    void element(long bytes) {
+        element();
+        this.bytes = Math.max(this.bytes, 0) + bytes;
+    }
+
+    /**
+     * Count an element of a write, whose namespace and entity tag the operation unless they are already known.
+     */
+    void element(String namespace, String entity, long bytes) {
+        if (this.namespace == null) {
+            this.namespace = namespace;
+            this.entity = entity;
+        }
+        if (bytes < 0) {
+            element();
+        } else {
+            element(bytes);
+        }
+    }
+
+    void completed() {
+        terminated = true;
+        finish();
+    }
+
+    void failed(Throwable t) {
+        terminated = true;
+        failed = true;
+        finish();
+    }
+
+    /**
+     * Report the statistics, unless they were already reported by a terminal signal.
+     */
+    void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        Operation operation = new Operation(method, namespace, entity);
+        metrics.add(operation, PersistenceMetrics.CALLS, 1);
+        if (failed) {
+            metrics.add(operation, PersistenceMetrics.ERRORS, 1);
+        } else if (!terminated) {
+            metrics.add(operation, PersistenceMetrics.CANCELLATIONS, 1);
+        }
+        metrics.record(operation, PersistenceMetrics.LATENCY_NANOS, System.nanoTime() - start);
+        if (firstElementNanos >= 0) {
+            metrics.record(operation, PersistenceMetrics.FIRST_ELEMENT_NANOS, firstElementNanos);
+        }
+        if (elementHistogram != null) {
+            metrics.record(operation, elementHistogram, elements);
+        }
+        if (bytes >= 0) {
+            metrics.record(operation, TransactionStatistics.FRAGMENT_BYTES, bytes);
+        }
+    }
+
+    /**
+     * Measure every subscription to a flow of items.
+     *
+     * @param counter counts the elements of an item, using {@link #element()} or {@link #element(long)}.
+     */
+    static <T> Flowable<T> flowable(PersistenceMetrics metrics, String method, String namespace, String entity,
+                                    TransactionStatistics.Histogram elementHistogram, BiConsumer<Measurement, ? super T> counter,
+                                    Flowable<T> source) {
+        return Flowable.defer(() -> {
+            Measurement measurement = new Measurement(metrics, method, namespace, entity, elementHistogram);
+            return source
+                    .doOnNext(item -> counter.accept(measurement, item))
+                    .doOnComplete(measurement::completed)
+                    .doOnError(measurement::failed)
+                    .doOnCancel(measurement::finish);
+        });
+    }
+
+    static <T> Maybe<T> maybe(PersistenceMetrics metrics, String method, String namespace, String entity,
+                              TransactionStatistics.Histogram elementHistogram, Maybe<T> source) {
+        return Maybe.defer(() -> {
+            Measurement measurement = new Measurement(metrics, method, namespace, entity, elementHistogram);
+            return source
+                    .doOnSuccess(value -> {
+                        measurement.element();
+                        measurement.completed();
+                    })
+                    .doOnComplete(measurement::completed)
+                    .doOnError(measurement::failed)
+                    .doOnDispose(measurement::finish);
+        });
+    }
+
+    static <T> Single<T> single(PersistenceMetrics metrics, String method, String namespace, String entity,
+                                Single<T> source) {
+        return Single.defer(() -> {
+            Measurement measurement = new Measurement(metrics, method, namespace, entity, null);
+            return source
+                    .doOnSuccess(value -> measurement.completed())
+                    .doOnError(measurement::failed)
+                    .doOnDispose(measurement::finish);
+        });
+    }
+
+    /**
+     * Measure every subscription to a write. The write is given the items to write, which are counted as the write
+     * consumes them.
+     *
+     * @param counter counts the elements of an item, using {@link #element(String, String, long)}.
+     */
+    static <T> Completable completable(PersistenceMetrics metrics, String method, String namespace, String entity,
+                                       TransactionStatistics.Histogram elementHistogram, Flowable<T> items,
+                                       BiConsumer<Measurement, ? super T> counter, Function<Flowable<T>, Completable> write) {
+        return Completable.defer(() -> {
+            Measurement measurement = new Measurement(metrics, method, namespace, entity, elementHistogram);
+            Flowable<T> counted = items.doOnNext(item -> counter.accept(measurement, item));
+            return write.apply(counted)
+                    .doOnComplete(measurement::completed)
+                    .doOnError(measurement::failed)
+                    .doOnDispose(measurement::finish);
+        });
+    }
+
+    static Completable completable(PersistenceMetrics metrics, String method, String namespace, String entity,
+                                   Completable source) {
+        return Completable.defer(() -> {
+            Measurement measurement = new Measurement(metrics, method, namespace, entity, null);
+            return source
+                    .doOnComplete(measurement::completed)
+                    .doOnError(measurement::failed)
+                    .doOnDispose(measurement::finish);
+        });
+    }
+}
@@ -0,0 +1,54 @@
+package no.ssb.lds.api.persistence.metrics;
+
+import java.util.Objects;
+
+/**
+ * A method of a persistence called for an entity, e.g. <code>rx.readAll</code> of <code>ns/cat</code>. Methods of
+ * {@link InstrumentedRxPersistence} are prefixed with <code>rx.</code> and methods of
+ * {@link InstrumentedRxJsonPersistence} with <code>json.</code>. The namespace and entity of writes are those of the
+ * first fragment or document written, and empty if none were.
+ */
+public class Operation {
+
+    final String method;
+    final String namespace;
+    final String entity;
+
+    public Operation(String method, String namespace, String entity) {
+        this.method = Objects.requireNonNull(method);
+        this.namespace = namespace == null ? "" : namespace;
+        this.entity = entity == null ? "" : entity;
+    }
+
+    public String method() {
+        return method;
+    }
+
+    public String namespace() {
+        return namespace;
+    }
+
+    public String entity() {
+        return entity;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Operation operation = (Operation) o;
+        return method.equals(operation.method) &&
+                namespace.equals(operation.namespace) &&
+                entity.equals(operation.entity);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(method, namespace, entity);
+    }
+
+    @Override
+    public String toString() {
+        return method + '(' + namespace + '/' + entity + ')';
+    }
+}
@@ -0,0 +1,53 @@
+package no.ssb.lds.api.persistence.metrics;
+
+import no.ssb.lds.api.persistence.TransactionStatistics;
+
+/**
+ * Receives the measurements of the instrumented persistences, see {@link InstrumentedRxPersistence} and
+ * {@link InstrumentedRxJsonPersistence}. Every measurement is of one {@link Operation}, i.e. a method called for an
+ * entity, and is identified by the same counter and histogram handles as {@link TransactionStatistics}.
+ * <p>
+ * {@link InMemoryPersistenceMetrics} keeps the measurements in memory, other implementations may forward them to a
+ * metrics library of choice. Implementations are called on the threads that run the operations and should not block.
+ */
+public interface PersistenceMetrics {
+
+    /**
+     * Number of calls, counted when the call completes, fails or is cancelled.
+     */
+    TransactionStatistics.Counter CALLS = TransactionStatistics.counter("instrumented.calls");
+
+    /**
+     * Number of calls that failed.
+     */
+    TransactionStatistics.Counter ERRORS = TransactionStatistics.counter("instrumented.errors");
+
+    /**
+     * Number of calls that were cancelled before they completed.
+     */
+    TransactionStatistics.Counter CANCELLATIONS = TransactionStatistics.counter("instrumented.cancellations");
+
+    /**
+     * Time from subscription until the call completed, failed or was cancelled, in nanoseconds.
+     */
+    TransactionStatistics.Histogram LATENCY_NANOS = TransactionStatistics.histogram("instrumented.latency.nanos");
+
+    /**
+     * Time from subscription until the first element, in nanoseconds. Not recorded for calls without elements.
+     */
+    TransactionStatistics.Histogram FIRST_ELEMENT_NANOS = TransactionStatistics.histogram("instrumented.first-element.nanos");
+
+    /**
+     * Number of fragments read or written per call.
+     */
+    TransactionStatistics.Histogram FRAGMENTS = TransactionStatistics.histogram("instrumented.fragments");
+
+    /**
+     * Number of documents decoded, or encoded, per call.
+     */
+    TransactionStatistics.Histogram DOCUMENTS = TransactionStatistics.histogram("instrumented.documents");
+
+    void add(Operation operation, TransactionStatistics.Counter counter, long increment);
+
+    void record(Operation operation, TransactionStatistics.Histogram histogram, long value);
+}
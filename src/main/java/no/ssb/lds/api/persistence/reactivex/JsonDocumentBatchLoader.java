@@ -0,0 +1,203 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.json.JsonNavigationPath;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resolves many document and relation reads using one multi-id read per entity.
+ * <p>
+ * The load methods have the same shape as a java-dataloader <code>BatchLoader</code>, so that a
+ * <code>DataLoader.newDataLoader(loader::loadDocuments)</code> registered with the graphql execution will collect every
+ * key requested within one dispatch and hand them to the persistence provider in a single call per entity, rather than
+ * one read per key. A loader instance is bound to a transaction and a snapshot and should live no longer than the
+ * request it serves.
+ */
+public class JsonDocumentBatchLoader {
+
+    private final RxJsonPersistence persistence;
+    private final Transaction tx;
+    private final ZonedDateTime snapshot;
+
+    public JsonDocumentBatchLoader(RxJsonPersistence persistence, Transaction tx, ZonedDateTime snapshot) {
+        this.persistence = Objects.requireNonNull(persistence);
+        this.tx = tx;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Read all documents identified by the given keys.
+     *
+     * @param keys the documents to read, may contain duplicates and span several entities.
+     * @return a future list of documents with the same size and order as the keys, with <code>null</code> elements for
+     * keys that do not identify an existing document.
+     */
+    public CompletableFuture<List<JsonDocument>> loadDocuments(List<DocumentId> keys) {
+        Map<DocumentId, TreeSet<String>> idsByEntity = new LinkedHashMap<>();
+        for (DocumentId key : keys) {
+            idsByEntity.computeIfAbsent(new DocumentId(key.namespace, key.entity, null), k -> new TreeSet<>()).add(key.id);
+        }
+        Single<List<JsonDocument>> documents = Flowable.fromIterable(idsByEntity.entrySet())
+                .concatMap(e -> persistence.readDocuments(tx, snapshot, e.getKey().namespace, e.getKey().entity, e.getValue()))
+                .toMap(document -> new DocumentId(document.key().namespace(), document.key().entity(), document.key().id()))
+                .map(documentById -> {
+                    List<JsonDocument> result = new ArrayList<>(keys.size());
+                    for (DocumentId key : keys) {
+                        result.add(documentById.get(key));
+                    }
+                    return result;
+                });
+        return toFuture(documents);
+    }
+
+    /**
+     * Read the target documents of all relations identified by the given keys. All source documents are read with one
+     * batch, followed by one batch for all the target documents.
+     *
+     * @param keys the relations to resolve.
+     * @return a future list with the same size and order as the keys, where each element holds the existing target
+     * documents of the corresponding relation ordered by id.
+     */
+    public CompletableFuture<List<List<JsonDocument>>> loadTargetDocuments(List<RelationKey> keys) {
+        List<DocumentId> sourceIds = new ArrayList<>(keys.size());
+        for (RelationKey key : keys) {
+            sourceIds.add(key.source);
+        }
+        return loadDocuments(sourceIds).thenCompose(sources -> {
+            List<List<DocumentId>> targetIdsByKey = new ArrayList<>(keys.size());
+            List<DocumentId> allTargetIds = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                RelationKey key = keys.get(i);
+                JsonDocument source = sources.get(i);
+                List<DocumentId> targetIds = new ArrayList<>();
+                if (source != null) {
+                    for (String targetId : new TreeSet<>(RxJsonPersistenceBridge.targetIds(source, key.relationPath, key.targetEntity))) {
+                        targetIds.add(new DocumentId(key.source.namespace, key.targetEntity, targetId));
+                    }
+                }
+                targetIdsByKey.add(targetIds);
+                allTargetIds.addAll(targetIds);
+            }
+            return loadDocuments(allTargetIds).thenApply(targets -> {
+                List<List<JsonDocument>> result = new ArrayList<>(keys.size());
+                int i = 0;
+                for (List<DocumentId> targetIds : targetIdsByKey) {
+                    List<JsonDocument> documents = new ArrayList<>(targetIds.size());
+                    for (int j = 0; j < targetIds.size(); j++) {
+                        JsonDocument target = targets.get(i++);
+                        if (target != null) {
+                            documents.add(target);
+                        }
+                    }
+                    result.add(documents);
+                }
+                return result;
+            });
+        });
+    }
+
+    static <T> CompletableFuture<T> toFuture(Single<T> single) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        single.subscribe(future::complete, future::completeExceptionally);
+        return future;
+    }
+
+    public static class DocumentId {
+        private final String namespace;
+        private final String entity;
+        private final String id;
+
+        public DocumentId(String namespace, String entity, String id) {
+            this.namespace = namespace;
+            this.entity = entity;
+            this.id = id;
+        }
+
+        public String namespace() {
+            return namespace;
+        }
+
+        public String entity() {
+            return entity;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            DocumentId that = (DocumentId) o;
+            return Objects.equals(namespace, that.namespace) &&
+                    Objects.equals(entity, that.entity) &&
+                    Objects.equals(id, that.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(namespace, entity, id);
+        }
+
+        @Override
+        public String toString() {
+            return "DocumentId{" + namespace + '/' + entity + '/' + id + '}';
+        }
+    }
+
+    public static class RelationKey {
+        private final DocumentId source;
+        private final JsonNavigationPath relationPath;
+        private final String targetEntity;
+
+        public RelationKey(DocumentId source, JsonNavigationPath relationPath, String targetEntity) {
+            this.source = source;
+            this.relationPath = relationPath;
+            this.targetEntity = targetEntity;
+        }
+
+        public DocumentId source() {
+            return source;
+        }
+
+        public JsonNavigationPath relationPath() {
+            return relationPath;
+        }
+
+        public String targetEntity() {
+            return targetEntity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            RelationKey that = (RelationKey) o;
+            return Objects.equals(source, that.source) &&
+                    Objects.equals(relationPath.serialize(), that.relationPath.serialize()) &&
+                    Objects.equals(targetEntity, that.targetEntity);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, relationPath.serialize(), targetEntity);
+        }
+
+        @Override
+        public String toString() {
+            return "RelationKey{" + source + ", " + relationPath.serialize() + " -> " + targetEntity + '}';
+        }
+    }
+}
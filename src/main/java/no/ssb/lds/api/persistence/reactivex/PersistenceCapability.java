@@ -0,0 +1,50 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import no.ssb.lds.api.persistence.Transaction;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Guarantees that an {@link RxPersistence} may give beyond its interface, published through
+ * {@link RxPersistence#capabilities()}. The {@link RxJsonPersistenceBridge} assumes none of them by default, and
+ * skips sorting, filtering or limiting a result when the provider guarantees it.
+ */
+public enum PersistenceCapability {
+
+    /**
+     * {@link RxPersistence#readAll}, {@link RxPersistence#readVersions} and {@link RxPersistence#find} emit documents
+     * in the order of a forward range, and all fragments of a document one after another.
+     */
+    ORDERED_SCANS,
+
+    /**
+     * Like {@link #ORDERED_SCANS}, but for backward ranges, i.e. ranges with a last limit.
+     */
+    REVERSE_SCANS,
+
+    /**
+     * {@link RxPersistence#readAll}, {@link RxPersistence#readVersions} and {@link RxPersistence#find} apply the limit
+     * of the range. Documents that are marked as deleted are not counted by readAll and find, since they are not
+     * returned.
+     */
+    LIMIT_PUSH_DOWN,
+
+    /**
+     * {@link RxPersistence#find} only returns documents where the whole leaf-node value equals the value, i.e. it
+     * never returns false positives for values longer than one fragment.
+     */
+    EXACT_FIND,
+
+    /**
+     * {@link RxPersistence#read(Transaction, ZonedDateTime, String, String, Iterable)} reads all ids in one call and
+     * emits the documents in the order of the ids, with all fragments of a document one after another.
+     */
+    MULTI_GET,
+
+    /**
+     * {@link RxPersistence#read(Transaction, ZonedDateTime, String, String, String)} emits the fragments of the
+     * document in document order, see {@link no.ssb.lds.api.persistence.flattened.DocumentOrderPathComparator}, and
+     * the fragments of a leaf-node in offset order.
+     */
+    DOCUMENT_ORDERED_READS
+}
@@ -0,0 +1,97 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentCodec;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for the fragment bytes buffered by a single query, i.e. fragments that have been received from the
+ * persistence provider but not yet decoded into a document.
+ * <p>
+ * The buffering stages of a query (sorting and grouping of fragments per document) must see all fragments of a
+ * document, or all documents when sorting, before anything can be emitted downstream. Applying backpressure there would
+ * stall the query, so instead the budget fails fast with a {@link PersistenceException} as soon as more than the
+ * allowed number of bytes are in flight.
+ */
+public class QueryMemoryBudget {
+
+    private final long maxBytesInFlight;
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    private final AtomicLong highWaterMarkBytes = new AtomicLong();
+    private final AtomicLong globalHighWaterMarkBytes;
+
+    QueryMemoryBudget(long maxBytesInFlight, AtomicLong globalHighWaterMarkBytes) {
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.globalHighWaterMarkBytes = globalHighWaterMarkBytes;
+    }
+
+    public static QueryMemoryBudget unlimited() {
+        return new QueryMemoryBudget(Long.MAX_VALUE, new AtomicLong());
+    }
+
+    public static QueryMemoryBudget of(long maxBytesInFlight) {
+        return new QueryMemoryBudget(maxBytesInFlight, new AtomicLong());
+    }
+
+    void acquire(long bytes) throws PersistenceException {
+        long inFlight = bytesInFlight.addAndGet(bytes);
+        highWaterMarkBytes.accumulateAndGet(inFlight, Math::max);
+        globalHighWaterMarkBytes.accumulateAndGet(inFlight, Math::max);
+        if (inFlight > maxBytesInFlight) {
+            throw new PersistenceException(String.format(
+                    "Query exceeded its memory budget, %d bytes in flight where at most %d bytes are allowed",
+                    inFlight, maxBytesInFlight));
+        }
+    }
+
+    void release(long bytes) {
+        bytesInFlight.addAndGet(-bytes);
+    }
+
+    void release(Map<String, ? extends Collection<Fragment>> fragmentsByPath) {
+        long bytes = 0;
+        for (Collection<Fragment> fragments : fragmentsByPath.values()) {
+            for (Fragment fragment : fragments) {
+                bytes += FragmentCodec.estimateHeapSize(fragment);
+            }
+        }
+        release(bytes);
+    }
+
+    /**
+     * Acquire budget for every fragment passing through the returned flow.
+     */
+    Flowable<Fragment> track(Flowable<Fragment> fragments) {
+        return fragments.doOnNext(fragment -> {
+            if (!fragment.isStreamingControl()) {
+                acquire(FragmentCodec.estimateHeapSize(fragment));
+            }
+        });
+    }
+
+    public long maxBytesInFlight() {
+        return maxBytesInFlight;
+    }
+
+    public long bytesInFlight() {
+        return bytesInFlight.get();
+    }
+
+    public long highWaterMarkBytes() {
+        return highWaterMarkBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "QueryMemoryBudget{" +
+                "maxBytesInFlight=" + maxBytesInFlight +
+                ", bytesInFlight=" + bytesInFlight +
+                ", highWaterMarkBytes=" + highWaterMarkBytes +
+                '}';
+    }
+}
@@ -0,0 +1,243 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import no.ssb.lds.api.persistence.RetryPolicy;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.batch.Batch;
+import no.ssb.lds.api.specification.Specification;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies a {@link Batch} using several isolated transactions in parallel.
+ * <p>
+ * The batch is first split into {@link Batch#segments() segments}, which are applied one after another. Each segment
+ * is then {@link Batch#partition(int) partitioned} by type and id, and all partitions of a segment are applied in
+ * parallel, each in its own transaction from
+ * {@link TransactionFactory#runAsyncInIsolatedTransaction(java.util.function.Function, boolean, Executor, RetryPolicy)}.
+ * All writes to the same document happen in the same partition in batch order, so the outcome for each document is the
+ * same as when the batch is applied sequentially.
+ * <p>
+ * The batch as a whole is not atomic. If any partition fails, its transaction is cancelled while the other
+ * partitions of the same segment may already be committed, and the remaining segments are not applied. The
+ * {@link Result} tells exactly which partitions were applied.
+ */
+public class RxBatchExecutor {
+
+    private final RxJsonPersistence persistence;
+    private final TransactionFactory transactionFactory;
+    private final int partitions;
+    private final Executor executor;
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * Apply partitions on the common pool, without retries.
+     */
+    public RxBatchExecutor(RxJsonPersistence persistence, TransactionFactory transactionFactory, int partitions) {
+        this(persistence, transactionFactory, partitions, ForkJoinPool.commonPool(), RetryPolicy.none());
+    }
+
+    /**
+     * @param executor    the executor that applies the partitions.
+     * @param retryPolicy when to apply a failed partition again in a new transaction.
+     */
+    public RxBatchExecutor(RxJsonPersistence persistence, TransactionFactory transactionFactory, int partitions,
+                           Executor executor, RetryPolicy retryPolicy) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be positive: " + partitions);
+        }
+        this.persistence = persistence;
+        this.transactionFactory = transactionFactory;
+        this.partitions = partitions;
+        this.executor = executor;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Apply the batch.
+     *
+     * @return a future that completes with the result when all segments are applied, or when a segment failed. The
+     * future itself never completes exceptionally because of a failing partition, see {@link Result#success()}.
+     */
+    public CompletableFuture<Result> execute(Batch batch, String namespace, Specification specification) {
+        List<Batch> segments = batch.segments();
+        List<PartitionResult> results = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger appliedSegments = new AtomicInteger();
+        CompletableFuture<Boolean> chain = CompletableFuture.completedFuture(true);
+        for (int i = 0; i < segments.size(); i++) {
+            int segmentIndex = i;
+            Batch segment = segments.get(i);
+            chain = chain.thenCompose(success -> success
+                    ? executeSegment(segmentIndex, segment, namespace, specification, results)
+                    .thenApply(applied -> applied && appliedSegments.incrementAndGet() > 0)
+                    : CompletableFuture.completedFuture(false));
+        }
+        return chain.thenApply(success -> new Result(segments.size(), appliedSegments.get(), new ArrayList<>(results)));
+    }
+
+    private CompletableFuture<Boolean> executeSegment(int segmentIndex, Batch segment, String namespace,
+                                                      Specification specification, List<PartitionResult> results) {
+        List<Batch> partitionBatches;
+        if (segment.groups().size() == 1 && segment.groups().get(0).hasMatchCriteria()) {
+            partitionBatches = Collections.singletonList(segment);
+        } else {
+            partitionBatches = segment.partition(partitions);
+        }
+        List<CompletableFuture<PartitionResult>> futures = new ArrayList<>();
+        for (int i = 0; i < partitionBatches.size(); i++) {
+            Batch partitionBatch = partitionBatches.get(i);
+            if (partitionBatch.groups().isEmpty()) {
+                continue;
+            }
+            int partitionIndex = i;
+            CompletableFuture<PartitionResult> future = transactionFactory.<TransactionStatistics>runAsyncInIsolatedTransaction(
+                    tx -> persistence.applyBatch(tx, partitionBatch, namespace, specification, false).blockingGet(),
+                    false, executor, retryPolicy
+            ).handle((statistics, throwable) -> {
+                Throwable failure = throwable instanceof CompletionException && throwable.getCause() != null
+                        ? throwable.getCause() : throwable;
+                return new PartitionResult(segmentIndex, partitionIndex, partitionBatch.entryCount(), statistics, failure);
+            });
+            futures.add(future);
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            boolean success = true;
+            for (CompletableFuture<PartitionResult> future : futures) {
+                PartitionResult result = future.join();
+                results.add(result);
+                success &= result.success();
+            }
+            return success;
+        });
+    }
+
+    public static class PartitionResult {
+        final int segment;
+        final int partition;
+        final int entries;
+        final TransactionStatistics statistics;
+        final Throwable failure;
+
+        PartitionResult(int segment, int partition, int entries, TransactionStatistics statistics, Throwable failure) {
+            this.segment = segment;
+            this.partition = partition;
+            this.entries = entries;
+            this.statistics = statistics;
+            this.failure = failure;
+        }
+
+        public int segment() {
+            return segment;
+        }
+
+        public int partition() {
+            return partition;
+        }
+
+        public int entries() {
+            return entries;
+        }
+
+        /**
+         * @return the statistics of the partition, or null if the partition failed.
+         */
+        public TransactionStatistics statistics() {
+            return statistics;
+        }
+
+        /**
+         * @return the cause of failure, or null if the partition was committed.
+         */
+        public Throwable failure() {
+            return failure;
+        }
+
+        public boolean success() {
+            return failure == null;
+        }
+
+        @Override
+        public String toString() {
+            return "PartitionResult{" +
+                    "segment=" + segment +
+                    ", partition=" + partition +
+                    ", entries=" + entries +
+                    ", failure=" + failure +
+                    '}';
+        }
+    }
+
+    public static class Result {
+        final int segments;
+        final int appliedSegments;
+        final List<PartitionResult> partitions;
+
+        Result(int segments, int appliedSegments, List<PartitionResult> partitions) {
+            this.segments = segments;
+            this.appliedSegments = appliedSegments;
+            this.partitions = Collections.unmodifiableList(partitions);
+        }
+
+        /**
+         * @return true if all segments of the batch were applied and committed.
+         */
+        public boolean success() {
+            return appliedSegments == segments;
+        }
+
+        public List<PartitionResult> partitions() {
+            return partitions;
+        }
+
+        public List<PartitionResult> failures() {
+            List<PartitionResult> failures = new ArrayList<>();
+            for (PartitionResult partition : partitions) {
+                if (!partition.success()) {
+                    failures.add(partition);
+                }
+            }
+            return failures;
+        }
+
+        /**
+         * @return the number of segments where every partition was committed.
+         */
+        public int appliedSegments() {
+            return appliedSegments;
+        }
+
+        public int segments() {
+            return segments;
+        }
+
+        /**
+         * @return the merged statistics of all committed partitions.
+         */
+        public TransactionStatistics statistics() {
+            TransactionStatistics statistics = new TransactionStatistics();
+            for (PartitionResult partition : partitions) {
+                if (partition.success()) {
+                    statistics.addAll(partition.statistics);
+                }
+            }
+            return statistics;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "success=" + success() +
+                    ", segments=" + segments +
+                    ", appliedSegments=" + appliedSegments +
+                    ", failures=" + failures() +
+                    '}';
+        }
+    }
+}
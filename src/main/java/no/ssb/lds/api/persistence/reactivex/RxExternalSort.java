@@ -0,0 +1,303 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+public class RxExternalSort {
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of runs merged at once, each holding an open file and an I/O buffer.
+     */
+    static final int DEFAULT_MAX_FAN_IN = 64;
+
+    /**
+     * Sort a flow of fragments while keeping at most (approximately) the given number of bytes worth of fragments in
+     * heap. When the budget is exceeded, the buffered fragments are sorted and spilled as a run to a temporary file in
+     * the spill directory. Once upstream completes, all runs are streamed back downstream through a k-way merge. When
+     * there are more than {@value #DEFAULT_MAX_FAN_IN} runs, consecutive runs are first merged into longer runs, so
+     * that no more than that many files are open at once. Streams that fit within the budget are sorted in heap
+     * without touching the file-system.
+     * <p>
+     * The sort is stable, fragments that compare as equal are emitted in the order they were received.
+     * <p>
+     * Temporary files are deleted when the returned flow terminates or is cancelled.
+     *
+     * @param upstream          the fragments to sort.
+     * @param comparator        the sort order.
+     * @param memoryBudgetBytes the approximate maximum number of bytes of fragments to buffer in heap.
+     * @param spillDirectory    the directory where sorted runs are written.
+     * @return the sorted flow of fragments.
+     */
+    public static Flowable<Fragment> sorted(final Flowable<Fragment> upstream, final Comparator<? super Fragment> comparator,
+                                            final long memoryBudgetBytes, final Path spillDirectory) {
+        return sorted(upstream, comparator, memoryBudgetBytes, spillDirectory, DEFAULT_MAX_FAN_IN);
+    }
+
+    static Flowable<Fragment> sorted(final Flowable<Fragment> upstream, final Comparator<? super Fragment> comparator,
+                                     final long memoryBudgetBytes, final Path spillDirectory, final int maxFanIn) {
+        return sortedBy(upstream, fragment -> fragment, comparator, memoryBudgetBytes, spillDirectory, maxFanIn);
+    }
+
+    /**
+     * Like {@link #sorted(Flowable, Comparator, long, Path)}, but sorts by a key that is computed once for every
+     * fragment received, and once more for every fragment read back from a spilled run, rather than on every
+     * comparison. Use this when the order is expensive to derive from the fragment itself.
+     *
+     * @param upstream          the fragments to sort.
+     * @param sortKey           the sort key of a fragment.
+     * @param keyOrder          the sort order of the keys.
+     * @param memoryBudgetBytes the approximate maximum number of bytes of fragments to buffer in heap.
+     * @param spillDirectory    the directory where sorted runs are written.
+     * @param <K>               the type of the sort key.
+     * @return the sorted flow of fragments.
+     */
+    public static <K> Flowable<Fragment> sortedBy(final Flowable<Fragment> upstream, final Function<? super Fragment, ? extends K> sortKey,
+                                                  final Comparator<? super K> keyOrder, final long memoryBudgetBytes,
+                                                  final Path spillDirectory) {
+        return sortedBy(upstream, sortKey, keyOrder, memoryBudgetBytes, spillDirectory, DEFAULT_MAX_FAN_IN);
+    }
+
+    static <K> Flowable<Fragment> sortedBy(final Flowable<Fragment> upstream, final Function<? super Fragment, ? extends K> sortKey,
+                                           final Comparator<? super K> keyOrder, final long memoryBudgetBytes,
+                                           final Path spillDirectory, final int maxFanIn) {
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("maxFanIn must be at least 2: " + maxFanIn);
+        }
+        return Flowable.using(
+                () -> new SpillingSorter<K>(sortKey, keyOrder, memoryBudgetBytes, spillDirectory, maxFanIn),
+                sorter -> upstream.doOnNext(sorter::add).ignoreElements().andThen(Flowable.defer(sorter::sorted)),
+                SpillingSorter::close
+        );
+    }
+
+    static class SpillingSorter<K> {
+        final Function<? super Fragment, ? extends K> sortKey;
+        final Comparator<? super K> keyOrder;
+        final Comparator<Keyed<K>> comparator;
+        final long memoryBudgetBytes;
+        final Path spillDirectory;
+        final int maxFanIn;
+        final List<Keyed<K>> buffer = new ArrayList<>();
+        // The live runs in the order they were spilled, which breaks ties between their heads.
+        final List<SortedRun> runs = new ArrayList<>();
+        long bufferedBytes = 0;
+
+        SpillingSorter(Function<? super Fragment, ? extends K> sortKey, Comparator<? super K> keyOrder, long memoryBudgetBytes,
+                       Path spillDirectory, int maxFanIn) {
+            this.sortKey = sortKey;
+            this.keyOrder = keyOrder;
+            this.comparator = (k1, k2) -> keyOrder.compare(k1.key, k2.key);
+            this.memoryBudgetBytes = memoryBudgetBytes;
+            this.spillDirectory = spillDirectory;
+            this.maxFanIn = maxFanIn;
+        }
+
+        void add(Fragment fragment) throws IOException {
+            buffer.add(new Keyed<>(sortKey.apply(fragment), fragment));
+            bufferedBytes += FragmentCodec.estimateHeapSize(fragment);
+            if (bufferedBytes >= memoryBudgetBytes) {
+                spill();
+            }
+        }
+
+        void spill() throws IOException {
+            // List.sort is stable, and so are the runs.
+            buffer.sort(comparator);
+            SortedRun run = newRun();
+            runs.add(run);
+            try (DataOutputStream out = run.create()) {
+                for (Keyed<K> keyed : buffer) {
+                    run.write(out, keyed.fragment);
+                }
+            }
+            buffer.clear();
+            bufferedBytes = 0;
+        }
+
+        Flowable<Fragment> sorted() throws IOException {
+            if (runs.isEmpty()) {
+                buffer.sort(comparator);
+                return Flowable.fromIterable(buffer).map(keyed -> keyed.fragment);
+            }
+            if (!buffer.isEmpty()) {
+                spill();
+            }
+            // Merge consecutive runs in passes until all remaining runs can be merged at once.
+            while (runs.size() > maxFanIn) {
+                for (int i = 0; i < runs.size(); i++) {
+                    int end = Math.min(i + maxFanIn, runs.size());
+                    if (end - i > 1) {
+                        mergeIntoRun(i, end);
+                    }
+                }
+            }
+            final RunMerge merge = new RunMerge(runs);
+            return Flowable.generate(emitter -> {
+                Fragment fragment = merge.next();
+                if (fragment == null) {
+                    emitter.onComplete();
+                    return;
+                }
+                emitter.onNext(fragment);
+            });
+        }
+
+        /**
+         * Replace the runs from index start (inclusive) to end (exclusive) with a single run holding all of their
+         * fragments in order.
+         */
+        private void mergeIntoRun(int start, int end) throws IOException {
+            List<SortedRun> group = runs.subList(start, end);
+            SortedRun merged = newRun();
+            List<SortedRun> inputs = new ArrayList<>(group);
+            group.clear();
+            runs.add(start, merged);
+            try (DataOutputStream out = merged.create()) {
+                RunMerge merge = new RunMerge(inputs);
+                for (Fragment fragment = merge.next(); fragment != null; fragment = merge.next()) {
+                    merged.write(out, fragment);
+                }
+            } finally {
+                closeAll(inputs);
+            }
+        }
+
+        private SortedRun newRun() throws IOException {
+            return new SortedRun(Files.createTempFile(spillDirectory, "fragment-sort-", ".run"));
+        }
+
+        /**
+         * A k-way merge of runs. Heads that compare as equal are taken from the earliest run, which keeps the merge
+         * stable.
+         */
+        class RunMerge {
+            final List<SortedRun> inputs;
+            final List<K> headKeys;
+            final PriorityQueue<Integer> queue;
+
+            RunMerge(List<SortedRun> inputs) throws IOException {
+                this.inputs = inputs;
+                this.headKeys = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+                Comparator<Integer> byHead = (i1, i2) -> keyOrder.compare(headKeys.get(i1), headKeys.get(i2));
+                this.queue = new PriorityQueue<>(Math.max(1, inputs.size()), byHead.thenComparingInt(i -> i));
+                for (int i = 0; i < inputs.size(); i++) {
+                    if (inputs.get(i).open().advance()) {
+                        headKeys.set(i, sortKey.apply(inputs.get(i).head));
+                        queue.add(i);
+                    }
+                }
+            }
+
+            Fragment next() throws IOException {
+                Integer index = queue.poll();
+                if (index == null) {
+                    return null;
+                }
+                SortedRun run = inputs.get(index);
+                Fragment fragment = run.head;
+                if (run.advance()) {
+                    headKeys.set(index, sortKey.apply(run.head));
+                    queue.add(index);
+                }
+                return fragment;
+            }
+        }
+
+        void close() throws IOException {
+            buffer.clear();
+            try {
+                closeAll(runs);
+            } finally {
+                runs.clear();
+            }
+        }
+
+        private static void closeAll(List<SortedRun> runs) throws IOException {
+            IOException exception = null;
+            for (SortedRun run : runs) {
+                try {
+                    run.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    static class Keyed<K> {
+        final K key;
+        final Fragment fragment;
+
+        Keyed(K key, Fragment fragment) {
+            this.key = key;
+            this.fragment = fragment;
+        }
+    }
+
+    static class SortedRun {
+        final Path path;
+        int size;
+        int remaining;
+        DataInputStream in;
+        Fragment head;
+
+        SortedRun(Path path) {
+            this.path = path;
+        }
+
+        DataOutputStream create() throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), IO_BUFFER_SIZE));
+        }
+
+        void write(DataOutputStream out, Fragment fragment) throws IOException {
+            FragmentCodec.encode(out, fragment);
+            size++;
+        }
+
+        SortedRun open() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), IO_BUFFER_SIZE));
+            remaining = size;
+            return this;
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                return false;
+            }
+            head = FragmentCodec.decode(in);
+            remaining--;
+            return true;
+        }
+
+        void close() throws IOException {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } finally {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class RxFragmentBatches {
+
+    /**
+     * Group a stream of fragments into batches bounded by both the number of fragments and their (estimated) size in
+     * bytes. Fragments keep their order, and a batch is emitted as soon as adding the next fragment would exceed
+     * either bound. A single fragment larger than the byte bound is emitted alone. Streaming-control fragments are
+     * not written, and are left out of the batches.
+     * <p>
+     * At most one batch worth of fragments is requested from upstream ahead of the batches requested downstream.
+     *
+     * @param fragments    the fragments to batch.
+     * @param maxFragments the maximum number of fragments in a batch.
+     * @param maxBytes     the maximum estimated number of bytes in a batch, see
+     *                     {@link FragmentCodec#estimateHeapSize(Fragment)}.
+     * @return a flow of non-empty batches.
+     */
+    public static Flowable<List<Fragment>> batched(Flowable<Fragment> fragments, int maxFragments, long maxBytes) {
+        if (maxFragments <= 0) {
+            throw new IllegalArgumentException("maxFragments must be positive: " + maxFragments);
+        }
+        return Flowable.defer(() -> {
+            BatchAccumulator accumulator = new BatchAccumulator(maxFragments, maxBytes);
+            return Flowable.concat(
+                    fragments.filter(fragment -> !fragment.isStreamingControl())
+                            .concatMapIterable(accumulator::add, maxFragments),
+                    Maybe.fromCallable(accumulator::drain).toFlowable()
+            );
+        });
+    }
+
+    static class BatchAccumulator {
+        private final int maxFragments;
+        private final long maxBytes;
+        private List<Fragment> batch;
+        private long batchBytes;
+
+        BatchAccumulator(int maxFragments, long maxBytes) {
+            this.maxFragments = maxFragments;
+            this.maxBytes = maxBytes;
+            this.batch = new ArrayList<>(maxFragments);
+        }
+
+        /**
+         * Add a fragment to the current batch.
+         *
+         * @return the completed batch if the fragment did not fit into the current batch, otherwise an empty list.
+         */
+        List<List<Fragment>> add(Fragment fragment) {
+            long bytes = FragmentCodec.estimateHeapSize(fragment);
+            List<List<Fragment>> completed = Collections.emptyList();
+            if (!batch.isEmpty() && (batch.size() >= maxFragments || batchBytes + bytes > maxBytes)) {
+                completed = Collections.singletonList(batch);
+                batch = new ArrayList<>(maxFragments);
+                batchBytes = 0;
+            }
+            batch.add(fragment);
+            batchBytes += bytes;
+            return completed;
+        }
+
+        /**
+         * @return the last batch, or null if there are no remaining fragments.
+         */
+        List<Fragment> drain() {
+            if (batch.isEmpty()) {
+                return null;
+            }
+            List<Fragment> last = batch;
+            batch = new ArrayList<>();
+            batchBytes = 0;
+            return last;
+        }
+    }
+}
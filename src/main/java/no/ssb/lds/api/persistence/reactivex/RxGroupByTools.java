@@ -56,8 +56,8 @@ public class RxGroupByTools {
                 return false;
             }
 
-            // new group, signal completion of previous group and add item to new group
-            itemsByGroup.get(groupKeyRef.get()).add(groupCompleteItem);
+            // new group, signal completion of previous group (no longer tracked) and add item to new group
+            itemsByGroup.remove(groupKeyRef.get()).add(groupCompleteItem);
             groupKeyRef.set(groupKey);
             itemsByGroup.computeIfAbsent(groupKey, k -> new LinkedBlockingQueue<>()).add(new GroupedItemWrapper<>(item));
             return true;
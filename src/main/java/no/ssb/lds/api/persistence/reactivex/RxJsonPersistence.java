@@ -1,5 +1,6 @@
 package no.ssb.lds.api.persistence.reactivex;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
 import io.reactivex.Maybe;
@@ -9,13 +10,16 @@ import no.ssb.lds.api.persistence.DocumentKey;
 import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
 import no.ssb.lds.api.persistence.PersistenceException;
 import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
 import no.ssb.lds.api.persistence.batch.Batch;
+import no.ssb.lds.api.persistence.batch.MatchExpression;
 import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.json.JsonTools;
 import no.ssb.lds.api.specification.Specification;
 
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.TreeSet;
 
 /**
  * Temporary interface
@@ -37,6 +41,30 @@ public interface RxJsonPersistence {
      */
     Maybe<JsonDocument> readDocument(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id);
 
+    /**
+     * Read a single document and write it as json to the given generator. Implementations may write the document
+     * incrementally, leaf-node by leaf-node, so that very large documents can be served without holding a complete copy
+     * of the document in memory.
+     *
+     * @param tx         the transaction to use.
+     * @param snapshot   upper bound of the returned version
+     * @param ns         the name space
+     * @param entityName the entity name
+     * @param id         the entity id
+     * @param generator  the generator that the document is written to
+     * @return true if the document exists and was written, false otherwise.
+     */
+    default Single<Boolean> streamDocument(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id,
+                                           JsonGenerator generator) {
+        return readDocument(tx, snapshot, ns, entityName, id)
+                .map(document -> {
+                    JsonTools.mapper.writeTree(generator, document.jackson());
+                    generator.flush();
+                    return true;
+                })
+                .toSingle(false);
+    }
+
     /**
      * Read {@link JsonDocument}s.
      * <p>
@@ -51,6 +79,24 @@ public interface RxJsonPersistence {
     Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName,
                                          Range<String> range);
 
+    /**
+     * Read several {@link JsonDocument}s of the same entity by id. Documents that do not exist or are deleted at the
+     * given snapshot are not part of the result, the remaining documents are returned ordered by id.
+     *
+     * @param tx         the transaction
+     * @param snapshot   upper bound of the returned versions
+     * @param ns         the name space
+     * @param entityName the entity name
+     * @param ids        the ids of the documents to read
+     */
+    default Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName,
+                                                 Iterable<String> ids) {
+        TreeSet<String> sortedIds = new TreeSet<>();
+        ids.forEach(sortedIds::add);
+        return Flowable.fromIterable(sortedIds)
+                .concatMapMaybe(id -> readDocument(tx, snapshot, ns, entityName, id));
+    }
+
     /**
      * Read {@link JsonDocument}s.
      * <p>
@@ -114,33 +160,136 @@ public interface RxJsonPersistence {
     }
 
     default Completable putBatchGroup(Transaction tx, Batch.PutGroup group, String namespace, Specification specification) {
-        List<JsonDocument> documents = new ArrayList<>();
-        for (Batch.Entry entry : group.entries()) {
-            String entity = group.type();
-            String id = entry.id();
-            ZonedDateTime timestamp = entry.timestamp();
-            DocumentKey documentKey = new DocumentKey(namespace, entity, id, timestamp);
-            JsonDocument jsonDocument = new JsonDocument(documentKey, entry.dataNode());
-            documents.add(jsonDocument);
-        }
-        return createOrOverwrite(tx, Flowable.fromIterable(documents), specification);
+        return putBatchEntries(tx, group.type(), Flowable.fromIterable(group.entries()), namespace, specification);
+    }
+
+    /**
+     * Write the entries of a put-group as they arrive, e.g. from a {@link no.ssb.lds.api.persistence.batch.StreamingBatch},
+     * without holding all entries of the group in memory.
+     *
+     * @param tx            the transaction
+     * @param entity        the entity name of the entries, i.e. the type of the group
+     * @param entries       the entries to write
+     * @param namespace     the name space
+     * @param specification the specification
+     */
+    default Completable putBatchEntries(Transaction tx, String entity, Flowable<Batch.Entry> entries, String namespace, Specification specification) {
+        return createOrOverwrite(tx, entries.map(entry -> {
+            DocumentKey documentKey = new DocumentKey(namespace, entity, entry.id(), entry.timestamp());
+            return new JsonDocument(documentKey, entry.dataNode());
+        }), specification);
     }
 
+    /**
+     * Find the ids of the documents that match the match criteria of a delete-group, as of the group timestamp. The
+     * criteria are compiled with {@link MatchExpression} so that only the ids and id ranges that can match are read.
+     * Groups without a timestamp are resolved as of the time the returned flow is subscribed to.
+     *
+     * @return the matching ids, no guarantee is given with regards to ordering.
+     */
     default Flowable<String> resolveMatchInBatchGroup(Transaction tx, Batch.DeleteGroup group, String namespace, Specification specification) {
-        // TODO implement batch delete match evaluation
-        throw new UnsupportedOperationException("Not implemented");
+        if (!group.hasMatchCriteria()) {
+            return Flowable.empty();
+        }
+        return Flowable.defer(() -> {
+            // Without a group timestamp the snapshot is taken when the flow is subscribed to, not when it is assembled.
+            ZonedDateTime snapshot = group.getTimestamp() != null ? group.getTimestamp() : ZonedDateTime.now(ZoneOffset.UTC);
+            return MatchExpression.compile(group).resolve(
+                    ids -> readDocuments(tx, snapshot, namespace, group.type(), ids).map(document -> document.key().id()),
+                    range -> readDocuments(tx, snapshot, namespace, group.type(), range).map(document -> document.key().id())
+            );
+        });
+    }
+
+    /**
+     * Number of entries put by {@link #applyBatch}.
+     */
+    TransactionStatistics.Counter BATCH_PUT = TransactionStatistics.counter("batch.put");
+
+    /**
+     * Number of entries and matched documents deleted by {@link #applyBatch}.
+     */
+    TransactionStatistics.Counter BATCH_DELETE = TransactionStatistics.counter("batch.delete");
+
+    /**
+     * Number of writes saved by coalescing a batch in {@link #applyBatch}.
+     */
+    TransactionStatistics.Counter BATCH_COALESCED = TransactionStatistics.counter("batch.coalesced");
+
+    int DEFAULT_DELETE_BATCH_SIZE = 256;
+    int DEFAULT_DELETE_CONCURRENCY = 1;
+
+    /**
+     * The maximum number of delete-markers written in a single provider call when the delete-groups of a batch are
+     * applied.
+     */
+    default int deleteBatchSize() {
+        return DEFAULT_DELETE_BATCH_SIZE;
+    }
+
+    /**
+     * The maximum number of concurrent provider calls that write delete-markers when the delete-groups of a batch are
+     * applied.
+     */
+    default int deleteConcurrency() {
+        return DEFAULT_DELETE_CONCURRENCY;
+    }
+
+    /**
+     * Apply all groups of a batch in order, i.e. put the entries of put-groups, and mark the entries of delete-groups
+     * as well as the documents matched by their match criteria as deleted.
+     * <p>
+     * The returned statistics count the entries that were put ({@link #BATCH_PUT}) and deleted ({@link #BATCH_DELETE}),
+     * and when <code>coalesce</code> is true, the writes saved by {@link Batch#coalesce()} ({@link #BATCH_COALESCED}).
+     *
+     * @param tx            the transaction
+     * @param batch         the batch to apply
+     * @param namespace     the name space
+     * @param specification the specification
+     * @param coalesce      whether to remove superseded entries from the batch before it is applied
+     */
+    default Single<TransactionStatistics> applyBatch(Transaction tx, Batch batch, String namespace, Specification specification, boolean coalesce) {
+        Batch effectiveBatch = coalesce ? batch.coalesce() : batch;
+        TransactionStatistics statistics = new TransactionStatistics();
+        if (coalesce) {
+            statistics.add(BATCH_COALESCED, effectiveBatch.supersededEntries());
+        }
+        return Flowable.fromIterable(effectiveBatch.groups())
+                .concatMapCompletable(group -> {
+                    if (group.groupType() == Batch.GroupType.PUT) {
+                        statistics.add(BATCH_PUT, group.entries().size());
+                        return putBatchGroup(tx, (Batch.PutGroup) group, namespace, specification);
+                    }
+                    Batch.DeleteGroup deleteGroup = (Batch.DeleteGroup) group;
+                    statistics.add(BATCH_DELETE, group.entries().size());
+                    Completable deleteEntries = deleteBatchGroup(tx, deleteGroup, namespace, specification);
+                    if (!deleteGroup.hasMatchCriteria()) {
+                        return deleteEntries;
+                    }
+                    ZonedDateTime timestamp = deleteGroup.getTimestamp() != null ? deleteGroup.getTimestamp() : ZonedDateTime.now(ZoneOffset.UTC);
+                    Flowable<DocumentKey> matches = resolveMatchInBatchGroup(tx, deleteGroup, namespace, specification)
+                            .doOnNext(id -> statistics.increment(BATCH_DELETE))
+                            .map(id -> new DocumentKey(namespace, group.type(), id, timestamp));
+                    return deleteEntries.andThen(markDocumentsDeleted(tx, matches, deleteBatchSize(), deleteConcurrency()));
+                })
+                .toSingleDefault(statistics);
     }
 
     default Completable deleteBatchGroup(Transaction tx, Batch.DeleteGroup group, String namespace, Specification specification) {
+        return deleteBatchGroup(tx, group, namespace, specification, deleteBatchSize(), deleteConcurrency());
+    }
+
+    /**
+     * Mark the entries of a delete-group as deleted using {@link #markDocumentsDeleted(Transaction, Flowable, int, int)}.
+     */
+    default Completable deleteBatchGroup(Transaction tx, Batch.DeleteGroup group, String namespace, Specification specification,
+                                         int batchSize, int maxConcurrency) {
         if (group.entries().isEmpty()) {
             return Completable.complete();
         }
-        List<Completable> completables = new ArrayList<>();
-        for (Batch.Entry entry : group.entries()) {
-            Completable completable = markDocumentDeleted(tx, namespace, group.type(), entry.id(), entry.timestamp(), null);
-            completables.add(completable);
-        }
-        return Completable.merge(completables);
+        Flowable<DocumentKey> keys = Flowable.fromIterable(group.entries())
+                .map(entry -> new DocumentKey(namespace, group.type(), entry.id(), entry.timestamp()));
+        return markDocumentsDeleted(tx, keys, batchSize, maxConcurrency);
     }
 
     /**
@@ -168,6 +317,21 @@ public interface RxJsonPersistence {
     Completable markDocumentDeleted(Transaction transaction, String ns, String entityName, String id,
                                     ZonedDateTime version, PersistenceDeletePolicy policy);
 
+    /**
+     * Mark many document versions as deleted, with bounded concurrency. The default implementation calls
+     * {@link #markDocumentDeleted(Transaction, String, String, String, ZonedDateTime, PersistenceDeletePolicy)} for
+     * each key, implementations that are able to write delete-markers in bulk should override this method.
+     *
+     * @param transaction    the transaction
+     * @param keys           the document versions to mark as deleted
+     * @param batchSize      the maximum number of documents marked in a single provider call
+     * @param maxConcurrency the maximum number of concurrent provider calls
+     */
+    default Completable markDocumentsDeleted(Transaction transaction, Flowable<DocumentKey> keys, int batchSize, int maxConcurrency) {
+        return keys.flatMapCompletable(key -> markDocumentDeleted(transaction, key.namespace(), key.entity(), key.id(),
+                key.timestamp(), null), false, maxConcurrency);
+    }
+
     /**
      * Checks if there is a {@link JsonDocument} before the given id.
      * TODO: onError(PersistenceException) in case of persistence exception
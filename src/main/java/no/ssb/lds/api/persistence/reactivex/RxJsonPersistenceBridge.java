@@ -1,18 +1,24 @@
 package no.ssb.lds.api.persistence.reactivex;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
 import io.reactivex.Maybe;
+import io.reactivex.Scheduler;
 import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
 import no.ssb.lds.api.json.JsonNavigationPath;
 import no.ssb.lds.api.persistence.DocumentKey;
 import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
 import no.ssb.lds.api.persistence.PersistenceException;
 import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.flattened.DocumentOrderPathComparator;
 import no.ssb.lds.api.persistence.flattened.FlattenedDocument;
 import no.ssb.lds.api.persistence.flattened.FlattenedDocumentLeafNode;
+import no.ssb.lds.api.persistence.jfr.DecodeEvent;
 import no.ssb.lds.api.persistence.json.FlattenedDocumentToJson;
+import no.ssb.lds.api.persistence.json.FragmentStreamToJson;
 import no.ssb.lds.api.persistence.json.JsonDocument;
 import no.ssb.lds.api.persistence.json.JsonToFlattenedDocument;
 import no.ssb.lds.api.persistence.streaming.Fragment;
@@ -21,15 +27,21 @@ import no.ssb.lds.api.specification.Specification;
 import no.ssb.lds.api.specification.SpecificationElement;
 import no.ssb.lds.api.specification.SpecificationTraversal;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -42,16 +54,41 @@ import static java.util.Optional.ofNullable;
 public class RxJsonPersistenceBridge implements RxJsonPersistence {
 
     private static final Pattern LINK_PATTERN = Pattern.compile("/(?<entity>[^/]*)/(?<id>[^/]*)");
+    /**
+     * The sort budget of {@link #streamDocument} when no sort memory budget is configured.
+     */
+    static final long DEFAULT_STREAM_SORT_MEMORY_BUDGET_BYTES = 1024 * 1024;
     private final RxPersistence persistence;
+    private final Set<PersistenceCapability> capabilities;
     private final int fragmentSize;
+    private final Options options;
+    private final AtomicLong queryMemoryHighWaterMarkBytes = new AtomicLong();
 
     public RxJsonPersistenceBridge(RxPersistence persistence, int fragmentSize) {
+        this(persistence, fragmentSize, Options.defaults());
+    }
+
+    public RxJsonPersistenceBridge(RxPersistence persistence, int fragmentSize, Options options) {
         this.persistence = Objects.requireNonNull(persistence);
+        this.capabilities = persistence.capabilities();
         this.fragmentSize = fragmentSize;
+        this.options = Objects.requireNonNull(options);
+    }
+
+    /**
+     * The provider that this bridge delegates to.
+     */
+    public RxPersistence provider() {
+        return persistence;
     }
 
     static Maybe<JsonDocument> doReadDocument(Flowable<Fragment> fragments, int fragmentSize) {
-        return toDocuments(fragments, fragmentSize, false).firstElement();
+        QueryMemoryBudget budget = QueryMemoryBudget.unlimited();
+        return toDocuments(budget.track(fragments), fragmentSize, false, budget).firstElement();
+    }
+
+    Maybe<JsonDocument> doReadDocument(Flowable<Fragment> fragments, QueryMemoryBudget budget) {
+        return decode(budget.track(fragments), false, budget).firstElement();
     }
 
     /**
@@ -94,34 +131,156 @@ public class RxJsonPersistenceBridge implements RxJsonPersistence {
         return fragments;
     }
 
+    /**
+     * Sort fragments in the order expected by {@link #toDocuments(Flowable, int, boolean)}, i.e. by id and then by
+     * path. Uses an external sort when a sort memory budget is configured. Fragments are accounted for in the query
+     * budget from the moment they are held in heap, i.e. before an in-heap sort or after an external sort.
+     */
+    Flowable<Fragment> resort(Flowable<Fragment> fragments, boolean backward, QueryMemoryBudget budget) {
+        Comparator<Fragment> comparator = backward ? Comparator.reverseOrder() : Comparator.naturalOrder();
+        if (options.sortMemoryBudgetBytes >= 0) {
+            return budget.track(RxExternalSort.sorted(fragments, comparator, options.sortMemoryBudgetBytes, options.sortSpillDirectory));
+        }
+        return budget.track(fragments).sorted(comparator);
+    }
+
+    /**
+     * True if the provider returns the documents of scans with the given range in range order.
+     */
+    boolean isOrderedByProvider(Range<?> range) {
+        return capabilities.contains(PersistenceCapability.ORDERED_SCANS)
+                && (!range.isBackward() || capabilities.contains(PersistenceCapability.REVERSE_SCANS));
+    }
+
+    /**
+     * Sort fragments of a scan, unless the provider returns them in range order already.
+     */
+    Flowable<Fragment> inRangeOrder(Flowable<Fragment> fragments, Range<?> range, QueryMemoryBudget budget) {
+        if (isOrderedByProvider(range)) {
+            return budget.track(fragments);
+        }
+        return resort(fragments, range.isBackward(), budget);
+    }
+
+    /**
+     * The range of a scan to pass to the provider, which keeps its limit only if the provider applies it.
+     */
+    <T> Range<T> providerRange(Range<T> range) {
+        return capabilities.contains(PersistenceCapability.LIMIT_PUSH_DOWN) ? range : Range.unlimited(range);
+    }
+
+    /**
+     * Apply the range to the documents of a scan, unless the provider has applied it already.
+     */
+    <E, T extends Comparable<? super T>> Flowable<E> limitUnlessPushedDown(Flowable<E> documents, Function<E, T> keyExtractor,
+                                                                          Range<T> range) {
+        if (capabilities.contains(PersistenceCapability.LIMIT_PUSH_DOWN) && isOrderedByProvider(range)) {
+            return documents;
+        }
+        return limit(documents, keyExtractor, range);
+    }
+
+    /**
+     * Create the memory budget of a new query.
+     */
+    QueryMemoryBudget newQueryMemoryBudget() {
+        long maxBytesInFlight = options.queryMemoryBudgetBytes >= 0 ? options.queryMemoryBudgetBytes : Long.MAX_VALUE;
+        return new QueryMemoryBudget(maxBytesInFlight, queryMemoryHighWaterMarkBytes);
+    }
+
+    /**
+     * The highest number of fragment bytes held in flight by any single query served by this bridge.
+     */
+    public long queryMemoryHighWaterMarkBytes() {
+        return queryMemoryHighWaterMarkBytes.get();
+    }
+
     /**
      * Convert a flowable of {@link Fragment}s to a flowable of {@link JsonDocument}.
      * <p>
      * The received fragments must be ordered by id <strong>before</strong> it is ordered by path..
      */
     static Flowable<JsonDocument> toDocuments(Flowable<Fragment> fragmentFlowable, int fragmentSize, boolean includeDeleted) {
-        return RxGroupByTools.groupByOrdered(
+        QueryMemoryBudget budget = QueryMemoryBudget.unlimited();
+        return toDocuments(budget.track(fragmentFlowable), fragmentSize, includeDeleted, budget);
+    }
+
+    /**
+     * Convert a flowable of {@link Fragment}s to a flowable of {@link JsonDocument}, releasing the budget held by the
+     * fragments of each document as soon as the document is decoded.
+     */
+    static Flowable<JsonDocument> toDocuments(Flowable<Fragment> fragmentFlowable, int fragmentSize, boolean includeDeleted, QueryMemoryBudget budget) {
+        return toDocuments(fragmentFlowable, fragmentSize, includeDeleted, budget, 1, null);
+    }
+
+    /**
+     * Convert a flowable of {@link Fragment}s to a flowable of {@link JsonDocument}, decoding up to
+     * <code>decodeParallelism</code> documents concurrently on the decode scheduler. Documents are always emitted in
+     * the same order as their fragments were received.
+     */
+    static Flowable<JsonDocument> toDocuments(Flowable<Fragment> fragmentFlowable, int fragmentSize, boolean includeDeleted,
+                                              QueryMemoryBudget budget, int decodeParallelism, Scheduler decodeScheduler) {
+        Flowable<RxGroupByTools.MyGroupedFlowable<Fragment, DocumentKey>> groups = RxGroupByTools.groupByOrdered(
                 fragmentFlowable.takeWhile(fragment -> !fragment.isStreamingControl()),
                 fragment -> DocumentKey.from(fragment)
+        );
+
+        if (decodeParallelism <= 1) {
+            return groups.concatMap(group -> decodeGroup(group, fragmentSize, includeDeleted, budget, null).toFlowable());
+        }
+
+        // Eagerly collect the next groups, decode them on the scheduler and re-emit in original order.
+        return groups.concatMapEager(group -> decodeGroup(group, fragmentSize, includeDeleted, budget, decodeScheduler).toFlowable(),
+                decodeParallelism, 1);
+    }
 
-        ).concatMap(group -> {
-            // For each group, create a FlattenedDocument.
-            return group.flowable()
-                    .toMultimap(Fragment::path)
-                    .map(map -> FlattenedDocument.decodeDocument(group.key(), map, fragmentSize))
-                    .toFlowable();
-
-        }).filter(flattenedDocument -> {
-            // Filter out the deleted documents.
-            return includeDeleted || !flattenedDocument.deleted();
-
-        }).map(flattenedDocument -> {
-            // Convert to JsonDocument.
-            return new JsonDocument(
-                    flattenedDocument.key(),
-                    new FlattenedDocumentToJson(flattenedDocument).toJsonNode()
-            );
+    private static Maybe<JsonDocument> decodeGroup(RxGroupByTools.MyGroupedFlowable<Fragment, DocumentKey> group,
+                                                   int fragmentSize, boolean includeDeleted, QueryMemoryBudget budget,
+                                                   Scheduler decodeScheduler) {
+        // For each group, collect fragments by path on the upstream thread.
+        Single<Map<String, Collection<Fragment>>> fragmentsByPath = Single.defer(() -> {
+            DecodeEvent event = DecodeEvent.begin(DecodeEvent.GROUP_BY_ORDERED, group.key());
+            Single<Map<String, Collection<Fragment>>> collected = group.flowable().toMultimap(Fragment::path);
+            return event == null ? collected : collected.doOnSuccess(event::finish);
         });
+        if (decodeScheduler != null) {
+            fragmentsByPath = fragmentsByPath.observeOn(decodeScheduler);
+        }
+        // Then create a FlattenedDocument.
+        return fragmentsByPath
+                .map(map -> {
+                    DecodeEvent event = DecodeEvent.begin(DecodeEvent.DECODE_DOCUMENT, group.key());
+                    FlattenedDocument document = FlattenedDocument.decodeDocument(group.key(), map, fragmentSize);
+                    if (event != null) {
+                        event.finish(map);
+                    }
+                    budget.release(map);
+                    return document;
+                })
+                .filter(flattenedDocument -> {
+                    // Filter out the deleted documents.
+                    return includeDeleted || !flattenedDocument.deleted();
+                })
+                .map(flattenedDocument -> {
+                    if (flattenedDocument.deleted()) {
+                        // A delete-marker has no content, see JsonDocument#deleted().
+                        return new JsonDocument(flattenedDocument.key(), (JsonNode) null);
+                    }
+                    // Convert to JsonDocument.
+                    DecodeEvent event = DecodeEvent.begin(DecodeEvent.TO_JSON_NODE, flattenedDocument.key());
+                    JsonNode json = new FlattenedDocumentToJson(flattenedDocument).toJsonNode();
+                    if (event != null) {
+                        event.finish();
+                    }
+                    return new JsonDocument(flattenedDocument.key(), json);
+                });
+    }
+
+    /**
+     * Convert fragments to documents using the decode options of this bridge.
+     */
+    Flowable<JsonDocument> decode(Flowable<Fragment> fragments, boolean includeDeleted, QueryMemoryBudget budget) {
+        return toDocuments(fragments, fragmentSize, includeDeleted, budget, options.decodeParallelism, options.decodeScheduler);
     }
 
     private static FlattenedDocument documentFromFragments(DocumentKey key, List<Fragment> fragments, int fragmentSize) {
@@ -133,51 +292,104 @@ public class RxJsonPersistenceBridge implements RxJsonPersistence {
     }
 
     static Flowable<JsonDocument> doReadDocuments(Flowable<Fragment> fragments, Range<String> range, int fragmentSize) {
-        Flowable<JsonDocument> documents = toDocuments(fragments, fragmentSize, false);
-        return limit(documents, d -> d.key().id(), range);
+        QueryMemoryBudget budget = QueryMemoryBudget.unlimited();
+        return limit(toDocuments(budget.track(fragments), fragmentSize, false, budget), d -> d.key().id(), range);
     }
 
-    static Flowable<JsonDocument> doReadDocumentVersions(Flowable<Fragment> fragments, Range<ZonedDateTime> range, int fragmentSize) {
-        Flowable<JsonDocument> documents = toDocuments(fragments, fragmentSize, true);
+    Flowable<JsonDocument> doReadDocuments(Flowable<Fragment> fragments, Range<String> range, QueryMemoryBudget budget) {
+        Flowable<JsonDocument> documents = decode(fragments, false, budget);
+        return limitUnlessPushedDown(documents, d -> d.key().id(), range);
+    }
+
+    Flowable<JsonDocument> doReadDocumentVersions(Flowable<Fragment> fragments, Range<ZonedDateTime> range, QueryMemoryBudget budget) {
+        Flowable<JsonDocument> documents = decode(fragments, true, budget);
         // TODO: ZonedDateTime is a bad choice for API. Internal temporal values should be Instant.
         Range<Instant> instantRange = Range.copy(range, zonedDateTime -> zonedDateTime.toInstant());
-        return limit(documents, document -> document.key().timestamp().toInstant(), instantRange);
+        return limitUnlessPushedDown(documents, document -> document.key().timestamp().toInstant(), instantRange);
     }
 
-    static Flowable<JsonDocument> doFindDocuments(Flowable<Fragment> fragments, Range<String> range, int fragmentSize) {
-        Flowable<JsonDocument> documents = toDocuments(fragments, fragmentSize, false);
-        return limit(documents, d -> d.key().id(), range);
+    Flowable<JsonDocument> doFindDocuments(Flowable<Fragment> fragments, Range<String> range, QueryMemoryBudget budget) {
+        Flowable<JsonDocument> documents = decode(fragments, false, budget);
+        return limitUnlessPushedDown(documents, d -> d.key().id(), range);
     }
 
     @Override
     public Maybe<JsonDocument> readDocument(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
-        Flowable<Fragment> fragments = persistence.read(tx, snapshot, ns, entityName, id);
-        return doReadDocument(fragments, fragmentSize);
+        // Every subscription is a new query with its own budget.
+        return Maybe.defer(() -> {
+            Flowable<Fragment> fragments = persistence.read(tx, snapshot, ns, entityName, id);
+            return doReadDocument(fragments, newQueryMemoryBudget());
+        });
+    }
+
+    @Override
+    public Single<Boolean> streamDocument(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id,
+                                          JsonGenerator generator) {
+        Flowable<Fragment> fragments = persistence.read(tx, snapshot, ns, entityName, id)
+                .takeWhile(fragment -> !fragment.isStreamingControl());
+
+        // Document order rather than fragment order, so that each leaf-node can be written as soon as it is complete.
+        // Unless the provider reads in that order, sort with a bounded budget so that large documents spill to disk
+        // rather than being held in heap as a whole.
+        if (!capabilities.contains(PersistenceCapability.DOCUMENT_ORDERED_READS)) {
+            long memoryBudgetBytes = options.sortMemoryBudgetBytes >= 0 ? options.sortMemoryBudgetBytes : DEFAULT_STREAM_SORT_MEMORY_BUDGET_BYTES;
+            Path spillDirectory = options.sortSpillDirectory != null ? options.sortSpillDirectory : Paths.get(System.getProperty("java.io.tmpdir"));
+            fragments = RxExternalSort.sortedBy(fragments, DocumentOrderPathComparator.Key::of, Comparator.naturalOrder(),
+                    memoryBudgetBytes, spillDirectory);
+        }
+
+        return fragments
+                .collect(() -> new FragmentStreamToJson(generator), FragmentStreamToJson::write)
+                .map(FragmentStreamToJson::complete);
     }
 
     @Override
     public Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, Range<String> range) {
-        Flowable<Fragment> fragments = persistence.readAll(tx, snapshot, ns, entityName, Range.unlimited(range));
+        return Flowable.defer(() -> {
+            QueryMemoryBudget budget = newQueryMemoryBudget();
+            Flowable<Fragment> fragments = persistence.readAll(tx, snapshot, ns, entityName, providerRange(range));
 
-        // Resort.
-        fragments = range.isBackward()
-                ? fragments.sorted(Comparator.reverseOrder())
-                : fragments.sorted();
+            // Resort.
+            fragments = inRangeOrder(fragments, range, budget);
 
-        return doReadDocuments(fragments, range, fragmentSize);
+            return doReadDocuments(fragments, range, budget);
+        });
+    }
+
+    @Override
+    public Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, Iterable<String> ids) {
+        TreeSet<String> sortedIds = new TreeSet<>();
+        ids.forEach(sortedIds::add);
+        if (sortedIds.isEmpty()) {
+            return Flowable.empty();
+        }
+        return Flowable.defer(() -> {
+            QueryMemoryBudget budget = newQueryMemoryBudget();
+            Flowable<Fragment> fragments = persistence.read(tx, snapshot, ns, entityName, sortedIds);
+
+            // Resort, unless the provider returns the documents in the order of the sorted ids.
+            if (capabilities.contains(PersistenceCapability.MULTI_GET)) {
+                fragments = budget.track(fragments);
+            } else {
+                fragments = resort(fragments, false, budget);
+            }
+
+            return decode(fragments, false, budget);
+        });
     }
 
     @Override
     public Flowable<JsonDocument> readDocumentVersions(Transaction tx, String ns, String entityName, String id,
                                                        Range<ZonedDateTime> range) {
-        Flowable<Fragment> fragments = persistence.readVersions(tx, ns, entityName, id, Range.unlimited(range));
+        return Flowable.defer(() -> {
+            QueryMemoryBudget budget = newQueryMemoryBudget();
+            Flowable<Fragment> fragments = persistence.readVersions(tx, ns, entityName, id, providerRange(range));
 
-        // Resort.
-        fragments = range.isBackward()
-                ? fragments.sorted(Comparator.reverseOrder())
-                : fragments.sorted();
+            // Resort.
+            fragments = inRangeOrder(fragments, range, budget);
 
-        return doReadDocumentVersions(fragments, range, fragmentSize);
+            return doReadDocumentVersions(fragments, range, budget);
+        });
     }
 
     @Override
@@ -186,15 +398,25 @@ public class RxJsonPersistenceBridge implements RxJsonPersistence {
         // TODO support stronger typing of value
         Map<Integer, byte[]> valueByOffset = FlattenedDocumentLeafNode.valueByOffset(FragmentType.STRING, fragmentSize, value);
         byte[] bytesValue = valueByOffset.get(0);
-        Flowable<Fragment> fragments = persistence.find(tx, snapshot, namespace, entityName, navigationPath.serialize(), bytesValue,
-                Range.unlimited(range));
-
-        // Resort.
-        fragments = range.isBackward()
-                ? fragments.sorted(Comparator.reverseOrder())
-                : fragments.sorted();
-
-        return doFindDocuments(fragments, range, fragmentSize).filter(document -> {
+        boolean exact = capabilities.contains(PersistenceCapability.EXACT_FIND);
+        Flowable<JsonDocument> documents = Flowable.defer(() -> {
+            QueryMemoryBudget budget = newQueryMemoryBudget();
+            // The limit can only be pushed down if no documents are filtered out afterwards.
+            Flowable<Fragment> fragments = persistence.find(tx, snapshot, namespace, entityName, navigationPath.serialize(), bytesValue,
+                    exact ? providerRange(range) : Range.unlimited(range));
+
+            // Resort.
+            fragments = inRangeOrder(fragments, range, budget);
+
+            if (exact) {
+                return doFindDocuments(fragments, range, budget);
+            }
+            return limit(decode(fragments, false, budget), d -> d.key().id(), range);
+        });
+        if (exact) {
+            return documents;
+        }
+        return documents.filter(document -> {
             // Post filter since fragment based implementation can return false positive.
             AtomicBoolean match = new AtomicBoolean(false);
             document.traverseField(navigationPath, (node, path) -> {
@@ -220,52 +442,66 @@ public class RxJsonPersistenceBridge implements RxJsonPersistence {
                                                       String targetEntityName, Range<String> range) {
         // TODO support reading only from relevant jsonPath in RxPersistence instead of reading entire document.
         return readDocument(tx, snapshot, ns, entityName, id)
-                .flattenAsFlowable(document -> {
-                    List<String> links = new ArrayList<>();
-                    document.traverseField(jsonNavigationPath, (node, path) -> {
-                        String link = node.asText();
-                        Matcher m = LINK_PATTERN.matcher(link);
-                        if (!m.matches()) {
-                            return;
-                        }
-                        if (!targetEntityName.equals(m.group("entity"))) {
-                            return;
-                        }
-                        links.add(m.group("id"));
-                    });
-                    return links;
-                })
+                .flattenAsFlowable(document -> targetIds(document, jsonNavigationPath, targetEntityName))
                 .sorted((o1, o2) -> range.isBackward() ? o2.compareTo(o1) : o1.compareTo(o2))
                 .take(ofNullable(range).map(Range::getLimit).orElse(Integer.MAX_VALUE))
                 .concatMapMaybe(targetId -> readDocument(tx, snapshot, ns, targetEntityName, targetId));
     }
 
+    /**
+     * Extract the ids of all links to the target entity found in the relation-path of the given document.
+     */
+    static List<String> targetIds(JsonDocument document, JsonNavigationPath relationPath, String targetEntityName) {
+        List<String> links = new ArrayList<>();
+        document.traverseField(relationPath, (node, path) -> {
+            String link = node.asText();
+            Matcher m = LINK_PATTERN.matcher(link);
+            if (!m.matches()) {
+                return;
+            }
+            if (!targetEntityName.equals(m.group("entity"))) {
+                return;
+            }
+            links.add(m.group("id"));
+        });
+        return links;
+    }
+
     @Override
     public Flowable<JsonDocument> readSourceDocuments(Transaction tx, ZonedDateTime snapshot, String ns,
                                                       String entityName, String id, JsonNavigationPath parentPath,
                                                       String parentEntityName, Range<String> range) {
         // Uses find to implement back links.
         byte[] idValue = String.format("/%s/%s", entityName, id).getBytes();
-        Flowable<Fragment> fragments = persistence.find(tx, snapshot, ns, parentEntityName, parentPath.serialize(),
-                idValue, range);
+        return Flowable.defer(() -> {
+            QueryMemoryBudget budget = newQueryMemoryBudget();
+            Flowable<Fragment> fragments = persistence.find(tx, snapshot, ns, parentEntityName, parentPath.serialize(),
+                    idValue, range);
 
-        // Resort.
-        fragments = range.isBackward()
-                ? fragments.sorted(Comparator.reverseOrder())
-                : fragments.sorted();
+            // Resort.
+            fragments = inRangeOrder(fragments, range, budget);
 
-        return doReadDocuments(fragments, range, fragmentSize);
+            return doReadDocuments(fragments, range, budget);
+        });
     }
 
     @Override
     public Completable createOrOverwrite(Transaction tx, Flowable<JsonDocument> documentFlowable, Specification specification) {
-        return persistence.createOrOverwrite(tx, documentFlowable.concatMap(document -> {
+        Flowable<Fragment> fragments = documentFlowable.concatMap(document -> {
             DocumentKey key = document.key();
             JsonNode json = document.jackson();
             JsonToFlattenedDocument converter = new JsonToFlattenedDocument(key.namespace(), key.entity(), key.id(),
                     key.timestamp(), json, fragmentSize);
             return Flowable.fromIterable(() -> converter.toDocument().fragmentIterator());
-        }));
+        });
+        if (options.writeBatchMaxFragments <= 0) {
+            return persistence.createOrOverwrite(tx, fragments);
+        }
+        // Flatten on the write scheduler and let up to pipelineDepth batches queue up while the provider writes.
+        Flowable<List<Fragment>> batches = RxFragmentBatches.batched(fragments, options.writeBatchMaxFragments, options.writeBatchMaxBytes)
+                .subscribeOn(options.writeScheduler)
+                .observeOn(options.writeScheduler, false, options.writePipelineDepth);
+        return persistence.createOrOverwriteBatched(tx, batches);
     }
 
     @Override
@@ -295,6 +531,21 @@ public class RxJsonPersistenceBridge implements RxJsonPersistence {
         return persistence.markDeleted(transaction, ns, entityName, id, version, policy);
     }
 
+    @Override
+    public int deleteBatchSize() {
+        return options.deleteBatchSize;
+    }
+
+    @Override
+    public int deleteConcurrency() {
+        return options.deleteConcurrency;
+    }
+
+    @Override
+    public Completable markDocumentsDeleted(Transaction transaction, Flowable<DocumentKey> keys, int batchSize, int maxConcurrency) {
+        return persistence.markDeleted(transaction, keys, batchSize, maxConcurrency);
+    }
+
     @Override
     public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String
             id) {
@@ -317,4 +568,125 @@ public class RxJsonPersistenceBridge implements RxJsonPersistence {
     public void close() throws PersistenceException {
         persistence.close();
     }
+
+    /**
+     * Immutable tuning options of the bridge. Start with {@link #defaults()} and derive new options using the
+     * <code>with</code> methods.
+     */
+    public static class Options {
+        private long sortMemoryBudgetBytes = -1;
+        private Path sortSpillDirectory;
+        private long queryMemoryBudgetBytes = -1;
+        private int decodeParallelism = 1;
+        private Scheduler decodeScheduler;
+        private int writeBatchMaxFragments = -1;
+        private long writeBatchMaxBytes;
+        private int writePipelineDepth;
+        private Scheduler writeScheduler;
+        private int deleteBatchSize = DEFAULT_DELETE_BATCH_SIZE;
+        private int deleteConcurrency = DEFAULT_DELETE_CONCURRENCY;
+
+        private Options() {
+        }
+
+        private Options(Options other) {
+            this.sortMemoryBudgetBytes = other.sortMemoryBudgetBytes;
+            this.sortSpillDirectory = other.sortSpillDirectory;
+            this.queryMemoryBudgetBytes = other.queryMemoryBudgetBytes;
+            this.decodeParallelism = other.decodeParallelism;
+            this.decodeScheduler = other.decodeScheduler;
+            this.writeBatchMaxFragments = other.writeBatchMaxFragments;
+            this.writeBatchMaxBytes = other.writeBatchMaxBytes;
+            this.writePipelineDepth = other.writePipelineDepth;
+            this.writeScheduler = other.writeScheduler;
+            this.deleteBatchSize = other.deleteBatchSize;
+            this.deleteConcurrency = other.deleteConcurrency;
+        }
+
+        public static Options defaults() {
+            return new Options();
+        }
+
+        /**
+         * Sort fragment streams with at most (approximately) the given number of bytes worth of fragments in heap,
+         * sorted runs beyond that are spilled to temporary files in the spill directory. A negative budget (the
+         * default) sorts entirely in heap.
+         *
+         * @param memoryBudgetBytes the approximate maximum number of fragment bytes held in heap by each sort.
+         * @param spillDirectory    the directory of the temporary files, or <code>null</code> for the default
+         *                          temporary-file directory.
+         */
+        public Options withSortMemoryBudget(long memoryBudgetBytes, Path spillDirectory) {
+            Options copy = new Options(this);
+            copy.sortMemoryBudgetBytes = memoryBudgetBytes;
+            copy.sortSpillDirectory = spillDirectory != null ? spillDirectory : Paths.get(System.getProperty("java.io.tmpdir"));
+            return copy;
+        }
+
+        /**
+         * Fail queries with a {@link PersistenceException} once they hold more than the given number of fragment
+         * bytes in heap. A negative budget (the default) does not limit queries, but they are still accounted for in
+         * {@link RxJsonPersistenceBridge#queryMemoryHighWaterMarkBytes()}.
+         *
+         * @param maxBytesInFlight the maximum number of fragment bytes held in heap by a single query.
+         */
+        public Options withQueryMemoryBudget(long maxBytesInFlight) {
+            Options copy = new Options(this);
+            copy.queryMemoryBudgetBytes = maxBytesInFlight;
+            return copy;
+        }
+
+        /**
+         * Decode up to <code>parallelism</code> documents of a query concurrently, documents are still emitted in
+         * the order of the underlying fragments. A parallelism of 1 (the default) decodes on the thread that delivers
+         * the fragments.
+         *
+         * @param parallelism the maximum number of documents decoded concurrently by a single query.
+         * @param scheduler   the scheduler that documents are decoded on, or <code>null</code> for the computation
+         *                    scheduler.
+         */
+        public Options withParallelDecode(int parallelism, Scheduler scheduler) {
+            Options copy = new Options(this);
+            copy.decodeParallelism = parallelism;
+            copy.decodeScheduler = scheduler != null ? scheduler : Schedulers.computation();
+            return copy;
+        }
+
+        /**
+         * Hand fragments to {@link RxPersistence#createOrOverwriteBatched(Transaction, Flowable)} in batches bounded by
+         * both count and size, instead of one fragment at a time (the default). Documents are flattened on the
+         * scheduler, up to <code>pipelineDepth</code> batches ahead of the batch currently written by the provider.
+         *
+         * @param maxFragments  the maximum number of fragments in a batch.
+         * @param maxBytes      the maximum estimated number of fragment bytes in a batch.
+         * @param pipelineDepth the number of batches prepared ahead of the provider.
+         * @param scheduler     the scheduler that documents are flattened on, or <code>null</code> for the
+         *                      computation scheduler.
+         */
+        public Options withWriteBatching(int maxFragments, long maxBytes, int pipelineDepth, Scheduler scheduler) {
+            if (maxFragments <= 0 || maxBytes <= 0 || pipelineDepth <= 0) {
+                throw new IllegalArgumentException("maxFragments, maxBytes and pipelineDepth must be positive");
+            }
+            Options copy = new Options(this);
+            copy.writeBatchMaxFragments = maxFragments;
+            copy.writeBatchMaxBytes = maxBytes;
+            copy.writePipelineDepth = pipelineDepth;
+            copy.writeScheduler = scheduler != null ? scheduler : Schedulers.computation();
+            return copy;
+        }
+
+        /**
+         * Write the delete-markers of batch delete-groups in batches of <code>batchSize</code>, with at most
+         * <code>maxConcurrency</code> batches being written at the same time.
+         */
+        public Options withBulkDelete(int batchSize, int maxConcurrency) {
+            if (batchSize <= 0 || maxConcurrency <= 0) {
+                throw new IllegalArgumentException("batchSize and maxConcurrency must be positive");
+            }
+            Options copy = new Options(this);
+            copy.deleteBatchSize = batchSize;
+            copy.deleteConcurrency = maxConcurrency;
+            return copy;
+        }
+    }
 }
@@ -0,0 +1,277 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import io.reactivex.Flowable;
+import io.reactivex.FlowableSubscriber;
+import io.reactivex.plugins.RxJavaPlugins;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RxMergeTools {
+
+    /**
+     * Merge flows that are each ordered by the comparator into one ordered flow, i.e. a k-way merge. Items that compare
+     * as equal are emitted in the order of the sources.
+     * <p>
+     * All sources are subscribed to when the merged flow is subscribed to, and each source is requested
+     * <code>prefetch</code> items ahead. An item is emitted as soon as every source that has not completed has an item
+     * ready, so the merge never blocks a thread while waiting for a source. A failing source fails the merged flow
+     * immediately, and all sources are cancelled when the merged flow is cancelled or fails.
+     *
+     * @param sources    the ordered flows to merge.
+     * @param comparator the order of every source, and of the merged flow.
+     * @param prefetch   the number of items requested ahead from each source.
+     * @param <T>        the type of the items.
+     * @return the merged flow.
+     */
+    public static <T> Flowable<T> mergeOrdered(List<? extends Flowable<? extends T>> sources, Comparator<? super T> comparator, int prefetch) {
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("prefetch must be positive: " + prefetch);
+        }
+        if (sources.size() == 1) {
+            return Flowable.fromPublisher(sources.get(0));
+        }
+        return new OrderedMerge<>(sources, comparator, prefetch);
+    }
+
+    static class OrderedMerge<T> extends Flowable<T> {
+        final List<? extends Flowable<? extends T>> sources;
+        final Comparator<? super T> comparator;
+        final int prefetch;
+
+        OrderedMerge(List<? extends Flowable<? extends T>> sources, Comparator<? super T> comparator, int prefetch) {
+            this.sources = sources;
+            this.comparator = comparator;
+            this.prefetch = prefetch;
+        }
+
+        @Override
+        protected void subscribeActual(Subscriber<? super T> subscriber) {
+            MergeSubscription<T> merge = new MergeSubscription<>(subscriber, comparator, sources.size(), prefetch);
+            subscriber.onSubscribe(merge);
+            merge.subscribe(sources);
+        }
+    }
+
+    /**
+     * Drains the heads of the per-source queues in order. The work-in-progress counter inherited from
+     * {@link AtomicInteger} makes sure only one thread drains at a time.
+     */
+    static class MergeSubscription<T> extends AtomicInteger implements Subscription {
+        private static final long serialVersionUID = 1L;
+
+        final Subscriber<? super T> downstream;
+        final Comparator<? super T> comparator;
+        final List<InnerSubscriber<T>> inners;
+        final AtomicLong requested = new AtomicLong();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        volatile boolean cancelled;
+        long emitted;
+
+        MergeSubscription(Subscriber<? super T> downstream, Comparator<? super T> comparator, int sourceCount, int prefetch) {
+            this.downstream = downstream;
+            this.comparator = comparator;
+            this.inners = new ArrayList<>(sourceCount);
+            for (int i = 0; i < sourceCount; i++) {
+                inners.add(new InnerSubscriber<>(this, prefetch));
+            }
+        }
+
+        void subscribe(List<? extends Flowable<? extends T>> sources) {
+            for (int i = 0; i < sources.size() && !cancelled; i++) {
+                sources.get(i).subscribe(inners.get(i));
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                innerError(new IllegalArgumentException("request must be positive: " + n));
+                return;
+            }
+            for (; ; ) {
+                long current = requested.get();
+                long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                if (requested.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            cancelAll();
+            if (getAndIncrement() == 0) {
+                clearAll();
+            }
+        }
+
+        void innerError(Throwable throwable) {
+            if (!error.compareAndSet(null, throwable)) {
+                RxJavaPlugins.onError(throwable);
+                return;
+            }
+            drain();
+        }
+
+        void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (; ; ) {
+                long requestedCount = requested.get();
+                for (; ; ) {
+                    if (cancelled) {
+                        clearAll();
+                        return;
+                    }
+                    Throwable throwable = error.get();
+                    if (throwable != null) {
+                        cancelled = true;
+                        cancelAll();
+                        clearAll();
+                        downstream.onError(throwable);
+                        return;
+                    }
+
+                    // Find the smallest head, unless a source that has not completed is still producing its head.
+                    InnerSubscriber<T> smallest = null;
+                    T smallestItem = null;
+                    boolean waiting = false;
+                    for (InnerSubscriber<T> inner : inners) {
+                        boolean done = inner.done;
+                        T head = inner.queue.peek();
+                        if (head == null) {
+                            if (!done) {
+                                waiting = true;
+                                break;
+                            }
+                            continue;
+                        }
+                        if (smallestItem == null || comparator.compare(head, smallestItem) < 0) {
+                            smallest = inner;
+                            smallestItem = head;
+                        }
+                    }
+                    if (waiting) {
+                        break;
+                    }
+                    if (smallest == null) {
+                        cancelled = true;
+                        downstream.onComplete();
+                        return;
+                    }
+                    if (emitted == requestedCount) {
+                        break;
+                    }
+                    smallest.queue.poll();
+                    downstream.onNext(smallestItem);
+                    emitted++;
+                    smallest.consumed();
+                }
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void cancelAll() {
+            for (InnerSubscriber<T> inner : inners) {
+                inner.cancel();
+            }
+        }
+
+        private void clearAll() {
+            for (InnerSubscriber<T> inner : inners) {
+                inner.queue.clear();
+            }
+        }
+    }
+
+    static class InnerSubscriber<T> implements FlowableSubscriber<T> {
+        static final Subscription CANCELLED = new Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        };
+
+        final MergeSubscription<T> parent;
+        final int prefetch;
+        final int limit;
+        final Queue<T> queue = new ConcurrentLinkedQueue<>();
+        final AtomicReference<Subscription> upstream = new AtomicReference<>();
+        volatile boolean done;
+        int consumed;
+
+        InnerSubscriber(MergeSubscription<T> parent, int prefetch) {
+            this.parent = parent;
+            this.prefetch = prefetch;
+            // Replenish when three quarters of the prefetch has been consumed.
+            this.limit = Math.max(1, prefetch - (prefetch >> 2));
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            if (upstream.compareAndSet(null, subscription)) {
+                subscription.request(prefetch);
+            } else {
+                subscription.cancel();
+            }
+        }
+
+        @Override
+        public void onNext(T item) {
+            queue.offer(item);
+            parent.drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done = true;
+            parent.innerError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            parent.drain();
+        }
+
+        /**
+         * Called by the draining thread for every item taken from the queue.
+         */
+        void consumed() {
+            if (++consumed == limit) {
+                consumed = 0;
+                upstream.get().request(limit);
+            }
+        }
+
+        void cancel() {
+            Subscription subscription = upstream.getAndSet(CANCELLED);
+            if (subscription != null && subscription != CANCELLED) {
+                subscription.cancel();
+            }
+        }
+    }
+}
@@ -3,16 +3,28 @@ package no.ssb.lds.api.persistence.reactivex;
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
 import io.reactivex.Single;
+import no.ssb.lds.api.persistence.DocumentKey;
 import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
 import no.ssb.lds.api.persistence.PersistenceException;
 import no.ssb.lds.api.persistence.Transaction;
 import no.ssb.lds.api.persistence.TransactionFactory;
 import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
 
 import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 public interface RxPersistence {
 
+    /**
+     * The guarantees of this provider that callers may rely on to skip work of their own. The default is none.
+     */
+    default Set<PersistenceCapability> capabilities() {
+        return Collections.emptySet();
+    }
+
     TransactionFactory transactionFactory() throws PersistenceException;
 
     Transaction createTransaction(boolean readOnly) throws PersistenceException;
@@ -22,6 +34,22 @@ public interface RxPersistence {
             Flowable<Fragment> fragments
     );
 
+    /**
+     * Write fragments grouped in batches, allowing providers to write each batch in a single round-trip (e.g. a
+     * multi-row insert). The fragments of a document may span several batches. The default implementation flattens
+     * the batches and delegates to {@link #createOrOverwrite(Transaction, Flowable)}.
+     *
+     * @param tx      the transaction
+     * @param batches the fragments to write, in batches.
+     * @return a completable that completes when all batches are written.
+     */
+    default Completable createOrOverwriteBatched(
+            Transaction tx,
+            Flowable<List<Fragment>> batches
+    ) {
+        return createOrOverwrite(tx, batches.concatMapIterable(batch -> batch));
+    }
+
     Flowable<Fragment> read(
             Transaction tx,
             ZonedDateTime snapshot,
@@ -30,6 +58,30 @@ public interface RxPersistence {
             String id
     );
 
+    /**
+     * Read the latest version (at snapshot) of several documents of the same entity in one call. Providers that are
+     * able to fetch many ids in a single round-trip should override this method, the default implementation falls back
+     * to one {@link #read(Transaction, ZonedDateTime, String, String, String)} per id.
+     *
+     * @param tx        the transaction
+     * @param snapshot  upper bound of the returned versions
+     * @param namespace the name space
+     * @param entity    the entity name
+     * @param ids       the document ids to read
+     * @return the fragments of all documents found, no guarantee is given with regards to ordering.
+     */
+    default Flowable<Fragment> read(
+            Transaction tx,
+            ZonedDateTime snapshot,
+            String namespace,
+            String entity,
+            Iterable<String> ids
+    ) {
+        return Flowable.fromIterable(ids)
+                .concatMap(id -> read(tx, snapshot, namespace, entity, id))
+                .filter(fragment -> !fragment.isStreamingControl());
+    }
+
     Flowable<Fragment> readVersions(
             Transaction tx,
             String namespace,
@@ -66,6 +118,56 @@ public interface RxPersistence {
             PersistenceDeletePolicy policy
     );
 
+    /**
+     * Mark many document versions as deleted, with at most <code>maxConcurrency</code> versions being marked at the
+     * same time. The default implementation calls
+     * {@link #markDeleted(Transaction, String, String, String, ZonedDateTime, PersistenceDeletePolicy)} for each key
+     * and ignores <code>batchSize</code>. Providers that store delete-markers as {@link FragmentType#DELETED}
+     * fragments can write them in bulk with {@link #markDeletedInBatches(RxPersistence, Transaction, Flowable, int, int)}.
+     *
+     * @param transaction    the transaction
+     * @param keys           the document versions to mark as deleted
+     * @param batchSize      the maximum number of versions marked in a single provider call
+     * @param maxConcurrency the maximum number of concurrent provider calls
+     * @return a completable that completes when all versions are marked as deleted.
+     */
+    default Completable markDeleted(
+            Transaction transaction,
+            Flowable<DocumentKey> keys,
+            int batchSize,
+            int maxConcurrency
+    ) {
+        return keys.flatMapCompletable(key -> markDeleted(transaction, key.namespace(), key.entity(), key.id(),
+                key.timestamp(), null), false, maxConcurrency);
+    }
+
+    /**
+     * Mark many document versions as deleted by writing a delete-marker (a {@link FragmentType#DELETED} fragment) for
+     * each of them. Markers are written in batches of at most <code>batchSize</code> through
+     * {@link #createOrOverwriteBatched(Transaction, Flowable)}, with at most <code>maxConcurrency</code> batches being
+     * written at the same time.
+     *
+     * @param persistence    the provider to write the delete-markers to
+     * @param transaction    the transaction
+     * @param keys           the document versions to mark as deleted
+     * @param batchSize      the maximum number of delete-markers in each batch
+     * @param maxConcurrency the maximum number of batches written concurrently
+     * @return a completable that completes when all delete-markers are written.
+     */
+    static Completable markDeletedInBatches(
+            RxPersistence persistence,
+            Transaction transaction,
+            Flowable<DocumentKey> keys,
+            int batchSize,
+            int maxConcurrency
+    ) {
+        return keys
+                .map(key -> new Fragment(key.namespace(), key.entity(), key.id(), key.timestamp(), "$",
+                        FragmentType.DELETED, 0, new byte[0]))
+                .buffer(batchSize)
+                .flatMapCompletable(batch -> persistence.createOrOverwriteBatched(transaction, Flowable.just(batch)), false, maxConcurrency);
+    }
+
     Flowable<Fragment> readAll(
             Transaction transaction,
             ZonedDateTime snapshot,
@@ -0,0 +1,544 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.Single;
+import no.ssb.lds.api.json.JsonNavigationPath;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.specification.Specification;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * A decorator that keeps the documents written within a transaction in a transaction-local buffer instead of writing
+ * them to the delegate right away. Reads of single documents, ranges of documents and document versions within the
+ * same transaction are answered by merging the buffered documents over the stream of the delegate, so that the
+ * delegate never has to flush pending writes in order to read them back. The buffer is written to the delegate in
+ * one call per specification, and one bulk call for delete-markers, when the transaction is committed, or when it
+ * grows beyond the configured max number of documents.
+ * <p>
+ * Operations that the buffer cannot answer, i.e. finds, linked documents and physical deletes, flush the buffer
+ * before delegating. Transactions that were not created by this decorator are passed straight through.
+ * <p>
+ * Once a buffer has been flushed, its documents are read back from the delegate, so reads of them before the commit
+ * rely on the delegate reading its own uncommitted writes. Providers that apply writes only on commit, like
+ * {@link no.ssb.lds.api.persistence.memory.InMemoryRxPersistence}, should be used with a max number of documents that
+ * a transaction does not reach.
+ */
+public class WriteBufferingRxJsonPersistence implements RxJsonPersistence {
+
+    public static final TransactionStatistics.Counter BUFFERED_WRITES = TransactionStatistics.counter("write-buffer.writes");
+    public static final TransactionStatistics.Counter BUFFERED_READS = TransactionStatistics.counter("write-buffer.reads");
+    public static final TransactionStatistics.Histogram FLUSHED_DOCUMENTS = TransactionStatistics.histogram("write-buffer.flushed");
+
+    private final RxJsonPersistence delegate;
+    private final int maxBufferedDocuments;
+
+    /**
+     * @param delegate             the persistence that buffered documents are written to.
+     * @param maxBufferedDocuments the number of buffered document versions that causes the buffer of a transaction
+     *                             to be flushed before the transaction is committed.
+     */
+    public WriteBufferingRxJsonPersistence(RxJsonPersistence delegate, int maxBufferedDocuments) {
+        if (maxBufferedDocuments <= 0) {
+            throw new IllegalArgumentException("maxBufferedDocuments must be positive: " + maxBufferedDocuments);
+        }
+        this.delegate = delegate;
+        this.maxBufferedDocuments = maxBufferedDocuments;
+    }
+
+    @Override
+    public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+        Transaction transaction = delegate.createTransaction(readOnly);
+        if (readOnly) {
+            return transaction;
+        }
+        return new BufferedTransaction(transaction);
+    }
+
+    private static Transaction physical(Transaction tx) {
+        return tx instanceof BufferedTransaction ? ((BufferedTransaction) tx).delegate : tx;
+    }
+
+    private Completable flush(Transaction tx) {
+        if (tx instanceof BufferedTransaction) {
+            return ((BufferedTransaction) tx).flush();
+        }
+        return Completable.complete();
+    }
+
+    @Override
+    public Maybe<JsonDocument> readDocument(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
+        if (!(tx instanceof BufferedTransaction)) {
+            return delegate.readDocument(tx, snapshot, ns, entityName, id);
+        }
+        // The buffer is read on subscription, so that writes done after assembly are seen.
+        return Maybe.defer(() -> {
+            Maybe<JsonDocument> provided = delegate.readDocument(physical(tx), snapshot, ns, entityName, id);
+            JsonDocument buffered = ((BufferedTransaction) tx).latest(ns, entityName, id, snapshot);
+            if (buffered == null) {
+                return provided;
+            }
+            return provided
+                    .map(document -> newest(buffered, document))
+                    .defaultIfEmpty(buffered)
+                    .filter(document -> !document.deleted());
+        });
+    }
+
+    @Override
+    public Single<Boolean> streamDocument(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id,
+                                          JsonGenerator generator) {
+        if (tx instanceof BufferedTransaction && ((BufferedTransaction) tx).latest(ns, entityName, id, snapshot) != null) {
+            return RxJsonPersistence.super.streamDocument(tx, snapshot, ns, entityName, id, generator);
+        }
+        return delegate.streamDocument(physical(tx), snapshot, ns, entityName, id, generator);
+    }
+
+    @Override
+    public Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName,
+                                                Range<String> range) {
+        if (!(tx instanceof BufferedTransaction)) {
+            return delegate.readDocuments(tx, snapshot, ns, entityName, range);
+        }
+        return Flowable.defer(() -> readBufferedDocuments((BufferedTransaction) tx, snapshot, ns, entityName, range));
+    }
+
+    private Flowable<JsonDocument> readBufferedDocuments(BufferedTransaction tx, ZonedDateTime snapshot, String ns,
+                                                         String entityName, Range<String> range) {
+        Comparator<String> order = range.isBackward() ? Comparator.reverseOrder() : Comparator.naturalOrder();
+        List<JsonDocument> buffered = tx.latest(ns, entityName, range, snapshot, order);
+        if (buffered.isEmpty()) {
+            return delegate.readDocuments(physical(tx), snapshot, ns, entityName, range);
+        }
+        // Every buffered document hides or replaces at most one provided document, so asking for that many more
+        // documents is enough to fill the limit after merging.
+        Flowable<JsonDocument> provided = delegate.readDocuments(physical(tx), snapshot, ns, entityName,
+                widen(range, buffered.size()));
+        Flowable<JsonDocument> documents = overlay(provided, buffered, document -> document.key().id(), order,
+                WriteBufferingRxJsonPersistence::newest)
+                .filter(document -> !document.deleted());
+        if (range.isLimited()) {
+            documents = documents.take(range.getLimit());
+        }
+        return documents;
+    }
+
+    @Override
+    public Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName,
+                                                Iterable<String> ids) {
+        if (!(tx instanceof BufferedTransaction)) {
+            return delegate.readDocuments(tx, snapshot, ns, entityName, ids);
+        }
+        return Flowable.defer(() -> readBufferedDocuments((BufferedTransaction) tx, snapshot, ns, entityName, ids));
+    }
+
+    private Flowable<JsonDocument> readBufferedDocuments(BufferedTransaction tx, ZonedDateTime snapshot, String ns,
+                                                         String entityName, Iterable<String> ids) {
+        TreeSet<String> sortedIds = new TreeSet<>();
+        ids.forEach(sortedIds::add);
+        List<JsonDocument> buffered = new ArrayList<>();
+        for (String id : sortedIds) {
+            JsonDocument document = tx.latest(ns, entityName, id, snapshot);
+            if (document != null) {
+                buffered.add(document);
+            }
+        }
+        Flowable<JsonDocument> provided = delegate.readDocuments(physical(tx), snapshot, ns, entityName, sortedIds);
+        if (buffered.isEmpty()) {
+            return provided;
+        }
+        return overlay(provided, buffered, document -> document.key().id(), Comparator.naturalOrder(),
+                WriteBufferingRxJsonPersistence::newest)
+                .filter(document -> !document.deleted());
+    }
+
+    @Override
+    public Flowable<JsonDocument> readDocumentVersions(Transaction tx, String ns, String entityName, String id,
+                                                       Range<ZonedDateTime> range) {
+        if (!(tx instanceof BufferedTransaction)) {
+            return delegate.readDocumentVersions(tx, ns, entityName, id, range);
+        }
+        return Flowable.defer(() -> readBufferedDocumentVersions((BufferedTransaction) tx, ns, entityName, id, range));
+    }
+
+    private Flowable<JsonDocument> readBufferedDocumentVersions(BufferedTransaction tx, String ns, String entityName,
+                                                                String id, Range<ZonedDateTime> range) {
+        Range<Instant> instantRange = Range.copy(range, ZonedDateTime::toInstant);
+        Comparator<Instant> order = range.isBackward() ? Comparator.reverseOrder() : Comparator.naturalOrder();
+        List<JsonDocument> buffered = tx.versions(ns, entityName, id, instantRange, order);
+        if (buffered.isEmpty()) {
+            return delegate.readDocumentVersions(physical(tx), ns, entityName, id, range);
+        }
+        Flowable<JsonDocument> provided = delegate.readDocumentVersions(physical(tx), ns, entityName, id,
+                widen(range, buffered.size()));
+        Flowable<JsonDocument> documents = overlay(provided, buffered, document -> document.key().timestamp().toInstant(),
+                order, (bufferedVersion, providedVersion) -> bufferedVersion);
+        if (range.isLimited()) {
+            documents = documents.take(range.getLimit());
+        }
+        return documents;
+    }
+
+    @Override
+    public Flowable<JsonDocument> readTargetDocuments(Transaction tx, ZonedDateTime snapshot, String ns,
+                                                      String sourceEntityName, String sourceId,
+                                                      JsonNavigationPath relationPath, String targetEntityName,
+                                                      Range<String> range) {
+        return flush(tx).andThen(delegate.readTargetDocuments(physical(tx), snapshot, ns, sourceEntityName, sourceId,
+                relationPath, targetEntityName, range));
+    }
+
+    @Override
+    public Flowable<JsonDocument> readSourceDocuments(Transaction tx, ZonedDateTime snapshot, String ns,
+                                                      String targetEntityName, String targetId,
+                                                      JsonNavigationPath relationPath, String sourceEntityName,
+                                                      Range<String> range) {
+        return flush(tx).andThen(delegate.readSourceDocuments(physical(tx), snapshot, ns, targetEntityName, targetId,
+                relationPath, sourceEntityName, range));
+    }
+
+    @Override
+    public Flowable<JsonDocument> findDocument(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName,
+                                               JsonNavigationPath path, String value, Range<String> range) {
+        return flush(tx).andThen(delegate.findDocument(physical(tx), snapshot, namespace, entityName, path, value, range));
+    }
+
+    @Override
+    public Completable createOrOverwrite(Transaction tx, Flowable<JsonDocument> documentFlowable, Specification specification) {
+        if (!(tx instanceof BufferedTransaction)) {
+            return delegate.createOrOverwrite(tx, documentFlowable, specification);
+        }
+        BufferedTransaction bufferedTransaction = (BufferedTransaction) tx;
+        return documentFlowable
+                .concatMapCompletable(document -> bufferedTransaction.put(document, specification, null));
+    }
+
+    @Override
+    public Completable markDocumentDeleted(Transaction transaction, String ns, String entityName, String id,
+                                           ZonedDateTime version, PersistenceDeletePolicy policy) {
+        if (!(transaction instanceof BufferedTransaction)) {
+            return delegate.markDocumentDeleted(transaction, ns, entityName, id, version, policy);
+        }
+        DocumentKey key = new DocumentKey(ns, entityName, id, version);
+        return Completable.defer(() -> ((BufferedTransaction) transaction).put(new JsonDocument(key, (JsonNode) null), null, policy));
+    }
+
+    @Override
+    public Completable markDocumentsDeleted(Transaction transaction, Flowable<DocumentKey> keys, int batchSize, int maxConcurrency) {
+        if (!(transaction instanceof BufferedTransaction)) {
+            return delegate.markDocumentsDeleted(transaction, keys, batchSize, maxConcurrency);
+        }
+        BufferedTransaction bufferedTransaction = (BufferedTransaction) transaction;
+        return keys.concatMapCompletable(key -> bufferedTransaction.put(new JsonDocument(key, (JsonNode) null), null, null));
+    }
+
+    @Override
+    public Completable deleteDocument(Transaction tx, String ns, String entityName, String id, ZonedDateTime version,
+                                      PersistenceDeletePolicy policy) {
+        return flush(tx).andThen(delegate.deleteDocument(physical(tx), ns, entityName, id, version, policy));
+    }
+
+    @Override
+    public Completable deleteAllDocumentVersions(Transaction tx, String ns, String entity, String id,
+                                                 PersistenceDeletePolicy policy) {
+        return flush(tx).andThen(delegate.deleteAllDocumentVersions(physical(tx), ns, entity, id, policy));
+    }
+
+    @Override
+    public Completable deleteAllEntities(Transaction tx, String namespace, String entity, Specification specification) {
+        return flush(tx).andThen(delegate.deleteAllEntities(physical(tx), namespace, entity, specification));
+    }
+
+    @Override
+    public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
+        return readDocuments(tx, snapshot, ns, entityName, Range.lastBefore(1, id)).isEmpty()
+                .map(wasEmpty -> !wasEmpty);
+    }
+
+    @Override
+    public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
+        return readDocuments(tx, snapshot, ns, entityName, Range.firstAfter(1, id)).isEmpty()
+                .map(wasEmpty -> !wasEmpty);
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        delegate.close();
+    }
+
+    @Override
+    public int deleteBatchSize() {
+        return delegate.deleteBatchSize();
+    }
+
+    @Override
+    public int deleteConcurrency() {
+        return delegate.deleteConcurrency();
+    }
+
+    @Override
+    public <T> T getInstance(Class<T> clazz) {
+        return delegate.getInstance(clazz);
+    }
+
+    /**
+     * The newest of a buffered and a provided version of the same document, the buffered version wins ties.
+     */
+    static JsonDocument newest(JsonDocument buffered, JsonDocument provided) {
+        return provided.key().timestamp().isAfter(buffered.key().timestamp()) ? provided : buffered;
+    }
+
+    static <T> Range<T> widen(Range<T> range, int extra) {
+        if (range.hasFirst()) {
+            return Range.firstBetween(range.getFirst() + extra, range.getAfter(), range.getBefore());
+        }
+        if (range.hasLast()) {
+            return Range.lastBetween(range.getLast() + extra, range.getAfter(), range.getBefore());
+        }
+        return range;
+    }
+
+    /**
+     * Merge buffered documents, sorted in stream order, into a provided stream sorted in the same order. When both
+     * contain a document with the same key, the merge function decides which one is emitted.
+     */
+    static <K> Flowable<JsonDocument> overlay(Flowable<JsonDocument> provided, List<JsonDocument> buffered,
+                                              Function<JsonDocument, K> keyExtractor, Comparator<? super K> order,
+                                              BinaryOperator<JsonDocument> merge) {
+        return Flowable.defer(() -> {
+            Iterator<JsonDocument> iterator = buffered.iterator();
+            JsonDocument[] next = {iterator.hasNext() ? iterator.next() : null};
+            return provided.concatMapIterable(document -> {
+                K key = keyExtractor.apply(document);
+                List<JsonDocument> emitted = new ArrayList<>(1);
+                while (next[0] != null && order.compare(keyExtractor.apply(next[0]), key) < 0) {
+                    emitted.add(next[0]);
+                    next[0] = iterator.hasNext() ? iterator.next() : null;
+                }
+                if (next[0] != null && order.compare(keyExtractor.apply(next[0]), key) == 0) {
+                    emitted.add(merge.apply(next[0], document));
+                    next[0] = iterator.hasNext() ? iterator.next() : null;
+                } else {
+                    emitted.add(document);
+                }
+                return emitted;
+            }).concatWith(Flowable.defer(() -> {
+                List<JsonDocument> remaining = new ArrayList<>();
+                while (next[0] != null) {
+                    remaining.add(next[0]);
+                    next[0] = iterator.hasNext() ? iterator.next() : null;
+                }
+                return Flowable.fromIterable(remaining);
+            }));
+        });
+    }
+
+    static class Pending {
+        final JsonDocument document;
+        final Specification specification;
+        final PersistenceDeletePolicy policy;
+
+        Pending(JsonDocument document, Specification specification, PersistenceDeletePolicy policy) {
+            this.document = document;
+            this.specification = specification;
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * A transaction of the delegate together with the documents written within it that are not yet flushed. Buffered
+     * versions are indexed by namespace and entity, then id, then timestamp.
+     */
+    class BufferedTransaction implements Transaction {
+
+        final Transaction delegate;
+        final Map<String, NavigableMap<String, NavigableMap<Instant, Pending>>> buffer = new HashMap<>();
+        final TransactionStatistics statistics = new TransactionStatistics();
+        int size;
+
+        BufferedTransaction(Transaction delegate) {
+            this.delegate = delegate;
+        }
+
+        Completable put(JsonDocument document, Specification specification, PersistenceDeletePolicy policy) {
+            DocumentKey key = document.key();
+            boolean full;
+            synchronized (this) {
+                Pending previous = buffer.computeIfAbsent(key.namespace() + '/' + key.entity(), k -> new TreeMap<>())
+                        .computeIfAbsent(key.id(), k -> new TreeMap<>())
+                        .put(key.timestamp().toInstant(), new Pending(document, specification, policy));
+                if (previous == null) {
+                    size++;
+                }
+                full = size >= maxBufferedDocuments;
+            }
+            statistics.increment(BUFFERED_WRITES);
+            return full ? flush() : Completable.complete();
+        }
+
+        synchronized JsonDocument latest(String ns, String entity, String id, ZonedDateTime snapshot) {
+            NavigableMap<String, NavigableMap<Instant, Pending>> documents = buffer.get(ns + '/' + entity);
+            if (documents == null) {
+                return null;
+            }
+            NavigableMap<Instant, Pending> versions = documents.get(id);
+            if (versions == null) {
+                return null;
+            }
+            Map.Entry<Instant, Pending> entry = versions.floorEntry(snapshot.toInstant());
+            if (entry == null) {
+                return null;
+            }
+            statistics.increment(BUFFERED_READS);
+            return entry.getValue().document;
+        }
+
+        synchronized List<JsonDocument> latest(String ns, String entity, Range<String> range, ZonedDateTime snapshot,
+                                               Comparator<String> order) {
+            NavigableMap<String, NavigableMap<Instant, Pending>> documents = buffer.get(ns + '/' + entity);
+            if (documents == null) {
+                return List.of();
+            }
+            NavigableMap<String, NavigableMap<Instant, Pending>> inRange = documents;
+            if (range.hasAfter()) {
+                inRange = inRange.tailMap(range.getAfter(), false);
+            }
+            if (range.hasBefore()) {
+                inRange = inRange.headMap(range.getBefore(), false);
+            }
+            List<JsonDocument> result = new ArrayList<>();
+            for (NavigableMap<Instant, Pending> versions : inRange.values()) {
+                Map.Entry<Instant, Pending> entry = versions.floorEntry(snapshot.toInstant());
+                if (entry != null) {
+                    result.add(entry.getValue().document);
+                }
+            }
+            result.sort(Comparator.comparing(document -> document.key().id(), order));
+            statistics.add(BUFFERED_READS, result.size());
+            return result;
+        }
+
+        synchronized List<JsonDocument> versions(String ns, String entity, String id, Range<Instant> range,
+                                                 Comparator<Instant> order) {
+            NavigableMap<String, NavigableMap<Instant, Pending>> documents = buffer.get(ns + '/' + entity);
+            NavigableMap<Instant, Pending> versions = documents == null ? null : documents.get(id);
+            if (versions == null) {
+                return List.of();
+            }
+            NavigableMap<Instant, Pending> inRange = versions;
+            if (range.hasAfter()) {
+                inRange = inRange.tailMap(range.getAfter(), false);
+            }
+            if (range.hasBefore()) {
+                inRange = inRange.headMap(range.getBefore(), false);
+            }
+            List<JsonDocument> result = new ArrayList<>();
+            for (Pending pending : inRange.values()) {
+                result.add(pending.document);
+            }
+            result.sort(Comparator.comparing(document -> document.key().timestamp().toInstant(), order));
+            statistics.add(BUFFERED_READS, result.size());
+            return result;
+        }
+
+        /**
+         * Write all buffered documents to the delegate and clear the buffer.
+         */
+        Completable flush() {
+            return Completable.defer(() -> {
+                Map<Specification, List<JsonDocument>> documentsBySpecification = new LinkedHashMap<>();
+                List<DocumentKey> deleted = new ArrayList<>();
+                List<Pending> deletedWithPolicy = new ArrayList<>();
+                synchronized (this) {
+                    for (NavigableMap<String, NavigableMap<Instant, Pending>> documents : buffer.values()) {
+                        for (NavigableMap<Instant, Pending> versions : documents.values()) {
+                            for (Pending pending : versions.values()) {
+                                if (!pending.document.deleted()) {
+                                    documentsBySpecification.computeIfAbsent(pending.specification, s -> new ArrayList<>())
+                                            .add(pending.document);
+                                } else if (pending.policy == null) {
+                                    deleted.add(pending.document.key());
+                                } else {
+                                    deletedWithPolicy.add(pending);
+                                }
+                            }
+                        }
+                    }
+                    if (size > 0) {
+                        statistics.record(FLUSHED_DOCUMENTS, size);
+                    }
+                    buffer.clear();
+                    size = 0;
+                }
+                List<Completable> writes = new ArrayList<>();
+                for (Map.Entry<Specification, List<JsonDocument>> entry : documentsBySpecification.entrySet()) {
+                    writes.add(WriteBufferingRxJsonPersistence.this.delegate.createOrOverwrite(delegate,
+                            Flowable.fromIterable(entry.getValue()), entry.getKey()));
+                }
+                if (!deleted.isEmpty()) {
+                    writes.add(WriteBufferingRxJsonPersistence.this.delegate.markDocumentsDeleted(delegate,
+                            Flowable.fromIterable(deleted), DEFAULT_DELETE_BATCH_SIZE, DEFAULT_DELETE_CONCURRENCY));
+                }
+                for (Pending pending : deletedWithPolicy) {
+                    DocumentKey key = pending.document.key();
+                    writes.add(WriteBufferingRxJsonPersistence.this.delegate.markDocumentDeleted(delegate,
+                            key.namespace(), key.entity(), key.id(), key.timestamp(), pending.policy));
+                }
+                return Completable.concat(writes);
+            });
+        }
+
+        @Override
+        public CompletableFuture<TransactionStatistics> commit() {
+            CompletableFuture<TransactionStatistics> result = new CompletableFuture<>();
+            flush().subscribe(
+                    () -> delegate.commit().whenComplete((stats, throwable) -> {
+                        if (throwable != null) {
+                            result.completeExceptionally(throwable);
+                        } else {
+                            result.complete(stats.addAll(statistics));
+                        }
+                    }),
+                    throwable -> delegate.cancel().whenComplete((stats, cancelThrowable) -> result.completeExceptionally(throwable))
+            );
+            return result;
+        }
+
+        @Override
+        public CompletableFuture<TransactionStatistics> cancel() {
+            synchronized (this) {
+                buffer.clear();
+                size = 0;
+            }
+            return delegate.cancel();
+        }
+
+        @Override
+        public <T> T getInstance(Class<T> clazz) {
+            return delegate.getInstance(clazz);
+        }
+    }
+}
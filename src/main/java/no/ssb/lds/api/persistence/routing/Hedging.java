@@ -0,0 +1,75 @@
+package no.ssb.lds.api.persistence.routing;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * When to send a duplicate of a read to another replica. The delay adapts to a percentile of the recent latencies of
+ * reads, so that only the slowest reads are hedged, e.g. hedging at the 95th percentile sends about 5% more reads.
+ * <p>
+ * Latencies are kept in a ring of the last reads, and the percentile is computed from a sorted copy of the ring
+ * every {@link #RECOMPUTE_INTERVAL} reads. Until the ring has seen {@link #MIN_SAMPLES} reads the max delay is used.
+ */
+public class Hedging {
+
+    static final int RECOMPUTE_INTERVAL = 32;
+    static final int MIN_SAMPLES = 32;
+
+    final double percentile;
+    final long minDelayNanos;
+    final long maxDelayNanos;
+
+    private final long[] samples;
+    private long recorded;
+    private volatile long delayNanos;
+
+    /**
+     * @param percentile the percentile of latencies after which a read is hedged, between 0 and 100.
+     * @param minDelay   the least delay before a read is hedged.
+     * @param maxDelay   the greatest delay before a read is hedged, also used until enough reads are seen.
+     * @param window     the number of recent reads that the percentile is computed from.
+     */
+    public Hedging(double percentile, Duration minDelay, Duration maxDelay, int window) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be in (0, 100]: " + percentile);
+        }
+        if (minDelay.compareTo(maxDelay) > 0) {
+            throw new IllegalArgumentException("minDelay " + minDelay + " is greater than maxDelay " + maxDelay);
+        }
+        if (window < MIN_SAMPLES) {
+            throw new IllegalArgumentException("window must be at least " + MIN_SAMPLES + ": " + window);
+        }
+        this.percentile = percentile;
+        this.minDelayNanos = minDelay.toNanos();
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.samples = new long[window];
+        this.delayNanos = maxDelayNanos;
+    }
+
+    /**
+     * The delay before a read is hedged.
+     */
+    public long delayNanos() {
+        return delayNanos;
+    }
+
+    /**
+     * Record the latency of a read, until its first answer.
+     */
+    synchronized void record(long nanos) {
+        samples[(int) (recorded % samples.length)] = nanos;
+        recorded++;
+        if (recorded >= MIN_SAMPLES && recorded % RECOMPUTE_INTERVAL == 0) {
+            long[] sorted = Arrays.copyOf(samples, (int) Math.min(recorded, samples.length));
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            long latency = sorted[Math.max(0, index)];
+            delayNanos = Math.max(minDelayNanos, Math.min(maxDelayNanos, latency));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Hedging{p" + percentile + ", delayNanos=" + delayNanos + '}';
+    }
+}
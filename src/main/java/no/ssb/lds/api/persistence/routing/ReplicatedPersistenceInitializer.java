@@ -0,0 +1,95 @@
+package no.ssb.lds.api.persistence.routing;
+
+import no.ssb.lds.api.persistence.PersistenceInitializer;
+import no.ssb.lds.api.persistence.ProviderName;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.specification.Specification;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static no.ssb.lds.api.persistence.routing.ShardedPersistenceInitializer.findInitializer;
+import static no.ssb.lds.api.persistence.routing.ShardedPersistenceInitializer.overridden;
+import static no.ssb.lds.api.persistence.routing.ShardedPersistenceInitializer.provider;
+
+/**
+ * Initializes a {@link ReplicatedRxPersistence} with a primary and replicas of another provider. The primary is
+ * initialized with the configuration of this provider where keys prefixed with
+ * <code>persistence.replica.primary.</code> override the unprefixed key, and replica <i>n</i> likewise with keys
+ * prefixed with <code>persistence.replica.&lt;n&gt;.</code>, e.g. <code>persistence.replica.0.postgres.host</code>.
+ * Reads are hedged if a hedge percentile is configured.
+ */
+@ProviderName("replicated")
+public class ReplicatedPersistenceInitializer implements PersistenceInitializer {
+
+    public static final String PROVIDER = "persistence.replica.provider";
+    public static final String COUNT = "persistence.replica.count";
+    public static final String BALANCING = "persistence.replica.balancing";
+    public static final String READ_YOUR_WRITES_MILLIS = "persistence.replica.read-your-writes.millis";
+    public static final String HEDGE_PERCENTILE = "persistence.replica.hedge.percentile";
+    public static final String HEDGE_MIN_DELAY_MILLIS = "persistence.replica.hedge.min.delay.millis";
+    public static final String HEDGE_MAX_DELAY_MILLIS = "persistence.replica.hedge.max.delay.millis";
+    public static final String FRAGMENT_CAPACITY = "persistence.fragment.capacity";
+
+    static final String REPLICA_PREFIX = "persistence.replica.";
+    static final String PRIMARY_PREFIX = "persistence.replica.primary.";
+    static final int DEFAULT_FRAGMENT_CAPACITY = 8 * 1024;
+    static final long DEFAULT_HEDGE_MIN_DELAY_MILLIS = 1;
+    static final long DEFAULT_HEDGE_MAX_DELAY_MILLIS = 1000;
+    static final int HEDGE_WINDOW = 1024;
+
+    @Override
+    public String persistenceProviderId() {
+        return "replicated";
+    }
+
+    @Override
+    public Set<String> configurationKeys() {
+        return Set.of(PROVIDER, COUNT, BALANCING, READ_YOUR_WRITES_MILLIS, HEDGE_PERCENTILE, HEDGE_MIN_DELAY_MILLIS,
+                HEDGE_MAX_DELAY_MILLIS, FRAGMENT_CAPACITY);
+    }
+
+    @Override
+    public RxJsonPersistence initialize(String defaultNamespace, Map<String, String> configuration, Set<String> managedDomains,
+                                       Specification specification) {
+        String providerId = configuration.get(PROVIDER);
+        if (providerId == null) {
+            throw new IllegalArgumentException("Missing configuration: " + PROVIDER);
+        }
+        PersistenceInitializer initializer = findInitializer(providerId);
+        RxPersistence primary = provider(initializer.initialize(defaultNamespace,
+                overridden(configuration, PRIMARY_PREFIX), managedDomains, specification));
+        String count = configuration.get(COUNT);
+        List<RxPersistence> replicas = new ArrayList<>();
+        for (int replica = 0; replica < (count == null ? 0 : Integer.parseInt(count)); replica++) {
+            replicas.add(provider(initializer.initialize(defaultNamespace,
+                    overridden(configuration, REPLICA_PREFIX + replica + "."), managedDomains, specification)));
+        }
+        String balancing = configuration.get(BALANCING);
+        String readYourWrites = configuration.get(READ_YOUR_WRITES_MILLIS);
+        String capacity = configuration.get(FRAGMENT_CAPACITY);
+        ReplicatedRxPersistence persistence = new ReplicatedRxPersistence(primary, replicas,
+                balancing == null ? ReplicatedRxPersistence.Balancing.ROUND_ROBIN : ReplicatedRxPersistence.Balancing.valueOf(balancing.toUpperCase()),
+                readYourWrites == null ? Duration.ZERO : Duration.ofMillis(Long.parseLong(readYourWrites)),
+                hedging(configuration));
+        return new RxJsonPersistenceBridge(persistence, capacity == null ? DEFAULT_FRAGMENT_CAPACITY : Integer.parseInt(capacity));
+    }
+
+    static Hedging hedging(Map<String, String> configuration) {
+        String percentile = configuration.get(HEDGE_PERCENTILE);
+        if (percentile == null) {
+            return null;
+        }
+        String minDelay = configuration.get(HEDGE_MIN_DELAY_MILLIS);
+        String maxDelay = configuration.get(HEDGE_MAX_DELAY_MILLIS);
+        return new Hedging(Double.parseDouble(percentile),
+                Duration.ofMillis(minDelay == null ? DEFAULT_HEDGE_MIN_DELAY_MILLIS : Long.parseLong(minDelay)),
+                Duration.ofMillis(maxDelay == null ? DEFAULT_HEDGE_MAX_DELAY_MILLIS : Long.parseLong(maxDelay)),
+                HEDGE_WINDOW);
+    }
+}
@@ -0,0 +1,413 @@
+package no.ssb.lds.api.persistence.routing;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.reactivex.PersistenceCapability;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link RxPersistence} that sends read-only transactions to a pool of replicas and all other transactions to the
+ * primary. Replicas are chosen round-robin, or by the least number of open transactions.
+ * <p>
+ * Replicas are expected to lag behind the primary. A {@link Session} keeps read-your-writes for a window after each
+ * write that it commits, by sending its read-only transactions to the primary within the window. Transactions that
+ * are created without a session are routed without regard to earlier writes.
+ * <p>
+ * With {@link Hedging}, reads of single documents and their versions in transactions on a replica are hedged: if the
+ * replica has not answered within the hedge delay the read is sent to another replica as well, the first to answer
+ * is used and the other read is cancelled. The hedged read may see another replica lag, just like a later
+ * transaction could.
+ */
+public class ReplicatedRxPersistence implements RxPersistence {
+
+    public static final TransactionStatistics.Counter PRIMARY_TRANSACTIONS = TransactionStatistics.counter("replicated.primary.transactions");
+    public static final TransactionStatistics.Counter REPLICA_TRANSACTIONS = TransactionStatistics.counter("replicated.replica.transactions");
+    public static final TransactionStatistics.Counter READ_YOUR_WRITES = TransactionStatistics.counter("replicated.read-your-writes");
+    public static final TransactionStatistics.Counter HEDGEABLE_READS = TransactionStatistics.counter("replicated.hedge.reads");
+    public static final TransactionStatistics.Counter HEDGES = TransactionStatistics.counter("replicated.hedge.sent");
+    public static final TransactionStatistics.Counter HEDGE_WINS = TransactionStatistics.counter("replicated.hedge.wins");
+    public static final TransactionStatistics.Histogram HEDGE_DELAY_NANOS = TransactionStatistics.histogram("replicated.hedge.delay.nanos");
+
+    public enum Balancing {
+        ROUND_ROBIN,
+        LEAST_LOADED
+    }
+
+    final RxPersistence primary;
+    final List<Replica> replicas;
+    final Balancing balancing;
+    final long readYourWritesNanos;
+    final Hedging hedging;
+
+    private final AtomicLong next = new AtomicLong();
+    private final Set<PersistenceCapability> capabilities;
+    private final TransactionStatistics statistics = new TransactionStatistics();
+    private final TransactionFactory transactionFactory = new ReplicatedTransactionFactory();
+
+    /**
+     * @param primary        the provider of all transactions that may write.
+     * @param replicas       the providers of read-only transactions, the primary is used if there are none.
+     * @param balancing      how a replica is chosen.
+     * @param readYourWrites how long a session reads from the primary after it has committed a write, or
+     *                       {@link Duration#ZERO} to always read from the replicas.
+     */
+    public ReplicatedRxPersistence(RxPersistence primary, List<? extends RxPersistence> replicas, Balancing balancing,
+                                   Duration readYourWrites) {
+        this(primary, replicas, balancing, readYourWrites, null);
+    }
+
+    /**
+     * @param hedging when to hedge reads on replicas, or null to never hedge.
+     * @see #ReplicatedRxPersistence(RxPersistence, List, Balancing, Duration)
+     */
+    public ReplicatedRxPersistence(RxPersistence primary, List<? extends RxPersistence> replicas, Balancing balancing,
+                                   Duration readYourWrites, Hedging hedging) {
+        this.primary = primary;
+        List<Replica> pool = new ArrayList<>();
+        for (RxPersistence replica : replicas) {
+            pool.add(new Replica(pool.size(), replica));
+        }
+        this.replicas = Collections.unmodifiableList(pool);
+        this.balancing = balancing;
+        this.readYourWritesNanos = readYourWrites.toNanos();
+        this.hedging = hedging;
+        // A read may be served by any provider, so only guarantees of all of them hold.
+        Set<PersistenceCapability> common = EnumSet.allOf(PersistenceCapability.class);
+        common.retainAll(primary.capabilities());
+        for (RxPersistence replica : replicas) {
+            common.retainAll(replica.capabilities());
+        }
+        this.capabilities = Collections.unmodifiableSet(common);
+    }
+
+    /**
+     * A new session, whose transactions read their own writes.
+     */
+    public Session session() {
+        return new Session();
+    }
+
+    /**
+     * Statistics of the routing: the number of transactions sent to the primary and to the replicas, the number of
+     * read-only transactions that were sent to the primary to read the writes of their session, and the number of
+     * reads that could be hedged, were hedged, and were answered first by the hedge.
+     */
+    public TransactionStatistics statistics() {
+        return statistics;
+    }
+
+    @Override
+    public Set<PersistenceCapability> capabilities() {
+        return capabilities;
+    }
+
+    @Override
+    public TransactionFactory transactionFactory() throws PersistenceException {
+        return transactionFactory;
+    }
+
+    @Override
+    public ReplicatedTransaction createTransaction(boolean readOnly) throws PersistenceException {
+        return createTransaction(readOnly, null);
+    }
+
+    ReplicatedTransaction createTransaction(boolean readOnly, Session session) {
+        if (!readOnly || replicas.isEmpty()) {
+            statistics.increment(PRIMARY_TRANSACTIONS);
+            return new ReplicatedTransaction(readOnly, null, primary.createTransaction(readOnly), session);
+        }
+        if (session != null && session.readsOwnWrites()) {
+            statistics.increment(PRIMARY_TRANSACTIONS).increment(READ_YOUR_WRITES);
+            return new ReplicatedTransaction(true, null, primary.createTransaction(true), session);
+        }
+        Replica replica = choose();
+        replica.inFlight.incrementAndGet();
+        try {
+            Transaction delegate = replica.persistence.createTransaction(true);
+            statistics.increment(REPLICA_TRANSACTIONS);
+            return new ReplicatedTransaction(true, replica, delegate, session);
+        } catch (RuntimeException e) {
+            replica.inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    Replica choose() {
+        int start = (int) Math.floorMod(next.getAndIncrement(), (long) replicas.size());
+        if (balancing == Balancing.ROUND_ROBIN) {
+            return replicas.get(start);
+        }
+        // Scan from the round-robin position, so that ties do not always go to the first replica.
+        Replica least = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (least == null || replica.inFlight.get() < least.inFlight.get()) {
+                least = replica;
+            }
+        }
+        return least;
+    }
+
+    /**
+     * A replica other than the given one, or null if there is none.
+     */
+    Replica chooseOther(Replica except) {
+        int start = (int) Math.floorMod(next.getAndIncrement(), (long) replicas.size());
+        Replica chosen = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica == except) {
+                continue;
+            }
+            if (balancing == Balancing.ROUND_ROBIN) {
+                return replica;
+            }
+            if (chosen == null || replica.inFlight.get() < chosen.inFlight.get()) {
+                chosen = replica;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Read from the provider of the transaction, and if hedging applies and the provider has not answered within the
+     * hedge delay, from another replica too. The first flow to signal anything is used and the other is cancelled.
+     * A hedge that fails is ignored, so that only failures of the provider of the transaction fail the read. Only the
+     * latency of the provider of the transaction is recorded, a read that is answered by the hedge is not a sample of
+     * how long reads take before they are hedged.
+     */
+    <T> Flowable<T> hedged(ReplicatedTransaction transaction, ReplicaRead<T> read) {
+        Flowable<T> first = read.apply(target(transaction), transaction.delegate);
+        if (hedging == null || transaction.replica == null || replicas.size() < 2) {
+            return first;
+        }
+        return Flowable.defer(() -> {
+            statistics.increment(HEDGEABLE_READS);
+            long start = System.nanoTime();
+            long delay = hedging.delayNanos();
+            AtomicBoolean answered = new AtomicBoolean();
+            Flowable<T> hedge = Flowable.timer(delay, TimeUnit.NANOSECONDS)
+                    .flatMap(tick -> {
+                        Replica other = chooseOther(transaction.replica);
+                        statistics.increment(HEDGES).record(HEDGE_DELAY_NANOS, delay);
+                        return read.apply(other.persistence, transaction.on(other));
+                    })
+                    .onErrorResumeNext(Flowable.<T>never())
+                    .doOnEach(notification -> {
+                        if (answered.compareAndSet(false, true)) {
+                            statistics.increment(HEDGE_WINS);
+                        }
+                    });
+            Flowable<T> timed = first.doOnEach(notification -> {
+                if (answered.compareAndSet(false, true)) {
+                    hedging.record(System.nanoTime() - start);
+                }
+            });
+            return Flowable.amb(List.of(timed, hedge));
+        });
+    }
+
+    static ReplicatedTransaction replicated(Transaction tx) {
+        if (!(tx instanceof ReplicatedTransaction)) {
+            throw new IllegalArgumentException("Not a transaction of this persistence: " + tx);
+        }
+        return (ReplicatedTransaction) tx;
+    }
+
+    private RxPersistence target(ReplicatedTransaction tx) {
+        return tx.replica == null ? primary : tx.replica.persistence;
+    }
+
+    private ReplicatedTransaction writable(Transaction tx) {
+        ReplicatedTransaction transaction = replicated(tx);
+        if (transaction.readOnly) {
+            throw new IllegalStateException("Cannot write in a read-only transaction");
+        }
+        return transaction;
+    }
+
+    @Override
+    public Completable createOrOverwrite(Transaction tx, Flowable<Fragment> fragments) {
+        return Completable.defer(() -> primary.createOrOverwrite(writable(tx).delegate, fragments));
+    }
+
+    @Override
+    public Completable createOrOverwriteBatched(Transaction tx, Flowable<List<Fragment>> batches) {
+        return Completable.defer(() -> primary.createOrOverwriteBatched(writable(tx).delegate, batches));
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String id) {
+        return Flowable.defer(() -> hedged(replicated(tx), (persistence, delegate) -> persistence.read(delegate, snapshot, namespace, entity, id)));
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Iterable<String> ids) {
+        return Flowable.defer(() -> hedged(replicated(tx), (persistence, delegate) -> persistence.read(delegate, snapshot, namespace, entity, ids)));
+    }
+
+    @Override
+    public Flowable<Fragment> readVersions(Transaction tx, String namespace, String entity, String id, Range<ZonedDateTime> range) {
+        return Flowable.defer(() -> hedged(replicated(tx), (persistence, delegate) -> persistence.readVersions(delegate, namespace, entity, id, range)));
+    }
+
+    @Override
+    public Completable delete(Transaction tx, String namespace, String entity, String id, ZonedDateTime version,
+                              PersistenceDeletePolicy policy) {
+        return Completable.defer(() -> primary.delete(writable(tx).delegate, namespace, entity, id, version, policy));
+    }
+
+    @Override
+    public Completable deleteAllVersions(Transaction tx, String namespace, String entity, String id,
+                                         PersistenceDeletePolicy policy) {
+        return Completable.defer(() -> primary.deleteAllVersions(writable(tx).delegate, namespace, entity, id, policy));
+    }
+
+    @Override
+    public Completable deleteAllEntities(Transaction tx, String namespace, String entity, Iterable<String> paths) {
+        return Completable.defer(() -> primary.deleteAllEntities(writable(tx).delegate, namespace, entity, paths));
+    }
+
+    @Override
+    public Completable markDeleted(Transaction tx, String namespace, String entity, String id, ZonedDateTime version,
+                                   PersistenceDeletePolicy policy) {
+        return Completable.defer(() -> primary.markDeleted(writable(tx).delegate, namespace, entity, id, version, policy));
+    }
+
+    @Override
+    public Flowable<Fragment> readAll(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Range<String> range) {
+        return Flowable.defer(() -> {
+            ReplicatedTransaction transaction = replicated(tx);
+            return target(transaction).readAll(transaction.delegate, snapshot, namespace, entity, range);
+        });
+    }
+
+    @Override
+    public Flowable<Fragment> find(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String path,
+                                   byte[] value, Range<String> range) {
+        return Flowable.defer(() -> {
+            ReplicatedTransaction transaction = replicated(tx);
+            return target(transaction).find(transaction.delegate, snapshot, namespace, entity, path, value, range);
+        });
+    }
+
+    @Override
+    public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return Single.defer(() -> {
+            ReplicatedTransaction transaction = replicated(tx);
+            return target(transaction).hasPrevious(transaction.delegate, snapshot, namespace, entityName, id);
+        });
+    }
+
+    @Override
+    public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return Single.defer(() -> {
+            ReplicatedTransaction transaction = replicated(tx);
+            return target(transaction).hasNext(transaction.delegate, snapshot, namespace, entityName, id);
+        });
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        PersistenceException failure = null;
+        List<RxPersistence> all = new ArrayList<>();
+        all.add(primary);
+        for (Replica replica : replicas) {
+            all.add(replica.persistence);
+        }
+        for (RxPersistence persistence : all) {
+            try {
+                persistence.close();
+            } catch (PersistenceException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    interface ReplicaRead<T> {
+        Flowable<T> apply(RxPersistence persistence, Transaction transaction);
+    }
+
+    static class Replica {
+        final int index;
+        final RxPersistence persistence;
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        Replica(int index, RxPersistence persistence) {
+            this.index = index;
+            this.persistence = persistence;
+        }
+
+        @Override
+        public String toString() {
+            return "Replica{" + index + ", inFlight=" + inFlight + '}';
+        }
+    }
+
+    class ReplicatedTransactionFactory implements TransactionFactory {
+
+        @Override
+        public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+            return ReplicatedRxPersistence.this.createTransaction(readOnly);
+        }
+
+        @Override
+        public void close() {
+            ReplicatedRxPersistence.this.close();
+        }
+    }
+
+    /**
+     * Creates transactions of the replicated persistence, and remembers when it last committed a write so that
+     * read-only transactions that follow within the read-your-writes window are sent to the primary.
+     */
+    public class Session implements TransactionFactory {
+
+        private volatile long lastWriteNanos;
+        private volatile boolean written;
+
+        Session() {
+        }
+
+        void wrote() {
+            lastWriteNanos = System.nanoTime();
+            written = true;
+        }
+
+        boolean readsOwnWrites() {
+            return written && System.nanoTime() - lastWriteNanos < readYourWritesNanos;
+        }
+
+        @Override
+        public ReplicatedTransaction createTransaction(boolean readOnly) throws PersistenceException {
+            return ReplicatedRxPersistence.this.createTransaction(readOnly, this);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package no.ssb.lds.api.persistence.routing;
+
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A transaction of the {@link ReplicatedRxPersistence}, bound to the primary or to one of the replicas when it is
+ * created. Hedged reads open a transaction on another replica the first time they use it, which is completed
+ * together with this transaction.
+ */
+public class ReplicatedTransaction implements Transaction {
+
+    final boolean readOnly;
+    final ReplicatedRxPersistence.Replica replica;
+    final Transaction delegate;
+    final ReplicatedRxPersistence.Session session;
+
+    private final Map<ReplicatedRxPersistence.Replica, Transaction> hedges = new LinkedHashMap<>();
+    private CompletableFuture<TransactionStatistics> result;
+
+    ReplicatedTransaction(boolean readOnly, ReplicatedRxPersistence.Replica replica, Transaction delegate,
+                          ReplicatedRxPersistence.Session session) {
+        this.readOnly = readOnly;
+        this.replica = replica;
+        this.delegate = delegate;
+        this.session = session;
+    }
+
+    /**
+     * @return true if this transaction reads from a replica rather than from the primary.
+     */
+    public boolean onReplica() {
+        return replica != null;
+    }
+
+    /**
+     * The transaction of another replica, used by hedged reads.
+     */
+    synchronized Transaction on(ReplicatedRxPersistence.Replica other) {
+        if (result != null) {
+            throw new IllegalStateException("Transaction is already completed");
+        }
+        Transaction transaction = hedges.get(other);
+        if (transaction == null) {
+            other.inFlight.incrementAndGet();
+            try {
+                transaction = other.persistence.createTransaction(true);
+            } catch (RuntimeException e) {
+                other.inFlight.decrementAndGet();
+                throw e;
+            }
+            hedges.put(other, transaction);
+        }
+        return transaction;
+    }
+
+    @Override
+    public synchronized CompletableFuture<TransactionStatistics> commit() {
+        if (result == null) {
+            result = complete(true);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized CompletableFuture<TransactionStatistics> cancel() {
+        if (result == null) {
+            result = complete(false);
+        }
+        return result;
+    }
+
+    private CompletableFuture<TransactionStatistics> complete(boolean commit) {
+        List<CompletableFuture<TransactionStatistics>> futures = new ArrayList<>();
+        futures.add(completed(commit ? delegate.commit() : delegate.cancel(), replica));
+        for (Map.Entry<ReplicatedRxPersistence.Replica, Transaction> hedge : hedges.entrySet()) {
+            Transaction transaction = hedge.getValue();
+            futures.add(completed(commit ? transaction.commit() : transaction.cancel(), hedge.getKey()));
+        }
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).thenApply(v -> {
+            if (commit && !readOnly && session != null) {
+                session.wrote();
+            }
+            TransactionStatistics statistics = new TransactionStatistics();
+            for (CompletableFuture<TransactionStatistics> future : futures) {
+                statistics.addAll(future.join());
+            }
+            return statistics;
+        });
+    }
+
+    private static CompletableFuture<TransactionStatistics> completed(CompletableFuture<TransactionStatistics> future,
+                                                                      ReplicatedRxPersistence.Replica replica) {
+        return future.whenComplete((statistics, failure) -> {
+            if (replica != null) {
+                replica.inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public <T> T getInstance(Class<T> clazz) {
+        return delegate.getInstance(clazz);
+    }
+}
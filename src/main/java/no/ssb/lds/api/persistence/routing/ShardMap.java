@@ -0,0 +1,93 @@
+package no.ssb.lds.api.persistence.routing;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Decides which shard holds a document. Documents are spread over all shards by the hash of their id, unless their
+ * namespace, or namespace and entity, is pinned to a single shard. Pinned entities are read from one shard only,
+ * other entities are read from all shards.
+ */
+public class ShardMap {
+
+    final int shardCount;
+    final Map<String, Integer> pinned;
+
+    /**
+     * @param shardCount the number of shards.
+     * @param pinned     shards by <code>namespace</code> or <code>namespace/entity</code>, where an entity pin takes
+     *                   precedence over a namespace pin.
+     */
+    public ShardMap(int shardCount, Map<String, Integer> pinned) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        }
+        for (Map.Entry<String, Integer> entry : pinned.entrySet()) {
+            if (entry.getValue() < 0 || entry.getValue() >= shardCount) {
+                throw new IllegalArgumentException("No shard " + entry.getValue() + " for " + entry.getKey() + ", shard count is " + shardCount);
+            }
+        }
+        this.shardCount = shardCount;
+        this.pinned = Map.copyOf(pinned);
+    }
+
+    public static ShardMap hashed(int shardCount) {
+        return new ShardMap(shardCount, Map.of());
+    }
+
+    /**
+     * Parse pins of the form <code>namespace/entity=shard,namespace=shard</code>.
+     */
+    public static ShardMap parse(int shardCount, String pins) {
+        Map<String, Integer> pinned = new LinkedHashMap<>();
+        if (pins != null && !pins.isBlank()) {
+            for (String pin : pins.split(",")) {
+                String[] parts = pin.trim().split("=", 2);
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Expected namespace/entity=shard or namespace=shard, got: " + pin);
+                }
+                pinned.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        return new ShardMap(shardCount, pinned);
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    /**
+     * The shard that holds the document.
+     */
+    public int shardOf(String namespace, String entity, String id) {
+        Integer shard = pinnedShard(namespace, entity);
+        if (shard != null) {
+            return shard;
+        }
+        return Math.floorMod(id.hashCode(), shardCount);
+    }
+
+    /**
+     * The shards that may hold documents of the entity, in ascending order.
+     */
+    public List<Integer> shardsOf(String namespace, String entity) {
+        Integer shard = pinnedShard(namespace, entity);
+        if (shard != null) {
+            return List.of(shard);
+        }
+        return IntStream.range(0, shardCount).boxed().collect(Collectors.toList());
+    }
+
+    private Integer pinnedShard(String namespace, String entity) {
+        Integer shard = pinned.get(namespace + '/' + entity);
+        return shard != null ? shard : pinned.get(namespace);
+    }
+
+    @Override
+    public String toString() {
+        return "ShardMap{shardCount=" + shardCount + ", pinned=" + pinned + '}';
+    }
+}
@@ -0,0 +1,104 @@
+package no.ssb.lds.api.persistence.routing;
+
+import no.ssb.lds.api.persistence.PersistenceInitializer;
+import no.ssb.lds.api.persistence.ProviderName;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.specification.Specification;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * Initializes a {@link ShardedRxPersistence} with shards of another provider. Every shard is initialized with the
+ * configuration of this provider, where keys prefixed with <code>persistence.shard.&lt;shard&gt;.</code> override
+ * the unprefixed key for that shard, e.g. <code>persistence.shard.1.persistence.wal.file</code>. The shard provider
+ * must be bridged by a {@link RxJsonPersistenceBridge}.
+ */
+@ProviderName("sharded")
+public class ShardedPersistenceInitializer implements PersistenceInitializer {
+
+    public static final String PROVIDER = "persistence.shard.provider";
+    public static final String COUNT = "persistence.shard.count";
+    public static final String MAP = "persistence.shard.map";
+    public static final String FRAGMENT_CAPACITY = "persistence.fragment.capacity";
+
+    static final String SHARD_PREFIX = "persistence.shard.";
+    static final int DEFAULT_FRAGMENT_CAPACITY = 8 * 1024;
+
+    @Override
+    public String persistenceProviderId() {
+        return "sharded";
+    }
+
+    @Override
+    public Set<String> configurationKeys() {
+        return Set.of(PROVIDER, COUNT, MAP, FRAGMENT_CAPACITY);
+    }
+
+    @Override
+    public RxJsonPersistence initialize(String defaultNamespace, Map<String, String> configuration, Set<String> managedDomains,
+                                       Specification specification) {
+        String providerId = configuration.get(PROVIDER);
+        if (providerId == null) {
+            throw new IllegalArgumentException("Missing configuration: " + PROVIDER);
+        }
+        String count = configuration.get(COUNT);
+        if (count == null) {
+            throw new IllegalArgumentException("Missing configuration: " + COUNT);
+        }
+        ShardMap shardMap = ShardMap.parse(Integer.parseInt(count), configuration.get(MAP));
+        PersistenceInitializer shardInitializer = findInitializer(providerId);
+        List<RxPersistence> shards = new ArrayList<>();
+        for (int shard = 0; shard < shardMap.shardCount(); shard++) {
+            shards.add(provider(shardInitializer.initialize(defaultNamespace,
+                    overridden(configuration, SHARD_PREFIX + shard + "."), managedDomains, specification)));
+        }
+        String capacity = configuration.get(FRAGMENT_CAPACITY);
+        return new RxJsonPersistenceBridge(new ShardedRxPersistence(shards, shardMap),
+                capacity == null ? DEFAULT_FRAGMENT_CAPACITY : Integer.parseInt(capacity));
+    }
+
+    /**
+     * The initializer of another provider, that is not a routing provider.
+     */
+    static PersistenceInitializer findInitializer(String providerId) {
+        if ("sharded".equals(providerId) || "replicated".equals(providerId)) {
+            throw new IllegalArgumentException("Cannot route to provider: " + providerId);
+        }
+        for (PersistenceInitializer initializer : ServiceLoader.load(PersistenceInitializer.class)) {
+            if (providerId.equals(initializer.persistenceProviderId())) {
+                return initializer;
+            }
+        }
+        throw new IllegalArgumentException("No persistence provider with id: " + providerId);
+    }
+
+    /**
+     * The RxPersistence behind a persistence that was initialized by another provider.
+     */
+    static RxPersistence provider(RxJsonPersistence persistence) {
+        if (!(persistence instanceof RxJsonPersistenceBridge)) {
+            throw new IllegalArgumentException("Persistence is not bridged from an RxPersistence and cannot be routed to: " + persistence);
+        }
+        return ((RxJsonPersistenceBridge) persistence).provider();
+    }
+
+    /**
+     * The configuration where keys with the prefix override the same keys without the prefix.
+     */
+    static Map<String, String> overridden(Map<String, String> configuration, String prefix) {
+        Map<String, String> result = new HashMap<>(configuration);
+        for (Map.Entry<String, String> entry : configuration.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                result.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,281 @@
+package no.ssb.lds.api.persistence.routing;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.reactivex.PersistenceCapability;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxMergeTools;
+import no.ssb.lds.api.persistence.reactivex.RxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * An {@link RxPersistence} that spreads documents over several providers, the shards, as decided by a
+ * {@link ShardMap}. Operations on one document go to the shard that holds it. Scans and finds go to every shard that
+ * may hold documents of the entity, and are merged in range order when the shards return their documents in range
+ * order, see {@link PersistenceCapability#ORDERED_SCANS}.
+ * <p>
+ * Transactions span all shards they use, but are committed per shard, see {@link ShardedTransaction}. Reads of
+ * different shards are not from one consistent snapshot.
+ */
+public class ShardedRxPersistence implements RxPersistence {
+
+    static final int MERGE_PREFETCH = 128;
+
+    private final List<RxPersistence> shards;
+    private final ShardMap shardMap;
+    private final Set<PersistenceCapability> capabilities;
+    private final TransactionFactory transactionFactory = new ShardedTransactionFactory();
+
+    public ShardedRxPersistence(List<? extends RxPersistence> shards, ShardMap shardMap) {
+        if (shards.size() != shardMap.shardCount()) {
+            throw new IllegalArgumentException("Expected " + shardMap.shardCount() + " shards, got " + shards.size());
+        }
+        this.shards = List.copyOf(shards);
+        this.shardMap = shardMap;
+        // A guarantee of the router is a guarantee of all shards.
+        Set<PersistenceCapability> common = EnumSet.allOf(PersistenceCapability.class);
+        for (RxPersistence shard : shards) {
+            common.retainAll(shard.capabilities());
+        }
+        if (!common.contains(PersistenceCapability.ORDERED_SCANS)) {
+            // Limits of scans that are not merged in order cannot be applied across shards.
+            common.remove(PersistenceCapability.LIMIT_PUSH_DOWN);
+        }
+        this.capabilities = Collections.unmodifiableSet(common);
+    }
+
+    RxPersistence shard(int shard) {
+        return shards.get(shard);
+    }
+
+    static ShardedTransaction sharded(Transaction tx) {
+        if (!(tx instanceof ShardedTransaction)) {
+            throw new IllegalArgumentException("Not a transaction of this persistence: " + tx);
+        }
+        return (ShardedTransaction) tx;
+    }
+
+    @Override
+    public Set<PersistenceCapability> capabilities() {
+        return capabilities;
+    }
+
+    @Override
+    public TransactionFactory transactionFactory() throws PersistenceException {
+        return transactionFactory;
+    }
+
+    @Override
+    public ShardedTransaction createTransaction(boolean readOnly) throws PersistenceException {
+        return new ShardedTransaction(this, readOnly, shards.size());
+    }
+
+    @Override
+    public Completable createOrOverwrite(Transaction tx, Flowable<Fragment> fragments) {
+        ShardedTransaction transaction = sharded(tx);
+        return fragments
+                .filter(fragment -> !fragment.isStreamingControl())
+                .groupBy(fragment -> shardMap.shardOf(fragment.namespace(), fragment.entity(), fragment.id()))
+                .flatMapCompletable(group -> shards.get(group.getKey()).createOrOverwrite(transaction.on(group.getKey()), group));
+    }
+
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String id) {
+        int shard = shardMap.shardOf(namespace, entity, id);
+        return Flowable.defer(() -> shards.get(shard).read(sharded(tx).on(shard), snapshot, namespace, entity, id));
+    }
+
+    /**
+     * Reads the ids of each shard with one call to the shard. If the shards read ids in order, see
+     * {@link PersistenceCapability#MULTI_GET}, the documents of the shards are merged in the order of the ids.
+     */
+    @Override
+    public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Iterable<String> ids) {
+        return Flowable.defer(() -> {
+            ShardedTransaction transaction = sharded(tx);
+            Map<Integer, List<String>> idsByShard = new LinkedHashMap<>();
+            Map<String, Integer> positions = new HashMap<>();
+            for (String id : ids) {
+                idsByShard.computeIfAbsent(shardMap.shardOf(namespace, entity, id), shard -> new ArrayList<>()).add(id);
+                positions.putIfAbsent(id, positions.size());
+            }
+            List<Flowable<Fragment>> sources = new ArrayList<>();
+            for (Map.Entry<Integer, List<String>> entry : idsByShard.entrySet()) {
+                int shard = entry.getKey();
+                sources.add(shards.get(shard).read(transaction.on(shard), snapshot, namespace, entity, entry.getValue()));
+            }
+            if (capabilities.contains(PersistenceCapability.MULTI_GET)) {
+                return RxMergeTools.mergeOrdered(sources, Comparator.comparing((Fragment fragment) -> positions.get(fragment.id())), MERGE_PREFETCH);
+            }
+            return Flowable.concat(sources);
+        });
+    }
+
+    @Override
+    public Flowable<Fragment> readVersions(Transaction tx, String namespace, String entity, String id, Range<ZonedDateTime> range) {
+        int shard = shardMap.shardOf(namespace, entity, id);
+        return Flowable.defer(() -> shards.get(shard).readVersions(sharded(tx).on(shard), namespace, entity, id, range));
+    }
+
+    @Override
+    public Completable delete(Transaction tx, String namespace, String entity, String id, ZonedDateTime version,
+                              PersistenceDeletePolicy policy) {
+        int shard = shardMap.shardOf(namespace, entity, id);
+        return Completable.defer(() -> shards.get(shard).delete(sharded(tx).on(shard), namespace, entity, id, version, policy));
+    }
+
+    @Override
+    public Completable deleteAllVersions(Transaction tx, String namespace, String entity, String id,
+                                         PersistenceDeletePolicy policy) {
+        int shard = shardMap.shardOf(namespace, entity, id);
+        return Completable.defer(() -> shards.get(shard).deleteAllVersions(sharded(tx).on(shard), namespace, entity, id, policy));
+    }
+
+    @Override
+    public Completable deleteAllEntities(Transaction tx, String namespace, String entity, Iterable<String> paths) {
+        return Completable.defer(() -> {
+            ShardedTransaction transaction = sharded(tx);
+            List<Completable> deletes = new ArrayList<>();
+            for (int shard : shardMap.shardsOf(namespace, entity)) {
+                deletes.add(shards.get(shard).deleteAllEntities(transaction.on(shard), namespace, entity, paths));
+            }
+            return Completable.concat(deletes);
+        });
+    }
+
+    @Override
+    public Completable markDeleted(Transaction tx, String namespace, String entity, String id, ZonedDateTime version,
+                                   PersistenceDeletePolicy policy) {
+        int shard = shardMap.shardOf(namespace, entity, id);
+        return Completable.defer(() -> shards.get(shard).markDeleted(sharded(tx).on(shard), namespace, entity, id, version, policy));
+    }
+
+    @Override
+    public Flowable<Fragment> readAll(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Range<String> range) {
+        return scan(tx, namespace, entity, range, (shard, shardTx) -> shard.readAll(shardTx, snapshot, namespace, entity, range));
+    }
+
+    @Override
+    public Flowable<Fragment> find(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String path,
+                                   byte[] value, Range<String> range) {
+        return scan(tx, namespace, entity, range, (shard, shardTx) -> shard.find(shardTx, snapshot, namespace, entity, path, value, range));
+    }
+
+    /**
+     * Run a scan on every shard of the entity. If the shards return documents in range order the results are merged
+     * in range order, and the limit of the range is applied to the merged documents. Otherwise the results are
+     * concatenated, and the caller sorts and limits them.
+     */
+    private Flowable<Fragment> scan(Transaction tx, String namespace, String entity, Range<String> range,
+                                    ShardScan scan) {
+        return Flowable.defer(() -> {
+            ShardedTransaction transaction = sharded(tx);
+            List<Flowable<Fragment>> sources = new ArrayList<>();
+            for (int shard : shardMap.shardsOf(namespace, entity)) {
+                sources.add(scan.apply(shards.get(shard), transaction.on(shard)));
+            }
+            boolean ordered = capabilities.contains(PersistenceCapability.ORDERED_SCANS)
+                    && (!range.isBackward() || capabilities.contains(PersistenceCapability.REVERSE_SCANS));
+            if (!ordered) {
+                return Flowable.concat(sources);
+            }
+            Comparator<Fragment> byId = Comparator.comparing(Fragment::id);
+            Flowable<Fragment> merged = RxMergeTools.mergeOrdered(sources, range.isBackward() ? byId.reversed() : byId, MERGE_PREFETCH);
+            if (range.isLimited() && capabilities.contains(PersistenceCapability.LIMIT_PUSH_DOWN)) {
+                merged = takeDocuments(merged, range.getLimit(), Fragment::id);
+            }
+            return merged;
+        });
+    }
+
+    /**
+     * The fragments of the first documents of a flow where the fragments of each document follow one another.
+     */
+    static <K> Flowable<Fragment> takeDocuments(Flowable<Fragment> fragments, int limit, Function<Fragment, K> documentKey) {
+        return Flowable.defer(() -> {
+            List<K> current = new ArrayList<>(1);
+            int[] documents = {0};
+            return fragments.takeWhile(fragment -> {
+                K key = documentKey.apply(fragment);
+                if (current.isEmpty() || !current.get(0).equals(key)) {
+                    current.clear();
+                    current.add(key);
+                    documents[0]++;
+                }
+                return documents[0] <= limit;
+            });
+        });
+    }
+
+    @Override
+    public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return anyShard(tx, namespace, entityName, (shard, shardTx) -> shard.hasPrevious(shardTx, snapshot, namespace, entityName, id));
+    }
+
+    @Override
+    public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName, String id) {
+        return anyShard(tx, namespace, entityName, (shard, shardTx) -> shard.hasNext(shardTx, snapshot, namespace, entityName, id));
+    }
+
+    private Single<Boolean> anyShard(Transaction tx, String namespace, String entity,
+                                     BiFunction<RxPersistence, Transaction, Single<Boolean>> query) {
+        return Single.defer(() -> {
+            ShardedTransaction transaction = sharded(tx);
+            List<Single<Boolean>> queries = new ArrayList<>();
+            for (int shard : shardMap.shardsOf(namespace, entity)) {
+                queries.add(query.apply(shards.get(shard), transaction.on(shard)));
+            }
+            return Single.concat(queries).any(found -> found);
+        });
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        PersistenceException failure = null;
+        for (RxPersistence shard : shards) {
+            try {
+                shard.close();
+            } catch (PersistenceException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    interface ShardScan {
+        Flowable<Fragment> apply(RxPersistence shard, Transaction transaction);
+    }
+
+    class ShardedTransactionFactory implements TransactionFactory {
+
+        @Override
+        public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+            return ShardedRxPersistence.this.createTransaction(readOnly);
+        }
+
+        @Override
+        public void close() {
+            ShardedRxPersistence.this.close();
+        }
+    }
+}
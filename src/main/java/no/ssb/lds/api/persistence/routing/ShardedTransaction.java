@@ -0,0 +1,75 @@
+package no.ssb.lds.api.persistence.routing;
+
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A transaction of the {@link ShardedRxPersistence}, holding one transaction per shard that is used, created when
+ * the shard is first used.
+ * <p>
+ * Commit commits the transaction of every shard. There is no two-phase commit, so if the commit of one shard fails
+ * the commits of the other shards may still have succeeded.
+ */
+public class ShardedTransaction implements Transaction {
+
+    final ShardedRxPersistence persistence;
+    final boolean readOnly;
+
+    private final Transaction[] transactions;
+    private CompletableFuture<TransactionStatistics> result;
+
+    ShardedTransaction(ShardedRxPersistence persistence, boolean readOnly, int shardCount) {
+        this.persistence = persistence;
+        this.readOnly = readOnly;
+        this.transactions = new Transaction[shardCount];
+    }
+
+    /**
+     * The transaction of the shard.
+     */
+    synchronized Transaction on(int shard) {
+        if (result != null) {
+            throw new IllegalStateException("Transaction is already completed");
+        }
+        if (transactions[shard] == null) {
+            transactions[shard] = persistence.shard(shard).createTransaction(readOnly);
+        }
+        return transactions[shard];
+    }
+
+    @Override
+    public synchronized CompletableFuture<TransactionStatistics> commit() {
+        if (result == null) {
+            result = complete(true);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized CompletableFuture<TransactionStatistics> cancel() {
+        if (result == null) {
+            result = complete(false);
+        }
+        return result;
+    }
+
+    private CompletableFuture<TransactionStatistics> complete(boolean commit) {
+        List<CompletableFuture<TransactionStatistics>> futures = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            if (transaction != null) {
+                futures.add(commit ? transaction.commit() : transaction.cancel());
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).thenApply(v -> {
+            TransactionStatistics statistics = new TransactionStatistics();
+            for (CompletableFuture<TransactionStatistics> future : futures) {
+                statistics.addAll(future.join());
+            }
+            return statistics;
+        });
+    }
+}
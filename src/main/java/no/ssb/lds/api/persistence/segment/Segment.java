@@ -0,0 +1,201 @@
+package no.ssb.lds.api.persistence.segment;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A segment file of pre-allocated size that is memory-mapped in its entirety. Records are appended to the mapping
+ * and read through read-only views of it. Each record is written as
+ * <pre>
+ *     int length | int crc32 | byte type | payload
+ * </pre>
+ * where the length counts the type and the payload, and the checksum covers the same bytes. A zero length marks the
+ * end of the written part of the file, a record that does not fit the file or fails the checksum marks a torn write.
+ */
+class Segment implements AutoCloseable {
+
+    static final int HEADER_BYTES = 8;
+
+    final long number;
+    final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int position;
+    private boolean uncommitted;
+
+    private Segment(long number, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.number = number;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Open an existing segment file, or create it with the given size.
+     */
+    static Segment open(Path directory, long number, int size) {
+        Path path = directory.resolve(fileName(number));
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long fileSize = Math.max(channel.size(), size);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            return new Segment(number, path, channel, buffer);
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    static String fileName(long number) {
+        return String.format("%020d.segment", number);
+    }
+
+    static long numberOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    int position() {
+        return position;
+    }
+
+    int remaining() {
+        return buffer.capacity() - position;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @return the offset of the record.
+     */
+    int append(byte type, byte[] payload) {
+        int length = 1 + payload.length;
+        if (HEADER_BYTES + length > remaining()) {
+            throw new IllegalStateException("Record of " + length + " bytes does not fit in segment " + number);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.putInt(length);
+        view.putInt((int) crc.getValue());
+        view.put(type);
+        view.put(payload);
+        int offset = position;
+        position += HEADER_BYTES + length;
+        uncommitted = type != SegmentRecords.COMMIT;
+        return offset;
+    }
+
+    /**
+     * @return true if records were appended after the last commit record.
+     */
+    boolean uncommitted() {
+        return uncommitted;
+    }
+
+    /**
+     * Write appended records to the storage device.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * A read-only view of the payload of the record at the given offset.
+     */
+    ByteBuffer payload(int offset) {
+        int length = buffer.getInt(offset);
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position(offset + HEADER_BYTES + 1);
+        view.limit(offset + HEADER_BYTES + length);
+        return view.slice();
+    }
+
+    byte type(int offset) {
+        return buffer.get(offset + HEADER_BYTES);
+    }
+
+    /**
+     * Find the end of the records that are intact, and continue appending from there.
+     *
+     * @param visitor called with the offset of every intact record, in order.
+     * @return the number of bytes of intact records.
+     */
+    int recover(RecordVisitor visitor) {
+        uncommitted = false;
+        int offset = 0;
+        while (offset + HEADER_BYTES < buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + (long) length > buffer.capacity()) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer record = buffer.asReadOnlyBuffer();
+            record.position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length);
+            crc.update(record);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            visitor.visit(this, offset);
+            offset += HEADER_BYTES + length;
+        }
+        truncate(offset, offset + HEADER_BYTES);
+        return offset;
+    }
+
+    /**
+     * Discard the records from the given offset, and continue appending from there.
+     *
+     * @param end the end of the records that are discarded.
+     */
+    void truncate(int offset, int end) {
+        for (int i = offset; i < Math.min(buffer.capacity(), end); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        position = offset;
+        uncommitted = false;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Close and remove the file. Views that were handed out remain readable until they are garbage collected.
+     */
+    void delete() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Segment{" + path + ", position=" + position + '}';
+    }
+
+    interface RecordVisitor {
+        void visit(Segment segment, int offset);
+    }
+}
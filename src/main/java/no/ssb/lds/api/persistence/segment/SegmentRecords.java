@@ -0,0 +1,163 @@
+package no.ssb.lds.api.persistence.segment;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.memory.Mutation;
+import no.ssb.lds.api.persistence.memory.MutationCodec;
+import no.ssb.lds.api.persistence.memory.VersionKey;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Encoding of mutations as segment records. Put and remove records hold a mutation encoded by the
+ * {@link MutationCodec}, a commit record is empty.
+ */
+class SegmentRecords {
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte COMMIT = 3;
+
+    static final byte[] EMPTY = new byte[0];
+
+    static byte[] encodePut(Mutation.Put put) {
+        return encode(out -> MutationCodec.writePut(out, put));
+    }
+
+    static byte[] encodeRemove(Mutation.Remove remove) {
+        return encode(out -> MutationCodec.writeRemove(out, remove));
+    }
+
+    /**
+     * Decode the put record at the offset, with fragments that are decoded from the segment when they are iterated.
+     */
+    static Mutation.Put decodePut(Segment segment, int offset) {
+        ByteBuffer payload = segment.payload(offset);
+        int count = payload.getInt(0);
+        boolean deleteMarker = payload.get(4) != 0;
+        payload.position(5);
+        SegmentDocument document = new SegmentDocument(segment, payload.slice(), count);
+        return Mutation.put(VersionKey.of(document.get(0)), document, deleteMarker);
+    }
+
+    static Mutation.Remove decodeRemove(Segment segment, int offset) {
+        try {
+            return MutationCodec.readRemove(new DataInputStream(new ByteBufferInputStream(segment.payload(offset))));
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    private static byte[] encode(Encoder encoder) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            encoder.encode(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    private interface Encoder {
+        void encode(DataOutput out) throws IOException;
+    }
+
+    /**
+     * The fragments of a document version in a segment, decoded on every iteration rather than held on the heap.
+     */
+    static class SegmentDocument extends AbstractList<Fragment> {
+        final Segment segment;
+        final ByteBuffer fragments;
+        final int size;
+
+        SegmentDocument(Segment segment, ByteBuffer fragments, int size) {
+            this.segment = segment;
+            this.fragments = fragments;
+            this.size = size;
+        }
+
+        @Override
+        public Fragment get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            Iterator<Fragment> iterator = iterator();
+            for (int i = 0; i < index; i++) {
+                iterator.next();
+            }
+            return iterator.next();
+        }
+
+        @Override
+        public Iterator<Fragment> iterator() {
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(fragments.duplicate()));
+            return new Iterator<>() {
+                int decoded;
+
+                @Override
+                public boolean hasNext() {
+                    return decoded < size;
+                }
+
+                @Override
+                public Fragment next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    try {
+                        Fragment fragment = FragmentCodec.decode(in);
+                        decoded++;
+                        return fragment;
+                    } catch (IOException e) {
+                        throw new PersistenceException(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    static class ByteBufferInputStream extends InputStream {
+        final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
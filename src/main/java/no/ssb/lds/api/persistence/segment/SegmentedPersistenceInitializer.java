@@ -0,0 +1,52 @@
+package no.ssb.lds.api.persistence.segment;
+
+import no.ssb.lds.api.persistence.PersistenceInitializer;
+import no.ssb.lds.api.persistence.ProviderName;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import no.ssb.lds.api.specification.Specification;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+
+@ProviderName("segment")
+public class SegmentedPersistenceInitializer implements PersistenceInitializer {
+
+    public static final String DIRECTORY = "persistence.segment.directory";
+    public static final String SEGMENT_SIZE = "persistence.segment.size";
+    public static final String FRAGMENT_CAPACITY = "persistence.fragment.capacity";
+    public static final String COMPACTION_INTERVAL_SECONDS = "persistence.segment.compaction.interval.seconds";
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final int DEFAULT_FRAGMENT_CAPACITY = 8 * 1024;
+
+    @Override
+    public String persistenceProviderId() {
+        return "segment";
+    }
+
+    @Override
+    public Set<String> configurationKeys() {
+        return Set.of(DIRECTORY, SEGMENT_SIZE, FRAGMENT_CAPACITY, COMPACTION_INTERVAL_SECONDS);
+    }
+
+    @Override
+    public RxJsonPersistence initialize(String defaultNamespace, Map<String, String> configuration, Set<String> managedDomains,
+                                       Specification specification) {
+        String directory = configuration.get(DIRECTORY);
+        if (directory == null) {
+            throw new IllegalArgumentException("Missing configuration: " + DIRECTORY);
+        }
+        String segmentSize = configuration.get(SEGMENT_SIZE);
+        String capacity = configuration.get(FRAGMENT_CAPACITY);
+        String interval = configuration.get(COMPACTION_INTERVAL_SECONDS);
+        SegmentedRxPersistence persistence = new SegmentedRxPersistence(
+                Path.of(directory),
+                segmentSize == null ? DEFAULT_SEGMENT_SIZE : Integer.parseInt(segmentSize),
+                interval == null ? null : Duration.ofSeconds(Long.parseLong(interval))
+        );
+        return new RxJsonPersistenceBridge(persistence, capacity == null ? DEFAULT_FRAGMENT_CAPACITY : Integer.parseInt(capacity));
+    }
+}
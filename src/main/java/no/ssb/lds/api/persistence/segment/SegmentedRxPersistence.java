@@ -0,0 +1,248 @@
+package no.ssb.lds.api.persistence.segment;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.persistence.memory.Mutation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An embedded, single-node, durable {@link no.ssb.lds.api.persistence.reactivex.RxPersistence} that appends the
+ * fragments of every commit to memory-mapped segment files.
+ * <p>
+ * The sorted index of document versions, with its MVCC records, is the one of {@link InMemoryRxPersistence}, but the
+ * index only holds the location of each version in a segment. Fragments are decoded from the mapping when they are
+ * read, so the index is sparse with regards to fragments and the heap does not grow with the size of the documents.
+ * <p>
+ * A commit appends one record per mutation followed by a commit record, then forces the segment to the storage
+ * device before the mutations become visible. When the active segment is full a new one is started. On startup all
+ * segments are replayed in order, and records after the last commit record of a segment are discarded.
+ * <p>
+ * Compaction copies the versions that are still alive in the full segments to the active segment and deletes the
+ * full segments. It runs in the background at the configured interval, or when {@link #compact()} is called.
+ */
+public class SegmentedRxPersistence extends InMemoryRxPersistence {
+
+    public static final TransactionStatistics.Histogram COMMIT_BYTES = TransactionStatistics.histogram("segment.commit.bytes");
+
+    static final int COMMIT_RECORD_BYTES = Segment.HEADER_BYTES + 1;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final TransactionStatistics statistics = new TransactionStatistics();
+    private final ScheduledExecutorService compactor;
+
+    // Guards the segments. Taken under the commit lock by commits, so it must not be held when taking the commit lock.
+    private final Object segmentLock = new Object();
+    private final List<Segment> fullSegments = new ArrayList<>();
+    private Segment activeSegment;
+
+    /**
+     * @param directory          where segment files are kept.
+     * @param segmentSize        the size of new segment files in bytes, larger commits get a segment of their own.
+     * @param compactionInterval how often to compact in the background, or null to only compact on request.
+     */
+    public SegmentedRxPersistence(Path directory, int segmentSize, Duration compactionInterval) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+        recover();
+        if (compactionInterval != null) {
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "segment-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compactSegments, compactionInterval.toMillis(),
+                    compactionInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            compactor = null;
+        }
+    }
+
+    private void recover() {
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(path -> path.getFileName().toString().endsWith(".segment"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+        synchronized (segmentLock) {
+            for (Path path : paths) {
+                if (activeSegment != null) {
+                    fullSegments.add(activeSegment);
+                }
+                activeSegment = Segment.open(directory, Segment.numberOf(path), segmentSize);
+                List<Mutation> pending = new ArrayList<>();
+                int[] committedEnd = {0};
+                int intactEnd = activeSegment.recover((segment, offset) -> {
+                    switch (segment.type(offset)) {
+                        case SegmentRecords.PUT:
+                            pending.add(SegmentRecords.decodePut(segment, offset));
+                            break;
+                        case SegmentRecords.REMOVE:
+                            pending.add(SegmentRecords.decodeRemove(segment, offset));
+                            break;
+                        case SegmentRecords.COMMIT:
+                            apply(new ArrayList<>(pending));
+                            pending.clear();
+                            committedEnd[0] = offset + COMMIT_RECORD_BYTES;
+                            break;
+                        default:
+                            throw new PersistenceException("Unknown record type " + segment.type(offset) + " in " + segment);
+                    }
+                });
+                // Only the last segment can end with a commit that was not completed, continue appending where the
+                // last complete commit ended.
+                activeSegment.truncate(committedEnd[0], intactEnd);
+            }
+            if (activeSegment == null) {
+                activeSegment = Segment.open(directory, 0, segmentSize);
+            }
+        }
+    }
+
+    @Override
+    protected CompletableFuture<Void> commit(List<Mutation> mutations) {
+        List<byte[]> payloads = new ArrayList<>(mutations.size());
+        long bytes = COMMIT_RECORD_BYTES;
+        for (Mutation mutation : mutations) {
+            byte[] payload = mutation instanceof Mutation.Put
+                    ? SegmentRecords.encodePut((Mutation.Put) mutation)
+                    : SegmentRecords.encodeRemove((Mutation.Remove) mutation);
+            payloads.add(payload);
+            bytes += Segment.HEADER_BYTES + 1 + payload.length;
+        }
+        List<Mutation> stored = new ArrayList<>(mutations.size());
+        synchronized (segmentLock) {
+            Segment segment = segmentWithRoomFor(bytes);
+            for (int i = 0; i < payloads.size(); i++) {
+                if (mutations.get(i) instanceof Mutation.Put) {
+                    int offset = segment.append(SegmentRecords.PUT, payloads.get(i));
+                    stored.add(SegmentRecords.decodePut(segment, offset));
+                } else {
+                    segment.append(SegmentRecords.REMOVE, payloads.get(i));
+                    stored.add(mutations.get(i));
+                }
+            }
+            segment.append(SegmentRecords.COMMIT, SegmentRecords.EMPTY);
+            segment.force();
+        }
+        statistics.record(COMMIT_BYTES, bytes);
+        apply(stored);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * The active segment if the records fit, or else a new active segment. Room for a commit record is always kept,
+     * so that records copied by compaction can be committed before the segment is left.
+     */
+    private Segment segmentWithRoomFor(long bytes) {
+        if (bytes + COMMIT_RECORD_BYTES > Integer.MAX_VALUE) {
+            throw new PersistenceException("Commit of " + bytes + " bytes is too large for a segment");
+        }
+        if (activeSegment.remaining() < bytes + COMMIT_RECORD_BYTES) {
+            if (activeSegment.uncommitted()) {
+                activeSegment.append(SegmentRecords.COMMIT, SegmentRecords.EMPTY);
+            }
+            activeSegment.force();
+            fullSegments.add(activeSegment);
+            activeSegment = Segment.open(directory, activeSegment.number + 1, (int) Math.max(segmentSize, bytes + COMMIT_RECORD_BYTES));
+        }
+        return activeSegment;
+    }
+
+    /**
+     * Prune the index, then copy the versions that are still alive in full segments to the active segment and delete
+     * the full segments. Commits wait while versions are copied, reads are not affected.
+     */
+    @Override
+    public void compact() {
+        super.compact();
+        compactSegments();
+    }
+
+    private void compactSegments() {
+        Set<Segment> compacted;
+        synchronized (segmentLock) {
+            // All full segments are compacted together, so that no remove record is deleted before the records it
+            // removes.
+            compacted = new HashSet<>(fullSegments);
+        }
+        if (compacted.isEmpty()) {
+            return;
+        }
+        rewrite((key, fragments) -> {
+            if (!(fragments instanceof SegmentRecords.SegmentDocument)
+                    || !compacted.contains(((SegmentRecords.SegmentDocument) fragments).segment)) {
+                return fragments;
+            }
+            byte[] payload = SegmentRecords.encodePut(Mutation.put(key, fragments));
+            synchronized (segmentLock) {
+                Segment segment = segmentWithRoomFor(Segment.HEADER_BYTES + 1 + payload.length);
+                int offset = segment.append(SegmentRecords.PUT, payload);
+                return SegmentRecords.decodePut(segment, offset).fragments();
+            }
+        });
+        synchronized (segmentLock) {
+            if (activeSegment.uncommitted()) {
+                activeSegment.append(SegmentRecords.COMMIT, SegmentRecords.EMPTY);
+            }
+            activeSegment.force();
+            for (Segment segment : compacted) {
+                fullSegments.remove(segment);
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * The number of segment files, including the active segment.
+     */
+    public int segmentCount() {
+        synchronized (segmentLock) {
+            return fullSegments.size() + 1;
+        }
+    }
+
+    /**
+     * Statistics of this persistence: the number of bytes written per commit.
+     */
+    public TransactionStatistics statistics() {
+        return statistics;
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        super.close();
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        synchronized (segmentLock) {
+            for (Segment segment : fullSegments) {
+                segment.close();
+            }
+            activeSegment.close();
+        }
+    }
+}
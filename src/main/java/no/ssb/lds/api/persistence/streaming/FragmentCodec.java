@@ -0,0 +1,95 @@
+package no.ssb.lds.api.persistence.streaming;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+
+/**
+ * Compact binary format for fragments, used when fragments are temporarily stored outside the heap.
+ */
+public class FragmentCodec {
+
+    private static final byte STREAMING_CONTROL_FLAG = 1;
+    private static final byte NO_FRAGMENT_TYPE = -1;
+
+    /**
+     * Fixed overhead of a fragment instance including its timestamp and the headers of its strings and value array.
+     */
+    private static final int FRAGMENT_OVERHEAD_BYTES = 160;
+
+    public static void encode(DataOutput out, Fragment fragment) throws IOException {
+        out.writeByte(fragment.isStreamingControl() ? STREAMING_CONTROL_FLAG : 0);
+        if (fragment.isStreamingControl()) {
+            out.writeShort(fragment.isLimited() ? Fragment.LIMITED_CODE : Fragment.NOT_LIMITED_CODE);
+        }
+        writeNullableString(out, fragment.namespace());
+        writeNullableString(out, fragment.entity());
+        writeNullableString(out, fragment.id());
+        writeNullableString(out, fragment.timestamp() == null ? null : fragment.timestamp().toString());
+        writeNullableString(out, fragment.path());
+        out.writeByte(fragment.fragmentType() == null ? NO_FRAGMENT_TYPE : fragment.fragmentType().getTypeCode());
+        out.writeLong(fragment.offset());
+        byte[] value = fragment.value();
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    public static Fragment decode(DataInput in) throws IOException {
+        boolean streamingControl = (in.readByte() & STREAMING_CONTROL_FLAG) != 0;
+        short controlCode = streamingControl ? in.readShort() : 0;
+        String namespace = readNullableString(in);
+        String entity = readNullableString(in);
+        String id = readNullableString(in);
+        String timestamp = readNullableString(in);
+        String path = readNullableString(in);
+        byte typeCode = in.readByte();
+        long offset = in.readLong();
+        int valueLength = in.readInt();
+        byte[] value = null;
+        if (valueLength >= 0) {
+            value = new byte[valueLength];
+            in.readFully(value);
+        }
+        return new Fragment(streamingControl, controlCode, namespace, entity, id,
+                timestamp == null ? null : ZonedDateTime.parse(timestamp), path,
+                typeCode == NO_FRAGMENT_TYPE ? null : FragmentType.fromTypeCode(typeCode), offset, value);
+    }
+
+    /**
+     * Estimate the number of heap bytes retained by the given fragment.
+     */
+    public static long estimateHeapSize(Fragment fragment) {
+        long size = FRAGMENT_OVERHEAD_BYTES;
+        size += lengthOf(fragment.namespace());
+        size += lengthOf(fragment.entity());
+        size += lengthOf(fragment.id());
+        size += lengthOf(fragment.path());
+        if (fragment.value() != null) {
+            size += fragment.value().length;
+        }
+        return size;
+    }
+
+    private static long lengthOf(String str) {
+        return str == null ? 0 : str.length();
+    }
+
+    private static void writeNullableString(DataOutput out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return in.readUTF();
+    }
+}
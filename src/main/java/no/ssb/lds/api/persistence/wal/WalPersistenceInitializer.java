@@ -0,0 +1,46 @@
+package no.ssb.lds.api.persistence.wal;
+
+import no.ssb.lds.api.persistence.PersistenceInitializer;
+import no.ssb.lds.api.persistence.ProviderName;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import no.ssb.lds.api.specification.Specification;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+
+@ProviderName("wal")
+public class WalPersistenceInitializer implements PersistenceInitializer {
+
+    public static final String FILE = "persistence.wal.file";
+    public static final String SYNC_DELAY_MILLIS = "persistence.wal.sync.delay.millis";
+    public static final String FRAGMENT_CAPACITY = "persistence.fragment.capacity";
+
+    static final int DEFAULT_FRAGMENT_CAPACITY = 8 * 1024;
+
+    @Override
+    public String persistenceProviderId() {
+        return "wal";
+    }
+
+    @Override
+    public Set<String> configurationKeys() {
+        return Set.of(FILE, SYNC_DELAY_MILLIS, FRAGMENT_CAPACITY);
+    }
+
+    @Override
+    public RxJsonPersistence initialize(String defaultNamespace, Map<String, String> configuration, Set<String> managedDomains,
+                                       Specification specification) {
+        String file = configuration.get(FILE);
+        if (file == null) {
+            throw new IllegalArgumentException("Missing configuration: " + FILE);
+        }
+        String delay = configuration.get(SYNC_DELAY_MILLIS);
+        String capacity = configuration.get(FRAGMENT_CAPACITY);
+        WalRxPersistence persistence = new WalRxPersistence(Path.of(file),
+                delay == null ? Duration.ZERO : Duration.ofMillis(Long.parseLong(delay)));
+        return new RxJsonPersistenceBridge(persistence, capacity == null ? DEFAULT_FRAGMENT_CAPACITY : Integer.parseInt(capacity));
+    }
+}
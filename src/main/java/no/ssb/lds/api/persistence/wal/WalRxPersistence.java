@@ -0,0 +1,109 @@
+package no.ssb.lds.api.persistence.wal;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.persistence.memory.Mutation;
+import no.ssb.lds.api.persistence.memory.MutationCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An {@link InMemoryRxPersistence} that is made durable by a {@link WriteAheadLog}. Every commit is logged as one
+ * entry and becomes visible when the entry is synced, so {@link no.ssb.lds.api.persistence.Transaction#commit()}
+ * completes only for durable commits, and concurrent commits are synced together. The store is rebuilt by replaying
+ * the log on startup.
+ * <p>
+ * An entry is encoded as
+ * <pre>
+ *     int count | (byte PUT | put | byte REMOVE | remove)*
+ * </pre>
+ * where put and remove are encoded by the {@link MutationCodec}.
+ */
+public class WalRxPersistence extends InMemoryRxPersistence {
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+
+    private final WriteAheadLog log;
+
+    /**
+     * @param file         the log file.
+     * @param maxSyncDelay how long to wait for more commits before the log is synced.
+     */
+    public WalRxPersistence(Path file, Duration maxSyncDelay) {
+        this.log = WriteAheadLog.open(file, maxSyncDelay, entry -> apply(decode(entry)));
+    }
+
+    @Override
+    protected CompletableFuture<Void> commit(List<Mutation> mutations) {
+        return log.append(encode(mutations), () -> apply(mutations));
+    }
+
+    static byte[] encode(List<Mutation> mutations) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(mutations.size());
+            for (Mutation mutation : mutations) {
+                if (mutation instanceof Mutation.Put) {
+                    out.writeByte(PUT);
+                    MutationCodec.writePut(out, (Mutation.Put) mutation);
+                } else {
+                    out.writeByte(REMOVE);
+                    MutationCodec.writeRemove(out, (Mutation.Remove) mutation);
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    static List<Mutation> decode(byte[] entry) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+            int count = in.readInt();
+            List<Mutation> mutations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                switch (type) {
+                    case PUT:
+                        mutations.add(MutationCodec.readPut(in));
+                        break;
+                    case REMOVE:
+                        mutations.add(MutationCodec.readRemove(in));
+                        break;
+                    default:
+                        throw new PersistenceException("Unknown mutation type " + type + " in write-ahead log entry");
+                }
+            }
+            return mutations;
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Statistics of the write-ahead log, see {@link WriteAheadLog#statistics()}.
+     */
+    public TransactionStatistics statistics() {
+        return log.statistics();
+    }
+
+    @Override
+    public void close() throws PersistenceException {
+        log.close();
+        super.close();
+    }
+}
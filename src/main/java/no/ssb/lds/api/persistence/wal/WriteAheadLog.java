@@ -0,0 +1,282 @@
+package no.ssb.lds.api.persistence.wal;
+
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log for file-backed providers. Each entry is appended to the file as
+ * <pre>
+ *     int length | int crc32 | payload
+ * </pre>
+ * Entries are written and synced by a background thread. Entries that are appended while a sync is in progress are
+ * written and synced together by the next one, so concurrent commits share an fsync rather than queue up for one
+ * each. A provider appends one entry per commit and makes the commit visible in the callback that is run when the
+ * entry is durable. Callbacks are run in the order the entries were appended.
+ * <p>
+ * When the log is opened, all intact entries are replayed in order and a torn tail is truncated.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    public static final TransactionStatistics.Counter SYNCS = TransactionStatistics.counter("wal.syncs");
+    public static final TransactionStatistics.Histogram SYNC_ENTRIES = TransactionStatistics.histogram("wal.sync.entries");
+    public static final TransactionStatistics.Histogram SYNC_BYTES = TransactionStatistics.histogram("wal.sync.bytes");
+    public static final TransactionStatistics.Histogram SYNC_LATENCY_NANOS = TransactionStatistics.histogram("wal.sync.latency.nanos");
+    public static final TransactionStatistics.Histogram COMMIT_LATENCY_NANOS = TransactionStatistics.histogram("wal.commit.latency.nanos");
+    public static final TransactionStatistics.Counter RECOVERED_ENTRIES = TransactionStatistics.counter("wal.recovered.entries");
+    public static final TransactionStatistics.Histogram RECOVERY_NANOS = TransactionStatistics.histogram("wal.recovery.nanos");
+
+    static final int HEADER_BYTES = 8;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Duration maxDelay;
+    private final TransactionStatistics statistics = new TransactionStatistics();
+    private final Thread syncer;
+
+    private final Object lock = new Object();
+    private List<Entry> pending = new ArrayList<>();
+    private boolean closed;
+    private Throwable failure;
+
+    private WriteAheadLog(Path path, FileChannel channel, Duration maxDelay) {
+        this.path = path;
+        this.channel = channel;
+        this.maxDelay = maxDelay;
+        this.syncer = new Thread(this::syncLoop, "wal-sync-" + path.getFileName());
+        this.syncer.setDaemon(true);
+    }
+
+    /**
+     * Open or create a log, and replay its entries.
+     *
+     * @param path     the log file.
+     * @param maxDelay how long to wait for more entries before a sync, zero to sync as soon as the previous sync is
+     *                 done.
+     * @param replay   called with the payload of every intact entry, in order, before this method returns.
+     */
+    public static WriteAheadLog open(Path path, Duration maxDelay, Consumer<byte[]> replay) {
+        if (maxDelay.isNegative()) {
+            throw new IllegalArgumentException("maxDelay cannot be negative: " + maxDelay);
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+        WriteAheadLog log = new WriteAheadLog(path, channel, maxDelay);
+        try {
+            log.replay(replay);
+        } catch (RuntimeException e) {
+            log.closeChannel();
+            throw e;
+        }
+        log.syncer.start();
+        return log;
+    }
+
+    private void replay(Consumer<byte[]> replay) {
+        long start = System.nanoTime();
+        long end = 0;
+        long entries = 0;
+        try {
+            long size = channel.size();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+            while (end + HEADER_BYTES <= size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || end + HEADER_BYTES + length > size) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                replay.accept(payload);
+                entries++;
+                end += HEADER_BYTES + length;
+            }
+        } catch (EOFException e) {
+            // torn tail
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+        try {
+            channel.truncate(end);
+            channel.position(end);
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+        statistics.add(RECOVERED_ENTRIES, entries);
+        statistics.record(RECOVERY_NANOS, System.nanoTime() - start);
+    }
+
+    /**
+     * Append an entry.
+     *
+     * @param payload   the entry.
+     * @param onDurable run when the entry is synced, before the returned future completes.
+     * @return a future that completes when the entry is synced and the callback has run, or fails if the entry could
+     * not be written or the callback failed.
+     */
+    public CompletableFuture<Void> append(byte[] payload, Runnable onDurable) {
+        Entry entry = new Entry(payload, onDurable);
+        synchronized (lock) {
+            if (failure != null) {
+                throw new PersistenceException("Write-ahead log " + path + " failed", failure);
+            }
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log " + path + " is closed");
+            }
+            pending.add(entry);
+            lock.notifyAll();
+        }
+        return entry.durable;
+    }
+
+    private void syncLoop() {
+        while (true) {
+            List<Entry> batch;
+            synchronized (lock) {
+                try {
+                    while (pending.isEmpty() && !closed) {
+                        lock.wait();
+                    }
+                    long deadline = System.nanoTime() + maxDelay.toNanos();
+                    long remaining;
+                    while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (pending.isEmpty()) {
+                    return; // closed
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            sync(batch);
+        }
+    }
+
+    private void sync(List<Entry> batch) {
+        long start = System.nanoTime();
+        int bytes = 0;
+        for (Entry entry : batch) {
+            bytes += HEADER_BYTES + entry.payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        for (Entry entry : batch) {
+            CRC32 crc = new CRC32();
+            crc.update(entry.payload);
+            buffer.putInt(entry.payload.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(entry.payload);
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (Throwable t) {
+            // The state of the file is unknown, so neither these nor later entries can be acknowledged.
+            List<Entry> failed = new ArrayList<>(batch);
+            synchronized (lock) {
+                failure = t;
+                failed.addAll(pending);
+                pending.clear();
+            }
+            for (Entry entry : failed) {
+                entry.durable.completeExceptionally(new PersistenceException("Write-ahead log " + path + " failed", t));
+            }
+            return;
+        }
+        long synced = System.nanoTime();
+        statistics.increment(SYNCS);
+        statistics.record(SYNC_ENTRIES, batch.size());
+        statistics.record(SYNC_BYTES, bytes);
+        statistics.record(SYNC_LATENCY_NANOS, synced - start);
+        for (Entry entry : batch) {
+            Throwable onDurableFailure = null;
+            try {
+                entry.onDurable.run();
+            } catch (Throwable t) {
+                onDurableFailure = t;
+            }
+            // record before completing, so the latency is visible to whoever waits for the entry
+            statistics.record(COMMIT_LATENCY_NANOS, System.nanoTime() - entry.appendedNanos);
+            if (onDurableFailure == null) {
+                entry.durable.complete(null);
+            } else {
+                entry.durable.completeExceptionally(onDurableFailure);
+            }
+        }
+    }
+
+    /**
+     * Statistics of this log: syncs and their sizes and latencies, the latency from append until an entry is
+     * durable, and the number of entries and time spent replaying the log when it was opened.
+     */
+    public TransactionStatistics statistics() {
+        return statistics;
+    }
+
+    /**
+     * Sync the pending entries, then close the file.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    static class Entry {
+        final byte[] payload;
+        final Runnable onDurable;
+        final long appendedNanos = System.nanoTime();
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Entry(byte[] payload, Runnable onDurable) {
+            this.payload = payload;
+            this.onDurable = onDurable;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package no.ssb.lds.api.persistence;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class GroupCommitTransactionFactoryTest {
+
+    private ExecutorService executor;
+    private CountingTransactionFactory physical;
+
+    @BeforeMethod
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        physical = new CountingTransactionFactory();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void thatConcurrentWritesShareOnePhysicalCommit() {
+        GroupCommitTransactionFactory factory = new GroupCommitTransactionFactory(physical, Duration.ofMillis(100), 10, executor);
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int value = i;
+            futures.add(factory.runAsyncInIsolatedTransaction(tx -> value, false));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(futures.get(i).join(), Integer.valueOf(i));
+        }
+        assertEquals(physical.commits.get(), 1);
+        assertEquals(factory.statistics().get(GroupCommitTransactionFactory.GROUP_COMMIT_SIZE).max(), 10);
+    }
+
+    @Test
+    public void thatFailingWorkOnlyFailsItsOwnCaller() {
+        GroupCommitTransactionFactory factory = new GroupCommitTransactionFactory(physical, Duration.ofMillis(50), 100, executor);
+
+        List<CompletableFuture<TransactionStatistics>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            boolean failing = i == 2;
+            futures.add(factory.commitAsync(tx -> {
+                if (failing) {
+                    throw new PersistenceException("failing work");
+                }
+            }));
+        }
+
+        for (int i = 0; i < 5; i++) {
+            try {
+                futures.get(i).join();
+                assertTrue(i != 2);
+            } catch (CompletionException e) {
+                assertEquals(i, 2);
+                assertTrue(e.getCause() instanceof PersistenceException);
+            }
+        }
+        // the group was rolled back, then each work was run alone
+        assertEquals(physical.cancels.get(), 2);
+        assertEquals(physical.commits.get(), 4);
+    }
+
+    @Test
+    public void thatNothingCompletesBeforeThePhysicalCommit() {
+        CompletableFuture<TransactionStatistics> physicalCommit = new CompletableFuture<>();
+        physical.commitResult = physicalCommit;
+        GroupCommitTransactionFactory factory = new GroupCommitTransactionFactory(physical, Duration.ofMillis(10), 2, executor);
+
+        CompletableFuture<TransactionStatistics> first = factory.commitAsync(tx -> {
+        });
+        CompletableFuture<TransactionStatistics> second = factory.commitAsync(tx -> {
+        });
+
+        try {
+            first.get(200, TimeUnit.MILLISECONDS);
+            fail("completed before physical commit");
+        } catch (TimeoutException e) {
+            // expected
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        physicalCommit.complete(new TransactionStatistics());
+        first.join();
+        second.join();
+    }
+
+    static class CountingTransactionFactory implements TransactionFactory {
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger cancels = new AtomicInteger();
+        volatile CompletableFuture<TransactionStatistics> commitResult;
+
+        @Override
+        public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+            return new Transaction() {
+                @Override
+                public CompletableFuture<TransactionStatistics> commit() {
+                    CompletableFuture<TransactionStatistics> result = commitResult;
+                    if (result == null) {
+                        result = CompletableFuture.completedFuture(new TransactionStatistics());
+                    }
+                    return result.thenApply(stats -> {
+                        commits.incrementAndGet();
+                        return stats;
+                    });
+                }
+
+                @Override
+                public CompletableFuture<TransactionStatistics> cancel() {
+                    cancels.incrementAndGet();
+                    return CompletableFuture.completedFuture(new TransactionStatistics());
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
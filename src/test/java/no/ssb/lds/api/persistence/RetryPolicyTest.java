@@ -0,0 +1,99 @@
+package no.ssb.lds.api.persistence;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class RetryPolicyTest {
+
+    private static CompletableFuture<String> failTimes(RetryPolicy policy, AtomicInteger attempts, int failures, RuntimeException failure) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        return policy.<String>run(() -> {
+            if (attempts.incrementAndGet() <= failures) {
+                throw failure;
+            }
+            return "done";
+        }, executor).whenComplete((value, throwable) -> executor.shutdown());
+    }
+
+    @Test
+    public void thatRetryableFailuresAreRetried() {
+        RetryPolicy policy = RetryPolicy.exponentialBackoff(3, Duration.ofMillis(1), Duration.ofMillis(10));
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = failTimes(policy, attempts, 2, new PersistenceException(new RetryablePersistenceException("conflict"))).join();
+
+        assertEquals(result, "done");
+        assertEquals(attempts.get(), 3);
+    }
+
+    @Test
+    public void thatOtherFailuresAreNotRetried() {
+        RetryPolicy policy = RetryPolicy.exponentialBackoff(3, Duration.ofMillis(1), Duration.ofMillis(10));
+        AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            failTimes(policy, attempts, 2, new PersistenceException("broken")).join();
+            fail("expected failure");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof PersistenceException);
+        }
+        assertEquals(attempts.get(), 1);
+    }
+
+    @Test
+    public void thatRetriesAreLimited() {
+        RetryPolicy policy = RetryPolicy.exponentialBackoff(2, Duration.ofMillis(1), Duration.ofMillis(10));
+        AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            failTimes(policy, attempts, 10, new RetryablePersistenceException("conflict")).join();
+            fail("expected failure");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof RetryablePersistenceException);
+        }
+        assertEquals(attempts.get(), 3);
+    }
+
+    @Test
+    public void thatFailedAttemptsAreCancelledAndNotCommitted() {
+        GroupCommitTransactionFactoryTest.CountingTransactionFactory factory = new GroupCommitTransactionFactoryTest.CountingTransactionFactory();
+        RetryPolicy policy = RetryPolicy.exponentialBackoff(3, Duration.ofMillis(1), Duration.ofMillis(10));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            String result = factory.<String>runAsyncInIsolatedTransaction(tx -> {
+                if (attempts.incrementAndGet() <= 2) {
+                    throw new RetryablePersistenceException("conflict");
+                }
+                return "done";
+            }, false, executor, policy).join();
+
+            assertEquals(result, "done");
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(attempts.get(), 3);
+        assertEquals(factory.cancels.get(), 2);
+        assertEquals(factory.commits.get(), 1);
+    }
+
+    @Test
+    public void thatDelayIsJitteredAndBounded() {
+        RetryPolicy policy = RetryPolicy.exponentialBackoff(10, Duration.ofMillis(10), Duration.ofMillis(100));
+        for (int retries = 0; retries < 10; retries++) {
+            long nominal = Math.min(100, 10L << retries);
+            long delay = policy.delayMillis(retries);
+            assertTrue(delay >= nominal / 2 && delay <= nominal, "delay " + delay + " for nominal " + nominal);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package no.ssb.lds.api.persistence;
+
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+public class TransactionStatisticsTest {
+
+    static final TransactionStatistics.Counter WRITES = TransactionStatistics.counter("test.writes");
+
+    @Test
+    public void thatCountersByHandleAndByNameAreTheSame() {
+        TransactionStatistics statistics = new TransactionStatistics();
+        statistics.add(WRITES, 2);
+        statistics.add("test.writes", 3);
+        statistics.increment(WRITES);
+
+        assertSame(TransactionStatistics.counter("test.writes"), WRITES);
+        assertEquals(statistics.get(WRITES), 6);
+        assertEquals(statistics.map().get("test.writes"), Long.valueOf(6));
+    }
+
+    @Test
+    public void thatConcurrentIncrementsAreNotLost() {
+        TransactionStatistics statistics = new TransactionStatistics();
+        TransactionStatistics.Counter counter = TransactionStatistics.counter("test.concurrent");
+        CompletableFuture<?>[] futures = new CompletableFuture[8];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = CompletableFuture.runAsync(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    statistics.increment(counter);
+                }
+            });
+        }
+        CompletableFuture.allOf(futures).join();
+
+        assertEquals(statistics.get(counter), 80000);
+    }
+
+    @Test
+    public void thatHistogramsAreBucketedAndMerged() {
+        TransactionStatistics first = new TransactionStatistics();
+        TransactionStatistics second = new TransactionStatistics();
+        for (int i = 1; i <= 100; i++) {
+            first.record(TransactionStatistics.READ_FRAGMENTS, i);
+        }
+        second.record(TransactionStatistics.READ_FRAGMENTS, 1000);
+        second.add(WRITES, 1);
+
+        TransactionStatistics global = new TransactionStatistics().addAll(first).addAll(second);
+
+        TransactionStatistics.HistogramSnapshot snapshot = global.get(TransactionStatistics.READ_FRAGMENTS);
+        assertEquals(snapshot.count(), 101);
+        assertEquals(snapshot.sum(), 5050 + 1000);
+        assertEquals(snapshot.max(), 1000);
+        assertEquals(snapshot.bucketCount(1), 1); // 1
+        assertEquals(snapshot.bucketCount(7), 37); // 64..100
+        assertEquals(snapshot.percentile(50), 64);
+        assertEquals(snapshot.percentile(100), 1000);
+        Map<String, Long> map = global.map();
+        assertEquals(map.get("read.fragments.count"), Long.valueOf(101));
+        assertEquals(map.get("test.writes"), Long.valueOf(1));
+    }
+}
@@ -4,8 +4,10 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
+import io.reactivex.Flowable;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -15,6 +17,12 @@ import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CoderResult;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
 public class BatchTest {
 
@@ -39,6 +47,132 @@ public class BatchTest {
         testBatch(mapper, json);
     }
 
+    @Test
+    public void thatStreamingBatchReadsSameEntriesAsBatch() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        String json = getResourceAsString("batch/put_cats_and_dogs.json", StandardCharsets.UTF_8);
+        Batch batch = new Batch(mapper.readTree(json));
+
+        List<String> expected = new ArrayList<>();
+        for (Batch.Group group : batch.groups()) {
+            for (Batch.Entry entry : group.entries()) {
+                expected.add(group.type() + "/" + entry.id() + "/" + entry.timestamp() + "/" + entry.dataNode());
+            }
+        }
+
+        List<String> actual = new ArrayList<>();
+        try (StreamingBatch streamingBatch = new StreamingBatch(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))) {
+            StreamingBatch.Group group;
+            while ((group = streamingBatch.nextGroup()) != null) {
+                String type = group.type();
+                group.entries().blockingForEach(entry -> actual.add(type + "/" + entry.id() + "/" + entry.timestamp() + "/" + entry.dataNode()));
+            }
+        }
+        assertEquals(actual, expected);
+    }
+
+    @Test
+    public void thatStreamingBatchSkipsUnconsumedEntriesAndReadsDeleteGroup() throws IOException {
+        String json = "[" + getResourceAsString("batch/put_cats.json", StandardCharsets.UTF_8)
+                + "," + getResourceAsString("batch/delete_some_cats.json", StandardCharsets.UTF_8) + "]";
+
+        try (StreamingBatch streamingBatch = new StreamingBatch(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))) {
+            StreamingBatch.Group putGroup = streamingBatch.nextGroup();
+            assertEquals(putGroup.groupType(), Batch.GroupType.PUT);
+            StreamingBatch.Group deleteGroup = streamingBatch.nextGroup();
+            assertEquals(deleteGroup.groupType(), Batch.GroupType.DELETE);
+            Batch.DeleteGroup group = deleteGroup.deleteGroup();
+            assertTrue(group.hasMatchCriteria());
+            assertEquals(group.getTimestamp().toString(), "2020-10-09T11:00Z");
+            assertNull(streamingBatch.nextGroup());
+        }
+    }
+
+    @Test
+    public void thatStreamingBatchEntriesCanOnlyBeSubscribedOnce() throws IOException {
+        String json = getResourceAsString("batch/put_cats.json", StandardCharsets.UTF_8);
+
+        try (StreamingBatch streamingBatch = new StreamingBatch(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)))) {
+            StreamingBatch.Group group = streamingBatch.nextGroup();
+            Flowable<Batch.Entry> entries = group.entries();
+            assertTrue(entries.count().blockingGet() > 0);
+            entries.test().assertError(IllegalStateException.class);
+            group.entries().test().assertError(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    public void thatCoalesceKeepsOnlyLastEntryOfEachVersionBetweenMatchDeletes() throws IOException {
+        String json = "[" +
+                "{\"operation\":\"put\",\"type\":\"Cat\",\"timestamp\":\"2020-10-08T11:00:00Z\",\"entries\":[{\"id\":\"a\",\"data\":{\"v\":1}},{\"id\":\"b\",\"data\":{\"v\":1}}]}," +
+                "{\"operation\":\"put\",\"type\":\"Cat\",\"timestamp\":\"2020-10-08T11:00:00Z\",\"entries\":[{\"id\":\"a\",\"data\":{\"v\":2}}]}," +
+                "{\"operation\":\"put\",\"type\":\"Dog\",\"timestamp\":\"2020-10-08T11:00:00Z\",\"entries\":[{\"id\":\"a\",\"data\":{\"v\":1}}]}," +
+                "{\"operation\":\"delete\",\"type\":\"Cat\",\"timestamp\":\"2020-10-08T11:00:00Z\",\"entries\":[{\"id\":\"b\"}]}," +
+                "{\"operation\":\"delete\",\"type\":\"Cat\",\"timestamp\":\"2020-10-08T12:00:00Z\",\"match\":{\"id-starts-with\":\"a\"}}," +
+                "{\"operation\":\"put\",\"type\":\"Cat\",\"timestamp\":\"2020-10-08T11:00:00Z\",\"entries\":[{\"id\":\"a\",\"data\":{\"v\":3}}]}" +
+                "]";
+        Batch batch = new Batch(new ObjectMapper().readTree(json));
+
+        Batch coalesced = batch.coalesce();
+
+        assertEquals(coalesced.supersededEntries(), 2);
+        List<String> entries = new ArrayList<>();
+        for (Batch.Group group : coalesced.groups()) {
+            StringBuilder sb = new StringBuilder(group.groupType() + " " + group.type() + ":");
+            for (Batch.Entry entry : group.entries()) {
+                sb.append(" ").append(entry.id());
+                if (entry.dataNode() != null) {
+                    sb.append(entry.dataNode().get("v"));
+                }
+            }
+            entries.add(sb.toString());
+        }
+        assertEquals(entries, List.of("PUT Cat: a2", "PUT Dog: a1", "DELETE Cat: b", "DELETE Cat:", "PUT Cat: a3"));
+    }
+
+    @Test
+    public void thatPartitionsKeepAllEntriesOfADocumentTogetherInOrder() throws IOException {
+        String json = "[" + getResourceAsString("batch/put_cats_and_dogs.json", StandardCharsets.UTF_8).trim().substring(1).replaceFirst("]$", "")
+                + "," + getResourceAsString("batch/put_cats.json", StandardCharsets.UTF_8)
+                + "," + getResourceAsString("batch/delete_some_cats.json", StandardCharsets.UTF_8)
+                + "," + getResourceAsString("batch/put_cats.json", StandardCharsets.UTF_8) + "]";
+        Batch batch = new Batch(new ObjectMapper().readTree(json));
+
+        List<Batch> segments = batch.segments();
+        assertEquals(segments.size(), 3);
+        assertEquals(segments.get(0).groups().size(), 3);
+        assertTrue(segments.get(1).groups().get(0).hasMatchCriteria());
+
+        Batch segment = segments.get(0);
+        List<Batch> partitions = segment.partition(4);
+        assertEquals(partitions.size(), 4);
+        int entries = 0;
+        for (Batch partition : partitions) {
+            entries += partition.entryCount();
+            for (Batch.Group group : partition.groups()) {
+                for (Batch.Entry entry : group.entries()) {
+                    // every other partition must be without entries of the same document
+                    for (Batch other : partitions) {
+                        if (other != partition) {
+                            for (Batch.Group otherGroup : other.groups()) {
+                                for (Batch.Entry otherEntry : otherGroup.entries()) {
+                                    assertTrue(!otherGroup.type().equals(group.type()) || !otherEntry.id().equals(entry.id()));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        assertEquals(entries, segment.entryCount());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void thatBatchWithMatchCriteriaCannotBePartitioned() throws IOException {
+        Batch batch = new Batch(new ObjectMapper().readTree(getResourceAsString("batch/delete_some_cats.json", StandardCharsets.UTF_8)));
+        batch.partition(2);
+    }
+
     private void testBatch(ObjectMapper mapper, String json) throws IOException {
         JsonNode batchNode = mapper.readTree(json);
         Batch batch = new Batch(batchNode);
@@ -0,0 +1,117 @@
+package no.ssb.lds.api.persistence.batch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static no.ssb.lds.api.persistence.batch.BatchTest.getResourceAsString;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class MatchExpressionTest {
+
+    private static final TreeSet<String> EXISTING_IDS = new TreeSet<>(List.of(
+            "aa1", "ab", "abzzz", "acone", "actwo", "acthree", "ad", "the-cat-id", "zzz"
+    ));
+
+    private static MatchExpression compile(String json) throws IOException {
+        Batch batch = new Batch(new ObjectMapper().readTree(json));
+        return MatchExpression.compile((Batch.DeleteGroup) batch.groups().get(0));
+    }
+
+    private static Flowable<String> scan(Range<String> range, List<String> scanned) {
+        return Flowable.fromIterable(EXISTING_IDS)
+                .filter(id -> !range.hasAfter() || id.compareTo(range.getAfter()) > 0)
+                .filter(id -> !range.hasBefore() || id.compareTo(range.getBefore()) < 0)
+                .doOnNext(scanned::add);
+    }
+
+    private static Flowable<String> multiGet(Set<String> ids, List<String> scanned) {
+        return Flowable.fromIterable(ids)
+                .filter(EXISTING_IDS::contains)
+                .doOnNext(scanned::add);
+    }
+
+    @Test
+    public void thatDeleteSomeCatsIsResolvedWithPrefixScanAndMultiGet() throws IOException {
+        MatchExpression expression = compile(getResourceAsString("batch/delete_some_cats.json", StandardCharsets.UTF_8));
+
+        assertTrue(expression.matches("the-cat-id"));
+        assertTrue(expression.matches("acthree"));
+        assertFalse(expression.matches("acone"));
+        assertFalse(expression.matches("zzz"));
+
+        List<String> scanned = new ArrayList<>();
+        List<String> matches = expression.resolve(ids -> multiGet(ids, scanned), range -> scan(range, scanned))
+                .toList()
+                .blockingGet();
+
+        assertEquals(new TreeSet<>(matches), new TreeSet<>(List.of("acthree", "the-cat-id")));
+        assertEquals(new TreeSet<>(scanned), new TreeSet<>(List.of("acone", "actwo", "acthree", "the-cat-id")));
+    }
+
+    @Test
+    public void thatNotInIsResolvedWithFullScan() throws IOException {
+        MatchExpression expression = compile("{\"operation\":\"delete\",\"type\":\"Cat\",\"match\":{\"id-not-in\":[\"ab\",\"zzz\"]}}");
+
+        List<String> scanned = new ArrayList<>();
+        List<String> matches = expression.resolve(ids -> multiGet(ids, scanned), range -> scan(range, scanned))
+                .toList()
+                .blockingGet();
+
+        TreeSet<String> expected = new TreeSet<>(EXISTING_IDS);
+        expected.removeAll(List.of("ab", "zzz"));
+        assertEquals(new TreeSet<>(matches), expected);
+        assertEquals(scanned.size(), EXISTING_IDS.size());
+    }
+
+    @Test
+    public void thatOverlappingPrefixesAndIdsAreReadOnce() throws IOException {
+        MatchExpression expression = compile("{\"operation\":\"delete\",\"type\":\"Cat\",\"match\":{\"or\":[" +
+                "{\"id-starts-with\":\"ac\"},{\"id-starts-with\":\"a\"},{\"id-in\":[\"abzzz\",\"zzz\"]}]}}");
+
+        List<String> scanned = new ArrayList<>();
+        List<String> matches = expression.resolve(ids -> multiGet(ids, scanned), range -> scan(range, scanned))
+                .toList()
+                .blockingGet();
+
+        assertEquals(matches.size(), new TreeSet<>(matches).size());
+        assertEquals(new TreeSet<>(matches), new TreeSet<>(List.of("aa1", "ab", "abzzz", "acone", "actwo", "acthree", "ad", "zzz")));
+    }
+
+    @Test
+    public void thatPrefixRangeIncludesAllIdsWithPrefix() {
+        Range<String> range = MatchExpression.prefixRange("ac");
+        assertTrue("ac".compareTo(range.getAfter()) > 0);
+        assertTrue("ab\uffff".compareTo(range.getAfter()) <= 0);
+        assertTrue("ac\uffff\uffff".compareTo(range.getBefore()) < 0);
+        assertTrue("ad".compareTo(range.getBefore()) >= 0);
+    }
+
+    @Test
+    public void thatEmptyIdListsAreOperands() throws IOException {
+        MatchExpression emptyIdIn = compile("{\"operation\":\"delete\",\"type\":\"Cat\",\"match\":{\"and\":[" +
+                "{\"id-in\":[]},{\"id-starts-with\":\"a\"}]}}");
+        assertFalse(emptyIdIn.matches("ab"));
+        List<String> scanned = new ArrayList<>();
+        assertEquals(emptyIdIn.resolve(ids -> multiGet(ids, scanned), range -> scan(range, scanned)).toList().blockingGet(), List.of());
+
+        MatchExpression emptyIdNotIn = compile("{\"operation\":\"delete\",\"type\":\"Cat\",\"match\":{\"or\":[" +
+                "{\"id-not-in\":[]},{\"id\":\"zzz\"}]}}");
+        assertTrue(emptyIdNotIn.matches("ab"));
+        List<String> matches = emptyIdNotIn.resolve(ids -> multiGet(ids, scanned), range -> scan(range, scanned)).toList().blockingGet();
+        assertEquals(new TreeSet<>(matches), EXISTING_IDS);
+
+        MatchExpression notEmptyIdIn = compile("{\"operation\":\"delete\",\"type\":\"Cat\",\"match\":{\"not\":{\"id-in\":[]}}}");
+        assertTrue(notEmptyIdIn.matches("ab"));
+    }
+}
@@ -0,0 +1,171 @@
+package no.ssb.lds.api.persistence.index;
+
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+import no.ssb.lds.api.specification.Specification;
+import no.ssb.lds.api.specification.SpecificationElement;
+import no.ssb.lds.api.specification.SpecificationElementType;
+import no.ssb.lds.api.specification.SpecificationValidator;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class InMemorySecondaryIndexTest {
+
+    static final ZonedDateTime T1 = ZonedDateTime.parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = ZonedDateTime.parse("2001-01-01T00:00:00.000Z");
+
+    static Specification specification() {
+        TestElement root = new TestElement("root", SpecificationElementType.ROOT, null, "object");
+        TestElement cat = root.add(new TestElement("cat", SpecificationElementType.MANAGED, root, "object"));
+        cat.add(new TestElement("name", SpecificationElementType.EMBEDDED, cat, "string"));
+        TestElement kittens = cat.add(new TestElement("kittens", SpecificationElementType.EMBEDDED, cat, "array"));
+        TestElement kitten = new TestElement("items", SpecificationElementType.EMBEDDED, kittens, "object");
+        kittens.items = kitten;
+        kitten.add(new TestElement("name", SpecificationElementType.EMBEDDED, kitten, "string"));
+        return new Specification() {
+            @Override
+            public SpecificationElement getRootElement() {
+                return root;
+            }
+
+            @Override
+            public Set<String> getManagedDomains() {
+                return root.getProperties().keySet();
+            }
+        };
+    }
+
+    static Fragment fragment(String id, ZonedDateTime timestamp, String path, String value) {
+        return new Fragment("ns", "cat", id, timestamp, path, FragmentType.STRING, 0, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static List<String> lookup(SecondaryIndex index, String path, String value, Range<String> range) {
+        List<String> ids = new ArrayList<>();
+        index.lookup("ns", "cat", path, value.getBytes(StandardCharsets.UTF_8), range).forEach(ids::add);
+        return ids;
+    }
+
+    @Test
+    public void thatDefinitionsAreDerivedFromTheSpecification() {
+        Specification specification = specification();
+
+        assertEquals(IndexDefinition.allLeavesOf(specification), Set.of(
+                new IndexDefinition("cat", "$.name"),
+                new IndexDefinition("cat", "$.kittens[].name")));
+        assertEquals(IndexDefinition.of(specification, "cat", "$.kittens[].name"), new IndexDefinition("cat", "$.kittens[].name"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void thatDefinitionsOfUnknownPathsAreRejected() {
+        IndexDefinition.of(specification(), "cat", "$.color");
+    }
+
+    @Test
+    public void thatLookupsReturnCandidatesInRangeOrder() {
+        SecondaryIndex index = new InMemorySecondaryIndex(IndexDefinition.allLeavesOf(specification()));
+        index.add(List.of(fragment("3", T1, "$.name", "Garfield")));
+        index.add(List.of(fragment("1", T1, "$.name", "Garfield"), fragment("1", T1, "$.kittens[0].name", "Nermal")));
+        index.add(List.of(fragment("2", T1, "$.name", "Tom"), fragment("2", T1, "$.kittens[0].name", "Nermal")));
+
+        assertEquals(lookup(index, "$.name", "Garfield", Range.unbounded()), List.of("1", "3"));
+        assertEquals(lookup(index, "$.name", "Garfield", Range.lastBefore(1, "3")), List.of("1"));
+        assertEquals(lookup(index, "$.kittens[].name", "Nermal", Range.last(1)), List.of("2", "1"));
+        assertEquals(lookup(index, "$.name", "Nermal", Range.unbounded()), List.of());
+    }
+
+    @Test
+    public void thatIdsRemainUntilAllVersionsWithTheValueAreRemoved() {
+        InMemorySecondaryIndex index = new InMemorySecondaryIndex(IndexDefinition.allLeavesOf(specification()));
+        List<Fragment> v1 = List.of(fragment("1", T1, "$.name", "Garfield"));
+        List<Fragment> v2 = List.of(fragment("1", T2, "$.name", "Garfield"));
+        index.add(v1);
+        index.add(v2);
+
+        index.remove(v1);
+        assertEquals(lookup(index, "$.name", "Garfield", Range.unbounded()), List.of("1"));
+        index.remove(v2);
+        assertEquals(lookup(index, "$.name", "Garfield", Range.unbounded()), List.of());
+        assertEquals(index.size(), 0);
+    }
+
+    static class TestElement implements SpecificationElement {
+        final String name;
+        final SpecificationElementType type;
+        final SpecificationElement parent;
+        final String jsonType;
+        final Map<String, SpecificationElement> properties = new LinkedHashMap<>();
+        SpecificationElement items;
+
+        TestElement(String name, SpecificationElementType type, SpecificationElement parent, String jsonType) {
+            this.name = name;
+            this.type = type;
+            this.parent = parent;
+            this.jsonType = jsonType;
+        }
+
+        TestElement add(TestElement child) {
+            properties.put(child.name, child);
+            return child;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getDescription() {
+            return null;
+        }
+
+        @Override
+        public SpecificationElement getParent() {
+            return parent;
+        }
+
+        @Override
+        public SpecificationElementType getSpecificationElementType() {
+            return type;
+        }
+
+        @Override
+        public Set<String> getJsonTypes() {
+            return Set.of(jsonType);
+        }
+
+        @Override
+        public List<SpecificationValidator> getValidators() {
+            return List.of();
+        }
+
+        @Override
+        public Set<String> getRefTypes() {
+            return Set.of();
+        }
+
+        @Override
+        public Map<String, SpecificationElement> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public SpecificationElement getItems() {
+            return items;
+        }
+
+        @Override
+        public Set<String> getRequired() {
+            return Set.of();
+        }
+    }
+}
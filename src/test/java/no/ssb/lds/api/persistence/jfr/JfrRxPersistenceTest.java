@@ -0,0 +1,107 @@
+package no.ssb.lds.api.persistence.jfr;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class JfrRxPersistenceTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    static void writeAndRead(RxJsonPersistence persistence) {
+        try (Transaction tx = persistence.createTransaction(false)) {
+            for (String id : new String[]{"1", "2", "3"}) {
+                JsonNode data = mapper.createObjectNode().put("name", "Garfield " + id);
+                persistence.createOrOverwrite(tx, new JsonDocument(new DocumentKey("ns", "cat", id, T1), data), null).blockingAwait();
+            }
+        }
+        try (Transaction tx = persistence.createTransaction(true)) {
+            assertEquals(persistence.readDocuments(tx, T2, "ns", "cat", Range.unbounded()).count().blockingGet(), (Long) 3L);
+        }
+    }
+
+    static List<RecordedEvent> events(List<RecordedEvent> events, String name) {
+        return events.stream().filter(event -> event.getEventType().getName().equals(name)).collect(Collectors.toList());
+    }
+
+    @Test
+    public void thatCallsDecodePhasesAndTransactionsAreRecorded() throws IOException {
+        RxJsonPersistence persistence = new RxJsonPersistenceBridge(new JfrRxPersistence(new InMemoryRxPersistence()), 8);
+        Path file = Files.createTempFile("persistence", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(PersistenceCallEvent.class).withoutThreshold();
+            recording.enable(DecodeEvent.class).withoutThreshold();
+            recording.enable(TransactionEvent.class).withoutThreshold();
+            recording.start();
+            writeAndRead(persistence);
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+            List<RecordedEvent> readAll = events(events, "no.ssb.lds.persistence.Call").stream()
+                    .filter(event -> "readAll".equals(event.getString("method")))
+                    .collect(Collectors.toList());
+            assertEquals(readAll.size(), 1);
+            assertEquals(readAll.get(0).getString("entity"), "cat");
+            assertEquals(readAll.get(0).getLong("documents"), 3);
+            assertTrue(readAll.get(0).getLong("bytes") > 0);
+            assertFalse(readAll.get(0).getBoolean("cancelled"));
+
+            List<String> phases = events(events, "no.ssb.lds.persistence.Decode").stream()
+                    .map(event -> event.getString("phase"))
+                    .distinct().sorted().collect(Collectors.toList());
+            assertEquals(phases, List.of(DecodeEvent.DECODE_DOCUMENT, DecodeEvent.GROUP_BY_ORDERED, DecodeEvent.TO_JSON_NODE));
+
+            List<RecordedEvent> transactions = events(events, "no.ssb.lds.persistence.Transaction");
+            assertEquals(transactions.size(), 2);
+            assertEquals(transactions.get(0).getString("operation"), TransactionEvent.COMMIT);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void thatCallsPassThroughWhenNotRecording() {
+        writeAndRead(new RxJsonPersistenceBridge(new JfrRxPersistence(new InMemoryRxPersistence()), 8));
+    }
+
+    @Test
+    public void thatEventsAreOnlyAllocatedWhenEnabled() {
+        DocumentKey key = new DocumentKey("ns", "cat", "1", T1);
+        assertNull(DecodeEvent.begin(DecodeEvent.DECODE_DOCUMENT, key));
+        assertNull(JfrRxPersistence.Call.begin("readAll", "ns", "cat"));
+        try (Recording recording = new Recording()) {
+            recording.enable(PersistenceCallEvent.class);
+            recording.enable(DecodeEvent.class);
+            recording.start();
+            assertNotNull(DecodeEvent.begin(DecodeEvent.DECODE_DOCUMENT, key));
+            assertNotNull(JfrRxPersistence.Call.begin("readAll", "ns", "cat"));
+        }
+        assertNull(DecodeEvent.begin(DecodeEvent.DECODE_DOCUMENT, key));
+    }
+}
@@ -0,0 +1,101 @@
+package no.ssb.lds.api.persistence.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import no.ssb.lds.api.persistence.flattened.DocumentOrderPathComparator;
+import no.ssb.lds.api.persistence.flattened.FlattenedDocument;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+import org.json.JSONException;
+import org.skyscreamer.jsonassert.JSONAssert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class FragmentStreamToJsonTest {
+
+    private static String write(List<Fragment> fragments) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = JsonTools.mapper.getFactory().createGenerator(writer)) {
+            FragmentStreamToJson streamToJson = new FragmentStreamToJson(generator);
+            for (Fragment fragment : fragments) {
+                streamToJson.write(fragment);
+            }
+            assertTrue(streamToJson.complete());
+        }
+        return writer.toString();
+    }
+
+    @Test
+    public void thatDocumentWrittenInDocumentOrderIsEqualToOriginal() throws IOException, JSONException {
+        StringBuilder items = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            if (i > 0) {
+                items.append(",");
+            }
+            items.append("{\"index\":").append(i).append(",\"tags\":[\"t").append(i).append("\",[\"n").append(i).append("\"]]}");
+        }
+        String json = "{\"name\":\"A name that is longer than a single fragment\",\"age\":42,\"ratio\":0.5,\"alive\":true," +
+                "\"nothing\":null,\"emptyArray\":[],\"emptyObject\":{},\"items\":[" + items + "]}";
+        FlattenedDocument document = new JsonToFlattenedDocument("ns", "E", "1", ZonedDateTime.now(ZoneId.of("Etc/UTC")),
+                JsonTools.toJsonNode(json), 8).toDocument();
+        List<Fragment> fragments = new ArrayList<>();
+        document.fragmentIterator().forEachRemaining(fragments::add);
+        fragments.sort(Comparator.comparing(Fragment::path, new DocumentOrderPathComparator()).thenComparingLong(Fragment::offset));
+
+        JSONAssert.assertEquals(json, write(fragments), true);
+    }
+
+    @Test
+    public void thatPrecomputedKeysSortInDocumentOrder() {
+        FlattenedDocument document = new JsonToFlattenedDocument("ns", "E", "1", ZonedDateTime.now(ZoneId.of("Etc/UTC")),
+                JsonTools.toJsonNode("{\"b\":[1,2,3,4,5,6,7,8,9,10,11,12],\"a\":{\"x\":\"A value longer than a fragment\"}}"), 8).toDocument();
+        List<Fragment> byComparator = new ArrayList<>();
+        document.fragmentIterator().forEachRemaining(byComparator::add);
+        List<Fragment> byKey = new ArrayList<>(byComparator);
+
+        byComparator.sort(Comparator.comparing(Fragment::path, new DocumentOrderPathComparator()).thenComparingLong(Fragment::offset));
+        byKey.sort(Comparator.comparing(DocumentOrderPathComparator.Key::of));
+
+        assertEquals(byKey, byComparator);
+    }
+
+    @Test
+    public void thatEmptyDocumentIsWritten() throws IOException, JSONException {
+        ZonedDateTime now = ZonedDateTime.now(ZoneId.of("Etc/UTC"));
+        List<Fragment> fragments = List.of(new Fragment("ns", "E", "1", now, "$", FragmentType.EMPTY_OBJECT, 0, new byte[0]));
+
+        JSONAssert.assertEquals("{}", write(fragments), true);
+    }
+
+    @Test
+    public void thatDeletedDocumentIsNotWritten() throws IOException {
+        ZonedDateTime now = ZonedDateTime.now(ZoneId.of("Etc/UTC"));
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = JsonTools.mapper.getFactory().createGenerator(writer)) {
+            FragmentStreamToJson streamToJson = new FragmentStreamToJson(generator);
+            streamToJson.write(new Fragment("ns", "E", "1", now, "$", FragmentType.DELETED, 0, new byte[0]));
+            assertFalse(streamToJson.complete());
+            assertTrue(streamToJson.deleted());
+        }
+        assertTrue(writer.toString().isEmpty());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void thatFragmentsInLexicographicPathOrderAreRejected() throws IOException {
+        ZonedDateTime now = ZonedDateTime.now(ZoneId.of("Etc/UTC"));
+        write(List.of(
+                new Fragment("ns", "E", "1", now, "$.items[10]", FragmentType.NULL, 0, new byte[0]),
+                new Fragment("ns", "E", "1", now, "$.items[2]", FragmentType.NULL, 0, new byte[0])
+        ));
+    }
+}
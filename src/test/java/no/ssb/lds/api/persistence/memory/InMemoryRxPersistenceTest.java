@@ -0,0 +1,190 @@
+package no.ssb.lds.api.persistence.memory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import no.ssb.lds.api.json.JsonNavigationPath;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.index.InMemorySecondaryIndex;
+import no.ssb.lds.api.persistence.index.IndexDefinition;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class InMemoryRxPersistenceTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+    static final ZonedDateTime T3 = parse("2002-01-01T00:00:00.000Z");
+
+    private InMemoryRxPersistence provider;
+    private RxJsonPersistence persistence;
+
+    @BeforeMethod
+    public void setUp() {
+        provider = new InMemoryRxPersistence();
+        persistence = new RxJsonPersistenceBridge(provider, 8);
+    }
+
+    static JsonDocument document(String id, ZonedDateTime timestamp, String name) {
+        JsonNode data = mapper.createObjectNode().put("name", name);
+        return new JsonDocument(new DocumentKey("ns", "cat", id, timestamp), data);
+    }
+
+    void write(JsonDocument... documents) {
+        try (Transaction tx = persistence.createTransaction(false)) {
+            for (JsonDocument document : documents) {
+                persistence.createOrOverwrite(tx, document, null).blockingAwait();
+            }
+        }
+    }
+
+    String readName(ZonedDateTime snapshot, String id) {
+        try (Transaction tx = persistence.createTransaction(true)) {
+            JsonDocument document = persistence.readDocument(tx, snapshot, "ns", "cat", id).blockingGet();
+            return document == null ? null : document.jackson().get("name").textValue();
+        }
+    }
+
+    List<String> readIds(Range<String> range) {
+        try (Transaction tx = persistence.createTransaction(true)) {
+            return persistence.readDocuments(tx, T3, "ns", "cat", range)
+                    .map(document -> document.key().id())
+                    .toList()
+                    .blockingGet();
+        }
+    }
+
+    @Test
+    public void thatReadsSeeTheVersionAtTheSnapshot() {
+        write(document("1", T1, "Garfield"), document("1", T2, "Grumpy"));
+
+        assertNull(readName(T1.minusDays(1), "1"));
+        assertEquals(readName(T1, "1"), "Garfield");
+        assertEquals(readName(T2.minusDays(1), "1"), "Garfield");
+        assertEquals(readName(T3, "1"), "Grumpy");
+    }
+
+    @Test
+    public void thatTransactionsReadTheCommitsBeforeTheyWereCreated() {
+        write(document("1", T1, "Garfield"));
+
+        Transaction reader = persistence.createTransaction(true);
+        Transaction writer = persistence.createTransaction(false);
+        persistence.createOrOverwrite(writer, document("1", T2, "Grumpy"), null).blockingAwait();
+        persistence.createOrOverwrite(writer, document("2", T2, "Tom"), null).blockingAwait();
+        assertNull(readName(T3, "2"));
+        writer.commit().join();
+
+        assertEquals(persistence.readDocument(reader, T3, "ns", "cat", "1").blockingGet().jackson().get("name").textValue(), "Garfield");
+        assertTrue(persistence.readDocument(reader, T3, "ns", "cat", "2").isEmpty().blockingGet());
+        reader.close();
+        assertEquals(readName(T3, "1"), "Grumpy");
+        assertEquals(readName(T3, "2"), "Tom");
+    }
+
+    @Test
+    public void thatRangeScansHonourBoundsLimitsAndDirection() {
+        for (int i = 1; i <= 9; i++) {
+            write(document("id0" + i, T1, "cat " + i));
+        }
+
+        assertEquals(readIds(Range.unbounded()).size(), 9);
+        assertEquals(readIds(Range.between("id03", "id06")), List.of("id04", "id05"));
+        assertEquals(readIds(Range.firstAfter(3, "id03")), List.of("id04", "id05", "id06"));
+        assertEquals(readIds(Range.lastBefore(2, "id08")), List.of("id07", "id06"));
+        assertEquals(readIds(Range.last(1)), List.of("id09"));
+
+        try (Transaction tx = persistence.createTransaction(true)) {
+            assertTrue(persistence.hasNext(tx, T3, "ns", "cat", "id08").blockingGet());
+            assertFalse(persistence.hasNext(tx, T3, "ns", "cat", "id09").blockingGet());
+            assertFalse(persistence.hasPrevious(tx, T3, "ns", "cat", "id01").blockingGet());
+        }
+    }
+
+    @Test
+    public void thatDeletedDocumentsAreHiddenButTheirVersionsAreKept() {
+        write(document("1", T1, "Garfield"), document("2", T1, "Tom"));
+        try (Transaction tx = persistence.createTransaction(false)) {
+            persistence.markDocumentDeleted(tx, "ns", "cat", "1", T2, null).blockingAwait();
+        }
+
+        assertNull(readName(T3, "1"));
+        assertEquals(readName(T1, "1"), "Garfield");
+        assertEquals(readIds(Range.unbounded()), List.of("2"));
+        try (Transaction tx = persistence.createTransaction(true)) {
+            List<JsonDocument> versions = persistence.readDocumentVersions(tx, "ns", "cat", "1", Range.unbounded())
+                    .toList().blockingGet();
+            assertEquals(versions.size(), 2);
+            assertTrue(versions.get(1).deleted());
+        }
+
+        try (Transaction tx = persistence.createTransaction(false)) {
+            persistence.deleteAllDocumentVersions(tx, "ns", "cat", "1", null).blockingAwait();
+        }
+        assertNull(readName(T1, "1"));
+        assertEquals(provider.size(), 1);
+    }
+
+    @Test
+    public void thatFindMatchesLeafValues() {
+        write(document("1", T1, "Garfield"), document("2", T1, "Tom"), document("3", T1, "Garfield"));
+
+        try (Transaction tx = persistence.createTransaction(true)) {
+            List<String> ids = persistence.findDocument(tx, T3, "ns", "cat", JsonNavigationPath.from("$.name"), "Garfield",
+                    Range.unbounded())
+                    .map(document -> document.key().id())
+                    .toList()
+                    .blockingGet();
+            assertEquals(ids, List.of("1", "3"));
+        }
+    }
+
+    @Test
+    public void thatFindOnlyReadsTheCandidatesOfTheIndex() {
+        provider = new InMemoryRxPersistence(new InMemorySecondaryIndex(List.of(new IndexDefinition("cat", "$.name"))));
+        persistence = new RxJsonPersistenceBridge(provider, 8);
+        write(document("1", T1, "Garfield"), document("2", T1, "Tom"), document("3", T1, "Garfield"));
+        write(document("3", T2, "Grumpy"));
+
+        try (Transaction tx = persistence.createTransaction(true)) {
+            List<String> ids = persistence.findDocument(tx, T3, "ns", "cat", JsonNavigationPath.from("$.name"), "Garfield",
+                    Range.unbounded())
+                    .map(document -> document.key().id())
+                    .toList()
+                    .blockingGet();
+            assertEquals(ids, List.of("1"));
+            assertEquals(((InMemoryTransaction) tx).statistics.get(InMemoryRxPersistence.INDEX_CANDIDATES), 2);
+        }
+    }
+
+    @Test
+    public void thatOldVersionsArePrunedWhenNoTransactionCanSeeThem() {
+        write(document("1", T1, "Garfield"));
+        write(document("1", T1, "Grumpy"));
+
+        Transaction reader = persistence.createTransaction(true);
+        write(document("1", T1, "Tom"));
+
+        VersionKey key = new VersionKey("ns", "cat", "1", T1.toInstant());
+        assertTrue(provider.head(key).previous != null, "the reader can still see the previous record");
+        reader.close();
+        provider.compact();
+
+        assertNull(provider.head(key).previous);
+        assertEquals(readName(T1, "1"), "Tom");
+        assertEquals(provider.size(), 1);
+    }
+}
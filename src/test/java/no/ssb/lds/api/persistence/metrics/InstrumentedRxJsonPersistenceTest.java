@@ -0,0 +1,91 @@
+package no.ssb.lds.api.persistence.metrics;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.reactivex.Completable;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class InstrumentedRxJsonPersistenceTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    InMemoryPersistenceMetrics metrics;
+    RxJsonPersistence persistence;
+
+    @BeforeMethod
+    public void setUp() {
+        metrics = new InMemoryPersistenceMetrics();
+        persistence = new InstrumentedRxJsonPersistence(new RxJsonPersistenceBridge(
+                new InstrumentedRxPersistence(new InMemoryRxPersistence(), metrics), 8), metrics);
+        try (Transaction tx = persistence.createTransaction(false)) {
+            for (String id : new String[]{"1", "2", "3"}) {
+                JsonNode data = mapper.createObjectNode().put("name", "Garfield " + id);
+                persistence.createOrOverwrite(tx, new JsonDocument(new DocumentKey("ns", "cat", id, T1), data), null).blockingAwait();
+            }
+        }
+    }
+
+    TransactionStatistics statistics(String method) {
+        return metrics.statistics(new Operation(method, "ns", "cat"));
+    }
+
+    @Test
+    public void thatBothLayersAreMeasured() {
+        try (Transaction tx = persistence.createTransaction(true)) {
+            assertEquals(persistence.readDocuments(tx, T2, "ns", "cat", Range.unbounded()).count().blockingGet(), (Long) 3L);
+        }
+        TransactionStatistics json = statistics("json.readDocuments");
+        assertEquals(json.get(PersistenceMetrics.CALLS), 1);
+        assertEquals(json.get(PersistenceMetrics.DOCUMENTS).sum(), 3);
+        assertEquals(json.get(PersistenceMetrics.FIRST_ELEMENT_NANOS).count(), 1);
+        assertEquals(json.get(PersistenceMetrics.LATENCY_NANOS).count(), 1);
+
+        TransactionStatistics rx = statistics("rx.readAll");
+        assertEquals(rx.get(PersistenceMetrics.CALLS), 1);
+        assertTrue(rx.get(PersistenceMetrics.FRAGMENTS).sum() >= 3);
+        assertTrue(rx.get(TransactionStatistics.FRAGMENT_BYTES).sum() > 0);
+
+        // Writes are tagged by the entity of the documents written.
+        assertEquals(statistics("json.createOrOverwrite").get(PersistenceMetrics.DOCUMENTS).sum(), 3);
+        assertEquals(statistics("rx.createOrOverwrite").get(PersistenceMetrics.CALLS), 3);
+    }
+
+    @Test
+    public void thatCancellationsAreCounted() {
+        try (Transaction tx = persistence.createTransaction(true)) {
+            persistence.readDocuments(tx, T2, "ns", "cat", Range.unbounded()).take(1).blockingLast();
+        }
+        TransactionStatistics json = statistics("json.readDocuments");
+        assertEquals(json.get(PersistenceMetrics.CANCELLATIONS), 1);
+        assertEquals(json.get(PersistenceMetrics.DOCUMENTS).sum(), 1);
+        assertEquals(json.get(PersistenceMetrics.ERRORS), 0);
+    }
+
+    @Test
+    public void thatErrorsAreCounted() {
+        Completable failing = Measurement.completable(metrics, "rx.delete", "ns", "cat",
+                Completable.error(new PersistenceException("failed")));
+        failing.onErrorComplete().blockingAwait();
+        TransactionStatistics rx = statistics("rx.delete");
+        assertEquals(rx.get(PersistenceMetrics.CALLS), 1);
+        assertEquals(rx.get(PersistenceMetrics.ERRORS), 1);
+        assertEquals(rx.get(PersistenceMetrics.CANCELLATIONS), 0);
+    }
+}
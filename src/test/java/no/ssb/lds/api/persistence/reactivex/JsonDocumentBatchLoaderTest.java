@@ -0,0 +1,130 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.reactivex.Flowable;
+import no.ssb.lds.api.json.JsonNavigationPath;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.persistence.reactivex.JsonDocumentBatchLoader.DocumentId;
+import no.ssb.lds.api.persistence.reactivex.JsonDocumentBatchLoader.RelationKey;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class JsonDocumentBatchLoaderTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+    static final JsonNavigationPath CATS = JsonNavigationPath.from("$.cats[]");
+
+    private final List<String> multiGets = Collections.synchronizedList(new ArrayList<>());
+    private RxJsonPersistence persistence;
+    private Transaction tx;
+    private JsonDocumentBatchLoader loader;
+
+    @BeforeMethod
+    public void setUp() {
+        multiGets.clear();
+        InMemoryRxPersistence provider = new InMemoryRxPersistence() {
+            @Override
+            public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, Iterable<String> ids) {
+                multiGets.add(entity);
+                return super.read(tx, snapshot, namespace, entity, ids);
+            }
+        };
+        persistence = new RxJsonPersistenceBridge(provider, 64);
+        try (Transaction tx = persistence.createTransaction(false)) {
+            for (String id : List.of("c1", "c2", "c3")) {
+                ObjectNode cat = mapper.createObjectNode().put("name", "cat " + id);
+                persistence.createOrOverwrite(tx, new JsonDocument(new DocumentKey("ns", "cat", id, T1), cat), null).blockingAwait();
+            }
+            ObjectNode owner = mapper.createObjectNode().put("name", "Jon");
+            owner.putArray("cats").add("/cat/c3").add("/cat/c1").add("/cat/missing").add("/dog/c2");
+            persistence.createOrOverwrite(tx, new JsonDocument(new DocumentKey("ns", "owner", "o1", T1), owner), null).blockingAwait();
+            ObjectNode lonely = mapper.createObjectNode().put("name", "Liz");
+            persistence.createOrOverwrite(tx, new JsonDocument(new DocumentKey("ns", "owner", "o2", T1), lonely), null).blockingAwait();
+        }
+        tx = persistence.createTransaction(true);
+        loader = new JsonDocumentBatchLoader(persistence, tx, T2);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        tx.close();
+    }
+
+    static DocumentId cat(String id) {
+        return new DocumentId("ns", "cat", id);
+    }
+
+    static DocumentId owner(String id) {
+        return new DocumentId("ns", "owner", id);
+    }
+
+    static List<String> ids(List<JsonDocument> documents) {
+        return documents.stream().map(document -> document == null ? null : document.key().id()).collect(Collectors.toList());
+    }
+
+    @Test
+    public void thatDocumentsAreReturnedInKeyOrderWithOneReadPerEntity() {
+        List<JsonDocument> documents = loader.loadDocuments(List.of(cat("c3"), owner("o1"), cat("c1"), cat("c2"))).join();
+
+        assertEquals(ids(documents), List.of("c3", "o1", "c1", "c2"));
+        assertEquals(multiGets, List.of("cat", "owner"));
+    }
+
+    @Test
+    public void thatMissingDocumentsAreNull() {
+        List<JsonDocument> documents = loader.loadDocuments(List.of(cat("missing"), cat("c2"), new DocumentId("ns", "dog", "c2"))).join();
+
+        assertEquals(documents.size(), 3);
+        assertNull(documents.get(0));
+        assertEquals(documents.get(1).key().id(), "c2");
+        assertNull(documents.get(2));
+    }
+
+    @Test
+    public void thatDuplicateKeysAreReadOnce() {
+        List<JsonDocument> documents = loader.loadDocuments(List.of(cat("c1"), cat("c2"), cat("c1"))).join();
+
+        assertEquals(ids(documents), List.of("c1", "c2", "c1"));
+        assertEquals(multiGets, List.of("cat"));
+    }
+
+    @Test
+    public void thatEmptyKeysGiveEmptyResult() {
+        assertEquals(loader.loadDocuments(List.of()).join(), List.of());
+        assertEquals(multiGets, List.of());
+    }
+
+    @Test
+    public void thatRelationsAreResolvedInTwoBatches() {
+        List<List<JsonDocument>> targets = loader.loadTargetDocuments(List.of(
+                new RelationKey(owner("o1"), CATS, "cat"),
+                new RelationKey(owner("o2"), CATS, "cat"),
+                new RelationKey(owner("missing"), CATS, "cat"),
+                new RelationKey(owner("o1"), CATS, "cat")
+        )).join();
+
+        assertEquals(targets.size(), 4);
+        assertEquals(ids(targets.get(0)), List.of("c1", "c3"));
+        assertEquals(ids(targets.get(1)), List.of());
+        assertEquals(ids(targets.get(2)), List.of());
+        assertEquals(ids(targets.get(3)), List.of("c1", "c3"));
+        assertEquals(multiGets, List.of("owner", "cat"));
+    }
+}
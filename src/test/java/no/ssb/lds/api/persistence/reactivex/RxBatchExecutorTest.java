@@ -0,0 +1,140 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.batch.Batch;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.specification.Specification;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class RxBatchExecutorTest {
+
+    static final String POISON = "poison";
+
+    private RxJsonPersistence persistence;
+    private TransactionFactory transactionFactory;
+
+    @BeforeMethod
+    public void setUp() {
+        // Writes every document, then fails the write if one of them is the poison document.
+        persistence = new RxJsonPersistenceBridge(new InMemoryRxPersistence(), 64) {
+            @Override
+            public Completable createOrOverwrite(Transaction tx, Flowable<JsonDocument> documentFlowable, Specification specification) {
+                return documentFlowable.toList().flatMapCompletable(documents -> super.createOrOverwrite(tx, Flowable.fromIterable(documents), specification)
+                        .andThen(documents.stream().anyMatch(document -> POISON.equals(document.key().id()))
+                                ? Completable.error(new PersistenceException("poisoned write"))
+                                : Completable.complete()));
+            }
+        };
+        transactionFactory = new TransactionFactory() {
+            @Override
+            public Transaction createTransaction(boolean readOnly) throws PersistenceException {
+                return persistence.createTransaction(readOnly);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    static Batch batch(List<String> ids) throws IOException {
+        StringBuilder entries = new StringBuilder();
+        for (String id : ids) {
+            if (entries.length() > 0) {
+                entries.append(',');
+            }
+            entries.append("{\"id\":\"").append(id).append("\",\"data\":{\"name\":\"").append(id).append("\"}}");
+        }
+        return new Batch(mapper.readTree("{\"operation\":\"put\",\"type\":\"Cat\",\"timestamp\":\"2000-01-01T00:00:00Z\"," +
+                "\"entries\":[" + entries + "]}"));
+    }
+
+    static List<String> ids(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add("c" + i);
+        }
+        return ids;
+    }
+
+    Set<String> storedIds() {
+        try (Transaction tx = persistence.createTransaction(true)) {
+            return persistence.readDocuments(tx, parse("2001-01-01T00:00:00Z"), "ns", "Cat", Range.unbounded())
+                    .map(document -> document.key().id())
+                    .collect(TreeSet<String>::new, Set::add)
+                    .blockingGet();
+        }
+    }
+
+    @Test
+    public void thatAllPartitionsAreCommitted() throws IOException {
+        RxBatchExecutor executor = new RxBatchExecutor(persistence, transactionFactory, 3);
+
+        RxBatchExecutor.Result result = executor.execute(batch(ids(10)), "ns", null).join();
+
+        assertTrue(result.success());
+        assertEquals(result.failures().size(), 0);
+        assertEquals(result.statistics().get(TransactionStatistics.counter("batch.put")), 10);
+        assertEquals(storedIds(), new TreeSet<>(ids(10)));
+    }
+
+    @Test
+    public void thatFailedPartitionIsRolledBack() throws IOException {
+        List<String> ids = ids(5);
+        ids.add(POISON);
+        RxBatchExecutor executor = new RxBatchExecutor(persistence, transactionFactory, 1);
+
+        RxBatchExecutor.Result result = executor.execute(batch(ids), "ns", null).join();
+
+        assertFalse(result.success());
+        assertEquals(result.appliedSegments(), 0);
+        assertEquals(result.failures().size(), 1);
+        assertTrue(result.failures().get(0).failure() instanceof PersistenceException);
+        // the documents written before the failure are not committed
+        assertEquals(storedIds(), Set.of());
+    }
+
+    @Test
+    public void thatOtherPartitionsAreCommittedWhenOnePartitionFails() throws IOException {
+        List<String> ids = ids(20);
+        ids.add(POISON);
+        Batch batch = batch(ids);
+        RxBatchExecutor executor = new RxBatchExecutor(persistence, transactionFactory, 3);
+
+        RxBatchExecutor.Result result = executor.execute(batch, "ns", null).join();
+
+        assertFalse(result.success());
+        assertEquals(result.partitions().size(), 3);
+        assertEquals(result.failures().size(), 1);
+        Batch failedPartition = batch.segments().get(0).partition(3).get(result.failures().get(0).partition());
+        Set<String> failedIds = failedPartition.groups().stream()
+                .flatMap(group -> group.entries().stream())
+                .map(Batch.Entry::id)
+                .collect(Collectors.toSet());
+        assertTrue(failedIds.contains(POISON));
+
+        Set<String> expected = new TreeSet<>(ids);
+        expected.removeAll(failedIds);
+        assertEquals(storedIds(), expected);
+    }
+}
@@ -0,0 +1,113 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+
+public class RxExternalSortTest {
+
+    private Path spillDirectory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        spillDirectory = Files.createTempDirectory("external-sort-test");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(spillDirectory);
+    }
+
+    private static List<Fragment> shuffledFragments() {
+        List<Fragment> fragments = new ArrayList<>();
+        ZonedDateTime timestamp = ZonedDateTime.parse("2000-01-01T00:00:00.000Z");
+        for (int i = 0; i < 200; i++) {
+            fragments.add(new Fragment("ns", "entity", String.format("id%03d", i % 50), timestamp.plusSeconds(i / 50),
+                    "$.path" + (i % 7), FragmentType.STRING, 0, ("value" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        Collections.shuffle(fragments, new Random(42));
+        return fragments;
+    }
+
+    private long spilledFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void thatFragmentsSpilledToDiskAreMergedInOrder() throws IOException {
+        List<Fragment> fragments = shuffledFragments();
+
+        List<Fragment> sorted = RxExternalSort.sorted(Flowable.fromIterable(fragments), Comparator.naturalOrder(), 1024, spillDirectory)
+                .toList()
+                .blockingGet();
+
+        List<Fragment> expected = new ArrayList<>(fragments);
+        Collections.sort(expected);
+        assertEquals(sorted, expected);
+        assertEquals(spilledFiles(), 0L);
+    }
+
+    @Test
+    public void thatFragmentsWithinBudgetAreSortedInReverseOrder() throws IOException {
+        List<Fragment> fragments = shuffledFragments();
+
+        List<Fragment> sorted = RxExternalSort.sorted(Flowable.fromIterable(fragments), Comparator.reverseOrder(), Long.MAX_VALUE, spillDirectory)
+                .toList()
+                .blockingGet();
+
+        List<Fragment> expected = new ArrayList<>(fragments);
+        expected.sort(Comparator.reverseOrder());
+        assertEquals(sorted, expected);
+        assertEquals(spilledFiles(), 0L);
+    }
+
+    @Test
+    public void thatRunsAreMergedInPassesWhenFanInIsLimited() throws IOException {
+        List<Fragment> fragments = shuffledFragments();
+
+        List<Fragment> sorted = RxExternalSort.sorted(Flowable.fromIterable(fragments), Comparator.naturalOrder(), 512, spillDirectory, 3)
+                .toList()
+                .blockingGet();
+
+        List<Fragment> expected = new ArrayList<>(fragments);
+        Collections.sort(expected);
+        assertEquals(sorted, expected);
+        assertEquals(spilledFiles(), 0L);
+    }
+
+    @Test
+    public void thatSortIsStable() throws IOException {
+        List<Fragment> fragments = shuffledFragments();
+        Comparator<Fragment> byIdOnly = Comparator.comparing(Fragment::id);
+
+        for (long memoryBudgetBytes : new long[]{Long.MAX_VALUE, 1024, 256}) {
+            List<Fragment> sorted = RxExternalSort.sorted(Flowable.fromIterable(fragments), byIdOnly, memoryBudgetBytes, spillDirectory, 2)
+                    .toList()
+                    .blockingGet();
+
+            List<Fragment> expected = new ArrayList<>(fragments);
+            expected.sort(byIdOnly);
+            assertEquals(sorted, expected, "memory budget " + memoryBudgetBytes);
+        }
+        assertEquals(spilledFiles(), 0L);
+    }
+}
@@ -0,0 +1,147 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.TestSubscriber;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentCodec;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class RxFragmentBatchesTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+
+    static Fragment fragment(String id, String value) {
+        return new Fragment("ns", "cat", id, T1, "$.name", FragmentType.STRING, 0, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static JsonDocument document(int i) {
+        JsonNode data = mapper.createObjectNode().put("name", "cat " + i);
+        return new JsonDocument(new DocumentKey("ns", "cat", String.format("id%03d", i), T1), data);
+    }
+
+    static List<Integer> sizes(List<List<Fragment>> batches) {
+        return batches.stream().map(List::size).collect(Collectors.toList());
+    }
+
+    @Test
+    public void thatBatchesAreBoundedByCount() {
+        List<Fragment> fragments = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            fragments.add(fragment("id" + i, "value"));
+        }
+
+        List<List<Fragment>> batches = RxFragmentBatches.batched(Flowable.fromIterable(fragments), 2, Long.MAX_VALUE)
+                .toList().blockingGet();
+
+        assertEquals(sizes(batches), List.of(2, 2, 1));
+        assertEquals(batches.stream().flatMap(List::stream).collect(Collectors.toList()), fragments);
+    }
+
+    @Test
+    public void thatBatchesAreBoundedByBytesAndLargeFragmentsAreAlone() {
+        Fragment small = fragment("a", "v");
+        Fragment large = fragment("b", "a value that is much larger than the other values");
+        long smallBytes = FragmentCodec.estimateHeapSize(small);
+
+        List<List<Fragment>> batches = RxFragmentBatches.batched(Flowable.just(small, small, large, small), 10, 2 * smallBytes)
+                .toList().blockingGet();
+
+        assertEquals(sizes(batches), List.of(2, 1, 1));
+        assertEquals(batches.get(1), List.of(large));
+    }
+
+    @Test
+    public void thatStreamingControlFragmentsAreSkipped() {
+        Fragment control = new Fragment(true, (short) 1, "ns", "cat", "a", T1, "$", FragmentType.NULL, 0, new byte[0]);
+
+        List<List<Fragment>> batches = RxFragmentBatches.batched(Flowable.just(fragment("a", "v"), control, fragment("b", "v")), 10, Long.MAX_VALUE)
+                .toList().blockingGet();
+
+        assertEquals(batches, List.of(List.of(fragment("a", "v"), fragment("b", "v"))));
+    }
+
+    @Test
+    public void thatEmptyStreamHasNoBatches() {
+        assertEquals(RxFragmentBatches.batched(Flowable.empty(), 10, Long.MAX_VALUE).count().blockingGet(), Long.valueOf(0));
+    }
+
+    @Test
+    public void thatFlatteningIsLimitedByPipelineDepth() throws InterruptedException {
+        AtomicReference<TestSubscriber<List<Fragment>>> writer = new AtomicReference<>();
+        InMemoryRxPersistence provider = new InMemoryRxPersistence() {
+            @Override
+            public Completable createOrOverwriteBatched(Transaction tx, Flowable<List<Fragment>> batches) {
+                // A provider that has only asked for the first batch so far.
+                return Completable.fromAction(() -> {
+                    TestSubscriber<List<Fragment>> subscriber = new TestSubscriber<>(1);
+                    writer.set(subscriber);
+                    batches.subscribe(subscriber);
+                });
+            }
+        };
+        RxJsonPersistenceBridge bridge = new RxJsonPersistenceBridge(provider, 64,
+                RxJsonPersistenceBridge.Options.defaults().withWriteBatching(2, Long.MAX_VALUE, 2, Schedulers.single()));
+        AtomicInteger flattened = new AtomicInteger();
+
+        try (Transaction tx = bridge.createTransaction(false)) {
+            bridge.createOrOverwrite(tx, Flowable.range(0, 100).map(RxFragmentBatchesTest::document)
+                    .doOnNext(document -> flattened.incrementAndGet()), null).blockingAwait();
+            writer.get().awaitCount(1);
+            Thread.sleep(100);
+
+            // the requested batch, pipelineDepth batches ahead and at most one batch being accumulated
+            assertTrue(flattened.get() <= 2 * (1 + 2 + 1) + 2, "flattened " + flattened.get() + " documents");
+            writer.get().requestMore(Long.MAX_VALUE);
+            writer.get().awaitDone(5, TimeUnit.SECONDS).assertComplete();
+            assertEquals(flattened.get(), 100);
+        }
+    }
+
+    @Test
+    public void thatFailedBatchFailsTheWrite() {
+        AtomicInteger written = new AtomicInteger();
+        InMemoryRxPersistence provider = new InMemoryRxPersistence() {
+            @Override
+            public Completable createOrOverwriteBatched(Transaction tx, Flowable<List<Fragment>> batches) {
+                return batches.concatMapCompletable(batch -> {
+                    if (written.incrementAndGet() == 2) {
+                        return Completable.error(new IllegalStateException("batch failed"));
+                    }
+                    return Completable.complete();
+                });
+            }
+        };
+        RxJsonPersistenceBridge bridge = new RxJsonPersistenceBridge(provider, 64,
+                RxJsonPersistenceBridge.Options.defaults().withWriteBatching(2, Long.MAX_VALUE, 2, Schedulers.single()));
+
+        Transaction tx = bridge.createTransaction(false);
+        Throwable error = bridge.createOrOverwrite(tx, Flowable.range(0, 100).map(RxFragmentBatchesTest::document), null)
+                .blockingGet();
+        tx.cancel().join();
+
+        assertTrue(error instanceof IllegalStateException, String.valueOf(error));
+        assertEquals(written.get(), 2);
+    }
+}
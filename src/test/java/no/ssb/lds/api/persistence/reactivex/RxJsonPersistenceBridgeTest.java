@@ -1,15 +1,23 @@
 package no.ssb.lds.api.persistence.reactivex;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.reactivex.Flowable;
 import io.reactivex.Maybe;
+import io.reactivex.schedulers.Schedulers;
 import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceException;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.batch.Batch;
 import no.ssb.lds.api.persistence.json.JsonDocument;
 import no.ssb.lds.api.persistence.json.JsonToFlattenedDocument;
 import no.ssb.lds.api.persistence.json.JsonTools;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
 import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentCodec;
 import no.ssb.lds.api.persistence.streaming.FragmentType;
 import org.assertj.core.api.Condition;
 import org.json.JSONException;
@@ -17,16 +25,26 @@ import org.skyscreamer.jsonassert.JSONAssert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.stream.Stream;
 
 import static java.time.ZonedDateTime.parse;
 import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
 import static no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge.doReadDocument;
 import static no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge.doReadDocuments;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class RxJsonPersistenceBridgeTest {
 
@@ -101,10 +119,261 @@ public class RxJsonPersistenceBridgeTest {
                 );
     }
 
+    @Test
+    public void testParallelDecodeKeepsDocumentOrder() {
+
+        SortedSet<Fragment> fragments = new TreeSet<>();
+        for (int i = 1; i < 50; i++) {
+            JsonDocument document = createDocument(String.format("id%02d", i));
+            createFragments(document, capacity).forEachRemaining(fragments::add);
+        }
+        Flowable<Fragment> fragmentFlowable = Flowable.fromIterable(fragments);
+
+        List<String> ids = RxJsonPersistenceBridge.toDocuments(fragmentFlowable, capacity, false,
+                QueryMemoryBudget.unlimited(), 4, Schedulers.computation())
+                .map(document -> document.key().id())
+                .toList()
+                .blockingGet();
+
+        assertThat(ids).hasSize(49).isSorted();
+    }
+
+
+    @Test
+    public void testProviderCapabilitiesDoNotChangeResults() {
+        InMemoryRxPersistence capable = new InMemoryRxPersistence();
+        InMemoryRxPersistence incapable = new InMemoryRxPersistence() {
+            @Override
+            public Set<PersistenceCapability> capabilities() {
+                return Set.of();
+            }
+        };
+        assertThat(capable.capabilities()).contains(PersistenceCapability.ORDERED_SCANS, PersistenceCapability.LIMIT_PUSH_DOWN);
+
+        List<Range<String>> ranges = List.of(Range.unbounded(), Range.first(3), Range.last(3), Range.firstAfter(2, "id04"),
+                Range.lastBefore(2, "id04"), Range.between("id02", "id07"));
+        List<List<String>> results = new ArrayList<>();
+        for (RxPersistence provider : List.of(capable, incapable)) {
+            RxJsonPersistenceBridge bridge = new RxJsonPersistenceBridge(provider, capacity);
+            try (Transaction tx = bridge.createTransaction(false)) {
+                for (int i = 1; i < 10; i++) {
+                    bridge.createOrOverwrite(tx, createDocument(String.format("id%02d", i)), null).blockingAwait();
+                }
+            }
+            List<String> ids = new ArrayList<>();
+            try (Transaction tx = bridge.createTransaction(true)) {
+                for (Range<String> range : ranges) {
+                    bridge.readDocuments(tx, parse("2001-01-01T00:00:00.000Z"), "ns", "entity", range)
+                            .map(document -> document.key().id())
+                            .blockingForEach(ids::add);
+                    ids.add("|");
+                }
+                bridge.readDocuments(tx, parse("2001-01-01T00:00:00.000Z"), "ns", "entity", List.of("id05", "id01", "id03"))
+                        .map(document -> document.key().id())
+                        .blockingForEach(ids::add);
+            }
+            results.add(ids);
+        }
+
+        assertThat(results.get(0)).isEqualTo(results.get(1));
+        assertThat(results.get(0)).startsWith("id01", "id02", "id03", "id04", "id05", "id06", "id07", "id08", "id09", "|",
+                "id01", "id02", "id03", "|", "id09", "id08", "id07", "|");
+        assertThat(results.get(0)).endsWith("id01", "id03", "id05");
+    }
+
+    @Test
+    public void testStreamDocumentSpillsLargeDocuments() throws Exception {
+        Path spillDirectory = Files.createTempDirectory("stream-document-test");
+        try {
+            RxJsonPersistenceBridge bridge = new RxJsonPersistenceBridge(new InMemoryRxPersistence(), 8,
+                    RxJsonPersistenceBridge.Options.defaults().withSortMemoryBudget(256, spillDirectory));
+            JsonDocument document = createDocument("id01");
+            try (Transaction tx = bridge.createTransaction(false)) {
+                bridge.createOrOverwrite(tx, document, null).blockingAwait();
+            }
+
+            StringWriter writer = new StringWriter();
+            try (Transaction tx = bridge.createTransaction(true);
+                 JsonGenerator generator = JsonTools.mapper.getFactory().createGenerator(writer)) {
+                assertThat(bridge.streamDocument(tx, parse("2001-01-01T00:00:00.000Z"), "ns", "entity", "id01", generator)
+                        .blockingGet()).isTrue();
+            }
+            JSONAssert.assertEquals(JsonTools.toJson(document.jackson()), writer.toString(), true);
+            try (Stream<Path> files = Files.list(spillDirectory)) {
+                assertThat(files.count()).isEqualTo(0);
+            }
+        } finally {
+            Files.deleteIfExists(spillDirectory);
+        }
+    }
+
+    private long documentBytes() {
+        long bytes = 0;
+        for (Iterator<Fragment> it = createFragments(createDocument("id01"), capacity); it.hasNext(); ) {
+            bytes += FragmentCodec.estimateHeapSize(it.next());
+        }
+        return bytes;
+    }
+
+    private RxJsonPersistenceBridge budgetedBridge(RxPersistence provider, long maxBytesInFlight) {
+        RxJsonPersistenceBridge bridge = new RxJsonPersistenceBridge(provider, capacity,
+                RxJsonPersistenceBridge.Options.defaults().withQueryMemoryBudget(maxBytesInFlight));
+        try (Transaction tx = bridge.createTransaction(false)) {
+            for (int i = 1; i < 10; i++) {
+                bridge.createOrOverwrite(tx, createDocument(String.format("id%02d", i)), null).blockingAwait();
+            }
+        }
+        return bridge;
+    }
+
+    private static InMemoryRxPersistence unorderedProvider() {
+        return new InMemoryRxPersistence() {
+            @Override
+            public Set<PersistenceCapability> capabilities() {
+                return Set.of();
+            }
+        };
+    }
+
+    @Test
+    public void testQueryMemoryBudgetIsReleasedAsDocumentsComplete() {
+        long documentBytes = documentBytes();
+        RxJsonPersistenceBridge bridge = budgetedBridge(new InMemoryRxPersistence(), 4 * documentBytes);
+
+        try (Transaction tx = bridge.createTransaction(true)) {
+            long count = bridge.readDocuments(tx, parse("2001-01-01T00:00:00.000Z"), "ns", "entity", Range.unbounded())
+                    .count().blockingGet();
+            assertThat(count).isEqualTo(9);
+        }
+        assertThat(bridge.queryMemoryHighWaterMarkBytes()).isBetween(documentBytes, 4 * documentBytes);
+    }
+
+    @Test
+    public void testQueryMemoryBudgetFailsFastWhenExceeded() {
+        long documentBytes = documentBytes();
+        // Without ordered scans every fragment of the query is buffered for the resort.
+        RxJsonPersistenceBridge bridge = budgetedBridge(unorderedProvider(), 4 * documentBytes);
+
+        try (Transaction tx = bridge.createTransaction(true)) {
+            assertThatThrownBy(() -> bridge.readDocuments(tx, parse("2001-01-01T00:00:00.000Z"), "ns", "entity", Range.unbounded())
+                    .blockingSubscribe())
+                    .isInstanceOf(PersistenceException.class)
+                    .hasMessageContaining("memory budget");
+        }
+        assertThat(bridge.queryMemoryHighWaterMarkBytes()).isGreaterThan(4 * documentBytes);
+    }
+
+    @Test
+    public void testQueryMemoryBudgetIsCreatedPerSubscription() {
+        long documentBytes = documentBytes();
+        // Room for one fully buffered query, but not for two.
+        RxJsonPersistenceBridge bridge = budgetedBridge(unorderedProvider(), 12 * documentBytes);
+
+        try (Transaction tx = bridge.createTransaction(true)) {
+            Flowable<JsonDocument> documents = bridge.readDocuments(tx, parse("2001-01-01T00:00:00.000Z"), "ns", "entity",
+                    Range.unbounded());
+            long count = Flowable.zip(documents, documents, (first, second) -> first.key().id())
+                    .count().blockingGet();
+            assertThat(count).isEqualTo(9);
+        }
+        assertThat(bridge.queryMemoryHighWaterMarkBytes()).isBetween(9 * documentBytes, 12 * documentBytes);
+    }
+
+    @Test
+    public void testQueryMemoryBudgetTracksBytesInFlight() {
+        SortedSet<Fragment> fragments = new TreeSet<>();
+        for (int i = 1; i < 5; i++) {
+            createFragments(createDocument(String.format("id%02d", i)), capacity).forEachRemaining(fragments::add);
+        }
+        QueryMemoryBudget budget = QueryMemoryBudget.unlimited();
+
+        long count = RxJsonPersistenceBridge.toDocuments(budget.track(Flowable.fromIterable(fragments)), capacity, false, budget)
+                .count().blockingGet();
+
+        assertThat(count).isEqualTo(4);
+        assertThat(budget.bytesInFlight()).isEqualTo(0);
+        assertThat(budget.highWaterMarkBytes()).isBetween(documentBytes(), 4 * documentBytes());
+    }
+
+    @Test
+    public void testDeleteBatchGroupWithMatchCriteria() throws Exception {
+        RxJsonPersistenceBridge bridge = new RxJsonPersistenceBridge(new InMemoryRxPersistence(), capacity);
+        String beforePrefix = "ab" + Character.MAX_VALUE + "x";
+        List<String> ids = List.of("aa1", "ab", beforePrefix, "acone", "actwo", "acthree", "ad", "the-cat-id", "zzz");
+        try (Transaction tx = bridge.createTransaction(false)) {
+            for (String id : ids) {
+                bridge.createOrOverwrite(tx, createDocument("Cat", id, parse("2000-01-01T00:00:00.000Z")), null).blockingAwait();
+            }
+        }
+
+        Batch batch = new Batch(mapper.readTree("{\"operation\":\"delete\",\"type\":\"Cat\"," +
+                "\"timestamp\":\"2001-01-01T00:00:00.000Z\",\"entries\":[{\"id\":\"zzz\"}],\"match\":{\"or\":[" +
+                "{\"id\":\"the-cat-id\"},{\"and\":[{\"id-starts-with\":\"ac\"},{\"id-not-in\":[\"acone\",\"actwo\"]}]}]}}"));
+        TransactionStatistics statistics;
+        try (Transaction tx = bridge.createTransaction(false)) {
+            statistics = bridge.applyBatch(tx, batch, "ns", null, false).blockingGet();
+        }
+
+        List<String> remaining = new ArrayList<>();
+        try (Transaction tx = bridge.createTransaction(true)) {
+            bridge.readDocuments(tx, parse("2002-01-01T00:00:00.000Z"), "ns", "Cat", Range.unbounded())
+                    .map(document -> document.key().id())
+                    .blockingForEach(remaining::add);
+        }
+        assertThat(remaining).containsExactly("aa1", "ab", beforePrefix, "acone", "actwo", "ad");
+        assertThat(statistics.get(TransactionStatistics.counter("batch.delete"))).isEqualTo(3);
+    }
+
+    @Test
+    public void testApplyBatchUsesConfiguredBulkDelete() throws Exception {
+        RxPersistenceTest.RecordingPersistence provider = new RxPersistenceTest.RecordingPersistence();
+        RxJsonPersistenceBridge bridge = new RxJsonPersistenceBridge(provider, capacity,
+                RxJsonPersistenceBridge.Options.defaults().withBulkDelete(2, 1));
+        try (Transaction tx = bridge.createTransaction(false)) {
+            for (String id : List.of("c1", "c2", "c3", "c4", "c5")) {
+                bridge.createOrOverwrite(tx, createDocument("Cat", id, parse("2000-01-01T00:00:00.000Z")), null).blockingAwait();
+            }
+        }
+        provider.batches.clear();
+
+        Batch batch = new Batch(mapper.readTree("{\"operation\":\"delete\",\"type\":\"Cat\"," +
+                "\"timestamp\":\"2001-01-01T00:00:00.000Z\",\"entries\":[{\"id\":\"c1\"}]," +
+                "\"match\":{\"id-in\":[\"c3\",\"c4\",\"c5\"]}}"));
+        try (Transaction tx = bridge.createTransaction(false)) {
+            bridge.applyBatch(tx, batch, "ns", null, false).blockingGet();
+        }
+
+        // the entry, then the three matched documents, in batches of at most two delete-markers
+        assertThat(provider.batches.stream().map(List::size)).containsExactly(1, 2, 1);
+    }
+
+    @Test
+    public void testResolveMatchInBatchGroupTakesSnapshotWhenSubscribed() throws Exception {
+        RxJsonPersistenceBridge bridge = new RxJsonPersistenceBridge(new InMemoryRxPersistence(), capacity);
+        Batch batch = new Batch(mapper.readTree("{\"operation\":\"delete\",\"type\":\"Cat\",\"match\":{\"id-starts-with\":\"c\"}}"));
+        Batch.DeleteGroup group = (Batch.DeleteGroup) batch.groups().get(0);
+
+        ZonedDateTime written = ZonedDateTime.now(ZoneOffset.UTC).plusNanos(50_000_000);
+        try (Transaction tx = bridge.createTransaction(false)) {
+            bridge.createOrOverwrite(tx, createDocument("Cat", "c1", written), null).blockingAwait();
+        }
+
+        try (Transaction tx = bridge.createTransaction(true)) {
+            Flowable<String> matches = bridge.resolveMatchInBatchGroup(tx, group, "ns", null);
+            while (!ZonedDateTime.now(ZoneOffset.UTC).isAfter(written)) {
+                Thread.onSpinWait();
+            }
+            assertThat(matches.toList().blockingGet()).containsExactly("c1");
+        }
+    }
 
     private JsonDocument createDocument(String id) {
+        return createDocument("entity", id, parse("2000-01-01T00:00:00.000Z"));
+    }
+
+    private JsonDocument createDocument(String entity, String id, ZonedDateTime timestamp) {
         return new JsonDocument(
-                new DocumentKey("ns", "entity", id, parse("2000-01-01T00:00:00.000Z")),
+                new DocumentKey("ns", entity, id, timestamp),
                 createComplexObject(id)
         );
     }
@@ -0,0 +1,90 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import io.reactivex.Flowable;
+import io.reactivex.processors.PublishProcessor;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.TestSubscriber;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class RxMergeToolsTest {
+
+    @Test
+    public void thatOrderedSourcesAreMergedInOrder() {
+        List<Flowable<Integer>> sources = List.of(
+                Flowable.just(1, 4, 7, 10).subscribeOn(Schedulers.io()),
+                Flowable.just(2, 5, 8).subscribeOn(Schedulers.io()),
+                Flowable.<Integer>empty(),
+                Flowable.just(3, 6, 9, 11, 12).subscribeOn(Schedulers.io())
+        );
+        List<Integer> merged = RxMergeTools.mergeOrdered(sources, Comparator.<Integer>naturalOrder(), 2)
+                .toList().blockingGet();
+        assertEquals(merged, List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12));
+    }
+
+    @Test
+    public void thatEqualItemsAreEmittedInSourceOrder() {
+        List<Flowable<Map.Entry<Integer, String>>> sources = List.of(
+                Flowable.just(Map.entry(1, "a1"), Map.entry(2, "a2")),
+                Flowable.just(Map.entry(1, "b1"), Map.entry(2, "b2"))
+        );
+        List<String> merged = RxMergeTools.mergeOrdered(sources, Map.Entry.comparingByKey(), 1)
+                .map(Map.Entry::getValue).toList().blockingGet();
+        assertEquals(merged, List.of("a1", "b1", "a2", "b2"));
+    }
+
+    @Test
+    public void thatMergeWaitsForEverySourceWithoutBlocking() {
+        PublishProcessor<Integer> first = PublishProcessor.create();
+        PublishProcessor<Integer> second = PublishProcessor.create();
+        TestSubscriber<Integer> subscriber = RxMergeTools.mergeOrdered(List.of(first, second), Comparator.<Integer>naturalOrder(), 4)
+                .test();
+
+        // Both sources are driven from the requesting thread, so a blocking merge would never return here.
+        first.onNext(1);
+        first.onNext(3);
+        subscriber.assertNoValues();
+        second.onNext(2);
+        subscriber.assertValues(1, 2);
+        second.onComplete();
+        subscriber.assertValues(1, 2, 3);
+        subscriber.assertNotComplete();
+        first.onComplete();
+        subscriber.assertResult(1, 2, 3);
+    }
+
+    @Test
+    public void thatDownstreamRequestsAreHonored() {
+        List<Integer> requested = new ArrayList<>();
+        List<Flowable<Integer>> sources = List.of(
+                Flowable.range(0, 100).map(i -> i * 2).doOnRequest(n -> requested.add((int) n)),
+                Flowable.range(0, 100).map(i -> i * 2 + 1)
+        );
+        TestSubscriber<Integer> subscriber = RxMergeTools.mergeOrdered(sources, Comparator.<Integer>naturalOrder(), 8)
+                .test(3);
+        subscriber.assertValues(0, 1, 2);
+        assertEquals(requested, List.of(8));
+        subscriber.requestMore(200);
+        subscriber.assertValueCount(200).assertComplete();
+    }
+
+    @Test
+    public void thatSourceErrorsCancelTheOtherSources() {
+        PublishProcessor<Integer> first = PublishProcessor.create();
+        PublishProcessor<Integer> second = PublishProcessor.create();
+        TestSubscriber<Integer> subscriber = RxMergeTools.mergeOrdered(List.of(first, second), Comparator.<Integer>naturalOrder(), 4)
+                .test();
+
+        first.onNext(1);
+        second.onError(new IllegalStateException("boom"));
+        subscriber.assertNoValues().assertError(IllegalStateException.class);
+        assertFalse(first.hasSubscribers());
+    }
+}
@@ -0,0 +1,156 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.persistence.routing.ShardMap;
+import no.ssb.lds.api.persistence.routing.ShardedRxPersistence;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import no.ssb.lds.api.persistence.streaming.FragmentType;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class RxPersistenceTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    private RecordingPersistence provider;
+
+    @BeforeMethod
+    public void setUp() {
+        provider = new RecordingPersistence();
+    }
+
+    /**
+     * Records the batches it is given, and keeps each batch in flight for a while to expose concurrent writes.
+     */
+    static class RecordingPersistence extends InMemoryRxPersistence {
+        final List<List<Fragment>> batches = Collections.synchronizedList(new ArrayList<>());
+        final List<String> markedIds = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        long writeDelayMillis;
+
+        @Override
+        public Completable createOrOverwriteBatched(Transaction tx, Flowable<List<Fragment>> batches) {
+            return batches.concatMapCompletable(batch -> Completable.defer(() -> {
+                this.batches.add(batch);
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                return Completable.timer(writeDelayMillis, TimeUnit.MILLISECONDS)
+                        .andThen(super.createOrOverwriteBatched(tx, Flowable.just(batch)))
+                        .doOnTerminate(inFlight::decrementAndGet);
+            }));
+        }
+
+        @Override
+        public Completable markDeleted(Transaction transaction, String namespace, String entity, String id,
+                                       ZonedDateTime version, PersistenceDeletePolicy policy) {
+            markedIds.add(id);
+            return super.markDeleted(transaction, namespace, entity, id, version, policy);
+        }
+    }
+
+    static List<DocumentKey> keys(int count) {
+        List<DocumentKey> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(new DocumentKey("ns", "cat", String.format("id%02d", i), T2));
+        }
+        return keys;
+    }
+
+    @Test
+    public void thatMarkersAreWrittenForEveryKeyInBatches() {
+        try (Transaction tx = provider.createTransaction(false)) {
+            provider.markDeleted(tx, Flowable.fromIterable(keys(10)), 4, 1).blockingAwait();
+        }
+
+        assertEquals(provider.batches.stream().map(List::size).collect(Collectors.toList()), List.of(4, 4, 2));
+        List<Fragment> markers = provider.batches.stream().flatMap(List::stream).collect(Collectors.toList());
+        assertEquals(markers.stream().map(Fragment::id).collect(Collectors.toList()),
+                keys(10).stream().map(DocumentKey::id).collect(Collectors.toList()));
+        assertTrue(markers.stream().allMatch(fragment -> fragment.fragmentType() == FragmentType.DELETED
+                && fragment.timestamp().toInstant().equals(T2.toInstant())));
+    }
+
+    @Test
+    public void thatConcurrentBatchesAreLimited() {
+        provider.writeDelayMillis = 20;
+        try (Transaction tx = provider.createTransaction(false)) {
+            provider.markDeleted(tx, Flowable.fromIterable(keys(20)), 2, 3).blockingAwait();
+        }
+
+        assertEquals(provider.batches.size(), 10);
+        assertTrue(provider.maxInFlight.get() > 1, "batches were not written concurrently");
+        assertTrue(provider.maxInFlight.get() <= 3, "max in flight " + provider.maxInFlight.get());
+    }
+
+    @Test
+    public void thatEmptyInputWritesNothing() {
+        try (Transaction tx = provider.createTransaction(false)) {
+            provider.markDeleted(tx, Flowable.empty(), 4, 2).blockingAwait();
+        }
+        assertEquals(provider.batches.size(), 0);
+    }
+
+    @Test
+    public void thatBridgeMarksDocumentsDeleted() {
+        RxJsonPersistenceBridge bridge = new RxJsonPersistenceBridge(provider, 64);
+        try (Transaction tx = bridge.createTransaction(false)) {
+            for (int i = 0; i < 5; i++) {
+                JsonNode data = mapper.createObjectNode().put("name", "cat " + i);
+                bridge.createOrOverwrite(tx, new JsonDocument(new DocumentKey("ns", "cat", String.format("id%02d", i), T1), data), null)
+                        .blockingAwait();
+            }
+        }
+
+        try (Transaction tx = bridge.createTransaction(false)) {
+            bridge.markDocumentsDeleted(tx, Flowable.fromIterable(keys(3)), 2, 2).blockingAwait();
+        }
+
+        try (Transaction tx = bridge.createTransaction(true)) {
+            List<String> ids = bridge.readDocuments(tx, T2, "ns", "cat", Range.unbounded())
+                    .map(document -> document.key().id())
+                    .toList()
+                    .blockingGet();
+            assertEquals(ids, List.of("id03", "id04"));
+            List<JsonDocument> versions = bridge.readDocumentVersions(tx, "ns", "cat", "id00", Range.unbounded())
+                    .toList()
+                    .blockingGet();
+            assertEquals(versions.size(), 2);
+            assertTrue(versions.get(1).deleted());
+        }
+    }
+
+    @Test
+    public void thatDefaultMarksEveryKeyThroughTheProvider() {
+        // The sharded router does not override the bulk call, so the default is used.
+        RxPersistence router = new ShardedRxPersistence(List.of(provider), ShardMap.hashed(1));
+        try (Transaction tx = router.createTransaction(false)) {
+            router.markDeleted(tx, Flowable.fromIterable(keys(5)), 2, 2).blockingAwait();
+        }
+
+        assertEquals(new TreeSet<>(provider.markedIds), keys(5).stream().map(DocumentKey::id).collect(Collectors.toSet()));
+        assertEquals(provider.markedIds.size(), 5);
+        assertEquals(provider.batches.size(), 0);
+    }
+}
@@ -0,0 +1,322 @@
+package no.ssb.lds.api.persistence.reactivex;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.Single;
+import no.ssb.lds.api.json.JsonNavigationPath;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceDeletePolicy;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionStatistics;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.specification.Specification;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class WriteBufferingRxJsonPersistenceTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    private RxJsonPersistence persistence;
+
+    @BeforeMethod
+    public void setUp() {
+        persistence = new WriteBufferingRxJsonPersistence(new StoreRxJsonPersistence(), 100);
+    }
+
+    /**
+     * A delegate that keeps the versions of the documents of a single entity in memory. Writes are applied when the
+     * transaction is committed, and are not visible to reads within the transaction.
+     */
+    static class StoreRxJsonPersistence implements RxJsonPersistence {
+
+        final TreeMap<String, TreeMap<ZonedDateTime, JsonDocument>> versionsById = new TreeMap<>();
+
+        class StoreTransaction implements Transaction {
+            final List<JsonDocument> pending = new ArrayList<>();
+
+            @Override
+            public CompletableFuture<TransactionStatistics> commit() {
+                synchronized (versionsById) {
+                    for (JsonDocument document : pending) {
+                        versionsById.computeIfAbsent(document.key().id(), id -> new TreeMap<>())
+                                .put(document.key().timestamp(), document);
+                    }
+                }
+                pending.clear();
+                return CompletableFuture.completedFuture(new TransactionStatistics());
+            }
+
+            @Override
+            public CompletableFuture<TransactionStatistics> cancel() {
+                pending.clear();
+                return CompletableFuture.completedFuture(new TransactionStatistics());
+            }
+        }
+
+        static <K> List<JsonDocument> select(NavigableMap<K, JsonDocument> documents, Range<K> range) {
+            NavigableMap<K, JsonDocument> selected = documents;
+            if (range.hasAfter()) {
+                selected = selected.tailMap(range.getAfter(), false);
+            }
+            if (range.hasBefore()) {
+                selected = selected.headMap(range.getBefore(), false);
+            }
+            List<JsonDocument> result = new ArrayList<>((range.isBackward() ? selected.descendingMap() : selected).values());
+            return range.isLimited() ? result.subList(0, Math.min(range.getLimit(), result.size())) : result;
+        }
+
+        JsonDocument latest(String id, ZonedDateTime snapshot) {
+            synchronized (versionsById) {
+                TreeMap<ZonedDateTime, JsonDocument> versions = versionsById.get(id);
+                if (versions == null || versions.floorEntry(snapshot) == null) {
+                    return null;
+                }
+                JsonDocument document = versions.floorEntry(snapshot).getValue();
+                return document.deleted() ? null : document;
+            }
+        }
+
+        @Override
+        public Maybe<JsonDocument> readDocument(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
+            return Maybe.fromCallable(() -> latest(id, snapshot));
+        }
+
+        @Override
+        public Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, Range<String> range) {
+            return Flowable.defer(() -> {
+                TreeMap<String, JsonDocument> visible = new TreeMap<>();
+                synchronized (versionsById) {
+                    for (String id : versionsById.keySet()) {
+                        JsonDocument document = latest(id, snapshot);
+                        if (document != null) {
+                            visible.put(id, document);
+                        }
+                    }
+                }
+                return Flowable.fromIterable(select(visible, range));
+            });
+        }
+
+        @Override
+        public Flowable<JsonDocument> readDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, Iterable<String> ids) {
+            return Flowable.defer(() -> {
+                TreeSet<String> sortedIds = new TreeSet<>();
+                ids.forEach(sortedIds::add);
+                return Flowable.fromIterable(sortedIds).concatMapMaybe(id -> readDocument(tx, snapshot, ns, entityName, id));
+            });
+        }
+
+        @Override
+        public Flowable<JsonDocument> readDocumentVersions(Transaction tx, String ns, String entityName, String id, Range<ZonedDateTime> range) {
+            return Flowable.defer(() -> {
+                synchronized (versionsById) {
+                    return Flowable.fromIterable(select(versionsById.getOrDefault(id, new TreeMap<>()), range));
+                }
+            });
+        }
+
+        @Override
+        public Flowable<JsonDocument> readTargetDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String entityName,
+                                                          String id, JsonNavigationPath jsonNavigationPath, String targetEntityName,
+                                                          Range<String> range) {
+            return Flowable.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Flowable<JsonDocument> readSourceDocuments(Transaction tx, ZonedDateTime snapshot, String ns, String targetEntityName,
+                                                          String targetId, JsonNavigationPath relationPath, String sourceEntityName,
+                                                          Range<String> range) {
+            return Flowable.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Completable createOrOverwrite(Transaction tx, Flowable<JsonDocument> documentFlowable, Specification specification) {
+            return documentFlowable.doOnNext(((StoreTransaction) tx).pending::add).ignoreElements();
+        }
+
+        @Override
+        public Completable deleteDocument(Transaction tx, String ns, String entityName, String id, ZonedDateTime version,
+                                          PersistenceDeletePolicy policy) {
+            return Completable.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Completable deleteAllDocumentVersions(Transaction tx, String ns, String entity, String id, PersistenceDeletePolicy policy) {
+            return Completable.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Completable deleteAllEntities(Transaction tx, String namespace, String entity, Specification specification) {
+            return Completable.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Completable markDocumentDeleted(Transaction transaction, String ns, String entityName, String id,
+                                               ZonedDateTime version, PersistenceDeletePolicy policy) {
+            return Completable.fromAction(() -> ((StoreTransaction) transaction).pending.add(
+                    new JsonDocument(new DocumentKey(ns, entityName, id, version), (JsonNode) null)));
+        }
+
+        @Override
+        public Single<Boolean> hasPrevious(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
+            return readDocuments(tx, snapshot, ns, entityName, Range.lastBefore(1, id)).isEmpty().map(empty -> !empty);
+        }
+
+        @Override
+        public Single<Boolean> hasNext(Transaction tx, ZonedDateTime snapshot, String ns, String entityName, String id) {
+            return readDocuments(tx, snapshot, ns, entityName, Range.firstAfter(1, id)).isEmpty().map(empty -> !empty);
+        }
+
+        @Override
+        public Transaction createTransaction(boolean readOnly) {
+            return new StoreTransaction();
+        }
+
+        @Override
+        public Flowable<JsonDocument> findDocument(Transaction tx, ZonedDateTime snapshot, String namespace, String entityName,
+                                                   JsonNavigationPath path, String value, Range<String> range) {
+            return Flowable.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static JsonDocument document(String id, ZonedDateTime timestamp, String name) {
+        JsonNode data = mapper.createObjectNode().put("name", name);
+        return new JsonDocument(new DocumentKey("ns", "cat", id, timestamp), data);
+    }
+
+    List<String> ids(Transaction tx, Range<String> range) {
+        return persistence.readDocuments(tx, T2, "ns", "cat", range)
+                .map(document -> document.key().id())
+                .toList()
+                .blockingGet();
+    }
+
+    @Test
+    public void thatWritesAreReadBackBeforeCommit() {
+        try (Transaction tx = persistence.createTransaction(false)) {
+            persistence.createOrOverwrite(tx, document("2", T1, "Garfield"), null).blockingAwait();
+            persistence.createOrOverwrite(tx, document("4", T1, "Tom"), null).blockingAwait();
+        }
+
+        Transaction tx = persistence.createTransaction(false);
+        persistence.createOrOverwrite(tx, document("2", T2, "Grumpy"), null).blockingAwait();
+        persistence.createOrOverwrite(tx, document("3", T1, "Felix"), null).blockingAwait();
+        persistence.markDocumentDeleted(tx, "ns", "cat", "4", T2, null).blockingAwait();
+
+        assertEquals(persistence.readDocument(tx, T2, "ns", "cat", "2").blockingGet().jackson().get("name").textValue(), "Grumpy");
+        assertEquals(persistence.readDocument(tx, T1, "ns", "cat", "2").blockingGet().jackson().get("name").textValue(), "Garfield");
+        assertTrue(persistence.readDocument(tx, T2, "ns", "cat", "4").isEmpty().blockingGet());
+        assertEquals(ids(tx, Range.unbounded()), List.of("2", "3"));
+        assertEquals(ids(tx, Range.first(1)), List.of("2"));
+        assertEquals(ids(tx, Range.last(1)), List.of("3"));
+
+        try (Transaction other = persistence.createTransaction(true)) {
+            assertEquals(ids(other, Range.unbounded()), List.of("2", "4"));
+        }
+
+        TransactionStatistics statistics = tx.commit().join();
+        assertEquals(statistics.get(WriteBufferingRxJsonPersistence.FLUSHED_DOCUMENTS).sum(), 3);
+        try (Transaction other = persistence.createTransaction(true)) {
+            assertEquals(ids(other, Range.unbounded()), List.of("2", "3"));
+        }
+    }
+
+    @Test
+    public void thatCancelDiscardsTheBuffer() {
+        Transaction tx = persistence.createTransaction(false);
+        persistence.createOrOverwrite(tx, document("1", T1, "Garfield"), null).blockingAwait();
+        tx.cancel().join();
+
+        try (Transaction other = persistence.createTransaction(true)) {
+            assertEquals(ids(other, Range.unbounded()), List.of());
+        }
+    }
+
+    @Test
+    public void thatBufferedVersionsAreMergedWithProvidedVersions() {
+        try (Transaction tx = persistence.createTransaction(false)) {
+            persistence.createOrOverwrite(tx, document("1", T1, "Garfield"), null).blockingAwait();
+        }
+
+        try (Transaction tx = persistence.createTransaction(false)) {
+            persistence.createOrOverwrite(tx, document("1", T2, "Grumpy"), null).blockingAwait();
+            List<String> names = persistence.readDocumentVersions(tx, "ns", "cat", "1", Range.unbounded())
+                    .map(document -> document.jackson().get("name").textValue())
+                    .toList()
+                    .blockingGet();
+            assertEquals(names, List.of("Garfield", "Grumpy"));
+        }
+    }
+
+    @Test
+    public void thatReadsByIdsSeeTheBuffer() {
+        try (Transaction tx = persistence.createTransaction(false)) {
+            persistence.createOrOverwrite(tx, document("1", T1, "Garfield"), null).blockingAwait();
+            persistence.createOrOverwrite(tx, document("3", T1, "Tom"), null).blockingAwait();
+        }
+
+        try (Transaction tx = persistence.createTransaction(false)) {
+            persistence.createOrOverwrite(tx, document("2", T1, "Felix"), null).blockingAwait();
+            persistence.markDocumentDeleted(tx, "ns", "cat", "3", T2, null).blockingAwait();
+            List<String> ids = persistence.readDocuments(tx, T2, "ns", "cat", List.of("3", "2", "1"))
+                    .map(document -> document.key().id())
+                    .toList()
+                    .blockingGet();
+            assertEquals(ids, List.of("1", "2"));
+        }
+    }
+
+    @Test
+    public void thatFullBufferIsFlushedBeforeCommit() {
+        persistence = new WriteBufferingRxJsonPersistence(new StoreRxJsonPersistence(), 2);
+
+        Transaction tx = persistence.createTransaction(false);
+        for (int i = 1; i <= 5; i++) {
+            persistence.createOrOverwrite(tx, document(String.valueOf(i), T1, "Cat " + i), null).blockingAwait();
+        }
+        TransactionStatistics statistics = tx.commit().join();
+
+        // two early flushes of two documents each, then the last document at commit
+        assertEquals(statistics.get(WriteBufferingRxJsonPersistence.FLUSHED_DOCUMENTS).count(), 3);
+        assertEquals(statistics.get(WriteBufferingRxJsonPersistence.FLUSHED_DOCUMENTS).sum(), 5);
+        try (Transaction other = persistence.createTransaction(true)) {
+            assertEquals(ids(other, Range.unbounded()), List.of("1", "2", "3", "4", "5"));
+        }
+    }
+
+    @Test
+    public void thatOverlayMergesInStreamOrder() {
+        List<JsonDocument> provided = List.of(document("1", T1, "a"), document("3", T1, "b"), document("5", T1, "c"));
+        List<JsonDocument> buffered = List.of(document("0", T1, "x"), document("3", T2, "y"), document("6", T1, "z"));
+
+        List<String> names = WriteBufferingRxJsonPersistence.overlay(Flowable.fromIterable(provided), buffered,
+                document -> document.key().id(), Comparator.naturalOrder(), WriteBufferingRxJsonPersistence::newest)
+                .map(document -> document.jackson().get("name").textValue())
+                .toList()
+                .blockingGet();
+
+        assertEquals(names, List.of("x", "a", "y", "c", "z"));
+    }
+}
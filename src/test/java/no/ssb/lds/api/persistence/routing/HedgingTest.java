@@ -0,0 +1,46 @@
+package no.ssb.lds.api.persistence.routing;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+
+import static org.testng.Assert.assertEquals;
+
+public class HedgingTest {
+
+    @Test
+    public void thatTheMaxDelayIsUsedUntilEnoughReadsAreSeen() {
+        Hedging hedging = new Hedging(95, Duration.ofNanos(1), Duration.ofNanos(1000), 100);
+        for (int i = 0; i < Hedging.MIN_SAMPLES - 1; i++) {
+            hedging.record(10);
+        }
+        assertEquals(hedging.delayNanos(), 1000);
+    }
+
+    @Test
+    public void thatTheDelayFollowsThePercentile() {
+        Hedging hedging = new Hedging(75, Duration.ofNanos(1), Duration.ofNanos(1000), 64);
+        for (int i = 1; i <= 64; i++) {
+            hedging.record(i);
+        }
+        assertEquals(hedging.delayNanos(), 48);
+        // The oldest latencies leave the window.
+        for (int i = 0; i < 64; i++) {
+            hedging.record(500);
+        }
+        assertEquals(hedging.delayNanos(), 500);
+    }
+
+    @Test
+    public void thatTheDelayIsBounded() {
+        Hedging hedging = new Hedging(50, Duration.ofNanos(20), Duration.ofNanos(40), 64);
+        for (int i = 0; i < 64; i++) {
+            hedging.record(1);
+        }
+        assertEquals(hedging.delayNanos(), 20);
+        for (int i = 0; i < 64; i++) {
+            hedging.record(100);
+        }
+        assertEquals(hedging.delayNanos(), 40);
+    }
+}
@@ -0,0 +1,180 @@
+package no.ssb.lds.api.persistence.routing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.reactivex.Flowable;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.TransactionFactory;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import no.ssb.lds.api.persistence.streaming.Fragment;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class ReplicatedRxPersistenceTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    // The replicas are never written to, so a document that is found was read from the primary.
+    static ReplicatedRxPersistence replicated(ReplicatedRxPersistence.Balancing balancing, Duration readYourWrites) {
+        return new ReplicatedRxPersistence(new InMemoryRxPersistence(),
+                List.of(new InMemoryRxPersistence(), new InMemoryRxPersistence()), balancing, readYourWrites);
+    }
+
+    static void write(RxJsonPersistence persistence, TransactionFactory factory, String id) {
+        JsonNode data = mapper.createObjectNode().put("name", "Garfield");
+        try (Transaction tx = factory.createTransaction(false)) {
+            persistence.createOrOverwrite(tx, new JsonDocument(new DocumentKey("ns", "cat", id, T1), data), null).blockingAwait();
+        }
+    }
+
+    static JsonDocument read(RxJsonPersistence persistence, Transaction tx, String id) {
+        return persistence.readDocument(tx, T2, "ns", "cat", id).blockingGet();
+    }
+
+    static class RecordingHedging extends Hedging {
+        final List<Long> latencies = new CopyOnWriteArrayList<>();
+
+        RecordingHedging(Duration delay) {
+            super(95, delay, delay, 64);
+        }
+
+        @Override
+        synchronized void record(long nanos) {
+            latencies.add(nanos);
+            super.record(nanos);
+        }
+    }
+
+    @Test
+    public void thatReadOnlyTransactionsGoToReplicas() {
+        ReplicatedRxPersistence replicated = replicated(ReplicatedRxPersistence.Balancing.ROUND_ROBIN, Duration.ZERO);
+        RxJsonPersistence persistence = new RxJsonPersistenceBridge(replicated, 8);
+        write(persistence, replicated.transactionFactory(), "1");
+        try (Transaction tx = persistence.createTransaction(true)) {
+            assertTrue(((ReplicatedTransaction) tx).onReplica());
+            assertNull(read(persistence, tx, "1"));
+        }
+        try (Transaction tx = persistence.createTransaction(false)) {
+            assertFalse(((ReplicatedTransaction) tx).onReplica());
+            assertNotNull(read(persistence, tx, "1"));
+        }
+        assertEquals(replicated.statistics().get(ReplicatedRxPersistence.PRIMARY_TRANSACTIONS), 2);
+        assertEquals(replicated.statistics().get(ReplicatedRxPersistence.REPLICA_TRANSACTIONS), 1);
+    }
+
+    @Test
+    public void thatReplicasAreBalanced() {
+        ReplicatedRxPersistence roundRobin = replicated(ReplicatedRxPersistence.Balancing.ROUND_ROBIN, Duration.ZERO);
+        ReplicatedTransaction first = roundRobin.createTransaction(true);
+        ReplicatedTransaction second = roundRobin.createTransaction(true);
+        ReplicatedTransaction third = roundRobin.createTransaction(true);
+        assertEquals(first.replica.index, 0);
+        assertEquals(second.replica.index, 1);
+        assertEquals(third.replica.index, 0);
+
+        ReplicatedRxPersistence leastLoaded = replicated(ReplicatedRxPersistence.Balancing.LEAST_LOADED, Duration.ZERO);
+        ReplicatedTransaction open = leastLoaded.createTransaction(true);
+        for (int i = 0; i < 4; i++) {
+            try (ReplicatedTransaction tx = leastLoaded.createTransaction(true)) {
+                assertTrue(tx.replica != open.replica);
+            }
+        }
+        open.commit().join();
+        assertEquals(open.replica.inFlight.get(), 0);
+    }
+
+    @Test
+    public void thatSessionsReadTheirOwnWrites() {
+        ReplicatedRxPersistence replicated = replicated(ReplicatedRxPersistence.Balancing.ROUND_ROBIN, Duration.ofHours(1));
+        RxJsonPersistence persistence = new RxJsonPersistenceBridge(replicated, 8);
+        ReplicatedRxPersistence.Session session = replicated.session();
+        try (Transaction tx = session.createTransaction(true)) {
+            assertTrue(((ReplicatedTransaction) tx).onReplica());
+        }
+        write(persistence, session, "1");
+        try (Transaction tx = session.createTransaction(true)) {
+            assertNotNull(read(persistence, tx, "1"));
+        }
+        try (Transaction tx = replicated.session().createTransaction(true)) {
+            assertNull(read(persistence, tx, "1"));
+        }
+        assertEquals(replicated.statistics().get(ReplicatedRxPersistence.READ_YOUR_WRITES), 1);
+    }
+
+    @Test
+    public void thatSlowReadsAreHedgedOnAnotherReplica() {
+        InMemoryRxPersistence slow = new InMemoryRxPersistence() {
+            @Override
+            public Flowable<Fragment> read(Transaction tx, ZonedDateTime snapshot, String namespace, String entity, String id) {
+                return super.read(tx, snapshot, namespace, entity, id).delaySubscription(10, TimeUnit.SECONDS);
+            }
+        };
+        InMemoryRxPersistence fast = new InMemoryRxPersistence();
+        for (InMemoryRxPersistence replica : List.of(slow, fast)) {
+            RxJsonPersistence persistence = new RxJsonPersistenceBridge(replica, 8);
+            write(persistence, replica.transactionFactory(), "1");
+        }
+        RecordingHedging hedging = new RecordingHedging(Duration.ofMillis(50));
+        ReplicatedRxPersistence replicated = new ReplicatedRxPersistence(new InMemoryRxPersistence(), List.of(slow, fast),
+                ReplicatedRxPersistence.Balancing.ROUND_ROBIN, Duration.ZERO, hedging);
+        RxJsonPersistence persistence = new RxJsonPersistenceBridge(replicated, 8);
+
+        long start = System.nanoTime();
+        try (Transaction tx = persistence.createTransaction(true)) {
+            assertSame(((ReplicatedTransaction) tx).replica.persistence, slow);
+            assertNotNull(read(persistence, tx, "1"));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(replicated.statistics().get(ReplicatedRxPersistence.HEDGES), 1);
+        assertEquals(replicated.statistics().get(ReplicatedRxPersistence.HEDGE_WINS), 1);
+        // the hedge answered, so the latency of the slow replica is unknown
+        assertEquals(hedging.latencies, List.of());
+        assertEquals(replicated.replicas.get(0).inFlight.get(), 0);
+        assertEquals(replicated.replicas.get(1).inFlight.get(), 0);
+    }
+
+    @Test
+    public void thatReadsAnsweredBeforeTheHedgeDelayAreRecorded() {
+        InMemoryRxPersistence replica = new InMemoryRxPersistence();
+        write(new RxJsonPersistenceBridge(replica, 8), replica.transactionFactory(), "1");
+        RecordingHedging hedging = new RecordingHedging(Duration.ofSeconds(10));
+        ReplicatedRxPersistence replicated = new ReplicatedRxPersistence(new InMemoryRxPersistence(),
+                List.of(replica, new InMemoryRxPersistence()), ReplicatedRxPersistence.Balancing.ROUND_ROBIN, Duration.ZERO, hedging);
+        RxJsonPersistence persistence = new RxJsonPersistenceBridge(replicated, 8);
+
+        try (Transaction tx = persistence.createTransaction(true)) {
+            assertNotNull(read(persistence, tx, "1"));
+        }
+        assertEquals(replicated.statistics().get(ReplicatedRxPersistence.HEDGES), 0);
+        assertEquals(hedging.latencies.size(), 1);
+        assertTrue(hedging.latencies.get(0) < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void thatReadOnlyTransactionsCannotWrite() {
+        ReplicatedRxPersistence replicated = replicated(ReplicatedRxPersistence.Balancing.ROUND_ROBIN, Duration.ZERO);
+        RxJsonPersistence persistence = new RxJsonPersistenceBridge(replicated, 8);
+        JsonNode data = mapper.createObjectNode().put("name", "Garfield");
+        try (Transaction tx = persistence.createTransaction(true)) {
+            persistence.createOrOverwrite(tx, new JsonDocument(new DocumentKey("ns", "cat", "1", T1), data), null).blockingAwait();
+        }
+    }
+}
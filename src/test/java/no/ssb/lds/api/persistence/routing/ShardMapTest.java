@@ -0,0 +1,58 @@
+package no.ssb.lds.api.persistence.routing;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class ShardMapTest {
+
+    @Test
+    public void thatPinsAreParsed() {
+        ShardMap shardMap = ShardMap.parse(3, " ns/dog = 2 , other=1");
+
+        assertEquals(shardMap.shardCount(), 3);
+        assertEquals(shardMap.shardOf("ns", "dog", "d1"), 2);
+        assertEquals(shardMap.shardsOf("ns", "dog"), List.of(2));
+        assertEquals(shardMap.shardOf("other", "cat", "c1"), 1);
+        assertEquals(shardMap.shardsOf("other", "cat"), List.of(1));
+        assertEquals(shardMap.shardsOf("ns", "cat"), List.of(0, 1, 2));
+    }
+
+    @Test
+    public void thatEntityPinTakesPrecedenceOverNamespacePin() {
+        ShardMap shardMap = ShardMap.parse(3, "ns=1,ns/dog=2");
+
+        assertEquals(shardMap.shardOf("ns", "dog", "d1"), 2);
+        assertEquals(shardMap.shardOf("ns", "cat", "c1"), 1);
+    }
+
+    @Test
+    public void thatMissingPinsAreHashed() {
+        ShardMap parsed = ShardMap.parse(4, null);
+        ShardMap blank = ShardMap.parse(4, " ");
+
+        for (String id : List.of("a", "b", "c", "d", "e")) {
+            int expected = Math.floorMod(id.hashCode(), 4);
+            assertEquals(parsed.shardOf("ns", "cat", id), expected);
+            assertEquals(blank.shardOf("ns", "cat", id), expected);
+        }
+        assertEquals(parsed.shardsOf("ns", "cat"), List.of(0, 1, 2, 3));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void thatPinWithoutShardIsRejected() {
+        ShardMap.parse(2, "ns/dog");
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void thatPinWithInvalidShardIsRejected() {
+        ShardMap.parse(2, "ns/dog=one");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void thatPinToMissingShardIsRejected() {
+        ShardMap.parse(2, "ns/dog=2");
+    }
+}
@@ -0,0 +1,112 @@
+package no.ssb.lds.api.persistence.routing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceInitializer;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.InMemoryPersistenceInitializer;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ShardedPersistenceInitializerTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    @Test
+    public void thatAllProvidersAreRegistered() {
+        Set<String> providerIds = ServiceLoader.load(PersistenceInitializer.class).stream()
+                .map(provider -> provider.get().persistenceProviderId())
+                .collect(Collectors.toSet());
+
+        assertEquals(providerIds, Set.of("mem", "segment", "wal", "sharded", "replicated"));
+    }
+
+    @Test
+    public void thatShardProviderIsFound() {
+        assertTrue(ShardedPersistenceInitializer.findInitializer("mem") instanceof InMemoryPersistenceInitializer);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void thatUnknownShardProviderIsRejected() {
+        ShardedPersistenceInitializer.findInitializer("unknown");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void thatRoutingToRoutingProviderIsRejected() {
+        ShardedPersistenceInitializer.findInitializer("replicated");
+    }
+
+    @Test
+    public void thatPrefixedKeysOverrideUnprefixedKeys() {
+        Map<String, String> configuration = Map.of(
+                "persistence.wal.file", "default.wal",
+                "persistence.shard.1.persistence.wal.file", "shard-1.wal",
+                "persistence.fragment.capacity", "8"
+        );
+
+        Map<String, String> shard0 = ShardedPersistenceInitializer.overridden(configuration, "persistence.shard.0.");
+        Map<String, String> shard1 = ShardedPersistenceInitializer.overridden(configuration, "persistence.shard.1.");
+
+        assertEquals(shard0.get("persistence.wal.file"), "default.wal");
+        assertEquals(shard1.get("persistence.wal.file"), "shard-1.wal");
+        assertEquals(shard1.get("persistence.fragment.capacity"), "8");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void thatMissingShardCountIsRejected() {
+        new ShardedPersistenceInitializer().initialize("ns", Map.of(ShardedPersistenceInitializer.PROVIDER, "mem"), Set.of(), null);
+    }
+
+    @Test
+    public void thatShardsAreInitializedFromConfiguration() {
+        PersistenceInitializer initializer = ServiceLoader.load(PersistenceInitializer.class).stream()
+                .map(ServiceLoader.Provider::get)
+                .filter(candidate -> "sharded".equals(candidate.persistenceProviderId()))
+                .findFirst().orElseThrow();
+        RxJsonPersistence persistence = initializer.initialize("ns", Map.of(
+                ShardedPersistenceInitializer.PROVIDER, "mem",
+                ShardedPersistenceInitializer.COUNT, "2",
+                ShardedPersistenceInitializer.MAP, "ns/dog=1",
+                ShardedPersistenceInitializer.FRAGMENT_CAPACITY, "8"
+        ), Set.of(), null);
+        try (Transaction tx = persistence.createTransaction(false)) {
+            for (int i = 0; i < 10; i++) {
+                persistence.createOrOverwrite(tx, document("dog", "d" + i), null).blockingAwait();
+            }
+        }
+
+        ShardedRxPersistence sharded = (ShardedRxPersistence) ShardedPersistenceInitializer.provider(persistence);
+        assertEquals(readIds(new RxJsonPersistenceBridge(sharded.shard(0), 8), "dog"), List.of());
+        assertEquals(readIds(new RxJsonPersistenceBridge(sharded.shard(1), 8), "dog").size(), 10);
+        assertEquals(readIds(persistence, "dog").size(), 10);
+    }
+
+    static JsonDocument document(String entity, String id) {
+        JsonNode data = mapper.createObjectNode().put("name", id);
+        return new JsonDocument(new DocumentKey("ns", entity, id, T1), data);
+    }
+
+    static List<String> readIds(RxJsonPersistence persistence, String entity) {
+        try (Transaction tx = persistence.createTransaction(true)) {
+            return persistence.readDocuments(tx, T2, "ns", entity, Range.unbounded())
+                    .map(document -> document.key().id())
+                    .toList().blockingGet();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package no.ssb.lds.api.persistence.routing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.InMemoryRxPersistence;
+import no.ssb.lds.api.persistence.reactivex.Range;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ShardedRxPersistenceTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    List<InMemoryRxPersistence> shards;
+    ShardedRxPersistence sharded;
+    RxJsonPersistence persistence;
+
+    @BeforeMethod
+    public void setUp() {
+        shards = List.of(new InMemoryRxPersistence(), new InMemoryRxPersistence(), new InMemoryRxPersistence());
+        sharded = new ShardedRxPersistence(shards, new ShardMap(3, Map.of("ns/dog", 2)));
+        persistence = new RxJsonPersistenceBridge(sharded, 8);
+        try (Transaction tx = persistence.createTransaction(false)) {
+            for (int i = 0; i < 10; i++) {
+                persistence.createOrOverwrite(tx, document("cat", "c" + i, "Cat " + i), null).blockingAwait();
+                persistence.createOrOverwrite(tx, document("dog", "d" + i, "Dog " + i), null).blockingAwait();
+            }
+        }
+    }
+
+    static JsonDocument document(String entity, String id, String name) {
+        JsonNode data = mapper.createObjectNode().put("name", name);
+        return new JsonDocument(new DocumentKey("ns", entity, id, T1), data);
+    }
+
+    List<String> readIds(String entity, Range<String> range) {
+        try (Transaction tx = persistence.createTransaction(true)) {
+            return persistence.readDocuments(tx, T2, "ns", entity, range)
+                    .map(document -> document.key().id())
+                    .toList().blockingGet();
+        }
+    }
+
+    long shardSize(int shard, String entity) {
+        try (Transaction tx = shards.get(shard).createTransaction(true)) {
+            return shards.get(shard).readAll(tx, T2, "ns", entity, Range.unbounded())
+                    .map(fragment -> fragment.id()).distinct().count().blockingGet();
+        }
+    }
+
+    @Test
+    public void thatScansAreMergedInIdOrderAcrossShards() {
+        assertEquals(readIds("cat", Range.unbounded()),
+                List.of("c0", "c1", "c2", "c3", "c4", "c5", "c6", "c7", "c8", "c9"));
+        assertEquals(readIds("cat", Range.firstAfter(3, "c2")), List.of("c3", "c4", "c5"));
+        assertEquals(readIds("cat", Range.lastBefore(3, "c7")), List.of("c6", "c5", "c4"));
+    }
+
+    @Test
+    public void thatDocumentsAreSpreadOverShards() {
+        long total = 0;
+        for (int shard = 0; shard < 3; shard++) {
+            total += shardSize(shard, "cat");
+        }
+        assertEquals(total, 10);
+        assertTrue(shardSize(0, "cat") < 10);
+    }
+
+    @Test
+    public void thatPinnedEntitiesAreKeptOnOneShard() {
+        assertEquals(shardSize(2, "dog"), 10);
+        assertEquals(shardSize(0, "dog"), 0);
+        assertEquals(shardSize(1, "dog"), 0);
+        List<String> ids = readIds("dog", Range.first(4));
+        assertEquals(ids, List.of("d0", "d1", "d2", "d3"));
+        try (Transaction tx = persistence.createTransaction(true)) {
+            assertEquals(persistence.readDocument(tx, T2, "ns", "dog", "d5").blockingGet().jackson().get("name").textValue(), "Dog 5");
+            assertEquals(persistence.readDocuments(tx, T2, "ns", "cat", List.of("c7", "c1", "c4"))
+                    .map(document -> document.key().id()).toList().blockingGet().stream().sorted()
+                    .collect(Collectors.toList()), List.of("c1", "c4", "c7"));
+        }
+    }
+}
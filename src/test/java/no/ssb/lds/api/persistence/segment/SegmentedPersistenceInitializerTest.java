@@ -0,0 +1,92 @@
+package no.ssb.lds.api.persistence.segment;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.PersistenceInitializer;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class SegmentedPersistenceInitializerTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    private Path directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("segments");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    static PersistenceInitializer loadInitializer(String providerId) {
+        return ServiceLoader.load(PersistenceInitializer.class).stream()
+                .map(ServiceLoader.Provider::get)
+                .filter(initializer -> providerId.equals(initializer.persistenceProviderId()))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No registered persistence provider with id: " + providerId));
+    }
+
+    Map<String, String> configuration() {
+        return Map.of(
+                SegmentedPersistenceInitializer.DIRECTORY, directory.toString(),
+                SegmentedPersistenceInitializer.SEGMENT_SIZE, "1024",
+                SegmentedPersistenceInitializer.FRAGMENT_CAPACITY, "8"
+        );
+    }
+
+    @Test
+    public void thatSegmentProviderIsRegistered() {
+        assertTrue(loadInitializer("segment") instanceof SegmentedPersistenceInitializer);
+    }
+
+    @Test
+    public void thatLoadedProviderIsInitializedFromConfiguration() {
+        PersistenceInitializer initializer = loadInitializer("segment");
+
+        RxJsonPersistence persistence = initializer.initialize("ns", configuration(), Set.of(), null);
+        try (Transaction tx = persistence.createTransaction(false)) {
+            JsonNode data = mapper.createObjectNode().put("name", "Garfield");
+            persistence.createOrOverwrite(tx, new JsonDocument(new DocumentKey("ns", "cat", "c1", T1), data), null).blockingAwait();
+        }
+        persistence.close();
+
+        RxJsonPersistence reopened = initializer.initialize("ns", configuration(), Set.of(), null);
+        try (Transaction tx = reopened.createTransaction(true)) {
+            JsonDocument document = reopened.readDocument(tx, T2, "ns", "cat", "c1").blockingGet();
+            assertEquals(document.jackson().get("name").textValue(), "Garfield");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void thatMissingDirectoryIsRejected() {
+        loadInitializer("segment").initialize("ns", Map.of(), Set.of(), null);
+    }
+}
@@ -0,0 +1,137 @@
+package no.ssb.lds.api.persistence.segment;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.memory.Mutation;
+import no.ssb.lds.api.persistence.memory.VersionKey;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class SegmentedRxPersistenceTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    private Path directory;
+    private SegmentedRxPersistence provider;
+    private RxJsonPersistence persistence;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("segments");
+        open();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        persistence.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    void open() {
+        provider = new SegmentedRxPersistence(directory, 1024, null);
+        persistence = new RxJsonPersistenceBridge(provider, 8);
+    }
+
+    void reopen() {
+        persistence.close();
+        open();
+    }
+
+    static JsonDocument document(String id, ZonedDateTime timestamp, String name) {
+        JsonNode data = mapper.createObjectNode().put("name", name);
+        return new JsonDocument(new DocumentKey("ns", "cat", id, timestamp), data);
+    }
+
+    void write(JsonDocument... documents) {
+        try (Transaction tx = persistence.createTransaction(false)) {
+            for (JsonDocument document : documents) {
+                persistence.createOrOverwrite(tx, document, null).blockingAwait();
+            }
+        }
+    }
+
+    String readName(ZonedDateTime snapshot, String id) {
+        try (Transaction tx = persistence.createTransaction(true)) {
+            JsonDocument document = persistence.readDocument(tx, snapshot, "ns", "cat", id).blockingGet();
+            return document == null ? null : document.jackson().get("name").textValue();
+        }
+    }
+
+    @Test
+    public void thatCommittedDocumentsAreReadAfterReopening() {
+        write(document("1", T1, "Garfield"), document("2", T1, "Tom"));
+        write(document("1", T2, "Grumpy"));
+        try (Transaction tx = persistence.createTransaction(false)) {
+            persistence.deleteAllDocumentVersions(tx, "ns", "cat", "2", null).blockingAwait();
+        }
+        // Statistics are not recovered, so check the commits before reopening.
+        assertTrue(provider.statistics().get(SegmentedRxPersistence.COMMIT_BYTES).count() >= 3);
+
+        reopen();
+
+        assertEquals(readName(T1, "1"), "Garfield");
+        assertEquals(readName(T2, "1"), "Grumpy");
+        assertNull(readName(T2, "2"));
+    }
+
+    @Test
+    public void thatRecordsAfterTheLastCommitAreDiscarded() {
+        write(document("1", T1, "Garfield"));
+        reopen();
+        persistence.close();
+
+        // A commit that was torn before its commit record was written.
+        try (Segment segment = Segment.open(directory, 0, 1024)) {
+            segment.recover((s, offset) -> {
+            });
+            segment.append(SegmentRecords.REMOVE, SegmentRecords.encodeRemove(Mutation.remove(
+                    VersionKey.firstOf("ns", "cat", "1"), VersionKey.lastOf("ns", "cat", "1"))));
+            segment.force();
+        }
+
+        open();
+        assertEquals(readName(T1, "1"), "Garfield");
+        write(document("2", T1, "Tom"));
+        reopen();
+        assertEquals(readName(T1, "1"), "Garfield");
+        assertEquals(readName(T1, "2"), "Tom");
+    }
+
+    @Test
+    public void thatCompactionDeletesFullSegmentsAndKeepsLiveVersions() {
+        for (int i = 0; i < 20; i++) {
+            write(document("1", T1, "Garfield " + i), document("2", T1, "Tom " + i));
+        }
+        int segments = provider.segmentCount();
+        assertTrue(segments > 2, "segments: " + segments);
+
+        provider.compact();
+
+        assertTrue(provider.segmentCount() < segments, "segments: " + provider.segmentCount());
+        assertEquals(readName(T1, "1"), "Garfield 19");
+        reopen();
+        assertEquals(readName(T1, "1"), "Garfield 19");
+        assertEquals(readName(T1, "2"), "Tom 19");
+    }
+}
@@ -0,0 +1,65 @@
+package no.ssb.lds.api.persistence.wal;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import no.ssb.lds.api.persistence.DocumentKey;
+import no.ssb.lds.api.persistence.Transaction;
+import no.ssb.lds.api.persistence.json.JsonDocument;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistence;
+import no.ssb.lds.api.persistence.reactivex.RxJsonPersistenceBridge;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+
+import static java.time.ZonedDateTime.parse;
+import static no.ssb.lds.api.persistence.json.JsonTools.mapper;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class WalRxPersistenceTest {
+
+    static final ZonedDateTime T1 = parse("2000-01-01T00:00:00.000Z");
+    static final ZonedDateTime T2 = parse("2001-01-01T00:00:00.000Z");
+
+    static JsonDocument document(String id, ZonedDateTime timestamp, String name) {
+        JsonNode data = mapper.createObjectNode().put("name", name);
+        return new JsonDocument(new DocumentKey("ns", "cat", id, timestamp), data);
+    }
+
+    static String readName(RxJsonPersistence persistence, String id) {
+        try (Transaction tx = persistence.createTransaction(true)) {
+            JsonDocument document = persistence.readDocument(tx, T2, "ns", "cat", id).blockingGet();
+            return document == null ? null : document.jackson().get("name").textValue();
+        }
+    }
+
+    @Test
+    public void thatTheStoreIsRebuiltFromTheLog() throws IOException {
+        Path file = Files.createTempFile("persistence", ".wal");
+        try {
+            WalRxPersistence provider = new WalRxPersistence(file, Duration.ZERO);
+            RxJsonPersistence persistence = new RxJsonPersistenceBridge(provider, 8);
+            try (Transaction tx = persistence.createTransaction(false)) {
+                persistence.createOrOverwrite(tx, document("1", T1, "Garfield"), null).blockingAwait();
+                persistence.createOrOverwrite(tx, document("2", T1, "Tom"), null).blockingAwait();
+            }
+            try (Transaction tx = persistence.createTransaction(false)) {
+                persistence.markDocumentDeleted(tx, "ns", "cat", "2", T2, null).blockingAwait();
+            }
+            assertEquals(provider.statistics().get(WriteAheadLog.SYNC_ENTRIES).sum(), 2);
+            persistence.close();
+
+            WalRxPersistence reopened = new WalRxPersistence(file, Duration.ZERO);
+            persistence = new RxJsonPersistenceBridge(reopened, 8);
+            assertEquals(readName(persistence, "1"), "Garfield");
+            assertNull(readName(persistence, "2"));
+            assertEquals(reopened.statistics().get(WriteAheadLog.RECOVERED_ENTRIES), 2);
+            persistence.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
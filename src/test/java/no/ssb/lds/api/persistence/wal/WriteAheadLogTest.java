@@ -0,0 +1,120 @@
+package no.ssb.lds.api.persistence.wal;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class WriteAheadLogTest {
+
+    private Path directory;
+    private Path file;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("wal");
+        file = directory.resolve("test.wal");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    List<String> replay() {
+        List<String> replayed = new ArrayList<>();
+        WriteAheadLog.open(file, Duration.ZERO, entry -> replayed.add(new String(entry, StandardCharsets.UTF_8))).close();
+        return replayed;
+    }
+
+    @Test
+    public void thatEntriesAreReplayedInOrderAfterReopening() {
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        try (WriteAheadLog log = WriteAheadLog.open(file, Duration.ZERO, entry -> {
+        })) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                String value = "entry " + i;
+                futures.add(log.append(bytes(value), () -> applied.add(value)));
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        }
+
+        assertEquals(replay(), applied);
+        assertEquals(applied.size(), 10);
+    }
+
+    @Test
+    public void thatConcurrentAppendsShareSyncs() {
+        int entries = 200;
+        try (WriteAheadLog log = WriteAheadLog.open(file, Duration.ofMillis(5), entry -> {
+        })) {
+            List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < entries / 4; i++) {
+                        futures.add(log.append(bytes("entry"), () -> {
+                        }));
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+            assertEquals(log.statistics().get(WriteAheadLog.SYNC_ENTRIES).sum(), entries);
+            assertTrue(log.statistics().get(WriteAheadLog.SYNCS) < entries, "syncs: " + log.statistics().get(WriteAheadLog.SYNCS));
+            assertEquals(log.statistics().get(WriteAheadLog.COMMIT_LATENCY_NANOS).count(), entries);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        assertEquals(replay().size(), entries);
+    }
+
+    @Test
+    public void thatATornTailIsTruncated() throws IOException {
+        try (WriteAheadLog log = WriteAheadLog.open(file, Duration.ZERO, entry -> {
+        })) {
+            log.append(bytes("first"), () -> {
+            }).join();
+            log.append(bytes("second"), () -> {
+            }).join();
+        }
+        long size = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 2);
+        }
+
+        assertEquals(replay(), List.of("first"));
+        try (WriteAheadLog log = WriteAheadLog.open(file, Duration.ZERO, entry -> {
+        })) {
+            assertEquals(log.statistics().get(WriteAheadLog.RECOVERED_ENTRIES), 1);
+            log.append(bytes("third"), () -> {
+            }).join();
+        }
+        assertEquals(replay(), List.of("first", "third"));
+    }
+}